@@ -0,0 +1,76 @@
+package com.llnw.storage.client.benchmark;
+
+import com.llnw.storage.client.io.Chunk;
+import com.llnw.storage.client.io.HeartbeatInputStream;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SHA-256 over a memory mapped chunk, as uploadPart does before sending every piece.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ChunkDigestBenchmark {
+
+    @Param({"1048576", "16777216"})
+    public int chunkSize;
+
+    private File file;
+    private FileInputStream fis;
+    private FileChannel fc;
+    private Chunk chunk;
+
+
+    @Setup
+    public void setup() throws IOException {
+        file = File.createTempFile("chunk-digest", ".bin");
+        final byte[] block = new byte[1024 * 1024];
+        new Random(42).nextBytes(block);
+
+        final FileOutputStream os = new FileOutputStream(file);
+        try {
+            for (int written = 0; written < chunkSize; written += block.length) {
+                os.write(block, 0, Math.min(block.length, chunkSize - written));
+            }
+        } finally {
+            os.close();
+        }
+
+        fis = new FileInputStream(file);
+        fc = fis.getChannel();
+        chunk = new Chunk(0, 0, chunkSize, true);
+    }
+
+
+    @TearDown
+    public void teardown() throws IOException {
+        fc.close();
+        fis.close();
+        file.delete();
+    }
+
+
+    @Benchmark
+    public String mappedChunkSha256() throws IOException {
+        final InputStream is = HeartbeatInputStream.wrap(fc, chunk, null);
+        return DigestUtils.sha256Hex(is);
+    }
+}
@@ -0,0 +1,42 @@
+package com.llnw.storage.client.benchmark;
+
+import com.llnw.storage.client.io.Chunk;
+import com.llnw.storage.client.io.FixedChunks;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FixedChunksBenchmark {
+
+    @Param({"104857600", "1099511627776"}) // 100 MiB, 1 TiB
+    public long size;
+
+
+    @Benchmark
+    public long iterate() {
+        long total = 0;
+        for (Chunk chunk : new FixedChunks(size)) {
+            total += chunk.length;
+        }
+        return total;
+    }
+
+
+    @Benchmark
+    public long iterateSmallChunks() {
+        long total = 0;
+        for (Chunk chunk : new FixedChunks(size, 1024 * 1024, 1024 * 1024)) {
+            total += chunk.length;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,120 @@
+package com.llnw.storage.client.benchmark;
+
+import com.llnw.storage.client.io.ByteBuffers;
+import com.llnw.storage.client.io.HeartbeatInputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads through {@link HeartbeatInputStream#wrap(ByteBuffer, com.llnw.storage.client.io.ActivityCallback)},
+ * the path upload(ByteBuffer) used to take, one byte at a time and in 8 KiB blocks as httpclient does, against
+ * {@link ByteBuffers#write} which it takes now.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class HeartbeatInputStreamBenchmark {
+
+    @Param({"65536", "4194304"})
+    public int size;
+
+    private ByteBuffer heap;
+    private ByteBuffer direct;
+    private final byte[] block = new byte[8192];
+
+
+    @Setup
+    public void setup() {
+        final byte[] data = new byte[size];
+        new Random(42).nextBytes(data);
+        heap = ByteBuffer.wrap(data);
+        direct = ByteBuffer.allocateDirect(size);
+        direct.put(data).flip();
+    }
+
+
+    @Benchmark
+    public long heapSingleByte() throws IOException {
+        return drainSingle(HeartbeatInputStream.wrap(heap, null));
+    }
+
+
+    @Benchmark
+    public long heapBlock(Blackhole bh) throws IOException {
+        return drainBlock(HeartbeatInputStream.wrap(heap, null), bh);
+    }
+
+
+    @Benchmark
+    public long directBlock(Blackhole bh) throws IOException {
+        return drainBlock(HeartbeatInputStream.wrap(direct, null), bh);
+    }
+
+
+    @Benchmark
+    public long heapSlices(Blackhole bh) throws IOException {
+        return ByteBuffers.write(heap, new BlackholeOutputStream(bh), null);
+    }
+
+
+    @Benchmark
+    public long directSlices(Blackhole bh) throws IOException {
+        return ByteBuffers.write(direct, new BlackholeOutputStream(bh), null);
+    }
+
+
+    private static class BlackholeOutputStream extends OutputStream {
+        private final Blackhole bh;
+
+        private BlackholeOutputStream(Blackhole bh) {
+            this.bh = bh;
+        }
+
+        @Override
+        public void write(int b) {
+            bh.consume(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            bh.consume(b);
+        }
+    }
+
+
+    private static long drainSingle(InputStream is) throws IOException {
+        is.reset();
+        long sum = 0;
+        int b;
+        while ((b = is.read()) != -1) {
+            sum += b;
+        }
+        return sum;
+    }
+
+
+    private long drainBlock(InputStream is, Blackhole bh) throws IOException {
+        is.reset();
+        long total = 0;
+        int n;
+        while ((n = is.read(block, 0, block.length)) != -1) {
+            bh.consume(block);
+            total += n;
+        }
+        return total;
+    }
+}
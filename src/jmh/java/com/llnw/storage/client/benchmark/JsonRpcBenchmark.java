@@ -0,0 +1,125 @@
+package com.llnw.storage.client.benchmark;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.llnw.storage.client.EndpointHTTP;
+import com.llnw.storage.client.JsonRpcWriter;
+import com.llnw.storage.client.testsupport.FakeStorage;
+import com.llnw.storage.client.testsupport.FakeStorageServer;
+import org.apache.commons.io.Charsets;
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JSON-RPC round trips through {@link EndpointHTTP} against the in-process stand-in, plus the request
+ * encoding and response decoding steps on their own. noop is dominated by request serialization and
+ * framing, listFile by response parsing. encodeRequestWithGson is the map-and-reflection encoding the
+ * client used before {@link JsonRpcWriter}, kept as the baseline.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class JsonRpcBenchmark {
+
+    @Param({"10", "1000"})
+    public int listEntries;
+
+    private FakeStorageServer server;
+    private EndpointHTTP http;
+    private byte[] listResponse;
+    private final JsonRpcWriter writer = new JsonRpcWriter();
+    private final Gson gson = new Gson();
+    private int id;
+
+
+    @Setup
+    public void setup() throws IOException {
+        final FakeStorage storage = new FakeStorage().addUser("bench", "bench");
+        storage.makeDirectories("/bench");
+        for (int i = 0; i < listEntries; i++) {
+            storage.putFile("/bench/file-" + i + ".bin", new byte[0]);
+        }
+
+        server = new FakeStorageServer(storage).start();
+        http = new EndpointHTTP(server.getUrl(), "bench", "bench");
+        http.noop(); // login outside of the measurement
+        listResponse = listFileResponse(listEntries).getBytes(Charsets.UTF_8);
+    }
+
+
+    @TearDown
+    public void teardown() throws IOException {
+        http.close();
+        server.close();
+    }
+
+
+    @Benchmark
+    public void noopRoundTrip() throws IOException {
+        http.noop();
+    }
+
+
+    @Benchmark
+    public List<String> listFileRoundTrip() throws IOException {
+        return http.listFiles("/bench");
+    }
+
+
+    @Benchmark
+    public int encodeRequest() {
+        return writer.begin("listFile").param("path", "/bench/some/directory").param("pageSize", 10000)
+                .param("cookie", 0).param("token", "0123456789abcdef0123456789abcdef").end(++id).length();
+    }
+
+
+    @Benchmark
+    public int encodeRequestWithGson() {
+        final Map<String, Object> params = new HashMap<String, Object>();
+        params.put("path", "/bench/some/directory");
+        params.put("pageSize", 10000);
+        params.put("cookie", 0);
+        params.put("token", "0123456789abcdef0123456789abcdef");
+        final Map<String, Object> rpc = new LinkedHashMap<String, Object>();
+        rpc.put("jsonrpc", "2.0");
+        rpc.put("method", "listFile");
+        rpc.put("params", params);
+        rpc.put("id", ++id);
+        return gson.toJson(rpc).getBytes(Charsets.ISO_8859_1).length;
+    }
+
+
+    @Benchmark
+    public JsonElement decodeListResponse() throws IOException {
+        // Same steps as EndpointHTTP.responseToString followed by JsonParser.parse
+        final String response = IOUtils.toString(new ByteArrayInputStream(listResponse), Charsets.UTF_8);
+        return new JsonParser().parse(response);
+    }
+
+
+    private static String listFileResponse(int entries) {
+        final StringBuilder sb = new StringBuilder("{\"jsonrpc\":\"2.0\",\"id\":1,\"result\":{\"code\":0,\"list\":[");
+        for (int i = 0; i < entries; i++) {
+            if (i > 0) sb.append(',');
+            sb.append("{\"name\":\"file-").append(i).append(".bin\",\"type\":2}");
+        }
+        return sb.append("]}}").toString();
+    }
+}
@@ -0,0 +1,255 @@
+package com.llnw.storage.client;
+
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.JsonElement;
+import com.llnw.storage.client.metrics.EndpointMetrics;
+import org.joda.time.Duration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds the login token for one set of credentials so any number of {@link EndpointHTTP}s can share it.
+ *
+ * Only one login, whether for a first token, a refused one or a background refresh, is in flight at a time;
+ * callers that need a token meanwhile wait for its result. Once logged in, the token is replaced in the
+ * background every refresh interval, ahead of the server expiring it, so logins stay off the request path. An
+ * endpoint whose call is refused for an invalid token reports it through {@link #invalidate} and retries once
+ * with a fresh one.
+ *
+ * Logins and logouts are ordinary calls made through one of the endpoints using the manager, so they share its
+ * transport, metrics and diagnostics. Endpoints register when they are created and deregister when closed; the
+ * last one to go logs out, and a login that finishes after that is never installed.
+ */
+@ThreadSafe
+public class AuthTokenManager {
+    private static final Logger log = LoggerFactory.getLogger(AuthTokenManager.class);
+
+    static final int INVALID_TOKEN = -10001;
+
+    private static final Duration DEFAULT_REFRESH_INTERVAL = Duration.standardMinutes(20);
+
+    /** One daemon thread refreshes the tokens of every manager in the process. */
+    private static final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("locs-token-refresh").setDaemon(true).build());
+
+    private final URL endpoint;
+    private final String username;
+    private final String password;
+    private final Object loginLock = new Object();
+    private final Set<EndpointHTTP> users = new CopyOnWriteArraySet<EndpointHTTP>(); // read without the locks
+
+    private volatile EndpointMetrics metrics = EndpointMetrics.disabled();
+    private volatile Duration refreshInterval = DEFAULT_REFRESH_INTERVAL;
+    private volatile String token;
+
+    @GuardedBy("this") @Nullable private ScheduledFuture<?> refresh;
+
+
+    public AuthTokenManager(URL endpoint, String username, String password) {
+        this.endpoint = endpoint;
+        this.username = username;
+        this.password = password;
+    }
+
+
+    /**
+     * Where invalidated tokens are counted. Logins themselves are counted by the endpoint they go through.
+     */
+    public void setMetrics(EndpointMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+
+    /**
+     * How long a token is used before it is replaced in the background; keep it under the server's token
+     * lifetime. Duration.ZERO turns background refresh off, leaving tokens to be renewed when refused.
+     */
+    public synchronized void setRefreshInterval(Duration refreshInterval) {
+        this.refreshInterval = refreshInterval;
+        if (refresh != null) {
+            refresh.cancel(false);
+            refresh = null;
+            scheduleRefresh();
+        }
+    }
+
+
+    public URL getEndpoint() {
+        return endpoint;
+    }
+
+
+    public String getUsername() {
+        return username;
+    }
+
+
+    synchronized void acquire(EndpointHTTP user) {
+        users.add(user);
+    }
+
+
+    /**
+     * Deregister an endpoint, logging out through it and stopping the refresh when it was the last one. A login
+     * in flight finishes first, so its token is the one logged out.
+     */
+    void release(EndpointHTTP user) throws IOException {
+        final String last;
+        synchronized (this) {
+            if (!users.remove(user)) throw new IllegalStateException("release without acquire");
+            if (!users.isEmpty()) return;
+
+            if (refresh != null) {
+                refresh.cancel(false);
+                refresh = null;
+            }
+            synchronized (loginLock) {
+                last = token;
+                token = null;
+            }
+        }
+
+        if (last != null) logout(user, last);
+    }
+
+
+    /**
+     * @return the current token, logging in through any endpoint using the manager if there is none
+     */
+    public String getToken() throws IOException {
+        return getToken(null);
+    }
+
+
+    /**
+     * @param via the endpoint asking, which logs in itself if need be
+     */
+    String getToken(@Nullable EndpointHTTP via) throws IOException {
+        final String current = token;
+        if (current != null) return current;
+
+        final String fresh;
+        synchronized (loginLock) {
+            if (token != null) return token;
+            if (users.isEmpty()) throw new EndpointException("Token manager for " + username + " was released");
+            fresh = token = login(via);
+        }
+
+        synchronized (this) { // not under loginLock, release() takes them the other way round
+            if (refresh == null && !users.isEmpty()) scheduleRefresh();
+        }
+        return fresh;
+    }
+
+
+    /**
+     * Report that the server refused a token. If it is still the current one it is dropped, so the next
+     * {@link #getToken} logs in again; callers that got it from an earlier login don't cause another.
+     */
+    public void invalidate(@Nullable String refused) {
+        synchronized (loginLock) {
+            if (refused != null && refused.equals(token)) {
+                metrics.event("login.invalidated");
+                token = null;
+            }
+        }
+    }
+
+
+    /**
+     * Replace the token now and log the old one out, so each refresh doesn't leave a session behind on the
+     * server. Calls the old token is refused for retry once with the new one. Does nothing once the last
+     * endpoint has gone.
+     */
+    public void refresh() throws IOException {
+        final EndpointHTTP via;
+        final String stale;
+        synchronized (loginLock) {
+            if (users.isEmpty()) return;
+            via = anyUser();
+            stale = token;
+            token = login(via);
+        }
+
+        if (stale == null) return;
+        try {
+            logout(via, stale);
+        } catch (IOException e) {
+            log.warn("Couldn't log out the replaced token for {}, leaving it to expire", username, e);
+        }
+    }
+
+
+    @GuardedBy("this")
+    private void scheduleRefresh() {
+        final long millis = refreshInterval.getMillis();
+        if (millis <= 0) return;
+
+        refresh = refresher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refresh();
+                } catch (IOException e) {
+                    log.warn("Couldn't refresh token for {}, will log in on next use", username, e);
+                    synchronized (loginLock) {
+                        token = null;
+                    }
+                } catch (RuntimeException e) {
+                    log.warn("Couldn't refresh token for {}", username, e);
+                }
+            }
+        }, millis, millis, TimeUnit.MILLISECONDS);
+    }
+
+
+    @GuardedBy("loginLock")
+    private String login(@Nullable EndpointHTTP via) throws IOException {
+        final EndpointHTTP endpoint = via != null ? via : anyUser();
+        final JsonElement result = endpoint.call("login", null, "username", username, "password", password);
+        final String fresh = result.isJsonArray() && result.getAsJsonArray().size() > 0 &&
+                !result.getAsJsonArray().get(0).isJsonNull() ?
+                result.getAsJsonArray().get(0).getAsString() : null;
+
+        if (Strings.isNullOrEmpty(fresh)) {
+            log.error("Null or empty auth for {}", username);
+            throw new EndpointException("Null or empty auth for " + username);
+        }
+        return fresh;
+    }
+
+
+    private void logout(EndpointHTTP via, String stale) throws IOException {
+        final JsonElement result = via.call("logout", stale);
+        if (result.isJsonNull()) {
+            throw new EndpointException("Couldn't logout");
+        }
+
+        final int returnCode = result.getAsInt();
+        if (returnCode != 0) { // 0 indicates success
+            throw new EndpointException("Couldn't logout: " + returnCode);
+        }
+    }
+
+
+    private EndpointHTTP anyUser() {
+        final Iterator<EndpointHTTP> it = users.iterator();
+        if (!it.hasNext()) throw new IllegalStateException("No endpoint is using the token manager for " + username);
+        return it.next();
+    }
+}
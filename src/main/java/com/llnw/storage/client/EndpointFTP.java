@@ -2,12 +2,17 @@ package com.llnw.storage.client;
 
 import com.google.common.base.Function;
 import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
 import com.llnw.storage.client.io.ActivityCallback;
+import com.llnw.storage.client.io.ByteBuffers;
 import com.llnw.storage.client.io.HeartbeatInputStream;
+import com.llnw.storage.client.io.MemoryBudget;
+import com.llnw.storage.client.metrics.EndpointMetrics;
+import com.llnw.storage.client.metrics.OperationStats;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.net.ftp.FTP;
 import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPCommand;
 import org.apache.commons.net.ftp.FTPConnectionClosedException;
 import org.apache.commons.net.ftp.FTPFile;
 import org.apache.commons.net.ftp.FTPReply;
@@ -16,10 +21,18 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import javax.net.SocketFactory;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 import java.util.Arrays;
 import java.util.List;
 
@@ -27,13 +40,18 @@ public class EndpointFTP implements Endpoint {
     private static final Logger log = LoggerFactory.getLogger(EndpointFTP.class);
 
     private static final int THIRTY_SECONDS_MILLIS = (int)Duration.standardSeconds(30).getMillis();
+    private static final long TRANSFER_SLICE = 1024 * 1024; // 1 MiB between heartbeats
 
-    private final FTPClient client = new FTPClient();
+    private final TransferClient client = new TransferClient();
     private final String host;
     private final int port;
     private final String username;
     private final String password;
 
+    private EndpointMetrics metrics = EndpointMetrics.disabled();
+    private MemoryBudget memoryBudget = MemoryBudget.shared();
+    private Duration memoryWait = Duration.standardMinutes(5);
+
 
     public EndpointFTP(String host, String username, String password) {
         this(host, FTPClient.DEFAULT_PORT, username, password);
@@ -48,15 +66,36 @@ public class EndpointFTP implements Endpoint {
     }
 
 
+    public void setMetrics(EndpointMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+
+    /**
+     * Budget that buffer uploads reserve their size from before they start, as on {@link EndpointHTTP}. The
+     * process-wide shared budget, waiting 5 minutes, by default.
+     */
+    public void setMemoryBudget(MemoryBudget memoryBudget, Duration maxWait) {
+        this.memoryBudget = memoryBudget;
+        this.memoryWait = maxWait;
+    }
+
+
     @Override
     public void deleteDirectory(String path) throws IOException {
         ensureConnected();
+        final OperationStats stats = metrics.operation("RMD");
+        final long start = stats.begin();
+        boolean success = false;
         try {
             if (!client.removeDirectory(path)) {
                 throw new EndpointException("Couldn't delete " + path + ": " + client.getReplyCode());
             }
+            success = true;
         } catch (IOException e) {
             throw EndpointUtil.unwindInterruptException(e);
+        } finally {
+            stats.end(start, 0, success);
         }
     }
 
@@ -64,12 +103,18 @@ public class EndpointFTP implements Endpoint {
     @Override
     public void deleteFile(String path) throws IOException {
         ensureConnected();
+        final OperationStats stats = metrics.operation("DELE");
+        final long start = stats.begin();
+        boolean success = false;
         try {
             if (!client.deleteFile(path)) {
                 throw new EndpointException("Couldn't delete " + path + ": " + client.getReplyCode());
             }
+            success = true;
         } catch (IOException e) {
             throw EndpointUtil.unwindInterruptException(e);
+        } finally {
+            stats.end(start, 0, success);
         }
     }
 
@@ -109,6 +154,9 @@ public class EndpointFTP implements Endpoint {
         // we have an explicit path ("/foo/bar" as opposed to "foo/bar") since we might be on
         // an FTP server administrated by some joker who won't let us chdir to /
 
+        final OperationStats stats = metrics.operation("MKD");
+        final long start = stats.begin();
+        boolean success = false;
         try {
             final StringBuilder current = new StringBuilder("/");
             final String[] dirs = path.split("/");
@@ -127,23 +175,22 @@ public class EndpointFTP implements Endpoint {
                     }
                 }
             }
+            success = true;
         } catch (IOException e) {
             throw EndpointUtil.unwindInterruptException(e);
         } finally {
-            client.changeWorkingDirectory(starting);
+            try {
+                client.changeWorkingDirectory(starting);
+            } finally {
+                stats.end(start, 0, success);
+            }
         }
     }
 
 
     @Override
     public List<String> listFiles(String path) throws IOException {
-        ensureConnected();
-        FTPFile[] files = null;
-        try {
-            files = client.listFiles(path);
-        } catch (IOException e) {
-            throw EndpointUtil.unwindInterruptException(e);
-        }
+        final FTPFile[] files = list(path);
 
         if (files == null)
             return Lists.newArrayList();
@@ -157,6 +204,23 @@ public class EndpointFTP implements Endpoint {
     }
 
 
+    @Override
+    public List<RemoteFile> listDetails(String path) throws IOException {
+        final FTPFile[] files = list(path);
+        final List<RemoteFile> details = Lists.newArrayList();
+
+        if (files == null)
+            return details;
+
+        for (FTPFile file : files) {
+            if (file == null || ".".equals(file.getName()) || "..".equals(file.getName())) continue;
+            final long mtime = file.getTimestamp() == null ? 0 : file.getTimestamp().getTimeInMillis() / 1000;
+            details.add(new RemoteFile(file.getName(), file.isDirectory(), file.getSize(), mtime));
+        }
+        return details;
+    }
+
+
     @Override
     public boolean exists(String path) throws IOException {
         return !listFiles(path).isEmpty();
@@ -166,33 +230,160 @@ public class EndpointFTP implements Endpoint {
     @Override
     public void noop() throws IOException {
         ensureConnected(); // Uses noop to verify connection
+        final OperationStats stats = metrics.operation("NOOP");
+        final long start = stats.begin();
+        boolean success = false;
         try {
             client.noop();
+            success = true;
         } catch (IOException e) {
             throw EndpointUtil.unwindInterruptException(e);
+        } finally {
+            stats.end(start, 0, success);
         }
     }
 
+    /**
+     * Sends the file over a data connection opened on a SocketChannel, handing it to the kernel a slice at a
+     * time with FileChannel.transferTo rather than copying it through user space. The callback is called
+     * before each slice, and the stored size is checked where the server supports SIZE.
+     */
     @Override
     public void upload(File file, String path, String name, @Nullable ActivityCallback callback) throws IOException {
-        this.upload(new HeartbeatInputStream(file, callback), path, name);
+        ensureConnected();
+        final OperationStats stats = metrics.operation("STOR");
+        final long start = stats.begin();
+        boolean success = false;
+        long bytes = 0;
+        @SuppressWarnings("resource")
+        final FileChannel fc = new FileInputStream(file).getChannel();
+        try {
+            final String target = path + "/" + name;
+            final Socket socket = client.openStore(target);
+            if (socket == null) {
+                throw new EndpointException("Couldn't store " + name + " on the server: " + client.getReplyCode());
+            }
+            try {
+                bytes = transfer(fc, socket, callback);
+            } finally {
+                socket.close();
+            }
+            if (!client.completePendingCommand()) {
+                throw new EndpointException("Couldn't store " + name + " on the server: " + client.getReplyCode());
+            }
+            checkSize(target, bytes);
+            success = true;
+        } catch (IOException e) {
+            throw EndpointUtil.unwindInterruptException(e);
+        } finally {
+            try {
+                fc.close();
+            } finally {
+                stats.end(start, bytes, success);
+            }
+        }
+    }
+
+
+    /**
+     * @return bytes sent, the whole file
+     */
+    private static long transfer(FileChannel fc, Socket socket, @Nullable ActivityCallback callback)
+            throws IOException {
+        final SocketChannel channel = socket.getChannel();
+        if (channel == null) { // a socket from elsewhere, such as an active mode accept
+            final OutputStream os = socket.getOutputStream();
+            final long copied = ByteStreams.copy(new HeartbeatInputStream(Channels.newInputStream(fc), callback), os);
+            os.flush();
+            return copied;
+        }
+
+        final long size = fc.size();
+        long position = 0;
+        while (position < size) {
+            if (callback != null) callback.callback();
+            final long sent = fc.transferTo(position, Math.min(TRANSFER_SLICE, size - position), channel);
+            if (sent == 0 && fc.size() <= position) {
+                throw new EndpointException("File shrank to " + fc.size() + " bytes while sending " + size);
+            }
+            position += sent;
+        }
+        return position;
     }
 
     @Override
-    public void upload(ByteBuffer byteBuffer, String path, String name, @Nullable ActivityCallback callback) throws IOException {
-        this.upload(HeartbeatInputStream.wrap(byteBuffer, callback), path, name);
+    public void upload(ByteBuffer byteBuffer, String path, String name, @Nullable ActivityCallback callback)
+            throws IOException {
+        upload(new ByteBuffer[] { byteBuffer }, path, name, callback);
     }
 
-    private void upload(HeartbeatInputStream heartbeatStream, String path, String name) throws IOException {
+
+    /**
+     * Sends the buffers' remaining bytes in order as one file, checks the stored size where the server
+     * supports SIZE, and leaves each buffer's position at its limit.
+     */
+    @Override
+    public void upload(ByteBuffer[] byteBuffers, String path, String name, @Nullable ActivityCallback callback)
+            throws IOException {
         ensureConnected();
+        final long reserved = ByteBuffers.remaining(byteBuffers);
+        memoryBudget.acquire(reserved, memoryWait);
+
+        final OperationStats stats = metrics.operation("STOR");
+        final long start = stats.begin();
+        boolean success = false;
+        long bytes = 0;
         try {
-            if (!client.storeFile(path + "/" + name, heartbeatStream)) {
+            final String target = path + "/" + name;
+            final OutputStream os = client.storeFileStream(target);
+            if (os == null) {
+                throw new EndpointException("Couldn't store " + name + " on the server: " + client.getReplyCode());
+            }
+            try {
+                bytes = ByteBuffers.write(byteBuffers, os, callback);
+            } finally {
+                os.close();
+            }
+            if (!client.completePendingCommand()) {
                 throw new EndpointException("Couldn't store " + name + " on the server: " + client.getReplyCode());
             }
+            checkSize(target, bytes);
+            ByteBuffers.consume(byteBuffers);
+            success = true;
         } catch (IOException e) {
             throw EndpointUtil.unwindInterruptException(e);
         } finally {
-            IOUtils.closeQuietly(heartbeatStream);
+            memoryBudget.release(reserved);
+            stats.end(start, bytes, success);
+        }
+    }
+
+
+    private void checkSize(String target, long expected) throws IOException {
+        if (client.sendCommand("SIZE", target) != FTPReply.FILE_STATUS) return; // SIZE isn't universal
+
+        final String reply = client.getReplyString().trim();
+        final String size = reply.substring(reply.lastIndexOf(' ') + 1);
+        if (!Long.toString(expected).equals(size)) {
+            throw new EndpointException("Size of " + target + ", got: " + size + ", expected: " + expected);
+        }
+    }
+
+
+    @Nullable
+    private FTPFile[] list(String path) throws IOException {
+        ensureConnected();
+        final OperationStats stats = metrics.operation("LIST");
+        final long start = stats.begin();
+        boolean success = false;
+        try {
+            final FTPFile[] files = client.listFiles(path);
+            success = true;
+            return files;
+        } catch (IOException e) {
+            throw EndpointUtil.unwindInterruptException(e);
+        } finally {
+            stats.end(start, 0, success);
         }
     }
 
@@ -205,29 +396,100 @@ public class EndpointFTP implements Endpoint {
                 // Oh, we're closed, OK :)
             }
 
-            // Set timeouts
-            client.setConnectTimeout(THIRTY_SECONDS_MILLIS);
-            client.setDataTimeout(THIRTY_SECONDS_MILLIS);
-            client.setControlKeepAliveTimeout(120);
+            final OperationStats stats = metrics.operation("connect");
+            final long start = stats.begin();
+            boolean success = false;
+            try {
+                login();
+                success = true;
+            } finally {
+                stats.end(start, 0, success);
+            }
+        } catch (IOException e) {
+            throw EndpointUtil.unwindInterruptException(e);
+        }
+    }
 
-            client.connect(host, port);
-            // Set SO_TIMEOUT _AFTER_ connect because ??
-            client.setSoTimeout(THIRTY_SECONDS_MILLIS);
 
-            if (FTPReply.isPositiveCompletion(client.getReplyCode())) {
-                if (client.login(username, password)) {
-                    client.enterLocalPassiveMode();
-                    client.setFileType(FTP.BINARY_FILE_TYPE);
-                } else {
-                    client.disconnect();
-                    throw new EndpointException("Couldn't log into FTP server");
-                }
+    private void login() throws IOException {
+        // Set timeouts
+        client.setConnectTimeout(THIRTY_SECONDS_MILLIS);
+        client.setDataTimeout(THIRTY_SECONDS_MILLIS);
+        client.setControlKeepAliveTimeout(120);
+
+        client.connect(host, port);
+        // Set SO_TIMEOUT _AFTER_ connect because ??
+        client.setSoTimeout(THIRTY_SECONDS_MILLIS);
+
+        if (FTPReply.isPositiveCompletion(client.getReplyCode())) {
+            if (client.login(username, password)) {
+                client.enterLocalPassiveMode();
+                client.setFileType(FTP.BINARY_FILE_TYPE);
             } else {
                 client.disconnect();
-                throw new EndpointException("Couldn't connect to FTP server: " + host + ":" + port);
+                throw new EndpointException("Couldn't log into FTP server");
             }
-        } catch (IOException e) {
-            throw EndpointUtil.unwindInterruptException(e);
+        } else {
+            client.disconnect();
+            throw new EndpointException("Couldn't connect to FTP server: " + host + ":" + port);
+        }
+    }
+
+
+    /**
+     * FTPClient that can open a STOR data connection over a SocketChannel, so file bytes can go out through
+     * transferTo. The control connection keeps plain sockets.
+     */
+    private static final class TransferClient extends FTPClient {
+        private final ChannelSocketFactory sockets = new ChannelSocketFactory();
+
+        private TransferClient() {
+            setSocketFactory(sockets);
+        }
+
+        /**
+         * @return the data connection, or null if the server refused the STOR
+         */
+        @Nullable
+        Socket openStore(String remote) throws IOException {
+            sockets.channels = true;
+            try {
+                return _openDataConnection_(FTPCommand.STOR, remote);
+            } finally {
+                sockets.channels = false;
+            }
+        }
+    }
+
+
+    private static final class ChannelSocketFactory extends SocketFactory {
+        private final SocketFactory plain = SocketFactory.getDefault();
+        private volatile boolean channels; // set by the thread opening a data connection
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return channels ? SocketChannel.open().socket() : plain.createSocket();
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return plain.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return plain.createSocket(host, port, localHost, localPort);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return plain.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+                throws IOException {
+            return plain.createSocket(address, port, localAddress, localPort);
         }
     }
 }
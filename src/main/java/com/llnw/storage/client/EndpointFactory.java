@@ -1,30 +1,247 @@
 package com.llnw.storage.client;
 
 import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.llnw.storage.client.metrics.EndpointMetrics;
+import com.llnw.storage.client.transport.HttpTransport;
+import org.joda.time.Duration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import javax.annotation.concurrent.GuardedBy;
+
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class EndpointFactory {
+    private static final Logger log = LoggerFactory.getLogger(EndpointFactory.class);
+
+    private static final int MAX_WARM_UP_THREADS = 16;
+
     public final String host;
     public final String username;
     public final String password;
 
+    @GuardedBy("this") private EndpointMetrics metrics = EndpointMetrics.disabled();
+    @GuardedBy("this") private boolean shareLogins;
+    @GuardedBy("this") private AuthTokenManager tokens;
+    @GuardedBy("this") private HttpTransport transport;
+    @GuardedBy("this") private final List<ExecutorService> warmUps = Lists.newArrayList();
+
+    private final BlockingDeque<Endpoint> warmHTTP = new LinkedBlockingDeque<Endpoint>();
+    private final BlockingDeque<Endpoint> warmFTP = new LinkedBlockingDeque<Endpoint>();
+
     public EndpointFactory(String host, String username, String password) {
         this.host = host;
         this.username = username;
         this.password = password;
     }
 
+    /**
+     * Metrics registry handed to every endpoint created after this call.
+     */
+    public synchronized void setMetrics(EndpointMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public synchronized EndpointMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Have HTTP endpoints created after this call share one login token, kept fresh in the background,
+     * instead of each logging in for itself.
+     */
+    public synchronized void setShareLogins(boolean shareLogins) {
+        this.shareLogins = shareLogins;
+    }
+
+    /**
+     * Transport shared by HTTP endpoints created after this call, instead of a blocking client each. The
+     * factory doesn't close it.
+     */
+    public synchronized void setTransport(HttpTransport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * An endpoint kept from {@link #warmUp} if there is one, otherwise a new one that connects and logs in on
+     * first use.
+     */
     public Endpoint create(boolean useFTP) {
+        final Endpoint warmed = (useFTP ? warmFTP : warmHTTP).pollFirst();
+        return warmed != null ? warmed : open(useFTP);
+    }
+
+    /**
+     * Open count endpoints in parallel, have each log in and answer a noop, and keep them for the next calls to
+     * {@link #create}, so the first requests after startup don't pay for TCP connects and logins. HTTP endpoints
+     * sharing a transport or logins (see {@link #setTransport}, {@link #setShareLogins}) leave those warm too.
+     *
+     * Returns once all are done or the budget runs out. Endpoints still warming then are interrupted, and
+     * those that fail are closed; neither kind is kept, and {@link #awaitWarmUps} waits for them to finish.
+     * Kept endpoints have the settings the factory had when they were made.
+     */
+    public WarmUpReport warmUp(final boolean useFTP, int count, Duration budget) {
+        if (count < 0) throw new IllegalArgumentException("count must not be negative");
+        final long started = System.currentTimeMillis();
+        final BlockingDeque<Endpoint> warm = useFTP ? warmFTP : warmHTTP;
+        final WarmUp progress = new WarmUp();
+        final CountDownLatch done = new CountDownLatch(count);
+        final AtomicInteger failed = new AtomicInteger();
+
+        final int threads = Math.max(1, Math.min(count, MAX_WARM_UP_THREADS));
+        final ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                .setNameFormat("endpoint-warm-up-%d").setDaemon(true).build());
+        for (int i = 0; i < count; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Endpoint endpoint = null;
+                    try {
+                        endpoint = open(useFTP);
+                        endpoint.noop();
+                        if (progress.keep()) {
+                            warm.offerLast(endpoint);
+                            endpoint = null;
+                        }
+                    } catch (IOException e) {
+                        failed.incrementAndGet();
+                        log.warn("Couldn't warm up a {} endpoint", useFTP ? "FTP" : "HTTP", e);
+                    } catch (RuntimeException e) {
+                        failed.incrementAndGet();
+                        log.warn("Couldn't warm up a {} endpoint", useFTP ? "FTP" : "HTTP", e);
+                    } finally {
+                        if (endpoint != null) closeQuietly(endpoint);
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+
+        try {
+            done.await(budget.getMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        final int failures = failed.get();
+        final int warmed = progress.expire();
+        executor.shutdownNow();
+        synchronized (this) {
+            if (!executor.isTerminated()) warmUps.add(executor);
+        }
+
+        final WarmUpReport report = new WarmUpReport(count, warmed, failures, count - warmed - failures,
+                System.currentTimeMillis() - started);
+        log.info("Warmed up {} endpoints: {}", useFTP ? "FTP" : "HTTP", report);
+        return report;
+    }
+
+    /**
+     * Wait for endpoints still warming when their warm-up ran out of time to give up and close.
+     *
+     * @return false if some were still going at the timeout
+     */
+    public boolean awaitWarmUps(Duration timeout) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeout.getMillis();
+        final List<ExecutorService> pending;
+        synchronized (this) {
+            pending = Lists.newArrayList(warmUps);
+        }
+        for (ExecutorService executor : pending) {
+            if (!executor.awaitTermination(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS)) {
+                return false;
+            }
+            synchronized (this) {
+                warmUps.remove(executor);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Endpoints kept from warm-ups and not yet handed out.
+     */
+    public int getWarmCount(boolean useFTP) {
+        return (useFTP ? warmFTP : warmHTTP).size();
+    }
+
+    /**
+     * Close the endpoints kept from warm-ups, logging them out.
+     */
+    public void discardWarmEndpoints() {
+        Endpoint endpoint;
+        while ((endpoint = warmHTTP.pollFirst()) != null) closeQuietly(endpoint);
+        while ((endpoint = warmFTP.pollFirst()) != null) closeQuietly(endpoint);
+    }
+
+    /**
+     * A new endpoint, which connects and logs in on first use.
+     */
+    protected Endpoint open(boolean useFTP) {
         if (!useFTP) {
             try {
-                return new EndpointHTTP(new URL("http://" + host + ":8080"), username, password);
+                final URL url = new URL("http://" + host + ":8080");
+                final EndpointHTTP http;
+                final EndpointMetrics endpointMetrics;
+                synchronized (this) {
+                    if (shareLogins && tokens == null) {
+                        tokens = new AuthTokenManager(url, username, password);
+                        tokens.setMetrics(metrics);
+                    }
+                    http = shareLogins ? new EndpointHTTP(url, tokens) : new EndpointHTTP(url, username, password);
+                    if (transport != null) http.setTransport(transport);
+                    endpointMetrics = metrics;
+                }
+                http.setMetrics(endpointMetrics);
+                return http;
             } catch (MalformedURLException e) {
                 throw Throwables.propagate(e);
             }
         } else {
-            return new EndpointFTP(host, username, password);
+            final EndpointFTP ftp = new EndpointFTP(host, username, password);
+            ftp.setMetrics(getMetrics());
+            return ftp;
+        }
+    }
+
+    private static void closeQuietly(Endpoint endpoint) {
+        try {
+            endpoint.close();
+        } catch (IOException e) {
+            log.debug("Couldn't close endpoint", e);
+        } catch (RuntimeException e) {
+            log.debug("Couldn't close endpoint", e);
+        }
+    }
+
+    /**
+     * Counts endpoints kept by one warm-up, until its budget runs out.
+     */
+    private static final class WarmUp {
+        @GuardedBy("this") private int kept;
+        @GuardedBy("this") private boolean expired;
+
+        private synchronized boolean keep() {
+            if (expired) return false;
+            kept++;
+            return true;
+        }
+
+        private synchronized int expire() {
+            expired = true;
+            return kept;
         }
     }
 }
@@ -7,6 +7,13 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.io.CountingInputStream;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.gson.Gson;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
@@ -15,34 +22,53 @@ import com.google.gson.JsonParser;
 import com.google.gson.JsonSyntaxException;
 import com.google.gson.stream.MalformedJsonException;
 import com.llnw.storage.client.io.ActivityCallback;
+import com.llnw.storage.client.io.ByteBufferBody;
+import com.llnw.storage.client.io.ByteBufferEntity;
+import com.llnw.storage.client.io.ByteBuffers;
+import com.llnw.storage.client.io.ChecksumCache;
 import com.llnw.storage.client.io.Chunk;
+import com.llnw.storage.client.io.ChunkIO;
+import com.llnw.storage.client.io.ChunkInputStream;
+import com.llnw.storage.client.io.DirectBufferPool;
+import com.llnw.storage.client.io.FixedChunks;
 import com.llnw.storage.client.io.HeartbeatInputStream;
+import com.llnw.storage.client.io.MemoryBudget;
+import com.llnw.storage.client.io.ParallelHasher;
+import com.llnw.storage.client.metrics.EndpointMetrics;
+import com.llnw.storage.client.metrics.OperationRecord;
+import com.llnw.storage.client.metrics.OperationStats;
+import com.llnw.storage.client.metrics.RecentOperations;
+import com.llnw.storage.client.transport.BlockingTransport;
+import com.llnw.storage.client.transport.ExchangeTimings;
+import com.llnw.storage.client.transport.HttpTransport;
+import com.llnw.storage.client.transport.NioTransport;
 
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.Charsets;
 import org.apache.commons.io.IOUtils;
 import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.InputStreamEntity;
-import org.apache.http.entity.StringEntity;
 import org.apache.http.entity.mime.MultipartEntity;
+import org.apache.http.entity.mime.content.ContentBody;
 import org.apache.http.entity.mime.content.InputStreamBody;
 import org.apache.http.entity.mime.content.StringBody;
-import org.apache.http.impl.client.DefaultHttpClient;
+import org.joda.time.Duration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
-import javax.annotation.concurrent.NotThreadSafe;
+import javax.annotation.concurrent.ThreadSafe;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.URL;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
@@ -50,40 +76,239 @@ import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.concurrent.TimeUnit;
-
-@NotThreadSafe
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Endpoint over the storage's HTTP API. Calls, uploads and {@link MultipartSession}s may be used from any
+ * number of threads at once, sharing the endpoint's login and pooled connections. The multipart methods that
+ * don't take a session work on the endpoint's own single session and are meant for one thread at a time.
+ * Configure the endpoint before sharing it.
+ */
+@ThreadSafe
 public class EndpointHTTP implements EndpointMultipart {
     private static final Logger log = LoggerFactory.getLogger(EndpointHTTP.class);
 
     private static final String AUTH_HEADER = "X-Agile-Authorization";
     private static final String JSON_RPC_PATH = "/jsonrpc";
+    private static final int LIST_PAGE_SIZE = 10000;
+    private static final int TYPE_DIRECTORY = 1; // listFile entry type, 2 is a regular file
+    private static final int NOT_FOUND = -1;
+    private static final long DEFAULT_MULTIPART_THRESHOLD = 1024 * 1024 * 1024; // 1 GiB
+    private static final int DEFAULT_MULTIPART_CONCURRENCY = 4;
 
 
     private final URL endpoint;
-    private final String username;
-    private final String password;
+    private final AuthTokenManager tokens;
+    private final boolean ownTokens;
+
+    private static final ThreadLocal<JsonRpcWriter> WRITERS = new ThreadLocal<JsonRpcWriter>() {
+        @Override
+        protected JsonRpcWriter initialValue() {
+            return new JsonRpcWriter();
+        }
+    };
+
+    /** Renews refused tokens for pieces sent without waiting, off the threads that complete their responses. */
+    private static final ListeningExecutorService RETRIES = MoreExecutors.listeningDecorator(
+            Executors.newCachedThreadPool(
+                    new ThreadFactoryBuilder().setNameFormat("locs-piece-retry-%d").setDaemon(true).build()));
+
+    private static final ThreadLocal<OperationRecord> LAST = new ThreadLocal<OperationRecord>(); // for throwAndLog
 
-    private final HttpClient client = new DefaultHttpClient();
     private final Gson gson = new Gson();
     private final JsonParser parser = new JsonParser();
 
-    private int id;
-    private String auth;
-    private String mpid;
-    private String lastQuery;    // The JSON that was sent to the HTTP API for the last query, for diagnostics
-    private String lastResponse; // The response that was returned from the HTTP API, for diagnostics
+    private HttpTransport transport = new BlockingTransport();
+    private boolean ownTransport = true;
+    private EndpointMetrics metrics = EndpointMetrics.disabled();
+    private long multipartThreshold = DEFAULT_MULTIPART_THRESHOLD;
+    private long multipartPieceSize = FixedChunks.MINIMUM_CHUNK_SIZE;
+    private int multipartConcurrency = DEFAULT_MULTIPART_CONCURRENCY;
+    private Duration multipartMergeTimeout = Duration.standardMinutes(30);
+    private boolean verifyMergedChecksum = true;
+    private ChunkIO chunkIO = ChunkIO.MAPPED;
+    private int chunkWindowSize = ChunkInputStream.DEFAULT_WINDOW_SIZE;
+    private DirectBufferPool bufferPool = DirectBufferPool.shared();
+    private ChecksumCache checksums = ChecksumCache.shared();
+    private MemoryBudget memoryBudget = MemoryBudget.shared();
+    private ParallelHasher hasher = ParallelHasher.shared();
+    private RecentOperations diagnostics = new RecentOperations();
+    private Duration memoryWait = Duration.standardMinutes(5);
+
+    private final AtomicInteger id = new AtomicInteger();
+    private volatile String auth; // the token this endpoint last got from the manager
+    private volatile String mpid; // the endpoint's own session, for the methods that don't take one
     private int chunks;
+    private boolean closed;
 
+    /**
+     * An endpoint with a login of its own. It is renewed when the server refuses it rather than in the
+     * background, so nothing outside the endpoint keeps it reachable and an endpoint that is never closed can
+     * still be collected.
+     */
     public EndpointHTTP(URL endpoint, String username, String password) {
+        this(endpoint, new AuthTokenManager(endpoint, username, password), true);
+    }
+
+
+    /**
+     * An endpoint that takes its login token from a manager shared with other endpoints for the same
+     * credentials. Closing the endpoint releases its reference; the manager logs out after the last one.
+     */
+    public EndpointHTTP(URL endpoint, AuthTokenManager tokens) {
+        this(endpoint, tokens, false);
+    }
+
+
+    private EndpointHTTP(URL endpoint, AuthTokenManager tokens, boolean ownTokens) {
         this.endpoint = endpoint;
-        this.username = username;
-        this.password = password;
+        this.tokens = tokens;
+        this.ownTokens = ownTokens;
+        if (ownTokens) tokens.setRefreshInterval(Duration.ZERO);
+        transport.setMaxConnectionsPerRoute(DEFAULT_MULTIPART_CONCURRENCY);
+        tokens.acquire(this);
+    }
+
+
+    public void setMetrics(EndpointMetrics metrics) {
+        this.metrics = metrics;
+        if (ownTokens) tokens.setMetrics(metrics);
+    }
+
+
+    /**
+     * upload(File, ...) switches to a parallel multipart upload for files this size or bigger.
+     * Long.MAX_VALUE turns that off. Empty files always go up in a single request.
+     */
+    public void setMultipartThreshold(long multipartThreshold) {
+        if (multipartThreshold < 1) throw new IllegalArgumentException("multipartThreshold must be at least 1");
+        this.multipartThreshold = multipartThreshold;
+    }
+
+
+    /**
+     * Smallest piece size for promoted uploads; pieces grow past it to keep the count near 100.
+     */
+    public void setMultipartPieceSize(long multipartPieceSize) {
+        if (multipartPieceSize < 1) throw new IllegalArgumentException("multipartPieceSize must be at least 1");
+        this.multipartPieceSize = multipartPieceSize;
+    }
+
+
+    /**
+     * Pieces in flight at once for promoted uploads, each on its own connection.
+     */
+    public void setMultipartConcurrency(int multipartConcurrency) {
+        if (multipartConcurrency < 1) throw new IllegalArgumentException("multipartConcurrency must be at least 1");
+        this.multipartConcurrency = multipartConcurrency;
+        if (ownTransport) transport.setMaxConnectionsPerRoute(multipartConcurrency);
+    }
+
+
+    /**
+     * Cache of local checksums for uploadIfChanged, the process-wide shared cache by default.
+     */
+    public void setChecksumCache(ChecksumCache checksums) {
+        this.checksums = checksums;
+    }
+
+
+    /**
+     * Send requests through another transport, such as a {@link NioTransport} shared by many endpoints. The
+     * endpoint doesn't close it, and its connection limit is left to the owner. A NioTransport speaks plain
+     * http only and fails every request to an https endpoint.
+     *
+     * Only buffered pieces sent with {@link MultipartSession#submitPart} use the transport's submit and hold no
+     * thread while in flight; every other call still waits on the calling thread.
+     */
+    public void setTransport(HttpTransport transport) {
+        if (ownTransport) this.transport.close();
+        this.transport = transport;
+        this.ownTransport = false;
+    }
+
+
+    /**
+     * How multipart pieces are read from files: mapped a window at a time and unmapped right after, or read
+     * into pooled direct buffers. Either way at most one window per piece in flight is held.
+     */
+    public void setChunkIO(ChunkIO chunkIO, int windowSize) {
+        if (windowSize < 1) throw new IllegalArgumentException("windowSize must be at least 1");
+        this.chunkIO = chunkIO;
+        this.chunkWindowSize = windowSize;
+    }
+
+
+    /**
+     * Pool for ChunkIO.BUFFERED windows, the process-wide shared pool by default.
+     */
+    public void setBufferPool(DirectBufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+
+    /**
+     * Budget that buffer uploads and file pieces reserve their bytes from before they start: the buffers'
+     * size, or one read window of a piece. StreamingMultipartUploader holds its ring of buffers against it.
+     * Past the limit an upload waits up to maxWait for its turn, then fails; Duration.ZERO fails at once. The
+     * process-wide shared budget, waiting 5 minutes, by default.
+     */
+    public void setMemoryBudget(MemoryBudget memoryBudget, Duration maxWait) {
+        this.memoryBudget = memoryBudget;
+        this.memoryWait = maxWait;
+    }
+
+
+    /**
+     * Hashes the pieces of promoted uploads ahead of sending them, the process-wide shared hasher by default.
+     * Each upload keeps twice its multipart concurrency of pieces in the hasher's queue, in the order they
+     * are sent.
+     */
+    public void setHasher(ParallelHasher hasher) {
+        this.hasher = hasher;
+    }
+
+
+    /**
+     * Where requests are recorded for diagnostics, by default a ring of the last 32 of this endpoint's with
+     * payloads cut to 1 KiB. Failures log the failing thread's last record.
+     */
+    public void setDiagnostics(RecentOperations diagnostics) {
+        this.diagnostics = diagnostics;
+    }
+
+
+    public RecentOperations getDiagnostics() {
+        return diagnostics;
+    }
+
+
+    /**
+     * How long a promoted upload waits for the storage to merge the pieces.
+     */
+    public void setMultipartMergeTimeout(Duration multipartMergeTimeout) {
+        this.multipartMergeTimeout = multipartMergeTimeout;
+    }
+
+
+    /**
+     * Check a promoted upload's merged file against the whole local file's SHA-256, on by default. The digest
+     * is one sequential pass over the file on the uploading thread, while the pieces are sent, so it runs at
+     * the speed of a single core and can outlast the pieces on fast disks and networks, unless the checksum
+     * cache already has it from uploadIfChanged. Off, the merged file is checked by size only; every piece is
+     * still checked against its own SHA-256.
+     */
+    public void setVerifyMergedChecksum(boolean verifyMergedChecksum) {
+        this.verifyMergedChecksum = verifyMergedChecksum;
     }
 
 
@@ -106,20 +331,14 @@ public class EndpointHTTP implements EndpointMultipart {
 
 
     @Override
-    public void close() throws IOException {
+    public synchronized void close() throws IOException {
+        if (closed) return;
+        closed = true;
         try {
-            final JsonElement element = execute(new RPC("logout"));
-            if (element.isJsonNull()) {
-                throw throwAndLog("Couldn't logout");
-            }
-
-            final int returnCode = element.getAsInt();
-            if (returnCode != 0) { // 0 indicates success
-                throw throwAndLog("Couldn't logout: " + returnCode);
-            }
+            tokens.release(this); // logs out once no other endpoint shares the token
         } finally {
             auth = null;
-            client.getConnectionManager().closeIdleConnections(0, TimeUnit.MILLISECONDS);
+            if (ownTransport) transport.closeIdleConnections();
         }
     }
 
@@ -156,6 +375,55 @@ public class EndpointHTTP implements EndpointMultipart {
     }
 
 
+    @Override
+    public List<RemoteFile> listDetails(String path) throws IOException {
+        final List<RemoteFile> details = Lists.newArrayList();
+        int cookie = 0;
+
+        do {
+            final RPC call = new RPC("listFile", "path", path, "pageSize", LIST_PAGE_SIZE, "cookie", cookie,
+                    "stat", true);
+            final JsonObject result = execute(call).getAsJsonObject();
+            final JsonElement list = result.get("list");
+            if (list == null || !list.isJsonArray() || list.getAsJsonArray().size() == 0) {
+                break;
+            }
+
+            for (JsonElement elem : list.getAsJsonArray()) {
+                details.add(remoteFile(elem.getAsJsonObject()));
+            }
+
+            cookie = result.has("cookie") && !result.get("cookie").isJsonNull() ? result.get("cookie").getAsInt() : 0;
+        } while (cookie > 0);
+
+        return details;
+    }
+
+
+    /**
+     * @return the file or directory at path, with the file's checksum, or null if there's nothing there
+     */
+    @Nullable
+    public RemoteFile stat(String path) throws IOException {
+        final JsonObject stat = execute(new RPC("stat", "path", path)).getAsJsonObject();
+        final int code = stat.has("code") ? stat.get("code").getAsInt() : 0;
+        if (code == NOT_FOUND) return null;
+        if (code != 0 || !stat.has("name")) throw throwAndLog("Couldn't stat " + path + ": " + stat);
+
+        return remoteFile(stat);
+    }
+
+
+    private static RemoteFile remoteFile(JsonObject obj) {
+        final JsonElement checksum = obj.get("checksum");
+        return new RemoteFile(obj.get("name").getAsString(),
+                obj.has("type") && obj.get("type").getAsInt() == TYPE_DIRECTORY,
+                obj.has("size") ? obj.get("size").getAsLong() : 0,
+                obj.has("mtime") ? obj.get("mtime").getAsLong() : 0,
+                checksum == null || checksum.isJsonNull() ? null : checksum.getAsString());
+    }
+
+
     @Override
     public boolean exists(String path) throws IOException {
         final RPC call = new RPC("stat", "path", path);
@@ -171,22 +439,83 @@ public class EndpointHTTP implements EndpointMultipart {
     }
 
 
+    /**
+     * Start this endpoint's own multipart session, replacing any it had. The session methods without an mpid
+     * work on it; use {@link #startSession} to run several at once.
+     */
     @Override
     public String startMultipartUpload(String path, String name) throws IOException {
-        final RPC call = new RPC("createMultipart", "path", path + "/" + name);
-        final JsonElement mpid = execute(call).getAsJsonObject().get("mpid");
+        final String created = createMultipart(path + "/" + name);
+        synchronized (this) {
+            this.mpid = created;
+            chunks = 1;
+        }
+        return created;
+    }
+
+
+    /**
+     * Start a multipart session of its own, independent of this endpoint's session and of any other. Sessions
+     * share the endpoint's login and connections and may be used from any thread.
+     */
+    public MultipartSession startSession(String path, String name) throws IOException {
+        return new MultipartSession(this, createMultipart(path + "/" + name));
+    }
 
-        this.mpid = mpid.getAsString();
-        chunks = 1;
-        return this.mpid;
+
+    /**
+     * Take up a session started elsewhere, restarting it and loading the index of pieces already sent.
+     */
+    public MultipartSession resumeSession(String mpid) throws IOException {
+        restartMultipart(mpid);
+        final MultipartSession session = new MultipartSession(this, mpid);
+        session.loadPieces();
+        return session;
     }
 
 
     @Override
     public void completeMultipartUpload() throws IOException {
-        if (mpid == null)
+        final String session = mpid;
+        if (session == null)
             throw new IllegalArgumentException("Must call startUpload before completeUpload");
 
+        final int returnedChunks = completeMultipart(session);
+        if (returnedChunks != chunks - 1) {
+            throw throwAndLog("Couldn't complete multipart upload with mpid(" + session + "): " + returnedChunks +
+                    " pieces, expected " + (chunks - 1));
+        }
+    }
+
+
+    @Override
+    public void abortMultipartUpload() throws IOException {
+        final String session = mpid;
+        if (session == null)
+            throw new IllegalArgumentException("Must call startUpload before abortUpload");
+
+        abortMultipart(session);
+        this.mpid = null;
+    }
+
+
+    /**
+     * @return the new session's mpid
+     */
+    String createMultipart(String target) throws IOException {
+        final RPC call = new RPC("createMultipart", "path", target);
+        final JsonElement created = execute(call).getAsJsonObject().get("mpid");
+        if (created == null || created.isJsonNull()) {
+            throw throwAndLog("Couldn't create multipart upload of " + target);
+        }
+        return created.getAsString();
+    }
+
+
+    /**
+     * @return the number of pieces the server has for the session
+     */
+    int completeMultipart(String mpid) throws IOException {
         final RPC call = new RPC("completeMultipart", "mpid", mpid);
         final JsonObject result = execute(call).getAsJsonObject();
         if (!result.has("code"))
@@ -194,20 +523,16 @@ public class EndpointHTTP implements EndpointMultipart {
         final int returnCode = result.get("code").getAsInt();
         if (!result.has("numpieces"))
             throw throwAndLog("No numpieces from complete multipart upload with mpid(" + mpid + ")");
-        final int returnedChunks = result.get("numpieces").getAsInt();
 
-        if (returnCode != 0 || returnedChunks != chunks - 1) {
+        if (returnCode != 0) {
             // 0 indicates success
             throw throwAndLog("Couldn't complete multipart upload with mpid(" + mpid + "): " + returnCode);
         }
+        return result.get("numpieces").getAsInt();
     }
 
 
-    @Override
-    public void abortMultipartUpload() throws IOException {
-        if (mpid == null)
-            throw new IllegalArgumentException("Must call startUpload before abortUpload");
-
+    void abortMultipart(String mpid) throws IOException {
         final RPC call = new RPC("abortMultipart", "mpid", mpid);
         final int returnCode = execute(call).getAsJsonObject().get("code").getAsInt();
 
@@ -215,8 +540,16 @@ public class EndpointHTTP implements EndpointMultipart {
             // 0 indicates success
             throw throwAndLog("Couldn't abort multipart upload with mpid(" + mpid + "): " + returnCode);
         }
+    }
 
-        this.mpid = null;
+
+    void restartMultipart(String mpid) throws IOException {
+        final RPC call = new RPC("restartMultipart", "mpid", mpid);
+        final JsonObject elem = execute(call).getAsJsonObject();
+        int code = 0;
+        if (!elem.has("code") || (code = elem.get("code").getAsInt()) != 0) {
+            throw throwAndLog("Invalid mpid: " + code + " obj: " + elem);
+        }
     }
 
 
@@ -253,34 +586,7 @@ public class EndpointHTTP implements EndpointMultipart {
                     toUploadChunk = ret;
                 }
 
-                final HttpPost post = new HttpPost(endpoint.toString() + "/multipart/piece");
-                try {
-                    post.addHeader(AUTH_HEADER, auth);
-                    post.addHeader("X-Agile-Part", Integer.toString(toUploadChunk));
-                    post.addHeader("X-Agile-Multipart", mpid);
-
-                    final InputStream is = HeartbeatInputStream.wrap(fc, chunk, callback);
-                    final String sha256 = DigestUtils.sha256Hex(is);
-                    is.reset();
-
-                    final InputStreamEntity entity = new InputStreamEntity(is, chunk.length);
-
-                    post.setEntity(entity);
-                    final HttpResponse response = client.execute(post);
-                    final int status = response.getStatusLine().getStatusCode();
-
-                    if (status == HttpStatus.SC_OK) {
-                        final Map<String, String> headerChecks = ImmutableMap.of(
-                                "X-Agile-Status", "0",
-                                "X-Agile-Size", Long.toString(chunk.length),
-                                "X-Agile-Checksum", sha256);
-                        checkHeaders(response, headerChecks);
-                    } else {
-                        throw throwAndLog("Got status: " + response.getStatusLine().getStatusCode() + " from upload");
-                    }
-                } finally {
-                    post.releaseConnection();
-                }
+                uploadPiece(fc, chunk, toUploadChunk, mpid, null, callback);
 
                 if (toUploadChunk == chunks) {
                     // This was appending, so increment the number of chunks
@@ -294,55 +600,616 @@ public class EndpointHTTP implements EndpointMultipart {
         }
     }
 
+    /**
+     * Append one piece made of the buffers' remaining bytes, sent in order without copying them together.
+     * Each buffer's position is left at its limit.
+     */
+    @Override
+    public void uploadPart(ByteBuffer[] piece, @Nullable ActivityCallback callback) throws IOException {
+        requireAuth();
+
+        if (mpid == null)
+            throw new IllegalArgumentException("Must call startUpload before uploadPart");
+
+        uploadPiece(piece, chunks, mpid, callback);
+        chunks++;
+    }
+
+
+    /**
+     * Upload a piece with an explicit number, 1 for the first. Unlike the other uploadPart methods this may be
+     * called from several threads at once once the session is started, each piece going over its own pooled
+     * connection (see setMultipartConcurrency).
+     */
+    @Override
+    public void uploadPart(int number, ByteBuffer[] piece, @Nullable ActivityCallback callback) throws IOException {
+        final String session = mpid;
+        if (session == null || Strings.isNullOrEmpty(auth))
+            throw new IllegalArgumentException("Must call startUpload before uploadPart");
+
+        sendPart(session, number, piece, callback);
+        synchronized (this) {
+            if (number >= chunks) chunks = number + 1;
+        }
+    }
+
+
+    /**
+     * Upload one chunk of a file as the piece with the given number, read through the same bounded windows as
+     * promoted uploads. Like the ByteBuffer version it may be called from several threads at once.
+     */
+    @Override
+    public void uploadPart(int number, File file, Chunk chunk, @Nullable ActivityCallback callback)
+            throws IOException {
+        final String session = mpid;
+        if (session == null || Strings.isNullOrEmpty(auth))
+            throw new IllegalArgumentException("Must call startUpload before uploadPart");
+
+        sendPart(session, number, file, chunk, null, callback);
+        synchronized (this) {
+            if (number >= chunks) chunks = number + 1;
+        }
+    }
+
+
+    /**
+     * Send a numbered piece of any session from the buffers' remaining bytes, leaving them consumed.
+     */
+    void sendPart(String mpid, int number, ByteBuffer[] piece, @Nullable ActivityCallback callback)
+            throws IOException {
+        requireAuth();
+        uploadPiece(piece, number, mpid, callback);
+    }
+
+
+    /**
+     * Send a numbered piece of any session from the buffers' remaining bytes without waiting for the response.
+     * Over a {@link NioTransport} no thread is held while the piece is in flight; the blocking transport sends
+     * it on a thread of its own. Leave the buffers alone until the future completes, which leaves them consumed
+     * if the piece was stored.
+     *
+     * @param reserve hold the bytes against the memory budget until then; false for buffers the caller already
+     *                holds through {@link #reserveMemory}, so they aren't counted twice
+     */
+    ListenableFuture<Void> submitPart(String mpid, int number, final ByteBuffer[] piece, boolean reserve,
+            @Nullable ActivityCallback callback) throws IOException {
+        requireAuth();
+        final long bytes = ByteBuffers.remaining(piece);
+        final long reserved = reserve ? bytes : 0;
+        memoryBudget.acquire(reserved, memoryWait);
+
+        final ByteBufferEntity entity = new ByteBufferEntity(piece, callback);
+        final ListenableFuture<Void> sent = submitPiece(entity, bytes, ByteBuffers.sha256Hex(piece), number, mpid,
+                !entity.isRepeatable());
+        sent.addListener(new Runnable() {
+            @Override
+            public void run() {
+                memoryBudget.release(reserved);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return Futures.transform(sent, new Function<Void, Void>() {
+            @Override
+            public Void apply(Void input) {
+                ByteBuffers.consume(piece);
+                return null;
+            }
+        });
+    }
+
+
+    /**
+     * Hold bytes against this endpoint's memory budget, waiting as uploads do, for buffers kept across
+     * several sends. Hand them back with {@link #releaseMemory}.
+     */
+    void reserveMemory(long bytes) throws IOException {
+        memoryBudget.acquire(bytes, memoryWait);
+    }
+
+
+    /**
+     * Hold bytes against the memory budget only if that can be done without waiting.
+     */
+    boolean tryReserveMemory(long bytes) {
+        return memoryBudget.tryAcquire(bytes);
+    }
+
+
+    void releaseMemory(long bytes) {
+        memoryBudget.release(bytes);
+    }
+
+
+    /**
+     * Send a numbered piece of any session from a chunk of a file, hashing it first unless its SHA-256 is given.
+     */
+    void sendPart(String mpid, int number, File file, Chunk chunk, @Nullable String sha256,
+            @Nullable ActivityCallback callback) throws IOException {
+        requireAuth();
+        @SuppressWarnings("resource")
+        final FileChannel fc = new FileInputStream(file).getChannel();
+        try {
+            uploadPiece(fc, chunk, number, mpid, sha256, callback);
+        } catch (IOException e) {
+            throw EndpointUtil.unwindInterruptException(e);
+        } finally {
+            fc.close();
+        }
+    }
+
+
+    /**
+     * Files at or above the multipart threshold go up as a multipart session with pieces sent in parallel,
+     * each checked against its SHA-256 like a single upload is, and the merged file is checked against the
+     * whole file's size and SHA-256. The callback may then be called from several threads.
+     */
     @Override
     public void upload(File file, String path, String name, @Nullable ActivityCallback callback) throws IOException {
-        this.upload(new HeartbeatInputStream(file, callback), path, name);
+        final long size = file.length();
+        if (size > 0 && size >= multipartThreshold) {
+            this.uploadMultipart(file, path, name, callback);
+        } else {
+            this.uploadSingle(file, path, name, callback);
+        }
+    }
+
+
+    /**
+     * Upload unless path/name already holds the same bytes, judged by size and then SHA-256 against a stat of
+     * the remote file. The local checksum is only computed when the sizes match, and comes from the checksum
+     * cache if the file hasn't changed since it was last hashed.
+     */
+    public UploadOutcome uploadIfChanged(File file, String path, String name, @Nullable ActivityCallback callback)
+            throws IOException {
+        final RemoteFile remote = stat(path + "/" + name);
+        if (remote != null && !remote.directory && remote.checksum != null && remote.size == file.length() &&
+                remote.checksum.equalsIgnoreCase(checksums.sha256Hex(file))) {
+            metrics.event("upload.skipped");
+            return UploadOutcome.SKIPPED;
+        }
+
+        upload(file, path, name, callback);
+        return UploadOutcome.UPLOADED;
+    }
+
+
+    /**
+     * Buffer version of {@link #uploadIfChanged(File, String, String, ActivityCallback)}. The buffers are
+     * left consumed either way.
+     */
+    public UploadOutcome uploadIfChanged(ByteBuffer[] byteBuffers, String path, String name,
+            @Nullable ActivityCallback callback) throws IOException {
+        final RemoteFile remote = stat(path + "/" + name);
+        String sha256 = null;
+        if (remote != null && !remote.directory && remote.checksum != null &&
+                remote.size == ByteBuffers.remaining(byteBuffers)) {
+            sha256 = ByteBuffers.sha256Hex(byteBuffers);
+            if (remote.checksum.equalsIgnoreCase(sha256)) {
+                ByteBuffers.consume(byteBuffers);
+                metrics.event("upload.skipped");
+                return UploadOutcome.SKIPPED;
+            }
+        }
+
+        upload(byteBuffers, path, name, sha256, callback); // the upload is checked against the same digest
+        return UploadOutcome.UPLOADED;
+    }
+
+
+    private void uploadMultipart(File file, String path, String name, @Nullable final ActivityCallback callback)
+            throws IOException {
+        final ExecutorService executor = Executors.newFixedThreadPool(multipartConcurrency,
+                new ThreadFactoryBuilder().setNameFormat("multipart-upload-%d").setDaemon(true).build());
+        @SuppressWarnings("resource")
+        final FileChannel fc = new FileInputStream(file).getChannel();
+        MultipartSession session = null; // a session of its own, leaving the caller's alone
+        ParallelHasher.FileHashes hashes = null;
+        boolean complete = false;
+
+        try {
+            session = startSession(path, name);
+            final String mpid = session.getMpid();
+            final MultipartSession pieceIndex = session;
+            final FixedChunks pieces = new FixedChunks(file.length(), multipartPieceSize,
+                    Math.max(multipartPieceSize, FixedChunks.MAXIMUM_CHUNK_SIZE));
+            // A window of pieces at a time, so other uploads sharing the hasher get their turns
+            final ParallelHasher.FileHashes pieceHashes = hashes =
+                    hasher.hash(file, pieces, false, 2 * multipartConcurrency);
+
+            final List<Future<?>> futures = Lists.newArrayList();
+            for (final Chunk chunk : pieces) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        final String sha256 = pieceHashes.piece(chunk.number);
+                        uploadPiece(fc, chunk, chunk.number + 1, mpid, sha256, callback);
+                        pieceIndex.recordPiece(chunk.number + 1, chunk.length);
+                        return null;
+                    }
+                }));
+            }
+            final String sha256 = verifyMergedChecksum ? checksums.sha256Hex(file) : null;
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    Throwables.propagateIfPossible(e.getCause(), IOException.class);
+                    throw Throwables.propagate(e.getCause());
+                }
+            }
+
+            session.complete();
+            session.await(multipartMergeTimeout);
+            checkMerged(path + "/" + name, file.length(), sha256);
+            complete = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted uploading " + file);
+        } catch (IOException e) {
+            throw EndpointUtil.unwindInterruptException(e);
+        } finally {
+            executor.shutdownNow();
+            if (hashes != null) hashes.cancel();
+            fc.close();
+            if (!complete && session != null && !Thread.currentThread().isInterrupted()) {
+                try {
+                    session.abort();
+                } catch (IOException e) {
+                    log.warn("Couldn't abort multipart upload of {}", file, e);
+                }
+            }
+        }
     }
 
+
+    /**
+     * Check a merged multipart file as a single upload's response is checked, by size and, when both are known,
+     * SHA-256.
+     */
+    private void checkMerged(String target, long expected, @Nullable String sha256) throws IOException {
+        final RemoteFile merged = stat(target);
+        if (merged == null) throw throwAndLog("Merged file " + target + " isn't there");
+        if (merged.size != expected) {
+            throw throwAndLog("Size of " + target + ", got: " + merged.size + ", expected: " + expected);
+        }
+        if (sha256 != null && merged.checksum != null && !merged.checksum.equalsIgnoreCase(sha256)) {
+            throw throwAndLog("SHA-256 of " + target + ", got: " + merged.checksum + ", expected: " + sha256);
+        }
+    }
+
+
+    /**
+     * Sends the buffer's remaining bytes straight from the buffer and leaves its position at its limit.
+     */
+    @Override
+    public void upload(ByteBuffer byteBuffer, String path, String name, @Nullable ActivityCallback callback)
+            throws IOException {
+        upload(new ByteBuffer[] { byteBuffer }, path, name, callback);
+    }
+
+
+    /**
+     * Sends the buffers' remaining bytes in order as one file, checked against a single size and SHA-256,
+     * and leaves each buffer's position at its limit.
+     */
     @Override
-    public void upload(ByteBuffer byteBuffer, String path, String name, @Nullable ActivityCallback callback) throws IOException {
-        this.upload(HeartbeatInputStream.wrap(byteBuffer, callback), path, name);
+    public void upload(ByteBuffer[] byteBuffers, String path, String name, @Nullable ActivityCallback callback)
+            throws IOException {
+        upload(byteBuffers, path, name, null, callback);
     }
 
 
-    private void upload(HeartbeatInputStream heartbeatInputStream, String path, String name) throws IOException {
+    private void upload(ByteBuffer[] byteBuffers, String path, String name, @Nullable String knownSha256,
+            @Nullable ActivityCallback callback) throws IOException {
         requireAuth();
 
-        final HttpPost post = new HttpPost(endpoint.toString() + "/post/file");
+        final long bytes = ByteBuffers.remaining(byteBuffers);
+        memoryBudget.acquire(bytes, memoryWait);
+
+        final OperationStats stats = metrics.operation("upload");
+        final long start = stats.begin();
+        boolean success = false;
+        try {
+            final String sha256 = knownSha256 != null ? knownSha256 : ByteBuffers.sha256Hex(byteBuffers);
+            final ByteBufferBody body = new ByteBufferBody(byteBuffers, name, callback); // can be sent again
+            HttpResponse response = postFile(path, name, body, false);
+            if (response == null) response = postFile(path, name, body, true);
+            checkHeaders(response, ImmutableMap.of(
+                    "X-Agile-Status", "0",
+                    "X-Agile-Size", Long.toString(bytes),
+                    "X-Agile-Checksum", sha256));
+            ByteBuffers.consume(byteBuffers);
+            success = true;
+        } finally {
+            memoryBudget.release(bytes);
+            stats.end(start, success ? bytes : 0, success);
+        }
+    }
+
+
+    /**
+     * Send one piece of a multipart upload and check its size and checksum, hashing it first unless the
+     * SHA-256 is given. Safe to call from several threads at once for the same session, each piece going
+     * over its own pooled connection.
+     */
+    private void uploadPiece(FileChannel fc, Chunk chunk, int number, String mpid, @Nullable String knownSha256,
+            @Nullable ActivityCallback callback) throws IOException {
+        final long window = Math.min(chunkWindowSize, chunk.length);
+        memoryBudget.acquire(window, memoryWait);
+        final InputStream is = new ChunkInputStream(fc, chunk, chunkIO, chunkWindowSize, bufferPool, callback);
+        try {
+            final String sha256;
+            if (knownSha256 != null) {
+                sha256 = knownSha256;
+            } else {
+                sha256 = DigestUtils.sha256Hex(is);
+                is.reset();
+            }
+
+            if (!sendPiece(new InputStreamEntity(is, chunk.length), chunk.length, sha256, number, mpid, false)) {
+                is.reset();
+                sendPiece(new InputStreamEntity(is, chunk.length), chunk.length, sha256, number, mpid, true);
+            }
+        } finally {
+            is.close();
+            memoryBudget.release(window);
+        }
+    }
+
+
+    /**
+     * Send a piece from the buffers' remaining bytes, leaving them consumed. Every buffered piece sent on the
+     * caller's thread goes through here, reserving its bytes from the memory budget for as long as it is in
+     * flight; {@link #submitPart} does the same for pieces that aren't waited for.
+     */
+    private void uploadPiece(ByteBuffer[] piece, int number, String mpid, @Nullable ActivityCallback callback)
+            throws IOException {
+        final long bytes = ByteBuffers.remaining(piece);
+        memoryBudget.acquire(bytes, memoryWait);
+        try {
+            uploadPiece(new ByteBufferEntity(piece, callback), bytes, ByteBuffers.sha256Hex(piece), number, mpid);
+        } catch (IOException e) {
+            throw EndpointUtil.unwindInterruptException(e);
+        } finally {
+            memoryBudget.release(bytes);
+        }
+        ByteBuffers.consume(piece);
+    }
+
+
+    private void uploadPiece(HttpEntity entity, long length, String sha256, int number, String mpid)
+            throws IOException {
+        if (!sendPiece(entity, length, sha256, number, mpid, !entity.isRepeatable())) {
+            sendPiece(entity, length, sha256, number, mpid, true);
+        }
+    }
+
+
+    /**
+     * @return false if the server refused the token and this wasn't the last try, after getting a fresh one
+     */
+    private boolean sendPiece(HttpEntity entity, long length, String sha256, int number, String mpid,
+            boolean lastTry) throws IOException {
+        final String token = auth;
+        final HttpPost post = piecePost(entity, token, number, mpid);
+        final OperationStats stats = metrics.operation("piece");
+        final long start = stats.begin();
+        final ExchangeTimings timings = new ExchangeTimings();
+        boolean success = false;
+        try {
+            final HttpResponse response;
+            try {
+                response = transport.execute(post, timings);
+            } catch (IOException e) {
+                note("piece", "piece " + number + " of " + mpid, e.toString(), -1, timings);
+                throw e;
+            }
+
+            if (isRefused(response, number, mpid, timings)) {
+                tokens.invalidate(token); // so the next call logs in again even if this one gives up
+                if (!lastTry) {
+                    requireAuth();
+                    return false;
+                }
+            }
+            checkPiece(response, length, sha256);
+            success = true;
+            return true;
+        } finally {
+            post.releaseConnection();
+            stats.end(start, length, success);
+        }
+    }
+
+
+    /**
+     * Send a piece through {@link HttpTransport#submit}, as {@link #sendPiece} does through execute. The response
+     * is checked on whatever thread completes it, a selector thread on a NioTransport, so anything that may
+     * block, renewing a refused token and sending again, is handed to another thread.
+     */
+    private ListenableFuture<Void> submitPiece(final HttpEntity entity, final long length, final String sha256,
+            final int number, final String mpid, final boolean lastTry) {
+        final String token = auth;
+        final HttpPost post = piecePost(entity, token, number, mpid);
+        final OperationStats stats = metrics.operation("piece");
+        final long start = stats.begin();
+        final ExchangeTimings timings = new ExchangeTimings();
+
+        final ListenableFuture<HttpResponse> response;
+        try {
+            response = transport.submit(post, timings);
+        } catch (IOException e) {
+            note("piece", "piece " + number + " of " + mpid, e.toString(), -1, timings);
+            post.releaseConnection();
+            stats.end(start, length, false);
+            return Futures.immediateFailedFuture(e);
+        }
+
+        Futures.addCallback(response, new FutureCallback<HttpResponse>() {
+            @Override
+            public void onSuccess(HttpResponse result) {
+                // checked below
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                note("piece", "piece " + number + " of " + mpid, t.toString(), -1, timings);
+                post.releaseConnection();
+                stats.end(start, length, false);
+            }
+        });
+        return Futures.transform(response, new AsyncFunction<HttpResponse, Void>() {
+            @Override
+            public ListenableFuture<Void> apply(final HttpResponse result) throws IOException {
+                boolean success = false;
+                try {
+                    if (isRefused(result, number, mpid, timings)) {
+                        return Futures.dereference(RETRIES.submit(new Callable<ListenableFuture<Void>>() {
+                            @Override
+                            public ListenableFuture<Void> call() throws IOException {
+                                tokens.invalidate(token);
+                                if (lastTry) checkPiece(result, length, sha256); // throws for the refusal
+                                requireAuth();
+                                return submitPiece(entity, length, sha256, number, mpid, true);
+                            }
+                        }));
+                    }
+                    checkPiece(result, length, sha256);
+                    success = true;
+                    return Futures.immediateFuture(null);
+                } finally {
+                    post.releaseConnection();
+                    stats.end(start, length, success);
+                }
+            }
+        });
+    }
+
+
+    private HttpPost piecePost(HttpEntity entity, String token, int number, String mpid) {
+        final HttpPost post = new HttpPost(endpoint.toString() + "/multipart/piece");
+        post.addHeader(AUTH_HEADER, token);
+        post.addHeader("X-Agile-Part", Integer.toString(number));
+        post.addHeader("X-Agile-Multipart", mpid);
+        post.setEntity(entity);
+        return post;
+    }
+
+
+    /**
+     * Record a piece's response.
+     *
+     * @return true if the server refused the token
+     */
+    private boolean isRefused(HttpResponse response, int number, String mpid, ExchangeTimings timings) {
+        final int status = response.getStatusLine().getStatusCode();
+        timings.markFinished();
+        note("piece", "piece " + number + " of " + mpid, agileHeaders(response), status, timings);
+        return status == HttpStatus.SC_OK && isInvalidToken(response);
+    }
+
+
+    private void checkPiece(HttpResponse response, long length, String sha256) throws IOException {
+        final int status = response.getStatusLine().getStatusCode();
+        if (status != HttpStatus.SC_OK) {
+            throw throwAndLog("Got status: " + status + " from upload");
+        }
+        checkHeaders(response, ImmutableMap.of(
+                "X-Agile-Status", "0",
+                "X-Agile-Size", Long.toString(length),
+                "X-Agile-Checksum", sha256));
+    }
+
+
+    /**
+     * Stream a file up in a single POST, hashing it on the way. If the token is refused the file is opened and
+     * sent once more with a fresh one.
+     */
+    private void uploadSingle(File file, String path, String name, @Nullable ActivityCallback callback)
+            throws IOException {
+        requireAuth();
+
+        final OperationStats stats = metrics.operation("upload");
+        final long start = stats.begin();
+        boolean success = false;
+        long bytes = 0;
 
         try {
-            post.addHeader(AUTH_HEADER, auth);
+            for (boolean lastTry = false; !success; lastTry = true) {
+                final HeartbeatInputStream in = new HeartbeatInputStream(file, callback);
+                try {
+                    final DigestInputStream digestStream = new DigestInputStream(in,
+                            MessageDigest.getInstance("SHA-256"));
+                    final CountingInputStream countStream = new CountingInputStream(digestStream);
+                    final HttpResponse response = postFile(path, name, new InputStreamBody(countStream, name),
+                            lastTry);
+                    if (response == null) continue;
+
+                    final String sha256 = Hex.encodeHexString(digestStream.getMessageDigest().digest());
+                    bytes = countStream.getCount();
+                    final Map<String, String> headerChecks = ImmutableMap.of(
+                            "X-Agile-Status", "0",
+                            "X-Agile-Size", Long.toString(bytes),
+                            "X-Agile-Checksum", sha256);
+                    checkHeaders(response, headerChecks);
+                    success = true;
+                } finally {
+                    IOUtils.closeQuietly(in);
+                }
+            }
+        } catch (NoSuchAlgorithmException e) {
+            Throwables.propagate(e);
+        } finally {
+            stats.end(start, bytes, success);
+        }
+    }
+
+
+    /**
+     * POST a file to /post/file and return the response once it has been read, throwing on anything but 200.
+     * A refused token is invalidated; unless this was the last try a fresh one is fetched and null returned, so
+     * the caller can send the body again.
+     */
+    @Nullable
+    private HttpResponse postFile(String path, String name, ContentBody body, boolean lastTry) throws IOException {
+        final HttpPost post = new HttpPost(endpoint.toString() + "/post/file");
+        final String token = auth;
+        try {
+            post.addHeader(AUTH_HEADER, token);
 
             final MultipartEntity entity = new MultipartEntity();
             entity.addPart("directory", new StringBody(path, Charsets.UTF_8));
             entity.addPart("basename", new StringBody(name, Charsets.UTF_8));
-            final DigestInputStream digestStream = new DigestInputStream(heartbeatInputStream, MessageDigest.getInstance("SHA-256"));
-            final CountingInputStream countStream = new CountingInputStream(digestStream);
-            final InputStreamBody body = new InputStreamBody(countStream, name);
             entity.addPart("uploadFile", body);
 
             post.setEntity(entity);
-            this.lastQuery = "upload to " + path + "/" + name;
-
-            final HttpResponse response = client.execute(post);
-            this.lastResponse = responseToString(response);
 
+            final String query = "upload to " + path + "/" + name;
+            final ExchangeTimings timings = new ExchangeTimings();
+            final HttpResponse response;
+            try {
+                response = transport.execute(post, timings);
+            } catch (IOException e) {
+                note("upload", query, e.toString(), -1, timings);
+                throw e;
+            }
             final int status = response.getStatusLine().getStatusCode();
+            final String text = responseToString(response);
+            timings.markFinished();
+            note("upload", query, text, status, timings);
 
-            if (status == HttpStatus.SC_OK) {
-                final String sha256 = Hex.encodeHexString(digestStream.getMessageDigest().digest());
-                final Map<String, String> headerChecks = ImmutableMap.of(
-                        "X-Agile-Status", "0",
-                        "X-Agile-Size", Long.toString(countStream.getCount()),
-                        "X-Agile-Checksum", sha256);
-                checkHeaders(response, headerChecks);
-            } else {
-                throw throwAndLog("Got status: " + response.getStatusLine().getStatusCode() + " from upload");
+            if (status != HttpStatus.SC_OK) {
+                throw throwAndLog("Got status: " + status + " from upload");
+            }
+            if (isInvalidToken(response)) {
+                tokens.invalidate(token); // so the next call logs in again even if this one gives up
+                if (!lastTry) {
+                    requireAuth();
+                    return null;
+                }
             }
+            return response;
         } catch (IOException e) {
             throw EndpointUtil.unwindInterruptException(e);
-        } catch (NoSuchAlgorithmException e) {
-            Throwables.propagate(e);
         } finally {
             post.releaseConnection();
         }
@@ -357,15 +1224,11 @@ public class EndpointHTTP implements EndpointMultipart {
 
     @Override
     public void resumeMultipartUpload() throws IOException {
-        if (mpid == null)
+        final String session = mpid;
+        if (session == null)
             throw new IllegalArgumentException("Must call startUpload or setMpid before this");
 
-        final RPC call = new RPC("restartMultipart", "mpid", mpid);
-        final JsonObject elem = execute(call).getAsJsonObject();
-        int code = 0;
-        if (!elem.has("code") || (code = elem.get("code").getAsInt()) != 0) {
-            throw throwAndLog("Invalid mpid: " + code + " obj: " + elem);
-        }
+        restartMultipart(session);
     }
 
 
@@ -374,6 +1237,15 @@ public class EndpointHTTP implements EndpointMultipart {
         if (mpid == null)
             throw new IllegalArgumentException("Must call startUpload or setMpid before this");
 
+        return getMultipartStatus(mpid);
+    }
+
+
+    /**
+     * Status of any multipart upload, leaving this endpoint's own session alone.
+     */
+    @Override
+    public MultipartStatus getMultipartStatus(String mpid) throws IOException {
         final RPC call = new RPC("getMultipartStatus", "mpid", mpid);
         final JsonObject elem = execute(call).getAsJsonObject();
         int code = 0;
@@ -398,6 +1270,16 @@ public class EndpointHTTP implements EndpointMultipart {
         if (mpid == null)
             throw new IllegalArgumentException("Must call startUpload or setMpid before this");
 
+        return listMultipartPieces(mpid, lastPiece, pageSize).asList();
+    }
+
+
+    /**
+     * One page of any session's pieces, read straight out of the response into primitive arrays. See
+     * {@link MultipartPieceIterator} to walk them all.
+     */
+    @Override
+    public MultipartPiecePage listMultipartPieces(String mpid, int lastPiece, int pageSize) throws IOException {
         final RPC call = new RPC("listMultipartPiece", "mpid", mpid, "cookie", lastPiece, "pagesize", pageSize);
 
         final JsonObject ret = execute(call).getAsJsonObject();
@@ -407,10 +1289,24 @@ public class EndpointHTTP implements EndpointMultipart {
             throw throwAndLog("Invalid code for listMultipartPiece: " + code + " obj: " + ret);
         }
 
-        return Arrays.asList(gson.fromJson(ret.get("pieces").getAsJsonArray(), MultipartPiece[].class));
+        final JsonArray pieces = ret.get("pieces").getAsJsonArray();
+        final MultipartPiecePage page = new MultipartPiecePage(pieces.size());
+        for (JsonElement elem : pieces) {
+            final JsonObject obj = elem.getAsJsonObject();
+            page.add(intOrZero(obj, "number"), intOrZero(obj, "state"), intOrZero(obj, "size"),
+                    intOrZero(obj, "error"));
+        }
+        return page;
+    }
+
+
+    private static int intOrZero(JsonObject obj, String name) {
+        final JsonElement value = obj.get(name);
+        return value == null || value.isJsonNull() ? 0 : value.getAsInt();
     }
 
-    private int whichChunkOffset(final int startingChunk, final long targetOffset, final Integer pageSize) throws IOException {
+    private int whichChunkOffset(final int startingChunk, final long targetOffset, final Integer pageSize)
+            throws IOException {
         final RPC call = new RPC("listMultipartPiece",
                 "mpid", mpid, "cookie", Integer.toString(startingChunk), "pagesize", new Integer(pageSize));
 
@@ -442,6 +1338,7 @@ public class EndpointHTTP implements EndpointMultipart {
         for (Entry<String, String> headerCheck : headerChecks.entrySet()) {
             final Header h = response.getFirstHeader(headerCheck.getKey());
             if (h == null || !h.getValue().equalsIgnoreCase(headerCheck.getValue())) {
+                metrics.event("checkHeaders.failure");
                 throw throwAndLog(headerCheck.getKey() +
                         ", got: " + h.getValue() + ", expected: " + headerCheck.getValue());
             }
@@ -454,24 +1351,59 @@ public class EndpointHTTP implements EndpointMultipart {
     }
 
 
+    /**
+     * Send a call, logging in again and resending once if the server refuses the token.
+     */
     private JsonElement execute(RPC args, @Nullable Map<String, String> checkHeaders) throws IOException {
         requireAuth();
 
+        final String sentToken = auth;
+        final JsonElement result = send(args, sentToken, checkHeaders);
+        if (!isInvalidToken(result)) return result;
+
+        tokens.invalidate(sentToken);
+        requireAuth();
+        return send(args, auth, checkHeaders);
+    }
+
+
+    /**
+     * Send a call with the given token, or none, for the token manager's login and logout. It goes over this
+     * endpoint's transport and is counted and recorded like any other call.
+     */
+    JsonElement call(String method, @Nullable String token, Object... params) throws IOException {
+        return send(new RPC(method, params), token, null);
+    }
+
+
+    private JsonElement send(RPC args, @Nullable String token, @Nullable Map<String, String> checkHeaders)
+            throws IOException {
         final HttpPost post = new HttpPost(endpoint.toString() + JSON_RPC_PATH);
-        post.addHeader(AUTH_HEADER, auth);
-        args.params.put("token", auth);
-        final String message = gson.toJson(args);
+        if (token != null) post.addHeader(AUTH_HEADER, token);
+        final JsonRpcWriter writer = WRITERS.get();
+        writer.begin(args.method);
+        for (int i = 0; i < args.params.length; i += 2) {
+            writer.param((String)args.params[i], args.params[i + 1]);
+        }
+        writer.param("token", token).end(id.incrementAndGet());
 
+        final OperationStats stats = metrics.operation(args.method);
+        final long start = stats.begin();
+        boolean success = false;
+
+        final ExchangeTimings timings = new ExchangeTimings();
+        boolean noted = false;
         String response = "";
         try {
-            this.lastQuery = message;
-            post.setEntity(new StringEntity(message));
+            post.setEntity(writer.entity());
 
-            final HttpResponse httpResponse = client.execute(post);
+            final HttpResponse httpResponse = transport.execute(post, timings);
             response = responseToString(httpResponse);
-            this.lastResponse = response;
+            timings.markFinished();
 
             final int status = httpResponse.getStatusLine().getStatusCode();
+            note(args.method, writer, response, status, timings);
+            noted = true;
 
             if (status != HttpStatus.SC_OK) {
                 throw throwAndLog("Got status: " + status + " from method: " + args.method);
@@ -482,6 +1414,7 @@ public class EndpointHTTP implements EndpointMultipart {
             final JsonObject obj = parser.parse(response).getAsJsonObject();
 
             if (obj.has("result")) {
+                success = true;
                 return obj.get("result");
             } else {
                 throw throwAndLog("No result field");
@@ -493,27 +1426,32 @@ public class EndpointHTTP implements EndpointMultipart {
             log.error("Bad JSON {}", response, e);
             throw e;
         } catch (IOException e) {
+            if (!noted) note(args.method, writer, e.toString(), -1, timings);
             throw EndpointUtil.unwindInterruptException(e);
         } finally {
             post.releaseConnection();
+            stats.end(start, 0, success);
         }
     }
 
 
-    private JsonElement getResult(String response) throws IOException {
-        try {
-            final JsonObject obj = parser.parse(response).getAsJsonObject();
-            final JsonElement err = obj.get("error");
+    private void note(String method, CharSequence request, @Nullable String response, int status,
+            ExchangeTimings timings) {
+        LAST.set(diagnostics.record(method, request, response, status, timings));
+    }
 
-            if (err != null && !err.isJsonNull()) {
-                throw throwAndLog(obj.get("error").getAsString());
-            }
 
-            return obj.get("result");
-        } catch (JsonSyntaxException e) {
-            log.error("JsonSyntaxException from {} in getResult", response, e);
-            throw e;
+    /**
+     * The X-Agile headers, all the upload responses have to say.
+     */
+    private static String agileHeaders(HttpResponse response) {
+        final StringBuilder headers = new StringBuilder();
+        for (Header header : response.getAllHeaders()) {
+            if (!header.getName().startsWith("X-Agile-")) continue;
+            if (headers.length() > 0) headers.append(", ");
+            headers.append(header.getName()).append(": ").append(header.getValue());
         }
+        return headers.toString();
     }
 
 
@@ -523,78 +1461,45 @@ public class EndpointHTTP implements EndpointMultipart {
 
 
     private void requireAuth() throws IOException {
-        if (!Strings.isNullOrEmpty(auth)) return;
+        auth = tokens.getToken(this);
+    }
 
-        final HttpPost post = new HttpPost(endpoint.toString() + JSON_RPC_PATH);
-        final String message = gson.toJson(new RPC("login", "username", username, "password", password));
 
-        try {
-            post.setEntity(new StringEntity(message));
-            final String response = responseToString(client.execute(post));
+    private static boolean isInvalidToken(HttpResponse response) {
+        final Header h = response.getFirstHeader("X-Agile-Status");
+        return h != null && Integer.toString(AuthTokenManager.INVALID_TOKEN).equals(h.getValue());
+    }
 
-            final JsonArray array = getResult(response).getAsJsonArray();
-            auth = gson.fromJson(array.get(0), String.class);
 
-            if (Strings.isNullOrEmpty(auth)) {
-                throw throwAndLog("Null or empty auth, response: " + response);
-            }
-        } finally {
-            post.releaseConnection();
+    private static boolean isInvalidToken(JsonElement result) {
+        if (result.isJsonPrimitive() && result.getAsJsonPrimitive().isNumber()) {
+            return result.getAsInt() == AuthTokenManager.INVALID_TOKEN;
+        } else if (result.isJsonObject() && result.getAsJsonObject().has("code")) {
+            final JsonElement code = result.getAsJsonObject().get("code");
+            return code.isJsonPrimitive() && code.getAsJsonPrimitive().isNumber() &&
+                    code.getAsInt() == AuthTokenManager.INVALID_TOKEN;
         }
+        return false;
     }
 
     private EndpointException throwAndLog(String message) throws EndpointException {
-        log.error(message + "\n  Query(" + this.lastQuery + ")\n  Response(" + this.lastResponse + ")");
+        final OperationRecord last = LAST.get();
+        log.error(message + (last == null ? "" : "\n  Last request: " + last));
         throw new EndpointException(message);
     }
 
 
-    @SuppressWarnings({"unused", "serial"})
-    private class RPC {
-        private final String jsonrpc = "2.0";
+    /**
+     * A JSON-RPC method and its parameters as name, value pairs, written out by {@link JsonRpcWriter}.
+     */
+    private static final class RPC {
         private final String method;
-        private final Map<String,Object> params;
-        private final int id;
-
-
-        private RPC(final String method) {
-            this(method, new HashMap<String, Object>());
-        }
-
-
-        private RPC(final String method, final String paramOneName, final Object paramOneValue) {
-            this(method, new HashMap<String, Object>() {{
-                put(paramOneName, paramOneValue);
-            }});
-        }
-
-
-        private RPC(final String method,
-                final String paramOneName, final Object paramOneValue,
-                final String paramTwoName, final Object paramTwoValue) {
-            this(method, new HashMap<String, Object>() {{
-                put(paramOneName, paramOneValue);
-                put(paramTwoName, paramTwoValue);
-            }});
-        }
-
-
-        private RPC(final String method,
-                final String paramOneName, final Object paramOneValue,
-                final String paramTwoName, final Object paramTwoValue,
-                final String paramThreeName, final Object paramThreeValue) {
-            this(method, new HashMap<String, Object>() {{
-                put(paramOneName, paramOneValue);
-                put(paramTwoName, paramTwoValue);
-                put(paramThreeName, paramThreeValue);
-            }});
-        }
+        private final Object[] params;
 
 
-        private RPC(String method, Map<String, Object> params) {
+        private RPC(String method, Object... params) {
             this.method = method;
             this.params = params;
-            this.id = ++EndpointHTTP.this.id;
         }
     }
 
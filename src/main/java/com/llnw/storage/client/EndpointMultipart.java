@@ -7,6 +7,7 @@ import javax.annotation.Nullable;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.List;
 
@@ -15,8 +16,13 @@ public interface EndpointMultipart extends Endpoint {
     public void setMpid(String mpid);
     public void resumeMultipartUpload() throws IOException;
     public void uploadPart(File file, Iterator<Chunk> chunks, @Nullable ActivityCallback callback) throws IOException;
+    public void uploadPart(ByteBuffer[] piece, @Nullable ActivityCallback callback) throws IOException;
+    public void uploadPart(int number, ByteBuffer[] piece, @Nullable ActivityCallback callback) throws IOException;
+    public void uploadPart(int number, File file, Chunk chunk, @Nullable ActivityCallback callback) throws IOException;
     public void abortMultipartUpload() throws IOException;
     public MultipartStatus getMultipartStatus() throws IOException;
+    public MultipartStatus getMultipartStatus(String mpid) throws IOException;
     public void completeMultipartUpload() throws IOException;
     public List<MultipartPiece> listMultipartPiece(int lastPiece, int pageSize) throws IOException;
+    public MultipartPiecePage listMultipartPieces(String mpid, int lastPiece, int pageSize) throws IOException;
 }
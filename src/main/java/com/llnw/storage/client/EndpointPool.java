@@ -0,0 +1,154 @@
+package com.llnw.storage.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Bounded pool of endpoints for code that fans work out over threads. Endpoints are not thread safe, so
+ * each borrower gets one to itself until it is released. Endpoints are created on demand from the factory,
+ * kept logged in while idle, and closed when the pool is closed.
+ *
+ * {@link #execute} covers the usual borrow, use, release pattern; an endpoint that throws is closed rather
+ * than handed to the next borrower.
+ */
+@ThreadSafe
+public class EndpointPool implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(EndpointPool.class);
+
+    private final EndpointFactory factory;
+    private final boolean useFTP;
+    private final int maxSize;
+    private final Semaphore permits;
+    private final BlockingDeque<Endpoint> idle = new LinkedBlockingDeque<Endpoint>();
+
+    private volatile boolean closed;
+
+
+    public EndpointPool(EndpointFactory factory, boolean useFTP, int maxSize) {
+        if (maxSize < 1) throw new IllegalArgumentException("maxSize must be at least 1");
+
+        this.factory = factory;
+        this.useFTP = useFTP;
+        this.maxSize = maxSize;
+        this.permits = new Semaphore(maxSize, true);
+    }
+
+
+    public interface Operation<T> {
+        T run(Endpoint endpoint) throws IOException;
+    }
+
+
+    /**
+     * Run an operation on a pooled endpoint, discarding the endpoint if the operation fails.
+     */
+    public <T> T execute(Operation<T> operation) throws IOException {
+        final Endpoint endpoint = borrow();
+        boolean healthy = false;
+        try {
+            final T result = operation.run(endpoint);
+            healthy = true;
+            return result;
+        } finally {
+            if (healthy) release(endpoint); else invalidate(endpoint);
+        }
+    }
+
+
+    /**
+     * Take an idle endpoint, or create one, blocking while maxSize endpoints are borrowed.
+     */
+    public Endpoint borrow() throws IOException {
+        if (closed) throw new IllegalStateException("Pool is closed");
+
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for an endpoint");
+        }
+
+        final Endpoint endpoint = idle.pollFirst();
+        if (endpoint != null) return endpoint;
+
+        try {
+            return factory.create(useFTP);
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+
+    /**
+     * Return a healthy endpoint to the pool.
+     */
+    public void release(Endpoint endpoint) {
+        if (closed) {
+            closeQuietly(endpoint);
+        } else {
+            idle.offerFirst(endpoint); // most recently used first, so idle connections can age out
+        }
+        permits.release();
+    }
+
+
+    /**
+     * Close and drop an endpoint that failed, freeing its slot for a fresh one.
+     */
+    public void invalidate(Endpoint endpoint) {
+        try {
+            closeQuietly(endpoint);
+        } finally {
+            permits.release();
+        }
+    }
+
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+
+    public boolean isFTP() {
+        return useFTP;
+    }
+
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+
+    @Override
+    public void close() {
+        closed = true;
+        Endpoint endpoint;
+        while ((endpoint = idle.pollFirst()) != null) {
+            closeQuietly(endpoint);
+        }
+    }
+
+
+    /**
+     * A broken endpoint can fail to log out in all sorts of ways, none of which should cost the pool a slot.
+     */
+    private static void closeQuietly(Endpoint endpoint) {
+        try {
+            endpoint.close();
+        } catch (IOException e) {
+            log.debug("Couldn't close endpoint", e);
+        } catch (RuntimeException e) {
+            log.debug("Couldn't close endpoint", e);
+        }
+    }
+}
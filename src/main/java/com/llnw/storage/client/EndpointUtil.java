@@ -1,9 +1,80 @@
 package com.llnw.storage.client;
 
+import org.joda.time.Duration;
+
+import javax.annotation.Nullable;
+
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.channels.ClosedByInterruptException;
 
 public class EndpointUtil {
+    /**
+     * Wait for the storage to merge the endpoint's completed multipart upload.
+     *
+     * @throws EndpointException if the upload ends in ERROR or DELETED, or hasn't merged within the timeout
+     */
+    public static void awaitMultipart(EndpointMultipart endpoint, Duration timeout) throws IOException {
+        awaitMultipart(endpoint, timeout, 0, 0);
+    }
+
+
+    /**
+     * Wait for the storage to merge the endpoint's completed multipart upload, polling less often the bigger it
+     * is (see {@link MergeBackoff}).
+     *
+     * @param size bytes in the upload, 0 if unknown
+     * @param pieces pieces in the upload, 0 if unknown
+     * @throws EndpointException if the upload ends in ERROR or DELETED, or hasn't merged within the timeout
+     */
+    public static void awaitMultipart(EndpointMultipart endpoint, Duration timeout, long size, int pieces)
+            throws IOException {
+        await(endpoint, null, timeout, size, pieces);
+    }
+
+
+    /**
+     * Wait for the storage to merge any completed multipart upload, as above.
+     */
+    public static void awaitMultipart(EndpointMultipart endpoint, String mpid, Duration timeout, long size,
+            int pieces) throws IOException {
+        await(endpoint, mpid, timeout, size, pieces);
+    }
+
+
+    private static void await(EndpointMultipart endpoint, @Nullable String mpid, Duration timeout, long size,
+            int pieces) throws IOException {
+        final long deadline = System.currentTimeMillis() + timeout.getMillis();
+        final MergeBackoff backoff = new MergeBackoff(size, pieces);
+        do {
+            final long wait = Math.min(backoff.nextDelayMillis(), deadline - System.currentTimeMillis());
+            try {
+                Thread.sleep(Math.max(1, wait)); // nothing merges the instant it's completed
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for multipart upload");
+            }
+        } while (!isFinished(mpid == null ? endpoint.getMultipartStatus() : endpoint.getMultipartStatus(mpid),
+                timeout, deadline));
+    }
+
+
+    /**
+     * @return true on SUCCESS, false while the merge may still finish in time
+     * @throws EndpointException on ERROR or DELETED, or once the deadline has passed
+     */
+    static boolean isFinished(MultipartStatus status, Duration timeout, long deadline) throws EndpointException {
+        if (status == MultipartStatus.SUCCESS) return true;
+        if (status == MultipartStatus.ERROR || status == MultipartStatus.DELETED) {
+            throw new EndpointException("Multipart upload ended in " + status);
+        }
+        if (System.currentTimeMillis() >= deadline) {
+            throw new EndpointException("Multipart upload still " + status + " after " + timeout);
+        }
+        return false;
+    }
+
+
     static IOException unwindInterruptException(IOException e) throws IOException {
         // This is dumb. Sometimes httpcomponents will throw a ClientProtocolException which wraps the real
         // exception we want to throw when interrupted, ClosedByInterruptException. So, try to find that
@@ -0,0 +1,42 @@
+package com.llnw.storage.client;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Poll intervals for a multipart upload that is being merged. The storage takes roughly a fixed cost per piece
+ * plus time proportional to the size. The interval starts at a quarter of that estimate and grows by half each
+ * time up to a ceiling of half the estimate, kept between 100ms and 5s; the first interval is never above the
+ * ceiling. Small uploads are published within tens of milliseconds; big ones aren't polled every 100ms for
+ * minutes.
+ */
+@NotThreadSafe
+final class MergeBackoff {
+    private static final long BASE_MILLIS = 20;
+    private static final long MILLIS_PER_PIECE = 2;
+    private static final long BYTES_PER_MILLI = 256 * 1024; // about 256 MB/s
+    private static final long MIN_MILLIS = 10;
+    private static final long MIN_CEILING_MILLIS = 100;
+    private static final long MAX_MILLIS = 5000;
+
+    private final long ceiling;
+    private long next;
+
+
+    /**
+     * @param size bytes in the upload, 0 if unknown
+     * @param pieces pieces in the upload, 0 if unknown
+     */
+    MergeBackoff(long size, int pieces) {
+        final long expected = BASE_MILLIS + MILLIS_PER_PIECE * Math.max(0, pieces) +
+                Math.max(0, size) / BYTES_PER_MILLI;
+        this.ceiling = Math.min(MAX_MILLIS, Math.max(MIN_CEILING_MILLIS, expected / 2));
+        this.next = Math.min(ceiling, Math.max(MIN_MILLIS, expected / 4));
+    }
+
+
+    long nextDelayMillis() {
+        final long delay = next;
+        next = Math.min(ceiling, next + next / 2);
+        return delay;
+    }
+}
@@ -0,0 +1,165 @@
+package com.llnw.storage.client;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Walks every piece of a multipart session, fetching the next page of listMultipartPiece in the background while
+ * the caller works through the current one.
+ *
+ * Read it a page at a time with {@link #nextPage}, which keeps the pieces in primitive arrays, or a piece at a
+ * time as an {@link Iterator}, but not both. The Iterator methods can't throw IOException, so a failed fetch
+ * comes out of them as an IllegalStateException with the IOException as its cause.
+ *
+ * The prefetch thread calls the endpoint until the last page has arrived or the iterator is closed. An
+ * {@link EndpointHTTP} takes calls from any number of threads, so it stays free for other work meanwhile,
+ * sending more pieces of the same session included, though pieces sent after a page was fetched won't be in
+ * it. What has to wait for {@link #close} is anything that ends the session or the endpoint: completing or
+ * aborting the session would fail the fetch in flight, and closing the endpoint would log it out from under it.
+ * The iterator itself is for one thread.
+ */
+@NotThreadSafe
+public class MultipartPieceIterator implements Iterator<MultipartPiece>, Closeable {
+    private static final Executor PREFETCH = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("locs-piece-prefetch-%d").setDaemon(true).build());
+
+    private final EndpointMultipart endpoint;
+    private final String mpid;
+    private final int pageSize;
+    private final Executor executor;
+
+    @Nullable private FutureTask<MultipartPiecePage> pending;
+    @Nullable private MultipartPiecePage current;
+    private int index;
+
+
+    public MultipartPieceIterator(EndpointMultipart endpoint, String mpid, int pageSize) {
+        this(endpoint, mpid, 0, pageSize, PREFETCH);
+    }
+
+
+    /**
+     * @param lastPiece start after this piece number, 0 for the whole session
+     * @param executor runs the page fetches
+     */
+    public MultipartPieceIterator(EndpointMultipart endpoint, String mpid, int lastPiece, int pageSize,
+                                  Executor executor) {
+        if (pageSize <= 0) throw new IllegalArgumentException("Page size must be positive");
+
+        this.endpoint = endpoint;
+        this.mpid = mpid;
+        this.pageSize = pageSize;
+        this.executor = executor;
+        pending = fetch(lastPiece);
+    }
+
+
+    /**
+     * @return the next page, or null once every piece has been read
+     */
+    @Nullable
+    public MultipartPiecePage nextPage() throws IOException {
+        if (current != null && index < current.size()) {
+            throw new IllegalStateException("Part way through a page; keep reading pieces with next()");
+        }
+        if (pending == null) return null;
+
+        final MultipartPiecePage page = take();
+        // A short page is the last; a full one may be too, which the next fetch finds out
+        pending = page.size() < pageSize ? null : fetch(page.getLastNumber());
+        if (page.size() == 0) return null;
+
+        current = page;
+        index = page.size();
+        return page;
+    }
+
+
+    @Override
+    public boolean hasNext() {
+        if (current != null && index < current.size()) return true;
+
+        try {
+            final MultipartPiecePage page = nextPage();
+            if (page == null) return false;
+            index = 0;
+            return true;
+        } catch (IOException e) {
+            throw new IllegalStateException("Couldn't list pieces of " + mpid, e);
+        }
+    }
+
+
+    @Override
+    public MultipartPiece next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        return current.get(index++);
+    }
+
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+
+    /**
+     * Stop prefetching. Returns once the fetch already started has finished, so the session may then be completed
+     * or aborted and the endpoint closed.
+     */
+    @Override
+    public void close() {
+        final FutureTask<MultipartPiecePage> abandoned = pending;
+        pending = null;
+        if (abandoned == null) return;
+
+        try {
+            Uninterruptibles.getUninterruptibly(abandoned);
+        } catch (ExecutionException e) {
+            // Nobody wants the page any more
+        }
+    }
+
+
+    private FutureTask<MultipartPiecePage> fetch(final int cookie) {
+        final FutureTask<MultipartPiecePage> task = new FutureTask<MultipartPiecePage>(
+                new Callable<MultipartPiecePage>() {
+                    @Override
+                    public MultipartPiecePage call() throws IOException {
+                        return endpoint.listMultipartPieces(mpid, cookie, pageSize);
+                    }
+                });
+        executor.execute(task);
+        return task;
+    }
+
+
+    /**
+     * Wait for the pending page. A failure stays pending, so asking again throws it again.
+     */
+    private MultipartPiecePage take() throws IOException {
+        try {
+            return pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted listing pieces of " + mpid);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException)e.getCause();
+            throw new EndpointException("Couldn't list pieces of " + mpid + ": " + e.getCause());
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.llnw.storage.client;
+
+import com.google.common.base.Objects;
+
+import java.util.AbstractList;
+import java.util.List;
+
+/**
+ * One page of a multipart session's pieces, held column by column in primitive arrays rather than as one
+ * {@link MultipartPiece} per piece. Entry i of each array describes the same piece.
+ */
+public final class MultipartPiecePage {
+    public final int[] numbers;
+    public final int[] states;
+    public final int[] sizes;
+    public final int[] errors;
+
+    private int count;
+
+
+    MultipartPiecePage(int capacity) {
+        numbers = new int[capacity];
+        states = new int[capacity];
+        sizes = new int[capacity];
+        errors = new int[capacity];
+    }
+
+
+    void add(int number, int state, int size, int error) {
+        numbers[count] = number;
+        states[count] = state;
+        sizes[count] = size;
+        errors[count] = error;
+        count++;
+    }
+
+
+    public int size() {
+        return count;
+    }
+
+
+    /**
+     * @return the last piece number on the page, the cookie for the page after it
+     */
+    public int getLastNumber() {
+        if (count == 0) throw new IllegalStateException("Empty page");
+        return numbers[count - 1];
+    }
+
+
+    public MultipartPiece get(int i) {
+        if (i >= count) throw new IndexOutOfBoundsException(i + " >= " + count);
+        return new MultipartPiece(numbers[i], states[i], sizes[i], errors[i]);
+    }
+
+
+    /**
+     * @return a view of the page as pieces, each made as it's read
+     */
+    public List<MultipartPiece> asList() {
+        return new AbstractList<MultipartPiece>() {
+            @Override
+            public MultipartPiece get(int index) {
+                return MultipartPiecePage.this.get(index);
+            }
+
+            @Override
+            public int size() {
+                return count;
+            }
+        };
+    }
+
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(getClass())
+                .add("size", count)
+                .add("first", count == 0 ? null : numbers[0])
+                .add("last", count == 0 ? null : numbers[count - 1]).toString();
+    }
+}
@@ -0,0 +1,231 @@
+package com.llnw.storage.client;
+
+import com.google.common.base.Function;
+import com.google.common.base.Objects;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.llnw.storage.client.io.ActivityCallback;
+import com.llnw.storage.client.io.ByteBuffers;
+import com.llnw.storage.client.io.Chunk;
+import com.llnw.storage.client.io.ParallelHasher;
+import com.llnw.storage.client.transport.NioTransport;
+import org.joda.time.Duration;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One multipart upload, holding its own mpid, piece counter and index of the pieces sent, so any number of
+ * them can run at once over a single {@link EndpointHTTP} and its login and connections:
+ *
+ * <pre>
+ *     final MultipartSession a = http.startSession("/content", "a.bin");
+ *     final MultipartSession b = http.startSession("/content", "b.bin");
+ *     // from any threads
+ *     a.uploadPart(pieceOfA, null);
+ *     b.uploadPart(1, bigFile, chunk, null);
+ *     ...
+ *     a.complete();
+ *     a.await(Duration.standardMinutes(30));
+ * </pre>
+ *
+ * Pieces may be sent from several threads at once. Appended pieces take the next number after the highest
+ * one sent so far, so mixing them with explicitly numbered pieces sent concurrently can collide.
+ */
+@ThreadSafe
+public class MultipartSession {
+    private final EndpointHTTP endpoint;
+    private final String mpid;
+    private final AtomicInteger next = new AtomicInteger(1);
+    private final ConcurrentNavigableMap<Integer, Long> pieces = new ConcurrentSkipListMap<Integer, Long>();
+
+
+    MultipartSession(EndpointHTTP endpoint, String mpid) {
+        this.endpoint = endpoint;
+        this.mpid = mpid;
+    }
+
+
+    public String getMpid() {
+        return mpid;
+    }
+
+
+    /**
+     * Append a piece made of the buffers' remaining bytes, leaving them consumed.
+     *
+     * @return the piece's number
+     */
+    public int uploadPart(ByteBuffer[] piece, @Nullable ActivityCallback callback) throws IOException {
+        final int number = next.getAndIncrement();
+        uploadPart(number, piece, callback);
+        return number;
+    }
+
+
+    /**
+     * Send a piece with an explicit number, 1 for the first, replacing any piece sent with that number.
+     */
+    public void uploadPart(int number, ByteBuffer[] piece, @Nullable ActivityCallback callback) throws IOException {
+        final long size = ByteBuffers.remaining(piece);
+        endpoint.sendPart(mpid, number, piece, callback);
+        recordPiece(number, size);
+    }
+
+
+    /**
+     * Send a piece with an explicit number without waiting for it. Over a {@link NioTransport} no thread is held
+     * while it is in flight, so many pieces can be outstanding at once. Leave the buffers alone until the future
+     * completes; it fails as {@link #uploadPart} would throw.
+     */
+    public ListenableFuture<Void> submitPart(int number, ByteBuffer[] piece, @Nullable ActivityCallback callback)
+            throws IOException {
+        return submitPart(number, piece, true, callback);
+    }
+
+
+    /**
+     * As above, for buffers the caller already holds against the endpoint's memory budget.
+     */
+    ListenableFuture<Void> submitReservedPart(int number, ByteBuffer[] piece, @Nullable ActivityCallback callback)
+            throws IOException {
+        return submitPart(number, piece, false, callback);
+    }
+
+
+    private ListenableFuture<Void> submitPart(final int number, ByteBuffer[] piece, boolean reserve,
+            @Nullable ActivityCallback callback) throws IOException {
+        final long size = ByteBuffers.remaining(piece);
+        return Futures.transform(endpoint.submitPart(mpid, number, piece, reserve, callback),
+                new Function<Void, Void>() {
+                    @Override
+                    public Void apply(Void input) {
+                        recordPiece(number, size);
+                        return null;
+                    }
+                });
+    }
+
+
+    /**
+     * Append a chunk of a file as the next piece.
+     *
+     * @return the piece's number
+     */
+    public int uploadPart(File file, Chunk chunk, @Nullable ActivityCallback callback) throws IOException {
+        final int number = next.getAndIncrement();
+        uploadPart(number, file, chunk, callback);
+        return number;
+    }
+
+
+    public void uploadPart(int number, File file, Chunk chunk, @Nullable ActivityCallback callback)
+            throws IOException {
+        uploadPart(number, file, chunk, null, callback);
+    }
+
+
+    /**
+     * Send a chunk of a file whose SHA-256 is already known, say from a {@link ParallelHasher}, so it is read
+     * once to send it rather than once more to hash it.
+     */
+    public void uploadPart(int number, File file, Chunk chunk, @Nullable String sha256,
+            @Nullable ActivityCallback callback) throws IOException {
+        endpoint.sendPart(mpid, number, file, chunk, sha256, callback);
+        recordPiece(number, chunk.length);
+    }
+
+
+    /**
+     * Ask the storage to merge the pieces, checking it has as many as were sent through this session.
+     */
+    public void complete() throws IOException {
+        final int expected = pieces.size();
+        final int stored = endpoint.completeMultipart(mpid);
+        if (stored != expected) {
+            throw new EndpointException("Multipart upload " + mpid + " completed with " + stored +
+                    " pieces, expected " + expected);
+        }
+    }
+
+
+    /**
+     * Wait for a completed session to merge, see {@link EndpointUtil#awaitMultipart}.
+     */
+    public void await(Duration timeout) throws IOException {
+        EndpointUtil.awaitMultipart(endpoint, mpid, timeout, getSize(), getPieceCount());
+    }
+
+
+    public void abort() throws IOException {
+        endpoint.abortMultipart(mpid);
+    }
+
+
+    public MultipartStatus getStatus() throws IOException {
+        return endpoint.getMultipartStatus(mpid);
+    }
+
+
+    public int getPieceCount() {
+        return pieces.size();
+    }
+
+
+    /**
+     * @return bytes in the pieces sent so far
+     */
+    public long getSize() {
+        long size = 0;
+        for (Long piece : pieces.values()) size += piece;
+        return size;
+    }
+
+
+    /**
+     * Note a piece the storage has acknowledged, sent through this session or some other way.
+     */
+    void recordPiece(int number, long size) {
+        pieces.put(number, size);
+        int current;
+        while ((current = next.get()) <= number && !next.compareAndSet(current, number + 1)) {
+            // raced with another piece, try again
+        }
+    }
+
+
+    /**
+     * Fill the index from the storage's list of pieces, for a session resumed from elsewhere.
+     */
+    void loadPieces() throws IOException {
+        final MultipartPieceIterator pages = new MultipartPieceIterator(endpoint, mpid, 1000);
+        try {
+            MultipartPiecePage page;
+            while ((page = pages.nextPage()) != null) {
+                for (int i = 0; i < page.size(); i++) {
+                    recordPiece(page.numbers[i], page.sizes[i]);
+                }
+            }
+        } finally {
+            pages.close();
+        }
+    }
+
+
+    @Override
+    public String toString() {
+        final Map.Entry<Integer, Long> last = pieces.lastEntry();
+        return Objects.toStringHelper(getClass())
+                .add("mpid", mpid)
+                .add("pieces", pieces.size())
+                .add("last", last == null ? null : last.getKey()).toString();
+    }
+}
@@ -0,0 +1,178 @@
+package com.llnw.storage.client;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.joda.time.Duration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Waits for any number of completed multipart uploads to merge, polling them all from one thread over one
+ * endpoint. Each upload is polled on its own {@link MergeBackoff} schedule, tuned to its size and piece count,
+ * and its future fails as soon as it reaches ERROR or DELETED.
+ *
+ * The endpoint is used only by the watcher's thread, so give it one of its own. Closing the watcher fails
+ * whatever is still being watched but leaves the endpoint open.
+ */
+@ThreadSafe
+public class MultipartWatcher implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(MultipartWatcher.class);
+
+    private final EndpointMultipart endpoint;
+    private final ScheduledExecutorService poller = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("locs-multipart-watcher-%d").setDaemon(true).build());
+    private final Set<Watch> watches = Sets.newHashSet();
+
+
+    public MultipartWatcher(EndpointMultipart endpoint) {
+        this.endpoint = endpoint;
+    }
+
+
+    /**
+     * Start watching a completed upload.
+     *
+     * @param size bytes in the upload, 0 if unknown
+     * @param pieces pieces in the upload, 0 if unknown
+     * @return a future that gets SUCCESS, or fails with an EndpointException on ERROR, DELETED or timeout
+     */
+    public ListenableFuture<MultipartStatus> watch(String mpid, long size, int pieces, Duration timeout) {
+        final Watch watch = new Watch(mpid, new MergeBackoff(size, pieces), timeout);
+        synchronized (watches) {
+            watches.add(watch);
+        }
+        watch.schedule(watch.backoff.nextDelayMillis()); // it was only just completed
+        return watch.future;
+    }
+
+
+    /**
+     * Block until a completed upload has merged.
+     *
+     * @throws EndpointException if it ends in ERROR or DELETED, or hasn't merged within the timeout
+     */
+    public MultipartStatus await(String mpid, long size, int pieces, Duration timeout) throws IOException {
+        final ListenableFuture<MultipartStatus> future = watch(mpid, size, pieces, timeout);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for multipart upload " + mpid);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException)e.getCause();
+            throw new EndpointException("Couldn't watch multipart upload " + mpid + ": " + e.getCause());
+        }
+    }
+
+
+    /**
+     * @return uploads still being watched
+     */
+    public int getWatchCount() {
+        synchronized (watches) {
+            return watches.size();
+        }
+    }
+
+
+    @Override
+    public void close() {
+        poller.shutdownNow();
+        final List<Watch> remaining;
+        synchronized (watches) {
+            remaining = Lists.newArrayList(watches);
+            watches.clear();
+        }
+        for (Watch watch : remaining) {
+            watch.future.setException(new EndpointException("Watcher closed before " + watch.mpid + " merged"));
+        }
+    }
+
+
+    private final class Watch implements Runnable {
+        private final String mpid;
+        private final MergeBackoff backoff;
+        private final Duration timeout;
+        private final long deadline;
+        private final SettableFuture<MultipartStatus> future = SettableFuture.create();
+
+        private Watch(String mpid, MergeBackoff backoff, Duration timeout) {
+            this.mpid = mpid;
+            this.backoff = backoff;
+            this.timeout = timeout;
+            this.deadline = System.currentTimeMillis() + timeout.getMillis();
+        }
+
+        @Override
+        public void run() {
+            if (future.isDone()) { // cancelled
+                done();
+                return;
+            }
+
+            try {
+                final MultipartStatus status = endpoint.getMultipartStatus(mpid);
+                if (EndpointUtil.isFinished(status, timeout, deadline)) {
+                    finish(status);
+                    return;
+                }
+            } catch (EndpointException e) {
+                fail(e);
+                return;
+            } catch (IOException e) {
+                // The connection, not the upload; keep trying until the deadline
+                if (System.currentTimeMillis() >= deadline) {
+                    fail(e);
+                    return;
+                }
+                log.warn("Couldn't get status of multipart upload {}, will retry", mpid, e);
+            } catch (RuntimeException e) {
+                fail(new EndpointException("Couldn't get status of multipart upload " + mpid + ": " + e));
+                return;
+            }
+
+            schedule(Math.min(backoff.nextDelayMillis(), Math.max(0, deadline - System.currentTimeMillis())));
+        }
+
+        private void schedule(long delayMillis) {
+            try {
+                poller.schedule(this, delayMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                fail(new EndpointException("Watcher closed before " + mpid + " merged"));
+            }
+        }
+
+        private void finish(MultipartStatus status) {
+            done();
+            future.set(status);
+        }
+
+        private void fail(IOException e) {
+            done();
+            future.setException(e);
+        }
+
+        private void done() {
+            synchronized (watches) {
+                watches.remove(this);
+            }
+        }
+    }
+}
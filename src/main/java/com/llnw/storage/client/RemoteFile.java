@@ -0,0 +1,35 @@
+package com.llnw.storage.client;
+
+import com.google.common.base.Objects;
+
+import javax.annotation.Nullable;
+
+public class RemoteFile {
+    public final String name;
+    public final boolean directory;
+    public final long size;
+    public final long mtime; // seconds since the epoch, 0 if unknown
+    @Nullable public final String checksum; // SHA-256 hex of a file's content, if the server sent it
+
+    public RemoteFile(String name, boolean directory, long size, long mtime) {
+        this(name, directory, size, mtime, null);
+    }
+
+    public RemoteFile(String name, boolean directory, long size, long mtime, @Nullable String checksum) {
+        this.name = name;
+        this.directory = directory;
+        this.size = size;
+        this.mtime = mtime;
+        this.checksum = checksum;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(getClass())
+                .add("name", name)
+                .add("directory", directory)
+                .add("size", size)
+                .add("mtime", mtime)
+                .add("checksum", checksum).toString();
+    }
+}
@@ -0,0 +1,224 @@
+package com.llnw.storage.client;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.llnw.storage.client.io.ActivityCallback;
+import com.llnw.storage.client.transport.NioTransport;
+import org.joda.time.Duration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Multipart upload from a stream of unknown length, such as a pipe, socket or transcoder, without spooling it
+ * to disk first. The stream is read into a small ring of reusable piece buffers; each piece is hashed and sent
+ * as soon as it is full while the next one fills, and the session is completed at end of stream. Memory use is
+ * at most pieceSize * (inFlight + 1) whatever the size of the object. The buffers are held against the endpoint's
+ * memory budget, and the ring only grows while the budget has room.
+ *
+ * A stream that ends within the first piece is sent as a plain upload. Any failure aborts the session. Each
+ * upload runs in a {@link MultipartSession} of its own, so several streams may share one endpoint. Pieces go
+ * out through {@link MultipartSession#submitPart}, so over a {@link NioTransport} the pieces in flight hold no
+ * threads, only the one reading the stream.
+ *
+ * <pre>
+ *     final StreamingMultipartUploader uploader = new StreamingMultipartUploader(http, 32 * 1024 * 1024, 3);
+ *     final long bytes = uploader.upload(process.getInputStream(), "/content/live", "capture.ts", null);
+ * </pre>
+ */
+public class StreamingMultipartUploader {
+    private static final Logger log = LoggerFactory.getLogger(StreamingMultipartUploader.class);
+
+    private final EndpointHTTP endpoint;
+    private final int pieceSize;
+    private final int inFlight;
+    private Duration mergeTimeout = Duration.standardMinutes(30);
+
+
+    /**
+     * @param inFlight pieces being sent at once; keep the endpoint's multipart concurrency at least this
+     */
+    public StreamingMultipartUploader(EndpointHTTP endpoint, int pieceSize, int inFlight) {
+        if (pieceSize < 1) throw new IllegalArgumentException("pieceSize must be at least 1");
+        if (inFlight < 1) throw new IllegalArgumentException("inFlight must be at least 1");
+        this.endpoint = endpoint;
+        this.pieceSize = pieceSize;
+        this.inFlight = inFlight;
+    }
+
+
+    public StreamingMultipartUploader setMergeTimeout(Duration mergeTimeout) {
+        this.mergeTimeout = mergeTimeout;
+        return this;
+    }
+
+
+    public long upload(InputStream in, String path, String name, @Nullable ActivityCallback callback)
+            throws IOException {
+        return upload(Channels.newChannel(in), path, name, callback);
+    }
+
+
+    /**
+     * Read the channel to its end and store it as path/name.
+     *
+     * @return the number of bytes uploaded
+     */
+    public long upload(ReadableByteChannel in, String path, String name, @Nullable ActivityCallback callback)
+            throws IOException {
+        final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<ByteBuffer>(inFlight + 1);
+        endpoint.reserveMemory(pieceSize);
+        int allocated = 1; // buffers held against the endpoint's memory budget
+        ByteBuffer piece = ByteBuffer.allocateDirect(pieceSize);
+        final List<ListenableFuture<Void>> pending = Lists.newArrayList();
+        MultipartSession session = null;
+        boolean complete = false;
+
+        try {
+            boolean eof = fill(in, piece);
+            piece.flip();
+            if (eof) {
+                endpoint.releaseMemory(pieceSize); // the plain upload reserves what it sends
+                allocated = 0;
+                final long size = piece.remaining();
+                endpoint.upload(piece, path, name, callback);
+                return size;
+            }
+
+            session = endpoint.startSession(path, name);
+            long total = 0;
+            int number = 0;
+            while (true) {
+                final ByteBuffer toSend = piece;
+                total += toSend.remaining();
+                final ListenableFuture<Void> sent =
+                        session.submitReservedPart(++number, new ByteBuffer[] { toSend }, callback);
+                pending.add(sent);
+                sent.addListener(new Runnable() {
+                    @Override
+                    public void run() {
+                        toSend.clear();
+                        free.add(toSend);
+                    }
+                }, MoreExecutors.sameThreadExecutor());
+                if (eof) break;
+
+                checkFinished(pending);
+                if (allocated <= inFlight && endpoint.tryReserveMemory(pieceSize)) {
+                    allocated++;
+                    piece = ByteBuffer.allocateDirect(pieceSize);
+                } else {
+                    // Full ring, or no room in the budget for a bigger one: wait for a piece to be sent
+                    piece = free.take();
+                }
+
+                eof = fill(in, piece);
+                piece.flip();
+                if (!piece.hasRemaining()) break; // the stream ended exactly on a piece boundary
+            }
+
+            for (Future<Void> future : pending) {
+                get(future);
+            }
+            session.complete();
+            session.await(mergeTimeout);
+            complete = true;
+            return total;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted streaming to " + path + "/" + name);
+        } finally {
+            settle(pending); // pieces in flight still hold the ring's buffers
+            if (!complete && session != null && !Thread.currentThread().isInterrupted()) {
+                try {
+                    session.abort();
+                } catch (IOException e) {
+                    log.warn("Couldn't abort multipart upload {} to {}/{}",
+                            new Object[] { session.getMpid(), path, name, e });
+                }
+            }
+            endpoint.releaseMemory((long)pieceSize * allocated);
+        }
+    }
+
+
+    /**
+     * Read until the buffer is full or the channel ends.
+     *
+     * @return true at end of stream
+     */
+    private static boolean fill(ReadableByteChannel in, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer) < 0) return true;
+        }
+        return false;
+    }
+
+
+    /**
+     * Wait for the pieces still being sent to let go of their buffers, so the ring's memory isn't handed back
+     * while it is in use. Their outcome no longer matters, and the caller's interrupt, if any, is kept.
+     */
+    private static void settle(List<? extends Future<?>> pending) {
+        boolean interrupted = false;
+        for (Future<?> future : pending) {
+            while (true) {
+                try {
+                    future.get(1, TimeUnit.MINUTES);
+                    break;
+                } catch (TimeoutException e) {
+                    log.warn("Still waiting for pieces to stop sending");
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    break;
+                } catch (CancellationException e) {
+                    break;
+                }
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+
+    /**
+     * Surface a failed piece early rather than reading the rest of the stream first.
+     */
+    private static void checkFinished(List<? extends Future<?>> pending) throws IOException, InterruptedException {
+        for (Iterator<? extends Future<?>> it = pending.iterator(); it.hasNext(); ) {
+            final Future<?> future = it.next();
+            if (!future.isDone()) continue;
+            get(future);
+            it.remove();
+        }
+    }
+
+
+    private static void get(Future<?> future) throws IOException, InterruptedException {
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause(), IOException.class);
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+}
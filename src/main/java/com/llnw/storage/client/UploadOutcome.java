@@ -0,0 +1,7 @@
+package com.llnw.storage.client;
+
+
+public enum UploadOutcome {
+    UPLOADED,
+    SKIPPED // the remote file already had the same size and checksum
+}
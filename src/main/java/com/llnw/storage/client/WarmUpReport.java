@@ -0,0 +1,43 @@
+package com.llnw.storage.client;
+
+import com.google.common.base.Objects;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * How a {@link EndpointFactory#warmUp} went: of the endpoints asked for, how many logged in and answered a
+ * noop, how many failed, and how many were still going when the time ran out.
+ */
+@Immutable
+public final class WarmUpReport {
+    public final int requested;
+    public final int warmed;
+    public final int failed;
+    public final int timedOut;
+    public final long elapsedMillis;
+
+
+    WarmUpReport(int requested, int warmed, int failed, int timedOut, long elapsedMillis) {
+        this.requested = requested;
+        this.warmed = warmed;
+        this.failed = failed;
+        this.timedOut = timedOut;
+        this.elapsedMillis = elapsedMillis;
+    }
+
+
+    public boolean isComplete() {
+        return warmed == requested;
+    }
+
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(getClass())
+                .add("requested", requested)
+                .add("warmed", warmed)
+                .add("failed", failed)
+                .add("timedOut", timedOut)
+                .add("elapsedMillis", elapsedMillis).toString();
+    }
+}
@@ -0,0 +1,66 @@
+package com.llnw.storage.client.io;
+
+import org.apache.http.entity.mime.MIME;
+import org.apache.http.entity.mime.content.AbstractContentBody;
+
+import javax.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Multipart form body that writes heap or direct ByteBuffers to the connection in large slices, instead of
+ * httpclient pulling them through an InputStream. Several buffers are sent in order as one file. The buffers'
+ * positions are left alone, so the body can be written again on a retry.
+ */
+public class ByteBufferBody extends AbstractContentBody {
+    private final ByteBuffer[] buffers;
+    private final String filename;
+    @Nullable private final ActivityCallback callback;
+
+
+    public ByteBufferBody(ByteBuffer buffer, String filename, @Nullable ActivityCallback callback) {
+        this(new ByteBuffer[] { buffer }, filename, callback);
+    }
+
+
+    public ByteBufferBody(ByteBuffer[] buffers, String filename, @Nullable ActivityCallback callback) {
+        super("application/octet-stream");
+        this.buffers = ByteBuffers.duplicate(buffers);
+        this.filename = filename;
+        this.callback = callback;
+    }
+
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        ByteBuffers.write(buffers, out, callback);
+        out.flush();
+    }
+
+
+    @Override
+    public String getFilename() {
+        return filename;
+    }
+
+
+    @Override
+    @Nullable
+    public String getCharset() {
+        return null;
+    }
+
+
+    @Override
+    public String getTransferEncoding() {
+        return MIME.ENC_BINARY;
+    }
+
+
+    @Override
+    public long getContentLength() {
+        return ByteBuffers.remaining(buffers);
+    }
+}
@@ -0,0 +1,86 @@
+package com.llnw.storage.client.io;
+
+import com.google.common.collect.Lists;
+import org.apache.http.entity.AbstractHttpEntity;
+
+import javax.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Raw request body sent from one or more ByteBuffers in order, written to the connection in slices like
+ * {@link ByteBufferBody}. Repeatable, and the buffers' positions are left alone.
+ */
+public class ByteBufferEntity extends AbstractHttpEntity {
+    private final ByteBuffer[] buffers;
+    @Nullable private final ActivityCallback callback;
+
+
+    public ByteBufferEntity(ByteBuffer[] buffers, @Nullable ActivityCallback callback) {
+        this.buffers = ByteBuffers.duplicate(buffers);
+        this.callback = callback;
+        setContentType("application/octet-stream");
+    }
+
+
+    /**
+     * @return fresh duplicates of the buffers, for transports that write them to a channel themselves
+     */
+    public ByteBuffer[] getBuffers() {
+        return ByteBuffers.duplicate(buffers);
+    }
+
+
+    @Nullable
+    public ActivityCallback getCallback() {
+        return callback;
+    }
+
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+
+    @Override
+    public long getContentLength() {
+        return ByteBuffers.remaining(buffers);
+    }
+
+
+    /**
+     * Only for callers that insist on a stream; {@link #writeTo} is the fast path.
+     */
+    @Override
+    public InputStream getContent() throws IOException {
+        final List<InputStream> streams = Lists.newArrayList();
+        for (ByteBuffer buffer : buffers) {
+            final ByteBuffer source = buffer.duplicate();
+            final byte[] bytes = new byte[source.remaining()];
+            source.get(bytes);
+            streams.add(new ByteArrayInputStream(bytes));
+        }
+        return new SequenceInputStream(Collections.enumeration(streams));
+    }
+
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        ByteBuffers.write(buffers, out, callback);
+        out.flush();
+    }
+
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+}
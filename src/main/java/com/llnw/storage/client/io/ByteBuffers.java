@@ -0,0 +1,130 @@
+package com.llnw.storage.client.io;
+
+import com.google.common.base.Throwables;
+import org.apache.commons.codec.binary.Hex;
+
+import javax.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Helpers for sending ByteBuffers without going through an InputStream.
+ */
+public final class ByteBuffers {
+    /**
+     * Large enough that httpclient and the socket take each write directly rather than buffering it.
+     */
+    public static final int SLICE_SIZE = 64 * 1024;
+
+    private ByteBuffers() {
+    }
+
+
+    /**
+     * Write the buffer's remaining bytes in slices, calling the callback before each. Heap buffers are written
+     * straight from their backing array; direct buffers are copied through one slice-sized array.
+     *
+     * @return the number of bytes written
+     */
+    public static long write(ByteBuffer buffer, OutputStream out, @Nullable ActivityCallback callback)
+            throws IOException {
+        final ByteBuffer source = buffer.duplicate();
+        final long total = source.remaining();
+
+        if (source.hasArray()) {
+            final byte[] array = source.array();
+            int offset = source.arrayOffset() + source.position();
+            int remaining = source.remaining();
+            while (remaining > 0) {
+                if (callback != null) callback.callback();
+                final int n = Math.min(SLICE_SIZE, remaining);
+                out.write(array, offset, n);
+                offset += n;
+                remaining -= n;
+            }
+        } else {
+            final byte[] slice = new byte[(int)Math.min(SLICE_SIZE, total)];
+            while (source.hasRemaining()) {
+                if (callback != null) callback.callback();
+                final int n = Math.min(slice.length, source.remaining());
+                source.get(slice, 0, n);
+                out.write(slice, 0, n);
+            }
+        }
+        return total;
+    }
+
+
+    /**
+     * Write each buffer's remaining bytes in order, as one stream.
+     *
+     * @return the number of bytes written
+     */
+    public static long write(ByteBuffer[] buffers, OutputStream out, @Nullable ActivityCallback callback)
+            throws IOException {
+        long total = 0;
+        for (ByteBuffer buffer : buffers) {
+            total += write(buffer, out, callback);
+        }
+        return total;
+    }
+
+
+    public static long remaining(ByteBuffer[] buffers) {
+        long total = 0;
+        for (ByteBuffer buffer : buffers) {
+            total += buffer.remaining();
+        }
+        return total;
+    }
+
+
+    /**
+     * Move every buffer's position to its limit, as if it had been read.
+     */
+    public static void consume(ByteBuffer[] buffers) {
+        for (ByteBuffer buffer : buffers) {
+            buffer.position(buffer.limit());
+        }
+    }
+
+
+    /**
+     * SHA-256 of the buffer's remaining bytes, without moving its position.
+     */
+    public static String sha256Hex(ByteBuffer buffer) {
+        return sha256Hex(new ByteBuffer[] { buffer });
+    }
+
+
+    /**
+     * SHA-256 of the buffers' remaining bytes taken in order, without moving their positions.
+     */
+    public static String sha256Hex(ByteBuffer[] buffers) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (ByteBuffer buffer : buffers) {
+                digest.update(buffer.duplicate());
+            }
+            return Hex.encodeHexString(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+
+    /**
+     * Duplicates sharing content but with their own positions, so writing them leaves the originals alone.
+     */
+    public static ByteBuffer[] duplicate(ByteBuffer[] buffers) {
+        final ByteBuffer[] copies = new ByteBuffer[buffers.length];
+        for (int i = 0; i < buffers.length; i++) {
+            copies[i] = buffers[i].duplicate();
+        }
+        return copies;
+    }
+}
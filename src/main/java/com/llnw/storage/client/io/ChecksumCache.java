@@ -0,0 +1,109 @@
+package com.llnw.storage.client.io;
+
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SHA-256 of local files, remembered by path, length and modification time so a file that hasn't changed
+ * isn't read again. A file changed without its length or mtime moving (within the file system's mtime
+ * resolution) would be missed; callers that can't accept that should hash with {@link #compute}.
+ */
+@ThreadSafe
+public class ChecksumCache {
+    private static final ChecksumCache SHARED = new ChecksumCache(10000);
+
+    private final Cache<Key, String> cache;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+
+    public ChecksumCache(int maxEntries) {
+        cache = CacheBuilder.newBuilder().maximumSize(maxEntries).build();
+    }
+
+
+    /**
+     * Process-wide cache of up to 10000 files, used by the endpoints unless they are given another.
+     */
+    public static ChecksumCache shared() {
+        return SHARED;
+    }
+
+
+    /**
+     * @return the file's SHA-256 in lower case hex
+     */
+    public String sha256Hex(File file) throws IOException {
+        final Key key = new Key(file);
+        final String cached = cache.getIfPresent(key);
+        if (cached != null) {
+            hits.incrementAndGet();
+            return cached;
+        }
+
+        misses.incrementAndGet();
+        final String computed = compute(file);
+        if (key.equals(new Key(file))) cache.put(key, computed); // not if it changed while being read
+        return computed;
+    }
+
+
+    public static String compute(File file) throws IOException {
+        final InputStream is = new FileInputStream(file);
+        try {
+            return DigestUtils.sha256Hex(is);
+        } finally {
+            is.close();
+        }
+    }
+
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+
+    public long getHits() {
+        return hits.get();
+    }
+
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+
+    private static final class Key {
+        private final String path;
+        private final long length;
+        private final long lastModified;
+
+        private Key(File file) {
+            this.path = file.getAbsolutePath();
+            this.length = file.length();
+            this.lastModified = file.lastModified();
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(path, length, lastModified);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) return false;
+            final Key other = (Key)obj;
+            return path.equals(other.path) && length == other.length && lastModified == other.lastModified;
+        }
+    }
+}
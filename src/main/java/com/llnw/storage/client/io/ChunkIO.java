@@ -0,0 +1,16 @@
+package com.llnw.storage.client.io;
+
+/**
+ * How {@link ChunkInputStream} gets a chunk's bytes off disk.
+ */
+public enum ChunkIO {
+    /**
+     * Map the file a window at a time and unmap each window as soon as the stream moves past it.
+     */
+    MAPPED,
+
+    /**
+     * Read a window at a time into a pooled direct buffer. Nothing is mapped, so address space stays flat.
+     */
+    BUFFERED
+}
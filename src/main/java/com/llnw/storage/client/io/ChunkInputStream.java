@@ -0,0 +1,161 @@
+package com.llnw.storage.client.io;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * Reads one chunk of a file through a bounded window, so a piece of hundreds of MiB never has more than one
+ * window of it mapped or buffered at a time. In {@link ChunkIO#MAPPED} mode each window is unmapped as soon as
+ * the stream moves on or is closed; in {@link ChunkIO#BUFFERED} mode the window is a direct buffer borrowed from
+ * a pool and handed back on close. Only positional reads are used, so several streams can share a channel.
+ *
+ * reset() goes back to the start of the chunk, which lets the chunk be hashed and then sent.
+ */
+@NotThreadSafe
+public class ChunkInputStream extends InputStream {
+    public static final int DEFAULT_WINDOW_SIZE = 4 * 1024 * 1024; // 4 MiB
+
+    private final FileChannel fc;
+    private final Chunk chunk;
+    private final ChunkIO mode;
+    private final int windowSize;
+    @Nullable private final DirectBufferPool pool;
+    @Nullable private final ActivityCallback callback;
+
+    private long position;         // within the chunk
+    @Nullable private ByteBuffer window; // covers [windowStart, windowStart + window.limit()) of the chunk
+    private long windowStart;
+    private boolean closed;
+
+
+    public ChunkInputStream(FileChannel fc, Chunk chunk, ChunkIO mode, int windowSize, @Nullable DirectBufferPool pool,
+            @Nullable ActivityCallback callback) {
+        if (windowSize < 1) throw new IllegalArgumentException("windowSize must be at least 1");
+        this.fc = fc;
+        this.chunk = chunk;
+        this.mode = mode;
+        this.windowSize = windowSize;
+        this.pool = pool;
+        this.callback = callback;
+    }
+
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureWindow()) return -1;
+        position++;
+        return window.get() & 0xff;
+    }
+
+
+    @Override
+    public int read(byte[] bytes, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (!ensureWindow()) return -1;
+
+        final int n = Math.min(len, window.remaining());
+        window.get(bytes, off, n);
+        position += n;
+        return n;
+    }
+
+
+    @Override
+    public long skip(long n) throws IOException {
+        final long skipped = Math.max(0, Math.min(n, chunk.length - position));
+        position += skipped;
+        if (window != null) {
+            final long inWindow = position - windowStart;
+            if (inWindow < window.limit()) window.position((int)inWindow); else release();
+        }
+        return skipped;
+    }
+
+
+    @Override
+    public int available() {
+        return window == null ? 0 : window.remaining();
+    }
+
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+
+    @Override
+    public synchronized void mark(int readlimit) {
+        // reset() always returns to the start of the chunk
+    }
+
+
+    @Override
+    public synchronized void reset() throws IOException {
+        if (callback != null) callback.callback();
+        position = 0;
+        if (window != null && windowStart == 0) {
+            window.position(0);
+        } else {
+            release();
+        }
+    }
+
+
+    @Override
+    public void close() {
+        closed = true;
+        release();
+    }
+
+
+    /**
+     * @return false at the end of the chunk
+     */
+    private boolean ensureWindow() throws IOException {
+        if (closed) throw new IOException("Stream closed");
+        if (position >= chunk.length) return false;
+        if (window != null && window.hasRemaining()) return true;
+
+        release();
+        if (callback != null) callback.callback();
+
+        final int length = (int)Math.min(windowSize, chunk.length - position);
+        final long fileOffset = chunk.offset + position;
+        if (mode == ChunkIO.MAPPED) {
+            window = fc.map(MapMode.READ_ONLY, fileOffset, length);
+        } else {
+            // Always ask for a whole window so the short last one reuses the same pooled size
+            final ByteBuffer buffer = pool == null ? ByteBuffer.allocateDirect(length) : pool.acquire(windowSize);
+            buffer.limit(length);
+            while (buffer.hasRemaining()) {
+                if (fc.read(buffer, fileOffset + buffer.position()) < 0) {
+                    if (pool != null) pool.release(buffer);
+                    throw new IOException("File ended inside " + chunk);
+                }
+            }
+            buffer.flip();
+            window = buffer;
+        }
+        windowStart = position;
+        return true;
+    }
+
+
+    private void release() {
+        if (window == null) return;
+        if (mode == ChunkIO.MAPPED) {
+            Unmapper.unmap((MappedByteBuffer)window);
+        } else if (pool != null) {
+            pool.release(window);
+        }
+        window = null;
+    }
+}
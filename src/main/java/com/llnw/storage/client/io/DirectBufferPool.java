@@ -0,0 +1,123 @@
+package com.llnw.storage.client.io;
+
+import com.google.common.collect.ImmutableList;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reusable direct buffers for callers that fill a buffer only to upload it. Allocating and freeing direct
+ * memory is slow and its cleanup rides on GC, so buffers are kept in power-of-two size classes and handed out
+ * again. Idle buffers are capped at maxPooledBytes; anything released beyond that is left to the GC.
+ *
+ * <pre>
+ *     final ByteBuffer buffer = pool.acquire(size);
+ *     try {
+ *         render(buffer);
+ *         buffer.flip();
+ *         endpoint.upload(buffer, path, name, null);
+ *     } finally {
+ *         pool.release(buffer);
+ *     }
+ * </pre>
+ */
+@ThreadSafe
+public class DirectBufferPool {
+    private static final int MINIMUM_SHIFT = 12; // 4 KiB
+    private static final int MAXIMUM_SHIFT = 30; // 1 GiB
+
+    private static final DirectBufferPool SHARED = new DirectBufferPool(64 * 1024 * 1024);
+
+    private final long maxPooledBytes;
+    private final List<Queue<ByteBuffer>> classes; // from MINIMUM_SHIFT up
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private final AtomicLong allocations = new AtomicLong();
+    private final AtomicLong reuses = new AtomicLong();
+
+
+    public DirectBufferPool(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+        final ImmutableList.Builder<Queue<ByteBuffer>> queues = ImmutableList.builder();
+        for (int i = MINIMUM_SHIFT; i <= MAXIMUM_SHIFT; i++) {
+            queues.add(new ConcurrentLinkedQueue<ByteBuffer>());
+        }
+        this.classes = queues.build();
+    }
+
+
+    /**
+     * Process-wide pool, keeping up to 64 MiB idle, used by the endpoints unless they are given another.
+     */
+    public static DirectBufferPool shared() {
+        return SHARED;
+    }
+
+
+    /**
+     * @return a cleared direct buffer with position 0 and limit capacity; its real capacity may be larger
+     */
+    public ByteBuffer acquire(int capacity) {
+        if (capacity < 0) throw new IllegalArgumentException("capacity must not be negative");
+        final int shift = shift(capacity);
+        if (shift > MAXIMUM_SHIFT) {
+            allocations.incrementAndGet();
+            return ByteBuffer.allocateDirect(capacity); // too big to pool
+        }
+
+        ByteBuffer buffer = classes.get(shift - MINIMUM_SHIFT).poll();
+        if (buffer != null) {
+            pooledBytes.addAndGet(-buffer.capacity());
+            reuses.incrementAndGet();
+        } else {
+            buffer = ByteBuffer.allocateDirect(1 << shift);
+            allocations.incrementAndGet();
+        }
+        buffer.clear();
+        buffer.limit(capacity);
+        return buffer;
+    }
+
+
+    /**
+     * Return a buffer from {@link #acquire}. The caller must not touch it afterwards.
+     */
+    public void release(ByteBuffer buffer) {
+        final int capacity = buffer.capacity();
+        if (!buffer.isDirect() || Integer.bitCount(capacity) != 1) return;
+
+        final int shift = Integer.numberOfTrailingZeros(capacity);
+        if (shift < MINIMUM_SHIFT || shift > MAXIMUM_SHIFT) return;
+
+        if (pooledBytes.addAndGet(capacity) > maxPooledBytes) {
+            pooledBytes.addAndGet(-capacity);
+            return;
+        }
+        classes.get(shift - MINIMUM_SHIFT).offer(buffer);
+    }
+
+
+    public long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+
+    public long getAllocations() {
+        return allocations.get();
+    }
+
+
+    public long getReuses() {
+        return reuses.get();
+    }
+
+
+    private static int shift(int capacity) {
+        if (capacity <= 1 << MINIMUM_SHIFT) return MINIMUM_SHIFT;
+        return 32 - Integer.numberOfLeadingZeros(capacity - 1);
+    }
+}
@@ -10,8 +10,8 @@ public class FixedChunks implements Iterable<Chunk> {
     // Constants
     //-------------------------------------------------------------
 
-    private static final long MINIMUM_CHUNK_SIZE = 16 * 1024 * 1024; // 16 MiB
-    private static final long MAXIMUM_CHUNK_SIZE = 512 * 1024 * 1024; // 512 MiB
+    public static final long MINIMUM_CHUNK_SIZE = 16 * 1024 * 1024; // 16 MiB
+    public static final long MAXIMUM_CHUNK_SIZE = 512 * 1024 * 1024; // 512 MiB
     private static final int TARGET_CHUNKS = 100;
 
     //-------------------------------------------------------------
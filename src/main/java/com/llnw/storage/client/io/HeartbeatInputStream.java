@@ -55,6 +55,10 @@ public class HeartbeatInputStream extends ProxyInputStream {
     }
 
 
+    /**
+     * Maps the whole chunk, which stays mapped until the GC collects it; {@link ChunkInputStream} keeps the
+     * mapping bounded and releases it promptly.
+     */
     public static InputStream wrap(final FileChannel fc, final Chunk chunk, final ActivityCallback callback)
             throws IOException {
         return wrap(fc.map(MapMode.READ_ONLY, chunk.offset, chunk.length), callback);
@@ -69,7 +73,7 @@ public class HeartbeatInputStream extends ProxyInputStream {
                 if (!buf.hasRemaining()) {
                     return -1;
                 }
-                return buf.get();
+                return buf.get() & 0xff; // a 0xff byte must not read as end of stream
             }
 
             @Override
@@ -0,0 +1,208 @@
+package com.llnw.storage.client.io;
+
+import com.llnw.storage.client.metrics.EndpointMetrics;
+import org.joda.time.Duration;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A cap on the bytes transfers hold in memory at once, counting mapped windows and direct buffers alike. Each
+ * transfer reserves what it will hold before it starts and releases it when done; past the limit it waits its
+ * turn, first come first served so a large reservation isn't starved by a stream of small ones, or fails once
+ * it has waited too long. A reservation bigger than the whole limit is let through when nothing else holds any.
+ *
+ * <pre>
+ *     budget.acquire(bytes, Duration.standardMinutes(1)); // Duration.ZERO to fail fast
+ *     try {
+ *         send(buffer);
+ *     } finally {
+ *         budget.release(bytes);
+ *     }
+ * </pre>
+ */
+@ThreadSafe
+public class MemoryBudget implements MemoryBudgetMXBean {
+    private static final MemoryBudget SHARED =
+            new MemoryBudget(Math.max(64L * 1024 * 1024, Runtime.getRuntime().maxMemory() / 4));
+
+    private final long limit;
+
+    @GuardedBy("this") private final LinkedList<Object> queue = new LinkedList<Object>();
+    @GuardedBy("this") private long reserved;
+    @GuardedBy("this") private long peak;
+    @GuardedBy("this") private long waits;
+    @GuardedBy("this") private long rejections;
+
+
+    public MemoryBudget(long limit) {
+        if (limit < 1) throw new IllegalArgumentException("limit must be at least 1");
+        this.limit = limit;
+    }
+
+
+    /**
+     * Process-wide budget of a quarter of the maximum heap, at least 64 MiB, used by the endpoints unless
+     * they are given another. Direct memory defaults to the same maximum as the heap.
+     */
+    public static MemoryBudget shared() {
+        return SHARED;
+    }
+
+
+    /**
+     * Reserve bytes, waiting behind earlier reservations for up to maxWait.
+     *
+     * @throws IOException if the bytes couldn't be reserved in time
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    public synchronized void acquire(long bytes, Duration maxWait) throws IOException {
+        if (bytes < 0) throw new IllegalArgumentException("bytes must not be negative");
+        if (bytes == 0) return;
+        if (queue.isEmpty() && fits(bytes)) {
+            take(bytes);
+            return;
+        }
+        if (maxWait.getMillis() <= 0) {
+            rejections++;
+            throw new IOException("Memory budget exhausted: " + bytes + " bytes wanted, " + reserved + " of " +
+                    limit + " reserved");
+        }
+
+        final Object turn = new Object();
+        queue.add(turn);
+        waits++;
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWait.getMillis());
+        try {
+            while (queue.getFirst() != turn || !fits(bytes)) {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    rejections++;
+                    throw new IOException("Timed out after " + maxWait + " waiting for " + bytes +
+                            " bytes of memory budget, " + reserved + " of " + limit + " reserved");
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            take(bytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for memory budget");
+        } finally {
+            queue.remove(turn);
+            notifyAll(); // the next in line may fit now
+        }
+    }
+
+
+    /**
+     * Reserve bytes only if that can be done without waiting.
+     */
+    public synchronized boolean tryAcquire(long bytes) {
+        if (bytes < 0) throw new IllegalArgumentException("bytes must not be negative");
+        if (bytes > 0 && !(queue.isEmpty() && fits(bytes))) {
+            rejections++;
+            return false;
+        }
+        take(bytes);
+        return true;
+    }
+
+
+    /**
+     * Hand back bytes from {@link #acquire} or {@link #tryAcquire}.
+     */
+    public synchronized void release(long bytes) {
+        if (bytes < 0 || bytes > reserved) {
+            throw new IllegalArgumentException("Releasing " + bytes + " bytes with " + reserved + " reserved");
+        }
+        reserved -= bytes;
+        if (!queue.isEmpty()) notifyAll();
+    }
+
+
+    public void registerMBean(String name) throws JMException {
+        registerMBean(ManagementFactory.getPlatformMBeanServer(), name);
+    }
+
+
+    public void registerMBean(MBeanServer server, String name) throws JMException {
+        server.registerMBean(this, objectName(name));
+    }
+
+
+    public void unregisterMBean(MBeanServer server, String name) throws JMException {
+        server.unregisterMBean(objectName(name));
+    }
+
+
+    @Override
+    public long getLimit() {
+        return limit;
+    }
+
+
+    @Override
+    public synchronized long getReservedBytes() {
+        return reserved;
+    }
+
+
+    @Override
+    public synchronized long getPeakReservedBytes() {
+        return peak;
+    }
+
+
+    /**
+     * @return threads waiting for a reservation right now
+     */
+    @Override
+    public synchronized int getWaiting() {
+        return queue.size();
+    }
+
+
+    /**
+     * @return reservations that had to wait, whether or not they got through
+     */
+    @Override
+    public synchronized long getWaits() {
+        return waits;
+    }
+
+
+    /**
+     * @return reservations refused, at once or after waiting
+     */
+    @Override
+    public synchronized long getRejections() {
+        return rejections;
+    }
+
+
+    @GuardedBy("this")
+    private boolean fits(long bytes) {
+        return reserved == 0 || reserved + bytes <= limit;
+    }
+
+
+    @GuardedBy("this")
+    private void take(long bytes) {
+        reserved += bytes;
+        if (reserved > peak) peak = reserved;
+    }
+
+
+    private static ObjectName objectName(String name) throws JMException {
+        return new ObjectName(EndpointMetrics.JMX_DOMAIN + ":type=MemoryBudget,name=" + ObjectName.quote(name));
+    }
+}
@@ -0,0 +1,13 @@
+package com.llnw.storage.client.io;
+
+/**
+ * JMX view of a memory budget's gauges and counters, in bytes where they are sizes.
+ */
+public interface MemoryBudgetMXBean {
+    long getLimit();
+    long getReservedBytes();
+    long getPeakReservedBytes();
+    int getWaiting();
+    long getWaits();
+    long getRejections();
+}
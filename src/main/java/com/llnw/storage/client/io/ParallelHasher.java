@@ -0,0 +1,324 @@
+package com.llnw.storage.client.io;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * SHA-256 of file ranges on a pool of threads, so the pieces of a large file are hashed on every core at once
+ * and ahead of the threads sending them. Ranges are read with positional reads into a heap buffer per task,
+ * so nothing is mapped and many ranges can share a channel.
+ *
+ * <pre>
+ *     final ParallelHasher.FileHashes hashes = hasher.hash(file, pieces, true);
+ *     for (Chunk chunk : pieces) send(chunk, hashes.piece(chunk.number));
+ *     final String whole = hashes.whole();
+ * </pre>
+ *
+ * SHA-256 can't be assembled from the digests of its parts, so the optional whole-file digest is one
+ * sequential pass run alongside the pieces, on one thread however many the hasher has.
+ *
+ * The queue is first come, first served. A hasher shared by several uploads should be given a window of pieces
+ * per file, so that one big file can't queue all its pieces ahead of everyone else's.
+ */
+@ThreadSafe
+public class ParallelHasher implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(ParallelHasher.class);
+
+    private static final int READ_SIZE = 256 * 1024;
+
+    private static final ParallelHasher SHARED = new ParallelHasher(Runtime.getRuntime().availableProcessors());
+
+    private final ListeningExecutorService executor;
+
+
+    public ParallelHasher(int threads) {
+        if (threads < 1) throw new IllegalArgumentException("threads must be at least 1");
+        this.executor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("locs-hash-%d").setDaemon(true).build()));
+    }
+
+
+    /**
+     * Process-wide hasher with a thread per processor, used by the endpoints unless they are given another.
+     */
+    public static ParallelHasher shared() {
+        return SHARED;
+    }
+
+
+    /**
+     * Hash one range of a channel. The caller keeps the channel open until the future is done, and shouldn't
+     * cancel it with interruption, which closes the channel.
+     *
+     * @return the range's SHA-256 in lower case hex
+     */
+    public ListenableFuture<String> sha256Hex(final FileChannel fc, final Chunk chunk) {
+        return executor.submit(new Callable<String>() {
+            @Override
+            public String call() throws IOException {
+                return digest(fc, chunk.offset, chunk.length);
+            }
+        });
+    }
+
+
+    /**
+     * Start hashing each piece of a file, in order, and optionally the whole file. The file is opened here and
+     * closed once every hash is done or cancelled.
+     */
+    public FileHashes hash(File file, Iterable<Chunk> pieces, boolean wholeFile) throws IOException {
+        return hash(file, pieces, wholeFile, Integer.MAX_VALUE);
+    }
+
+
+    /**
+     * As above, with at most window pieces of this file queued or being hashed at a time. Each one that
+     * finishes queues the next, so the pieces are still hashed in order and ahead of use, but take their turns
+     * with other files' pieces.
+     */
+    public FileHashes hash(File file, Iterable<Chunk> pieces, boolean wholeFile, int window) throws IOException {
+        if (window < 1) throw new IllegalArgumentException("window must be at least 1");
+        @SuppressWarnings("resource")
+        final FileChannel fc = new FileInputStream(file).getChannel();
+        final List<Chunk> chunks = ImmutableList.copyOf(pieces);
+        final ImmutableList.Builder<SettableFuture<String>> futures = ImmutableList.builder();
+        for (int i = 0; i < chunks.size(); i++) futures.add(SettableFuture.<String>create());
+        final Window queued = new Window(fc, chunks, futures.build());
+        ListenableFuture<String> whole = null;
+        try {
+            if (wholeFile) {
+                whole = executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws IOException {
+                        return digest(fc, 0, fc.size());
+                    }
+                });
+            }
+            for (int i = 0; i < window && queued.next(); i++) {
+                // the rest are queued as these finish
+            }
+        } catch (RuntimeException e) { // rejected after close
+            fc.close();
+            throw e;
+        }
+
+        final FileHashes hashes = new FileHashes(ImmutableList.<ListenableFuture<String>>copyOf(queued.results),
+                whole);
+        Futures.successfulAsList(hashes.all()).addListener(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    fc.close();
+                } catch (IOException e) {
+                    log.debug("Couldn't close hashed file", e);
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return hashes;
+    }
+
+
+    /**
+     * Stop the threads. Hashes still queued are cancelled.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+
+    /**
+     * A file's pieces not yet handed to the executor.
+     */
+    private class Window {
+        private final FileChannel fc;
+        private final List<Chunk> pieces;
+        private final List<SettableFuture<String>> results;
+        private final AtomicInteger next = new AtomicInteger();
+
+
+        private Window(FileChannel fc, List<Chunk> pieces, List<SettableFuture<String>> results) {
+            this.fc = fc;
+            this.pieces = pieces;
+            this.results = results;
+        }
+
+
+        /**
+         * Queue the next piece whose hash is still wanted.
+         *
+         * @return false if there was none
+         */
+        private boolean next() {
+            while (true) {
+                final int index = next.getAndIncrement();
+                if (index >= pieces.size()) return false;
+                final SettableFuture<String> result = results.get(index);
+                if (result.isCancelled()) continue;
+
+                final ListenableFuture<String> hash;
+                try {
+                    hash = sha256Hex(fc, pieces.get(index));
+                } catch (RuntimeException e) {
+                    result.setException(e);
+                    throw e;
+                }
+                result.addListener(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (result.isCancelled()) hash.cancel(false);
+                    }
+                }, MoreExecutors.sameThreadExecutor());
+                hash.addListener(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            result.set(Uninterruptibles.getUninterruptibly(hash));
+                        } catch (ExecutionException e) {
+                            result.setException(e.getCause());
+                        } catch (CancellationException e) {
+                            result.cancel(false);
+                        }
+                        try {
+                            next();
+                        } catch (RuntimeException e) { // rejected after close
+                            cancelRest();
+                        }
+                    }
+                }, MoreExecutors.sameThreadExecutor());
+                return true;
+            }
+        }
+
+
+        private void cancelRest() {
+            for (int i = next.get(); i < results.size(); i++) results.get(i).cancel(false);
+        }
+    }
+
+
+    private static String digest(FileChannel fc, long offset, long length) throws IOException {
+        final MessageDigest sha256;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate((int)Math.min(READ_SIZE, Math.max(1, length)));
+        long position = 0;
+        while (position < length) {
+            if (Thread.interrupted()) throw new InterruptedIOException("Interrupted hashing");
+            buffer.clear();
+            if (length - position < buffer.capacity()) buffer.limit((int)(length - position));
+            final int n = fc.read(buffer, offset + position);
+            if (n < 0) {
+                throw new IOException("File ended at " + (offset + position) + ", hashing to " + (offset + length));
+            }
+            buffer.flip();
+            sha256.update(buffer);
+            position += n;
+        }
+        return Hex.encodeHexString(sha256.digest());
+    }
+
+
+    /**
+     * The hashes of one file as they complete: a future per piece, in piece order, and the whole file's if
+     * it was asked for.
+     */
+    public static final class FileHashes {
+        private final List<ListenableFuture<String>> pieces;
+        @Nullable private final ListenableFuture<String> whole;
+
+
+        private FileHashes(List<ListenableFuture<String>> pieces, @Nullable ListenableFuture<String> whole) {
+            this.pieces = pieces;
+            this.whole = whole;
+        }
+
+
+        public List<ListenableFuture<String>> getPieces() {
+            return pieces;
+        }
+
+
+        /**
+         * Wait for one piece's hash, by the piece's index (the chunk number).
+         */
+        public String piece(int index) throws IOException {
+            return get(pieces.get(index));
+        }
+
+
+        /**
+         * Wait for the whole file's hash.
+         *
+         * @throws IllegalStateException if it wasn't asked for
+         */
+        public String whole() throws IOException {
+            if (whole == null) throw new IllegalStateException("Whole file hash wasn't requested");
+            return get(whole);
+        }
+
+
+        /**
+         * Give up on hashes not yet started, such as when the upload they were for failed. Ones being computed
+         * run to the end rather than be interrupted, which would close the channel under the others.
+         */
+        public void cancel() {
+            for (ListenableFuture<String> future : all()) future.cancel(false);
+        }
+
+
+        private List<ListenableFuture<String>> all() {
+            if (whole == null) return pieces;
+            return ImmutableList.<ListenableFuture<String>>builder().addAll(pieces).add(whole).build();
+        }
+
+
+        private static String get(ListenableFuture<String> future) throws IOException {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for a hash");
+            } catch (CancellationException e) {
+                throw new InterruptedIOException("Hashing was cancelled");
+            } catch (ExecutionException e) {
+                final Throwable cause = e.getCause();
+                if (cause instanceof IOException) throw (IOException)cause;
+                if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+                throw new IOException(cause);
+            }
+        }
+    }
+}
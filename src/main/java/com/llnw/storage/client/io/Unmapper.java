@@ -0,0 +1,69 @@
+package com.llnw.storage.client.io;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * Releases a MappedByteBuffer now instead of whenever the GC gets to it. There is no public API for this, so it
+ * goes through Unsafe.invokeCleaner on Java 9 and later and the buffer's cleaner before that. Where neither is
+ * available the mapping is left to the GC as before.
+ *
+ * The buffer must not be touched afterwards; callers only unmap buffers they never hand out.
+ */
+final class Unmapper {
+    private static final Logger log = LoggerFactory.getLogger(Unmapper.class);
+
+    private static final Object unsafe;
+    private static final Method invokeCleaner;
+    private static final Method cleanerMethod;
+    private static final Method cleanMethod;
+
+    static {
+        Object theUnsafe = null;
+        Method invoke = null;
+        Method cleaner = null;
+        Method clean = null;
+        try {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            invoke = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            final Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            theUnsafe = field.get(null);
+        } catch (Exception e) {
+            invoke = null;
+            try {
+                cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+                clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            } catch (Exception e2) {
+                log.info("Can't unmap buffers explicitly, mappings will be released by the GC");
+            }
+        }
+        unsafe = theUnsafe;
+        invokeCleaner = invoke;
+        cleanerMethod = cleaner;
+        cleanMethod = clean;
+    }
+
+
+    private Unmapper() {
+    }
+
+
+    static void unmap(MappedByteBuffer buffer) {
+        try {
+            if (invokeCleaner != null) {
+                invokeCleaner.invoke(unsafe, buffer);
+            } else if (cleanerMethod != null) {
+                final Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) cleanMethod.invoke(cleaner);
+            }
+        } catch (Exception e) {
+            log.debug("Couldn't unmap buffer", e);
+        }
+    }
+}
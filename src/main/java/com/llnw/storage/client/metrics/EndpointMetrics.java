@@ -0,0 +1,183 @@
+package com.llnw.storage.client.metrics;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Registry of per-operation statistics for one or more endpoints.
+ *
+ * Operations are keyed by name (the JSON-RPC method for HTTP, the FTP command for FTP, and
+ * "upload"/"piece" style names for transfers) and created on first use. Share one registry between
+ * endpoints to aggregate, or give each endpoint its own.
+ *
+ * Endpoints default to {@link #disabled()}, which hands out a shared no-op {@link OperationStats}.
+ */
+public class EndpointMetrics implements EndpointMetricsMXBean {
+    private static final Logger log = LoggerFactory.getLogger(EndpointMetrics.class);
+
+    public static final String JMX_DOMAIN = "com.llnw.storage.client";
+
+    private static final EndpointMetrics DISABLED = new EndpointMetrics("disabled", false);
+
+    private final String name;
+    private final boolean enabled;
+    private final OperationStats disabledStats;
+    private final ConcurrentMap<String, OperationStats> operations = new ConcurrentHashMap<String, OperationStats>();
+    private final ConcurrentMap<String, AtomicLong> events = new ConcurrentHashMap<String, AtomicLong>();
+    private final List<ObjectName> registered = Lists.newCopyOnWriteArrayList();
+
+    private volatile MBeanServer mbeanServer;
+
+
+    public EndpointMetrics(String name) {
+        this(name, true);
+    }
+
+
+    private EndpointMetrics(String name, boolean enabled) {
+        this.name = name;
+        this.enabled = enabled;
+        this.disabledStats = enabled ? null : new OperationStats("disabled", false);
+    }
+
+
+    public static EndpointMetrics disabled() {
+        return DISABLED;
+    }
+
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+
+    public OperationStats operation(String operation) {
+        if (!enabled) return disabledStats;
+
+        OperationStats stats = operations.get(operation);
+        if (stats == null) {
+            final OperationStats created = new OperationStats(operation, true);
+            stats = operations.putIfAbsent(operation, created);
+            if (stats == null) {
+                stats = created;
+                if (mbeanServer != null) register(mbeanServer, created);
+            }
+        }
+        return stats;
+    }
+
+
+    /**
+     * Count an occurrence of a named event, e.g. a failed response header check.
+     */
+    public void event(String event) {
+        if (!enabled) return;
+
+        AtomicLong counter = events.get(event);
+        if (counter == null) {
+            final AtomicLong created = new AtomicLong();
+            counter = events.putIfAbsent(event, created);
+            if (counter == null) counter = created;
+        }
+        counter.incrementAndGet();
+    }
+
+
+    public Map<String, OperationSnapshot> snapshot() {
+        final Map<String, OperationSnapshot> snapshot = Maps.newTreeMap();
+        for (OperationStats stats : operations.values()) {
+            snapshot.put(stats.getName(), stats.snapshot());
+        }
+        return snapshot;
+    }
+
+
+    /**
+     * Register this registry and all of its operations, present and future, with the platform MBean server.
+     */
+    public synchronized void registerMBeans() throws JMException {
+        registerMBeans(ManagementFactory.getPlatformMBeanServer());
+    }
+
+
+    public synchronized void registerMBeans(MBeanServer server) throws JMException {
+        if (!enabled || mbeanServer != null) return;
+
+        final ObjectName registryName = new ObjectName(JMX_DOMAIN + ":type=EndpointMetrics,name=" +
+                ObjectName.quote(name));
+        server.registerMBean(this, registryName);
+        registered.add(registryName);
+
+        mbeanServer = server;
+        for (OperationStats stats : operations.values()) {
+            register(server, stats);
+        }
+    }
+
+
+    public synchronized void unregisterMBeans() {
+        final MBeanServer server = mbeanServer;
+        if (server == null) return;
+
+        mbeanServer = null;
+        for (ObjectName objectName : registered) {
+            try {
+                server.unregisterMBean(objectName);
+            } catch (JMException e) {
+                log.warn("Couldn't unregister {}", objectName, e);
+            }
+        }
+        registered.clear();
+    }
+
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+
+    @Override
+    public List<String> getOperations() {
+        final List<String> names = Lists.newArrayList(operations.keySet());
+        Collections.sort(names);
+        return names;
+    }
+
+
+    @Override
+    public Map<String, Long> getEvents() {
+        final ImmutableMap.Builder<String, Long> builder = ImmutableMap.builder();
+        for (Map.Entry<String, AtomicLong> event : events.entrySet()) {
+            builder.put(event.getKey(), event.getValue().get());
+        }
+        return builder.build();
+    }
+
+
+    private void register(MBeanServer server, OperationStats stats) {
+        try {
+            final ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=EndpointMetrics,name=" +
+                    ObjectName.quote(name) + ",operation=" + ObjectName.quote(stats.getName()));
+            server.registerMBean(stats, objectName);
+            registered.add(objectName);
+        } catch (JMException e) {
+            log.warn("Couldn't register metrics for operation {}", stats.getName(), e);
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.llnw.storage.client.metrics;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JMX view of a metrics registry: which operations have been seen and the named event counters.
+ */
+public interface EndpointMetricsMXBean {
+    String getName();
+    List<String> getOperations();
+    Map<String, Long> getEvents();
+}
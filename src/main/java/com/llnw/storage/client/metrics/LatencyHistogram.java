@@ -0,0 +1,133 @@
+package com.llnw.storage.client.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free log-linear histogram of latencies in nanoseconds.
+ *
+ * Values below 16 are counted exactly, every power of two above that is split into 16 linear
+ * sub-buckets, so any recorded value is reported with at most ~6% relative error. Recording is a
+ * couple of shifts and one atomic increment, which keeps it cheap enough for every RPC.
+ */
+public class LatencyHistogram {
+
+    //-------------------------------------------------------------
+    // Constants
+    //-------------------------------------------------------------
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+    //-------------------------------------------------------------
+    // Variables - private final
+    //-------------------------------------------------------------
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    //-------------------------------------------------------------
+    // Methods - public
+    //-------------------------------------------------------------
+
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+
+        counts.incrementAndGet(bucketIndex(nanos));
+        count.incrementAndGet();
+        sum.addAndGet(nanos);
+
+        long current;
+        while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos)) {
+            // Lost a race with another recorder, retry against the new maximum
+        }
+    }
+
+
+    public long getCount() {
+        return count.get();
+    }
+
+
+    public long getSum() {
+        return sum.get();
+    }
+
+
+    public long getMax() {
+        return max.get();
+    }
+
+
+    public double getMean() {
+        final long n = count.get();
+        return n == 0 ? 0.0 : (double)sum.get() / n;
+    }
+
+
+    /**
+     * @param quantile between 0.0 and 1.0, e.g. 0.99 for p99
+     * @return the upper bound of the bucket holding the requested quantile, in nanoseconds
+     */
+    public long getValueAtQuantile(double quantile) {
+        final long[] snapshot = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        return valueAtQuantile(snapshot, total, quantile, max.get());
+    }
+
+
+    /**
+     * Copy the current bucket counts, for merging or for computing several quantiles off one consistent view.
+     */
+    public long[] snapshotCounts() {
+        final long[] snapshot = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshot[i] = counts.get(i);
+        }
+        return snapshot;
+    }
+
+
+    public static long valueAtQuantile(long[] bucketCounts, long total, double quantile, long max) {
+        if (total == 0) return 0;
+
+        final long rank = Math.max(1, (long)Math.ceil(Math.min(1.0, Math.max(0.0, quantile)) * total));
+        long seen = 0;
+        for (int i = 0; i < bucketCounts.length; i++) {
+            seen += bucketCounts[i];
+            if (seen >= rank) {
+                return Math.min(bucketUpperBound(i), max);
+            }
+        }
+        return max;
+    }
+
+    //-------------------------------------------------------------
+    // Methods - package
+    //-------------------------------------------------------------
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) return (int)value;
+
+        final int msb = 63 - Long.numberOfLeadingZeros(value);
+        final int shift = msb - SUB_BUCKET_BITS;
+        final int sub = (int)(value >>> shift) & (SUB_BUCKET_COUNT - 1);
+        return (shift + 1) * SUB_BUCKET_COUNT + sub;
+    }
+
+
+    static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKET_COUNT) return index;
+
+        final int shift = index / SUB_BUCKET_COUNT - 1;
+        final long sub = index % SUB_BUCKET_COUNT;
+        return ((SUB_BUCKET_COUNT + sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,47 @@
+package com.llnw.storage.client.metrics;
+
+import com.llnw.storage.client.transport.ExchangeTimings;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * One request as kept by {@link RecentOperations}: what was sent and received, cut to a bounded excerpt, the
+ * HTTP status (-1 if none arrived) and where the time went. Phases not reached are -1.
+ */
+@Immutable
+public final class OperationRecord {
+    public final long timestamp; // when it finished, in epoch millis
+    public final String method;
+    @Nullable public final String request;
+    @Nullable public final String response;
+    public final int status;
+    public final long connectMillis;
+    public final long writeMillis;
+    public final long waitMillis;
+    public final long readMillis;
+    public final long totalMillis;
+
+
+    OperationRecord(String method, @Nullable String request, @Nullable String response, int status,
+            ExchangeTimings timings) {
+        this.timestamp = System.currentTimeMillis();
+        this.method = method;
+        this.request = request;
+        this.response = response;
+        this.status = status;
+        this.connectMillis = timings.getConnectMillis();
+        this.writeMillis = timings.getWriteMillis();
+        this.waitMillis = timings.getWaitMillis();
+        this.readMillis = timings.getReadMillis();
+        this.totalMillis = timings.getTotalMillis();
+    }
+
+
+    @Override
+    public String toString() {
+        return method + " status " + status + " in " + totalMillis + "ms (connect " + connectMillis + ", write " +
+                writeMillis + ", wait " + waitMillis + ", read " + readMillis + ")\n  Query(" + request +
+                ")\n  Response(" + response + ")";
+    }
+}
@@ -0,0 +1,60 @@
+package com.llnw.storage.client.metrics;
+
+import com.google.common.base.Objects;
+
+/**
+ * Point in time copy of an operation's statistics. Latencies are in nanoseconds.
+ */
+public class OperationSnapshot {
+    public final String name;
+    public final long calls;
+    public final long failures;
+    public final long inFlight;
+    public final long bytes;
+    public final long totalNanos;
+    public final double meanNanos;
+    public final long p50Nanos;
+    public final long p99Nanos;
+    public final long p999Nanos;
+    public final long maxNanos;
+
+    public OperationSnapshot(String name, long calls, long failures, long inFlight, long bytes, long totalNanos,
+            double meanNanos, long p50Nanos, long p99Nanos, long p999Nanos, long maxNanos) {
+        this.name = name;
+        this.calls = calls;
+        this.failures = failures;
+        this.inFlight = inFlight;
+        this.bytes = bytes;
+        this.totalNanos = totalNanos;
+        this.meanNanos = meanNanos;
+        this.p50Nanos = p50Nanos;
+        this.p99Nanos = p99Nanos;
+        this.p999Nanos = p999Nanos;
+        this.maxNanos = maxNanos;
+    }
+
+
+    /**
+     * Bytes moved per second of time spent inside the operation, which for transfers is the
+     * per-stream throughput rather than the aggregate across concurrent calls.
+     */
+    public double bytesPerSecond() {
+        return totalNanos == 0 ? 0.0 : bytes * 1e9 / totalNanos;
+    }
+
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(getClass())
+                .add("name", name)
+                .add("calls", calls)
+                .add("failures", failures)
+                .add("inFlight", inFlight)
+                .add("bytes", bytes)
+                .add("meanNanos", meanNanos)
+                .add("p50Nanos", p50Nanos)
+                .add("p99Nanos", p99Nanos)
+                .add("p999Nanos", p999Nanos)
+                .add("maxNanos", maxNanos).toString();
+    }
+}
@@ -0,0 +1,147 @@
+package com.llnw.storage.client.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters, in-flight gauge and latency histogram for one named operation.
+ *
+ * Usage:
+ * <pre>
+ *     final long start = stats.begin();
+ *     boolean success = false;
+ *     try {
+ *         ...
+ *         success = true;
+ *     } finally {
+ *         stats.end(start, bytes, success);
+ *     }
+ * </pre>
+ *
+ * A disabled instance skips the clock reads and all atomics, so instrumented code costs a field load
+ * and a branch when metrics are off.
+ */
+public class OperationStats implements OperationStatsMXBean {
+    private static final double NANOS_PER_MILLI = 1000.0 * 1000.0;
+
+    private final String name;
+    private final boolean enabled;
+
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong inFlight = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    OperationStats(String name, boolean enabled) {
+        this.name = name;
+        this.enabled = enabled;
+    }
+
+
+    /**
+     * Mark the start of an operation.
+     * @return the start time to hand back to {@link #end}
+     */
+    public long begin() {
+        if (!enabled) return 0L;
+        inFlight.incrementAndGet();
+        return System.nanoTime();
+    }
+
+
+    public void end(long start, long byteCount, boolean success) {
+        if (!enabled) return;
+        latency.record(System.nanoTime() - start);
+        inFlight.decrementAndGet();
+        calls.incrementAndGet();
+        if (byteCount > 0) bytes.addAndGet(byteCount);
+        if (!success) failures.incrementAndGet();
+    }
+
+
+    public OperationSnapshot snapshot() {
+        final long[] counts = latency.snapshotCounts();
+        long total = 0;
+        for (long c : counts) total += c;
+        final long max = latency.getMax();
+
+        return new OperationSnapshot(name, calls.get(), failures.get(), inFlight.get(), bytes.get(),
+                latency.getSum(), latency.getMean(),
+                LatencyHistogram.valueAtQuantile(counts, total, 0.50, max),
+                LatencyHistogram.valueAtQuantile(counts, total, 0.99, max),
+                LatencyHistogram.valueAtQuantile(counts, total, 0.999, max),
+                max);
+    }
+
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+
+    @Override
+    public long getCalls() {
+        return calls.get();
+    }
+
+
+    @Override
+    public long getFailures() {
+        return failures.get();
+    }
+
+
+    @Override
+    public long getInFlight() {
+        return inFlight.get();
+    }
+
+
+    @Override
+    public long getBytes() {
+        return bytes.get();
+    }
+
+
+    @Override
+    public double getMeanMillis() {
+        return latency.getMean() / NANOS_PER_MILLI;
+    }
+
+
+    @Override
+    public double getP50Millis() {
+        return latency.getValueAtQuantile(0.50) / NANOS_PER_MILLI;
+    }
+
+
+    @Override
+    public double getP99Millis() {
+        return latency.getValueAtQuantile(0.99) / NANOS_PER_MILLI;
+    }
+
+
+    @Override
+    public double getP999Millis() {
+        return latency.getValueAtQuantile(0.999) / NANOS_PER_MILLI;
+    }
+
+
+    @Override
+    public double getMaxMillis() {
+        return latency.getMax() / NANOS_PER_MILLI;
+    }
+
+
+    @Override
+    public double getBytesPerSecond() {
+        final long nanos = latency.getSum();
+        return nanos == 0 ? 0.0 : bytes.get() * 1e9 / nanos;
+    }
+}
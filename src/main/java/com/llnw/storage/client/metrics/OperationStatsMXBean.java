@@ -0,0 +1,18 @@
+package com.llnw.storage.client.metrics;
+
+/**
+ * JMX view of a single operation's counters and latency percentiles. Latencies are in milliseconds.
+ */
+public interface OperationStatsMXBean {
+    String getName();
+    long getCalls();
+    long getFailures();
+    long getInFlight();
+    long getBytes();
+    double getMeanMillis();
+    double getP50Millis();
+    double getP99Millis();
+    double getP999Millis();
+    double getMaxMillis();
+    double getBytesPerSecond();
+}
@@ -0,0 +1,125 @@
+package com.llnw.storage.client.metrics;
+
+import com.google.common.collect.Lists;
+import com.llnw.storage.client.transport.ExchangeTimings;
+import org.joda.time.Duration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * The last few requests an endpoint made, for diagnosing failures and latency outliers without holding or
+ * logging whole responses. Payloads are cut to maxPayloadChars and the oldest record drops out when the ring
+ * is full. Requests that take at least the slow threshold are logged at WARN as they finish. Credentials never
+ * reach the ring: token and password parameters are masked, even when the cut leaves only part of one, and
+ * login responses, which carry the token, are dropped. Only the part of a request that is kept is ever looked
+ * at, so a large one costs no more to record than a small one.
+ *
+ * One instance can be shared by several endpoints to see their requests interleaved.
+ */
+@ThreadSafe
+public class RecentOperations {
+    private static final Logger log = LoggerFactory.getLogger(RecentOperations.class);
+
+    public static final int DEFAULT_CAPACITY = 32;
+    public static final int DEFAULT_MAX_PAYLOAD_CHARS = 1024;
+
+    // The closing quote may be missing where the excerpt cut a value short
+    private static final Pattern CREDENTIAL =
+            Pattern.compile("\"(token|password)\"\\s*:\\s*\"(?:[^\"\\\\]|\\\\.)*(?:\"|\\\\?$)");
+
+    private final int maxPayloadChars;
+    @GuardedBy("this") private final OperationRecord[] ring;
+    @GuardedBy("this") private long recorded;
+    private volatile long slowMillis = Long.MAX_VALUE;
+
+
+    public RecentOperations() {
+        this(DEFAULT_CAPACITY, DEFAULT_MAX_PAYLOAD_CHARS);
+    }
+
+
+    public RecentOperations(int capacity, int maxPayloadChars) {
+        if (capacity < 1) throw new IllegalArgumentException("capacity must be at least 1");
+        if (maxPayloadChars < 0) throw new IllegalArgumentException("maxPayloadChars must not be negative");
+        this.ring = new OperationRecord[capacity];
+        this.maxPayloadChars = maxPayloadChars;
+    }
+
+
+    /**
+     * Log requests that take this long or longer. Off by default.
+     */
+    public RecentOperations setSlowThreshold(Duration threshold) {
+        this.slowMillis = threshold.getMillis();
+        return this;
+    }
+
+
+    /**
+     * @param request the request as sent, or a view of it such as a {@link com.llnw.storage.client.JsonRpcWriter};
+     *                only the excerpt kept is copied out of it
+     */
+    public OperationRecord record(String method, @Nullable CharSequence request, @Nullable String response,
+            int status, ExchangeTimings timings) {
+        final OperationRecord record = new OperationRecord(method, excerpt(request, true),
+                "login".equals(method) ? null : excerpt(response, false), status, timings);
+        synchronized (this) {
+            ring[(int)(recorded++ % ring.length)] = record;
+        }
+        if (record.totalMillis >= slowMillis) log.warn("Slow request: {}", record);
+        return record;
+    }
+
+
+    /**
+     * @return the records held, oldest first
+     */
+    public synchronized List<OperationRecord> snapshot() {
+        final int held = (int)Math.min(recorded, ring.length);
+        final List<OperationRecord> records = Lists.newArrayListWithCapacity(held);
+        for (long i = recorded - held; i < recorded; i++) {
+            records.add(ring[(int)(i % ring.length)]);
+        }
+        return records;
+    }
+
+
+    public synchronized long getRecorded() {
+        return recorded;
+    }
+
+
+    public int getMaxPayloadChars() {
+        return maxPayloadChars;
+    }
+
+
+    @Nullable
+    static String redact(@Nullable String text) {
+        if (text == null || (text.indexOf("\"token\"") < 0 && text.indexOf("\"password\"") < 0)) return text;
+        return CREDENTIAL.matcher(text).replaceAll("\"$1\":\"***\"");
+    }
+
+
+    /**
+     * A copy of at most maxPayloadChars of the text, so the record never pins a larger string, masked after the
+     * cut so that only the copy is searched for credentials.
+     */
+    @Nullable
+    private String excerpt(@Nullable CharSequence text, boolean redact) {
+        if (text == null) return null;
+        final int length = text.length();
+        final String kept = text.subSequence(0, Math.min(length, maxPayloadChars)).toString();
+        final String shown = redact ? redact(kept) : kept;
+        if (length <= maxPayloadChars) return shown;
+        return new StringBuilder(shown.length() + 32).append(shown)
+                .append("... (").append(length).append(" chars)").toString();
+    }
+}
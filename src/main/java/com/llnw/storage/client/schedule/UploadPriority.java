@@ -0,0 +1,11 @@
+package com.llnw.storage.client.schedule;
+
+/**
+ * Priority classes for {@link UploadScheduler}, highest first. A class only gets a slot when nothing above it
+ * is waiting.
+ */
+public enum UploadPriority {
+    URGENT,
+    NORMAL,
+    BULK
+}
@@ -0,0 +1,618 @@
+package com.llnw.storage.client.schedule;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.llnw.storage.client.Endpoint;
+import com.llnw.storage.client.EndpointException;
+import com.llnw.storage.client.EndpointFactory;
+import com.llnw.storage.client.EndpointHTTP;
+import com.llnw.storage.client.EndpointMultipart;
+import com.llnw.storage.client.EndpointPool;
+import com.llnw.storage.client.MultipartSession;
+import com.llnw.storage.client.MultipartStatus;
+import com.llnw.storage.client.MultipartWatcher;
+import com.llnw.storage.client.io.Chunk;
+import com.llnw.storage.client.io.FixedChunks;
+import com.llnw.storage.client.metrics.EndpointMetrics;
+import com.llnw.storage.client.metrics.OperationStats;
+import org.joda.time.Duration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs uploads and other endpoint operations through a fixed number of slots, so urgent work isn't stuck
+ * behind a backfill. Work is queued by {@link UploadPriority} and tenant:
+ *
+ * <ul>
+ *     <li>A class only gets a slot when no class above it is waiting, and a number of slots can be kept back
+ *     for URGENT work alone (setUrgentReserve), so it doesn't wait for a long upload to finish.</li>
+ *     <li>Within a class, tenants share the slots in proportion to their weights by start-time fair queuing
+ *     on the bytes they submit, so one tenant's archive doesn't hold up everyone else's small files.</li>
+ *     <li>Files at or above the multipart threshold are split into pieces, each queued as its own task.
+ *     Anything more urgent, or owed by fairness, goes ahead of the job's remaining pieces.</li>
+ * </ul>
+ *
+ * Small uploads and submitted operations run on endpoints from an {@link EndpointPool} of the slot count.
+ * Multipart jobs each run a {@link MultipartSession} over one shared HTTP endpoint, and completed jobs are left
+ * to a {@link MultipartWatcher}, on an endpoint of its own, to merge so they don't hold a slot while they do.
+ *
+ * <pre>
+ *     final UploadScheduler scheduler = new UploadScheduler(factory, 8).setUrgentReserve(2);
+ *     scheduler.setWeight("big-customer", 4);
+ *     scheduler.upload(UploadPriority.BULK, "big-customer", archive, "/archive", "2013.tar");
+ *     scheduler.upload(UploadPriority.URGENT, "small-customer", thumbnail, "/thumbs", "1.jpg").get();
+ * </pre>
+ *
+ * Time spent queued is recorded in the metrics as operations "queue.urgent", "queue.normal" and "queue.bulk",
+ * whose in-flight counts are the queue lengths.
+ */
+@ThreadSafe
+public class UploadScheduler implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(UploadScheduler.class);
+
+    private static final long DEFAULT_MULTIPART_THRESHOLD = 4 * FixedChunks.MINIMUM_CHUNK_SIZE; // 64 MiB
+    private static final int TENANT_SWEEP_SIZE = 1024; // idle tenants kept per class before sweeping them out
+
+    private static final Comparator<Task> FAIR_ORDER = new Comparator<Task>() {
+        @Override
+        public int compare(Task a, Task b) {
+            if (a.tag != b.tag) return a.tag < b.tag ? -1 : 1;
+            return a.sequence < b.sequence ? -1 : a.sequence == b.sequence ? 0 : 1;
+        }
+    };
+
+    private final EndpointFactory factory;
+    private final EndpointPool pool;
+    private final int maxConcurrent;
+    private final ExecutorService workers;
+
+    @GuardedBy("this") private final ClassQueue[] queues = new ClassQueue[UploadPriority.values().length];
+    @GuardedBy("this") private final int[] running = new int[UploadPriority.values().length];
+    @GuardedBy("this") private final Map<String, Integer> weights = Maps.newHashMap();
+    @GuardedBy("this") private int urgentReserve;
+    @GuardedBy("this") private long sequence;
+    @GuardedBy("this") private boolean closed;
+    @GuardedBy("this") @Nullable private EndpointHTTP multipartEndpoint;
+    @GuardedBy("this") @Nullable private MultipartWatcher watcher;
+    @GuardedBy("this") @Nullable private EndpointMultipart watcherEndpoint;
+
+    private volatile EndpointMetrics metrics = EndpointMetrics.disabled();
+    private volatile long multipartThreshold = DEFAULT_MULTIPART_THRESHOLD;
+    private volatile long multipartPieceSize = FixedChunks.MINIMUM_CHUNK_SIZE;
+    private volatile Duration mergeTimeout = Duration.standardMinutes(30);
+
+
+    /**
+     * @param maxConcurrent slots, the most uploads or pieces running at once
+     */
+    public UploadScheduler(EndpointFactory factory, int maxConcurrent) {
+        if (maxConcurrent < 1) throw new IllegalArgumentException("maxConcurrent must be at least 1");
+
+        this.factory = factory;
+        this.pool = new EndpointPool(factory, false, maxConcurrent);
+        this.maxConcurrent = maxConcurrent;
+        for (int i = 0; i < queues.length; i++) {
+            queues[i] = new ClassQueue();
+        }
+
+        workers = Executors.newFixedThreadPool(maxConcurrent,
+                new ThreadFactoryBuilder().setNameFormat("upload-scheduler-%d").setDaemon(true).build());
+        for (int i = 0; i < maxConcurrent; i++) {
+            workers.execute(new Worker());
+        }
+    }
+
+
+    /**
+     * Share of its class's slots a tenant gets relative to others with work queued, 1 by default.
+     */
+    public synchronized UploadScheduler setWeight(String tenant, int weight) {
+        if (weight < 1) throw new IllegalArgumentException("weight must be at least 1");
+        weights.put(tenant, weight);
+        return this;
+    }
+
+
+    /**
+     * Slots that only URGENT work may use, none by default.
+     */
+    public synchronized UploadScheduler setUrgentReserve(int urgentReserve) {
+        if (urgentReserve < 0 || urgentReserve >= maxConcurrent) {
+            throw new IllegalArgumentException("urgentReserve must be at least 0 and less than maxConcurrent");
+        }
+        this.urgentReserve = urgentReserve;
+        notifyAll();
+        return this;
+    }
+
+
+    public UploadScheduler setMetrics(EndpointMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+
+    /**
+     * Files this size or bigger are uploaded as multipart jobs whose pieces are scheduled one by one.
+     */
+    public UploadScheduler setMultipartThreshold(long multipartThreshold) {
+        if (multipartThreshold < 1) throw new IllegalArgumentException("multipartThreshold must be at least 1");
+        this.multipartThreshold = multipartThreshold;
+        return this;
+    }
+
+
+    /**
+     * Smallest piece size for multipart jobs; pieces grow past it to keep the count near 100. Smaller pieces
+     * let urgent work in sooner.
+     */
+    public UploadScheduler setMultipartPieceSize(long multipartPieceSize) {
+        if (multipartPieceSize < 1) throw new IllegalArgumentException("multipartPieceSize must be at least 1");
+        this.multipartPieceSize = multipartPieceSize;
+        return this;
+    }
+
+
+    public UploadScheduler setMergeTimeout(Duration mergeTimeout) {
+        this.mergeTimeout = mergeTimeout;
+        return this;
+    }
+
+
+    /**
+     * Queue a file for upload to path/name.
+     *
+     * @return a future that completes once the file is stored, merged if it went up in pieces
+     */
+    public ListenableFuture<Void> upload(UploadPriority priority, String tenant, final File file,
+                                         final String path, final String name) {
+        final long size = file.length();
+        if (size < multipartThreshold) {
+            return submit(priority, tenant, size, new EndpointPool.Operation<Void>() {
+                @Override
+                public Void run(Endpoint endpoint) throws IOException {
+                    endpoint.upload(file, path, name, null);
+                    return null;
+                }
+            });
+        }
+
+        final MultipartJob job = new MultipartJob(priority, tenant, file, path, name, size);
+        job.start();
+        return job.future;
+    }
+
+
+    /**
+     * Queue any operation on a pooled endpoint.
+     *
+     * @param cost what the operation counts for against the tenant's share, in bytes; at least 1
+     */
+    public <T> ListenableFuture<T> submit(UploadPriority priority, String tenant, long cost,
+                                          final EndpointPool.Operation<T> operation) {
+        final SettableFuture<T> future = SettableFuture.create();
+        enqueue(new Task(priority, tenant, cost) {
+            @Override
+            void run() {
+                if (future.isDone()) return; // cancelled while queued
+                try {
+                    future.set(pool.execute(operation));
+                } catch (Throwable e) {
+                    future.setException(e);
+                }
+            }
+
+            @Override
+            void fail(Throwable cause) {
+                future.setException(cause);
+            }
+        });
+        return future;
+    }
+
+
+    public synchronized int getQueuedCount(UploadPriority priority) {
+        return queues[priority.ordinal()].tasks.size();
+    }
+
+
+    public synchronized int getRunningCount() {
+        int total = 0;
+        for (int count : running) total += count;
+        return total;
+    }
+
+
+    /**
+     * Fail everything still queued, interrupt what is running and close the endpoints.
+     */
+    @Override
+    public void close() {
+        final List<Task> queued = Lists.newArrayList();
+        final MultipartWatcher closingWatcher;
+        final Endpoint closingEndpoint;
+        final Endpoint closingWatcherEndpoint;
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            for (ClassQueue queue : queues) {
+                queued.addAll(queue.tasks);
+                queue.tasks.clear();
+            }
+            closingWatcher = watcher;
+            closingEndpoint = multipartEndpoint;
+            closingWatcherEndpoint = watcherEndpoint;
+            notifyAll();
+        }
+
+        for (Task task : queued) {
+            task.stats.end(task.queuedAt, 0, false);
+            task.fail(new EndpointException("Scheduler closed"));
+        }
+        workers.shutdownNow();
+        try {
+            workers.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (closingWatcher != null) closingWatcher.close();
+        closeQuietly(closingEndpoint);
+        closeQuietly(closingWatcherEndpoint);
+        pool.close();
+    }
+
+
+    private void enqueue(Task task) {
+        synchronized (this) {
+            if (!closed) {
+                final ClassQueue queue = queues[task.priority.ordinal()];
+                Tenant tenant = queue.tenants.get(task.tenant);
+                if (tenant == null) {
+                    if (queue.tenants.size() >= TENANT_SWEEP_SIZE) sweep(queue);
+                    tenant = new Tenant();
+                    queue.tenants.put(task.tenant, tenant);
+                }
+
+                final Integer weight = weights.get(task.tenant);
+                task.tag = Math.max(queue.virtualTime, tenant.finish);
+                task.sequence = sequence++;
+                tenant.finish = task.tag + (double)task.cost / (weight == null ? 1 : weight);
+                tenant.queued++;
+                queue.tasks.add(task);
+                notifyAll();
+                return;
+            }
+        }
+        task.stats.end(task.queuedAt, 0, false);
+        task.fail(new EndpointException("Scheduler closed"));
+    }
+
+
+    /**
+     * Forget tenants with nothing queued that are no longer ahead of the class's virtual time; they would
+     * start from it anyway.
+     */
+    @GuardedBy("this")
+    private static void sweep(ClassQueue queue) {
+        final Iterator<Tenant> tenants = queue.tenants.values().iterator();
+        while (tenants.hasNext()) {
+            final Tenant tenant = tenants.next();
+            if (tenant.queued == 0 && tenant.finish <= queue.virtualTime) tenants.remove();
+        }
+    }
+
+
+    @Nullable
+    private synchronized Task take() {
+        try {
+            while (!closed) {
+                final Task task = poll();
+                if (task != null) return task;
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
+
+
+    @GuardedBy("this")
+    @Nullable
+    private Task poll() {
+        for (UploadPriority priority : UploadPriority.values()) {
+            final ClassQueue queue = queues[priority.ordinal()];
+            if (queue.tasks.isEmpty()) continue;
+
+            if (priority != UploadPriority.URGENT &&
+                    getRunningCount() - running[UploadPriority.URGENT.ordinal()] >= maxConcurrent - urgentReserve) {
+                return null; // the rest is kept for urgent work, and lower classes wait behind this one
+            }
+
+            final Task task = queue.tasks.poll();
+            queue.virtualTime = Math.max(queue.virtualTime, task.tag);
+            queue.tenants.get(task.tenant).queued--;
+            running[priority.ordinal()]++;
+            return task;
+        }
+        return null;
+    }
+
+
+    private synchronized void finished(Task task) {
+        running[task.priority.ordinal()]--;
+        notifyAll();
+    }
+
+
+    /**
+     * The endpoint all multipart jobs share, made when the first job needs it.
+     */
+    private synchronized EndpointHTTP multipartEndpoint() throws EndpointException {
+        if (closed) throw new EndpointException("Scheduler closed");
+        if (multipartEndpoint == null) {
+            multipartEndpoint = createMultipartEndpoint();
+            multipartEndpoint.setMultipartConcurrency(maxConcurrent + 1);
+        }
+        return multipartEndpoint;
+    }
+
+
+    /**
+     * The watcher merging completed jobs, on an endpoint of its own as the watcher asks.
+     */
+    private synchronized MultipartWatcher watcher() throws EndpointException {
+        if (closed) throw new EndpointException("Scheduler closed");
+        if (watcher == null) {
+            watcherEndpoint = createMultipartEndpoint();
+            watcher = new MultipartWatcher(watcherEndpoint);
+        }
+        return watcher;
+    }
+
+
+    private EndpointHTTP createMultipartEndpoint() throws EndpointException {
+        final Endpoint created = factory.create(false);
+        if (!(created instanceof EndpointHTTP)) {
+            closeQuietly(created);
+            throw new EndpointException("Multipart jobs need an HTTP endpoint");
+        }
+        return (EndpointHTTP)created;
+    }
+
+
+    private static void closeQuietly(@Nullable Endpoint endpoint) {
+        if (endpoint == null) return;
+        try {
+            endpoint.close();
+        } catch (IOException e) {
+            log.debug("Couldn't close endpoint", e);
+        } catch (RuntimeException e) {
+            log.debug("Couldn't close endpoint", e);
+        }
+    }
+
+
+    private static final class ClassQueue {
+        private final PriorityQueue<Task> tasks = new PriorityQueue<Task>(16, FAIR_ORDER);
+        private final Map<String, Tenant> tenants = Maps.newHashMap();
+        private double virtualTime;
+    }
+
+
+    private static final class Tenant {
+        private int queued;
+        private double finish; // virtual time at which the tenant's queued work is paid for
+    }
+
+
+    private abstract class Task {
+        final UploadPriority priority;
+        final String tenant;
+        final long cost;
+        final OperationStats stats;
+        final long queuedAt;
+        double tag;
+        long sequence;
+
+        Task(UploadPriority priority, String tenant, long cost) {
+            this.priority = priority;
+            this.tenant = tenant;
+            this.cost = Math.max(1, cost);
+            this.stats = metrics.operation("queue." + priority.name().toLowerCase(Locale.ENGLISH));
+            this.queuedAt = stats.begin();
+        }
+
+        /**
+         * Do the work, reporting any failure through the task's future rather than throwing.
+         */
+        abstract void run();
+
+        abstract void fail(Throwable cause);
+    }
+
+
+    private final class Worker implements Runnable {
+        @Override
+        public void run() {
+            Task task;
+            while ((task = take()) != null) {
+                task.stats.end(task.queuedAt, 0, true);
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    log.error("Scheduled task failed", e);
+                    task.fail(e);
+                } finally {
+                    finished(task);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * A file going up as a multipart session: a task to start it, one per piece, then the merge handed to the
+     * watcher. Whatever way the job's future ends other than success, the session is aborted.
+     */
+    private final class MultipartJob {
+        private final UploadPriority priority;
+        private final String tenant;
+        private final File file;
+        private final String path;
+        private final String name;
+        private final long size;
+        private final FixedChunks pieces;
+        private final AtomicInteger remaining;
+        private final SettableFuture<Void> future = SettableFuture.create();
+
+        @GuardedBy("this") @Nullable private MultipartSession session;
+        @GuardedBy("this") private boolean cleanedUp;
+
+        private MultipartJob(UploadPriority priority, String tenant, File file, String path, String name, long size) {
+            this.priority = priority;
+            this.tenant = tenant;
+            this.file = file;
+            this.path = path;
+            this.name = name;
+            this.size = size;
+            final long pieceSize = multipartPieceSize;
+            this.pieces = new FixedChunks(size, pieceSize, Math.max(pieceSize, FixedChunks.MAXIMUM_CHUNK_SIZE));
+            this.remaining = new AtomicInteger(pieces.totalChunks);
+        }
+
+
+        void start() {
+            future.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    cleanUp();
+                }
+            }, MoreExecutors.sameThreadExecutor());
+
+            enqueue(new Task(priority, tenant, 1) {
+                @Override
+                void run() {
+                    try {
+                        if (!begin()) return;
+                    } catch (Throwable e) {
+                        future.setException(e);
+                        return;
+                    }
+                    for (Chunk chunk : pieces) {
+                        enqueue(piece(chunk));
+                    }
+                }
+
+                @Override
+                void fail(Throwable cause) {
+                    future.setException(cause);
+                }
+            });
+        }
+
+
+        /**
+         * @return false if the job was cancelled before it started
+         */
+        private synchronized boolean begin() throws IOException {
+            if (cleanedUp) return false;
+            session = multipartEndpoint().startSession(path, name);
+            return true;
+        }
+
+
+        private Task piece(final Chunk chunk) {
+            return new Task(priority, tenant, chunk.length) {
+                @Override
+                void run() {
+                    final MultipartSession current;
+                    synchronized (MultipartJob.this) {
+                        if (future.isDone()) return;
+                        current = session;
+                    }
+
+                    try {
+                        // Hashed here, in priority order, not ahead of time where a big job would hold up the rest
+                        current.uploadPart(chunk.number + 1, file, chunk, null);
+                        if (remaining.decrementAndGet() == 0) complete(current);
+                    } catch (Throwable e) {
+                        future.setException(e);
+                    }
+                }
+
+                @Override
+                void fail(Throwable cause) {
+                    future.setException(cause);
+                }
+            };
+        }
+
+
+        private void complete(MultipartSession current) throws IOException {
+            if (future.isDone()) return;
+            current.complete();
+
+            Futures.addCallback(watcher().watch(current.getMpid(), size, pieces.totalChunks, mergeTimeout),
+                    new FutureCallback<MultipartStatus>() {
+                        @Override
+                        public void onSuccess(MultipartStatus result) {
+                            future.set(null);
+                        }
+
+                        @Override
+                        public void onFailure(Throwable t) {
+                            future.setException(t);
+                        }
+                    });
+        }
+
+
+        private synchronized void cleanUp() {
+            cleanedUp = true;
+            if (session == null) return;
+
+            boolean succeeded = !future.isCancelled();
+            try {
+                future.get();
+            } catch (Exception e) {
+                succeeded = false;
+            }
+
+            if (!succeeded) {
+                try {
+                    session.abort();
+                } catch (IOException e) {
+                    log.warn("Couldn't abort multipart upload of {}", file, e);
+                } catch (RuntimeException e) {
+                    log.warn("Couldn't abort multipart upload of {}", file, e);
+                }
+            }
+            session = null;
+        }
+    }
+}
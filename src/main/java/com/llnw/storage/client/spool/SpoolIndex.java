@@ -0,0 +1,118 @@
+package com.llnw.storage.client.spool;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import org.apache.commons.io.Charsets;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only, fsynced log of spool entries: one JSON object per line, "add" when an entry's data is safely
+ * in the spool and "done" or "failed" when it leaves. Replaying it gives the entries still to upload. A torn
+ * last line from a crash mid-write is ignored. Compacted on open so it only grows while the spool runs.
+ */
+@ThreadSafe
+class SpoolIndex implements Closeable {
+    static final String ADD = "add";
+    static final String DONE = "done";
+    static final String FAILED = "failed";
+
+    private final Gson gson = new Gson();
+    private final File file;
+    private FileOutputStream out;
+
+
+    static class Record {
+        String op;
+        long id;
+        String path;
+        String name;
+        long size;
+
+        Record() {
+        }
+
+        Record(String op, long id, String path, String name, long size) {
+            this.op = op;
+            this.id = id;
+            this.path = path;
+            this.name = name;
+            this.size = size;
+        }
+    }
+
+
+    SpoolIndex(File file) {
+        this.file = file;
+    }
+
+
+    /**
+     * Replay the log, rewrite it with just the pending entries and open it for appending.
+     *
+     * @return entries added but not yet done or failed, oldest first
+     */
+    synchronized List<Record> open() throws IOException {
+        final File compacted = new File(file.getPath() + ".tmp");
+        if (!file.exists() && compacted.exists() && !compacted.renameTo(file)) {
+            throw new IOException("Couldn't recover spool index from " + compacted); // crashed mid-compaction
+        }
+
+        final Map<Long, Record> pending = Maps.newLinkedHashMap();
+        if (file.exists()) {
+            for (String line : FileUtils.readLines(file, Charsets.UTF_8)) {
+                final Record record;
+                try {
+                    record = gson.fromJson(line, Record.class);
+                } catch (JsonSyntaxException e) {
+                    continue; // torn write
+                }
+                if (record == null || record.op == null) continue;
+
+                if (ADD.equals(record.op)) pending.put(record.id, record);
+                else pending.remove(record.id);
+            }
+        }
+
+        final FileOutputStream os = new FileOutputStream(compacted);
+        try {
+            for (Record record : pending.values()) {
+                os.write((gson.toJson(record) + "\n").getBytes(Charsets.UTF_8));
+            }
+            os.getFD().sync();
+        } finally {
+            IOUtils.closeQuietly(os);
+        }
+        if (file.exists() && !file.delete() || !compacted.renameTo(file)) {
+            throw new IOException("Couldn't replace spool index " + file);
+        }
+
+        out = new FileOutputStream(file, true);
+        return Lists.newArrayList(pending.values());
+    }
+
+
+    synchronized void append(Record record) throws IOException {
+        if (out == null) throw new IllegalStateException("Index is not open");
+        out.write((gson.toJson(record) + "\n").getBytes(Charsets.UTF_8));
+        out.getFD().sync();
+    }
+
+
+    @Override
+    public synchronized void close() {
+        IOUtils.closeQuietly(out);
+        out = null;
+    }
+}
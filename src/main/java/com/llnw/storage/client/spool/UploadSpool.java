@@ -0,0 +1,512 @@
+package com.llnw.storage.client.spool;
+
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.llnw.storage.client.Endpoint;
+import com.llnw.storage.client.EndpointPool;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.joda.time.Duration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-behind upload queue backed by a local directory. Producers hand over a file or buffer and return as soon
+ * as it is on local disk and recorded in the spool's index; background workers upload it through an
+ * {@link EndpointPool}, retrying with backoff. Entries survive a restart: a new spool on the same directory
+ * picks up whatever wasn't uploaded.
+ *
+ * Disk use is bounded by maxBytes. A producer that would go over it blocks until uploads free enough space,
+ * except that a single entry bigger than the whole budget is let in once the spool is empty. Entries that
+ * fail every attempt are moved to the "failed" subdirectory and no longer count against the budget; that
+ * directory has a bound of its own, maxBytes unless set otherwise, kept by deleting its oldest entries.
+ *
+ * <pre>
+ *     final UploadSpool spool = new UploadSpool(pool, new File("/var/spool/locs"), 10L << 30).start();
+ *     spool.submit(rendered, "/content/renders", "frame-0001.png");
+ *     ...
+ *     spool.close(); // anything still queued is uploaded after the next start
+ * </pre>
+ */
+@ThreadSafe
+public class UploadSpool implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(UploadSpool.class);
+
+    private static final String DATA_SUFFIX = ".data";
+
+    private final EndpointPool pool;
+    private final File directory;
+    private final File failedDirectory;
+    private final long maxBytes;
+    private final SpoolIndex index;
+
+    private final Object failedLock = new Object();
+
+    private int workers;
+    private long maxFailedBytes;
+    private int maxAttempts = 5;
+    private Duration retryBackoff = Duration.standardSeconds(1);
+
+    private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<Entry>();
+    private final AtomicLong ids = new AtomicLong();
+    private final AtomicLong uploaded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    @GuardedBy("this") private long spooledBytes;
+    @GuardedBy("this") private int spooledCount;
+    @GuardedBy("this") private boolean running;
+
+    private ExecutorService executor;
+    private ScheduledExecutorService retries;
+
+
+    private static class Entry {
+        private final long id;
+        private final String path;
+        private final String name;
+        private final long size;
+        private final File data;
+        private int attempts;
+
+        private Entry(long id, String path, String name, long size, File data) {
+            this.id = id;
+            this.path = path;
+            this.name = name;
+            this.size = size;
+            this.data = data;
+        }
+    }
+
+
+    public UploadSpool(EndpointPool pool, File directory, long maxBytes) {
+        this.pool = pool;
+        this.directory = directory;
+        this.failedDirectory = new File(directory, "failed");
+        this.maxBytes = maxBytes;
+        this.maxFailedBytes = maxBytes;
+        this.index = new SpoolIndex(new File(directory, "index.log"));
+        this.workers = pool.getMaxSize();
+    }
+
+
+    /**
+     * Upload threads, defaults to the pool size.
+     */
+    public UploadSpool setWorkers(int workers) {
+        if (workers < 1) throw new IllegalArgumentException("workers must be at least 1");
+        this.workers = workers;
+        return this;
+    }
+
+
+    /**
+     * Attempts per entry before it is moved aside as failed, defaults to 5.
+     */
+    public UploadSpool setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+
+    /**
+     * Disk space kept for entries that failed every attempt, defaults to maxBytes. The oldest are deleted to
+     * make room for new ones; 0 deletes them all as they fail.
+     */
+    public UploadSpool setMaxFailedBytes(long maxFailedBytes) {
+        if (maxFailedBytes < 0) throw new IllegalArgumentException("maxFailedBytes must not be negative");
+        this.maxFailedBytes = maxFailedBytes;
+        return this;
+    }
+
+
+    /**
+     * Delay before the first retry, doubling for each one after.
+     */
+    public UploadSpool setRetryBackoff(Duration retryBackoff) {
+        this.retryBackoff = retryBackoff;
+        return this;
+    }
+
+
+    /**
+     * Recover anything left from a previous run and start uploading.
+     */
+    public synchronized UploadSpool start() throws IOException {
+        if (running) throw new IllegalStateException("Already started");
+        FileUtils.forceMkdir(failedDirectory);
+
+        long maxId = 0;
+        for (SpoolIndex.Record record : index.open()) {
+            final File data = dataFile(record.id);
+            maxId = Math.max(maxId, record.id);
+            if (!data.isFile()) {
+                log.warn("Spooled data for {}/{} is missing, dropping it", record.path, record.name);
+                index.append(new SpoolIndex.Record(SpoolIndex.FAILED, record.id, record.path, record.name, 0));
+                continue;
+            }
+            spooledBytes += record.size;
+            spooledCount++;
+            queue.add(new Entry(record.id, record.path, record.name, record.size, data));
+        }
+        ids.set(maxId);
+        removeOrphans();
+        pruneFailed();
+
+        executor = Executors.newFixedThreadPool(workers,
+                new ThreadFactoryBuilder().setNameFormat("upload-spool-%d").setDaemon(true).build());
+        retries = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("upload-spool-retry").setDaemon(true).build());
+        for (int i = 0; i < workers; i++) {
+            executor.execute(new Worker());
+        }
+        running = true;
+        return this;
+    }
+
+
+    /**
+     * Copy a file into the spool for upload to path/name. The caller may change or delete it afterwards.
+     */
+    public void submit(File file, String path, String name) throws IOException {
+        final long size = file.length();
+        final long id = reserve(size);
+        final File data = dataFile(id);
+        boolean spooled = false;
+        try {
+            FileUtils.copyFile(file, data);
+            sync(data);
+            spooled = true;
+        } finally {
+            if (!spooled) abandon(data, size);
+        }
+        enqueue(new Entry(id, path, name, size, data));
+    }
+
+
+    /**
+     * Move a file into the spool for upload to path/name, taking ownership of it. On the same file system
+     * this is a rename, so no data is copied; otherwise the file is copied and then deleted.
+     */
+    public void transfer(File file, String path, String name) throws IOException {
+        final long size = file.length();
+        final long id = reserve(size);
+        final File data = dataFile(id);
+        boolean spooled = false;
+        try {
+            final boolean moved = file.renameTo(data);
+            if (!moved) FileUtils.copyFile(file, data);
+            sync(data); // a rename moves the name, but the bytes may still be only in the page cache
+            if (!moved) FileUtils.forceDelete(file);
+            spooled = true;
+        } finally {
+            if (!spooled) abandon(data, size);
+        }
+        enqueue(new Entry(id, path, name, size, data));
+    }
+
+
+    /**
+     * Write the buffer's remaining bytes into the spool for upload to path/name. The buffer's position is
+     * not changed.
+     */
+    public void submit(ByteBuffer buffer, String path, String name) throws IOException {
+        final long size = buffer.remaining();
+        final long id = reserve(size);
+        final File data = dataFile(id);
+        boolean spooled = false;
+        final FileOutputStream os = new FileOutputStream(data);
+        try {
+            final FileChannel channel = os.getChannel();
+            final ByteBuffer source = buffer.duplicate();
+            while (source.hasRemaining()) {
+                channel.write(source);
+            }
+            channel.force(true);
+            spooled = true;
+        } finally {
+            IOUtils.closeQuietly(os);
+            if (!spooled) abandon(data, size);
+        }
+        enqueue(new Entry(id, path, name, size, data));
+    }
+
+
+    /**
+     * Wait until everything submitted so far has been uploaded or has failed.
+     *
+     * @return false if entries were still pending when the timeout ran out
+     */
+    public synchronized boolean flush(Duration timeout) throws InterruptedIOException {
+        final long deadline = System.currentTimeMillis() + timeout.getMillis();
+        try {
+            while (spooledCount > 0) {
+                final long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) return false;
+                wait(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted flushing spool");
+        }
+        return true;
+    }
+
+
+    public synchronized long getPendingBytes() {
+        return spooledBytes;
+    }
+
+
+    public synchronized int getPendingCount() {
+        return spooledCount;
+    }
+
+
+    public long getUploadedCount() {
+        return uploaded.get();
+    }
+
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+
+    /**
+     * Stop the workers. Entries not yet uploaded stay in the spool directory for the next start.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (!running) return;
+            running = false;
+            notifyAll();
+        }
+        retries.shutdownNow();
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        index.close();
+    }
+
+
+    /**
+     * Claim space for an entry, blocking while the spool is full.
+     */
+    private synchronized long reserve(long size) throws InterruptedIOException {
+        if (!running) throw new IllegalStateException("Spool is not running");
+        try {
+            while (spooledCount > 0 && spooledBytes + size > maxBytes) {
+                wait();
+                if (!running) throw new IllegalStateException("Spool closed");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for spool space");
+        }
+        spooledBytes += size;
+        spooledCount++;
+        return ids.incrementAndGet();
+    }
+
+
+    private synchronized void release(long size) {
+        spooledBytes -= size;
+        spooledCount--;
+        notifyAll();
+    }
+
+
+    private void abandon(File data, long size) {
+        FileUtils.deleteQuietly(data);
+        release(size);
+    }
+
+
+    private void enqueue(Entry entry) throws IOException {
+        try {
+            index.append(new SpoolIndex.Record(SpoolIndex.ADD, entry.id, entry.path, entry.name, entry.size));
+        } catch (IOException e) {
+            abandon(entry.data, entry.size);
+            throw e;
+        }
+        queue.add(entry);
+    }
+
+
+    private class Worker implements Runnable {
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                final Entry entry;
+                try {
+                    entry = queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                upload(entry);
+            }
+        }
+    }
+
+
+    private void upload(final Entry entry) {
+        entry.attempts++;
+        try {
+            pool.execute(new EndpointPool.Operation<Void>() {
+                @Override
+                public Void run(Endpoint endpoint) throws IOException {
+                    endpoint.upload(entry.data, entry.path, entry.name, null);
+                    return null;
+                }
+            });
+        } catch (InterruptedIOException e) {
+            // Shutting down, the entry is still in the index for next time
+            Thread.currentThread().interrupt();
+            return;
+        } catch (IOException e) {
+            retryOrFail(entry, e);
+            return;
+        } catch (RuntimeException e) {
+            retryOrFail(entry, e); // e.g. a garbled response, keep the worker alive
+            return;
+        }
+
+        try {
+            index.append(new SpoolIndex.Record(SpoolIndex.DONE, entry.id, entry.path, entry.name, entry.size));
+        } catch (IOException e) {
+            log.warn("Couldn't record upload of {}/{}, it may be uploaded again", entry.path, entry.name, e);
+        }
+        FileUtils.deleteQuietly(entry.data);
+        uploaded.incrementAndGet();
+        release(entry.size);
+    }
+
+
+    private void retryOrFail(final Entry entry, Exception cause) {
+        if (entry.attempts < maxAttempts) {
+            final long delay = retryBackoff.getMillis() << Math.min(entry.attempts - 1, 16);
+            log.warn("Upload of {}/{} failed, attempt {} of {}, retrying in {}ms",
+                    new Object[] { entry.path, entry.name, entry.attempts, maxAttempts, delay, cause });
+            retries.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    queue.add(entry);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+            return;
+        }
+
+        log.error("Upload of {}/{} failed after {} attempts, moving it to {}",
+                new Object[] { entry.path, entry.name, entry.attempts, failedDirectory, cause });
+        final File target = new File(failedDirectory, entry.id + "-" + entry.name);
+        if (!entry.data.renameTo(target)) FileUtils.deleteQuietly(entry.data);
+        pruneFailed();
+        try {
+            index.append(new SpoolIndex.Record(SpoolIndex.FAILED, entry.id, entry.path, entry.name, entry.size));
+        } catch (IOException e) {
+            log.warn("Couldn't record failure of {}/{}", entry.path, entry.name, e);
+        }
+        failed.incrementAndGet();
+        release(entry.size);
+    }
+
+
+    /**
+     * Delete the oldest failed entries until the rest fit in maxFailedBytes.
+     */
+    private void pruneFailed() {
+        synchronized (failedLock) {
+            final File[] files = failedDirectory.listFiles();
+            if (files == null) return;
+            long bytes = 0;
+            for (File file : files) bytes += file.length();
+            if (bytes <= maxFailedBytes) return;
+
+            Arrays.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(File a, File b) {
+                    final long x = failedId(a);
+                    final long y = failedId(b);
+                    return x < y ? -1 : (x == y ? 0 : 1);
+                }
+            });
+            for (int i = 0; i < files.length && bytes > maxFailedBytes; i++) {
+                final long size = files[i].length();
+                log.warn("Deleting failed entry {} to keep {} under {} bytes",
+                        new Object[] { files[i].getName(), failedDirectory, maxFailedBytes });
+                if (files[i].delete()) bytes -= size;
+            }
+        }
+    }
+
+
+    /**
+     * Failed entries are named for the id they were spooled under, which grows with each entry.
+     */
+    private static long failedId(File file) {
+        final String name = file.getName();
+        final int dash = name.indexOf('-');
+        try {
+            return Long.parseLong(name.substring(0, Math.max(dash, 0)));
+        } catch (NumberFormatException e) {
+            return -1; // not one of ours, goes first
+        }
+    }
+
+
+    private File dataFile(long id) {
+        return new File(directory, id + DATA_SUFFIX);
+    }
+
+
+    /**
+     * Data files not in the index were written by a producer that crashed before recording them.
+     */
+    private void removeOrphans() {
+        final Set<String> known = Sets.newHashSet();
+        for (Entry entry : queue) known.add(entry.data.getName());
+
+        final File[] files = directory.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            if (file.getName().endsWith(DATA_SUFFIX) && !known.contains(file.getName())) {
+                FileUtils.deleteQuietly(file);
+            }
+        }
+    }
+
+
+    private static void sync(File file) throws IOException {
+        final FileOutputStream os = new FileOutputStream(file, true);
+        try {
+            os.getFD().sync();
+        } finally {
+            IOUtils.closeQuietly(os);
+        }
+    }
+}
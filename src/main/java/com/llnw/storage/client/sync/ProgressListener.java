@@ -0,0 +1,8 @@
+package com.llnw.storage.client.sync;
+
+/**
+ * Called periodically from a background thread while a tree operation runs, and once more when it finishes.
+ */
+public interface ProgressListener {
+    void progress(TreeStats stats);
+}
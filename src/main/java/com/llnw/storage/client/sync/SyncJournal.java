@@ -0,0 +1,61 @@
+package com.llnw.storage.client.sync;
+
+import com.google.common.collect.Maps;
+import org.apache.commons.io.Charsets;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+
+/**
+ * Append-only record of completed uploads, one "size TAB mtime TAB remotePath" line each, so an interrupted
+ * sync can be restarted without comparing files it already finished. A torn last line is ignored.
+ */
+@ThreadSafe
+class SyncJournal implements Closeable {
+    private final Map<String, String> completed = Maps.newConcurrentMap();
+    private final Writer writer;
+
+
+    SyncJournal(File file) throws IOException {
+        if (file.exists()) {
+            for (String line : FileUtils.readLines(file, Charsets.UTF_8)) {
+                final String[] fields = line.split("\t", 3);
+                if (fields.length == 3) completed.put(fields[2], fields[0] + "\t" + fields[1]);
+            }
+        }
+        writer = new OutputStreamWriter(new FileOutputStream(file, true), Charsets.UTF_8);
+    }
+
+
+    boolean isComplete(String remotePath, File local) {
+        return key(local).equals(completed.get(remotePath));
+    }
+
+
+    synchronized void record(String remotePath, File local) throws IOException {
+        final String key = key(local);
+        writer.write(key + "\t" + remotePath + "\n");
+        writer.flush();
+        completed.put(remotePath, key);
+    }
+
+
+    @Override
+    public synchronized void close() {
+        IOUtils.closeQuietly(writer);
+    }
+
+
+    private static String key(File local) {
+        return local.length() + "\t" + local.lastModified();
+    }
+}
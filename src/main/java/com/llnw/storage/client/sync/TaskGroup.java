@@ -0,0 +1,79 @@
+package com.llnw.storage.client.sync;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Fixed pool of worker threads running tasks that spawn more tasks, finished when the last one is.
+ * A task must submit its children before it returns, so the pending count only reaches zero at the end.
+ */
+@ThreadSafe
+class TaskGroup {
+    private static final Logger log = LoggerFactory.getLogger(TaskGroup.class);
+
+    private final ExecutorService executor;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final AtomicReference<RuntimeException> unexpected = new AtomicReference<RuntimeException>();
+
+
+    TaskGroup(int threads, String nameFormat) {
+        this.executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat(nameFormat).setDaemon(true).build());
+    }
+
+
+    void submit(final Runnable task) {
+        pending.incrementAndGet();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    log.error("Task failed", e);
+                    unexpected.compareAndSet(null, e);
+                } finally {
+                    if (pending.decrementAndGet() == 0) done.countDown();
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Wait for every task, reporting progress every interval, then shut the workers down.
+     * Interrupting the caller cancels the remaining tasks.
+     */
+    void await(TreeStats stats, @Nullable ProgressListener listener, long intervalMillis)
+            throws InterruptedIOException {
+        try {
+            if (pending.get() > 0) {
+                while (!done.await(intervalMillis, TimeUnit.MILLISECONDS)) {
+                    if (listener != null) listener.progress(stats);
+                }
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted with " + pending.get() + " tasks pending");
+        } finally {
+            executor.shutdown();
+        }
+
+        if (listener != null) listener.progress(stats);
+        if (unexpected.get() != null) throw unexpected.get();
+    }
+}
@@ -0,0 +1,255 @@
+package com.llnw.storage.client.sync;
+
+import com.llnw.storage.client.Endpoint;
+import com.llnw.storage.client.EndpointPool;
+import com.llnw.storage.client.RemoteFile;
+import org.joda.time.Duration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Delete a remote directory tree, or prune the files in it that match a filter.
+ *
+ * Subdirectories are listed in parallel and files deleted concurrently over the pool. A directory is removed
+ * once everything under it is gone, so directories go bottom-up without a second walk. With a filter only
+ * matching files are deleted, directories left empty are removed and the root is kept.
+ *
+ * As with {@link TreeSync} a failure only affects its own path and anything above it.
+ */
+public class TreeDelete {
+    private static final Logger log = LoggerFactory.getLogger(TreeDelete.class);
+
+    private final EndpointPool pool;
+
+    private int concurrency;
+    @Nullable private Duration olderThan;
+    @Nullable private Pattern namePattern;
+    private boolean removeEmptyDirectories = true;
+    @Nullable private ProgressListener listener;
+    private long progressIntervalMillis = 1000;
+
+
+    public TreeDelete(EndpointPool pool) {
+        this.pool = pool;
+        this.concurrency = pool.getMaxSize();
+    }
+
+
+    public TreeDelete setConcurrency(int concurrency) {
+        if (concurrency < 1) throw new IllegalArgumentException("concurrency must be at least 1");
+        this.concurrency = concurrency;
+        return this;
+    }
+
+
+    /**
+     * Only delete files last modified longer ago than this. Files without a known mtime are kept.
+     */
+    public TreeDelete setOlderThan(@Nullable Duration olderThan) {
+        this.olderThan = olderThan;
+        return this;
+    }
+
+
+    /**
+     * Only delete files whose name (not path) matches this pattern.
+     */
+    public TreeDelete setNamePattern(@Nullable Pattern namePattern) {
+        this.namePattern = namePattern;
+        return this;
+    }
+
+
+    /**
+     * When pruning, whether to remove directories that end up empty. Defaults to true.
+     */
+    public TreeDelete setRemoveEmptyDirectories(boolean removeEmptyDirectories) {
+        this.removeEmptyDirectories = removeEmptyDirectories;
+        return this;
+    }
+
+
+    public TreeDelete setProgressListener(@Nullable ProgressListener listener, Duration interval) {
+        this.listener = listener;
+        this.progressIntervalMillis = Math.max(1, interval.getMillis());
+        return this;
+    }
+
+
+    /**
+     * Delete everything under remoteRoot, and remoteRoot itself unless a filter is set. Blocks until done;
+     * interrupting the caller stops the delete.
+     */
+    public TreeStats delete(String remoteRoot) throws IOException {
+        final Run run = new Run(System.currentTimeMillis() / 1000);
+        run.submitListing(new Directory(remoteRoot, null));
+        run.tasks.await(run.stats, listener, progressIntervalMillis);
+        return run.stats;
+    }
+
+
+    private boolean isFiltered() {
+        return olderThan != null || namePattern != null;
+    }
+
+
+    /**
+     * A directory being emptied. Pending counts its own listing plus every child not yet dealt with.
+     */
+    private static class Directory {
+        private final String path;
+        @Nullable private final Directory parent;
+        private final AtomicInteger pending = new AtomicInteger(1);
+        private volatile boolean keep;
+
+        private Directory(String path, @Nullable Directory parent) {
+            this.path = path;
+            this.parent = parent;
+        }
+    }
+
+
+    private class Run {
+        private final TreeStats stats = new TreeStats();
+        private final TaskGroup tasks = new TaskGroup(concurrency, "tree-delete-%d");
+        private final long now; // seconds
+
+        private Run(long now) {
+            this.now = now;
+        }
+
+
+        private void submitListing(final Directory dir) {
+            tasks.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        list(dir);
+                    } catch (InterruptedIOException e) {
+                        Thread.currentThread().interrupt();
+                        dir.keep = true;
+                    } catch (IOException e) {
+                        log.error("Couldn't list {}", dir.path, e);
+                        stats.failed(dir.path);
+                        dir.keep = true;
+                    } finally {
+                        finished(dir);
+                    }
+                }
+            });
+        }
+
+
+        private void list(Directory dir) throws IOException {
+            final String path = dir.path;
+            final List<RemoteFile> listing = pool.execute(new EndpointPool.Operation<List<RemoteFile>>() {
+                @Override
+                public List<RemoteFile> run(Endpoint endpoint) throws IOException {
+                    return endpoint.listDetails(path);
+                }
+            });
+            stats.directoriesScanned.incrementAndGet();
+
+            for (RemoteFile file : listing) {
+                final String child = TreeSync.child(path, file.name);
+                if (file.directory) {
+                    dir.pending.incrementAndGet();
+                    submitListing(new Directory(child, dir));
+                } else {
+                    stats.filesScanned.incrementAndGet();
+                    if (matches(file)) {
+                        dir.pending.incrementAndGet();
+                        submitFileDelete(dir, child);
+                    } else {
+                        stats.filesSkipped.incrementAndGet();
+                        dir.keep = true;
+                    }
+                }
+            }
+        }
+
+
+        private boolean matches(RemoteFile file) {
+            if (olderThan != null && (file.mtime == 0 || file.mtime > now - olderThan.getStandardSeconds())) {
+                return false;
+            }
+            return namePattern == null || namePattern.matcher(file.name).matches();
+        }
+
+
+        private void submitFileDelete(final Directory dir, final String path) {
+            tasks.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        pool.execute(new EndpointPool.Operation<Void>() {
+                            @Override
+                            public Void run(Endpoint endpoint) throws IOException {
+                                endpoint.deleteFile(path);
+                                return null;
+                            }
+                        });
+                        stats.filesDeleted.incrementAndGet();
+                    } catch (InterruptedIOException e) {
+                        Thread.currentThread().interrupt();
+                        dir.keep = true;
+                    } catch (IOException e) {
+                        log.error("Couldn't delete {}", path, e);
+                        stats.failed(path);
+                        dir.keep = true;
+                    } finally {
+                        finished(dir);
+                    }
+                }
+            });
+        }
+
+
+        /**
+         * One child of dir, or its listing, is done. The last one removes dir and moves up a level.
+         */
+        private void finished(Directory dir) {
+            if (dir.pending.decrementAndGet() > 0) return;
+
+            final boolean root = dir.parent == null;
+            final boolean remove = !dir.keep && !Thread.currentThread().isInterrupted() &&
+                    (isFiltered() ? removeEmptyDirectories && !root : true);
+
+            if (remove) {
+                final String path = dir.path;
+                try {
+                    pool.execute(new EndpointPool.Operation<Void>() {
+                        @Override
+                        public Void run(Endpoint endpoint) throws IOException {
+                            endpoint.deleteDirectory(path);
+                            return null;
+                        }
+                    });
+                    stats.directoriesDeleted.incrementAndGet();
+                } catch (InterruptedIOException e) {
+                    Thread.currentThread().interrupt();
+                    dir.keep = true;
+                } catch (IOException e) {
+                    log.error("Couldn't delete directory {}", path, e);
+                    stats.failed(path);
+                    dir.keep = true;
+                }
+            } else {
+                dir.keep = true;
+            }
+
+            if (!root) {
+                if (dir.keep) dir.parent.keep = true;
+                finished(dir.parent);
+            }
+        }
+    }
+}
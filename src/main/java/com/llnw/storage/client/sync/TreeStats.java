@@ -0,0 +1,102 @@
+package com.llnw.storage.client.sync;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Live counters for a tree operation, updated by the worker threads as they go.
+ */
+@ThreadSafe
+public class TreeStats {
+    final AtomicLong directoriesScanned = new AtomicLong();
+    final AtomicLong directoriesCreated = new AtomicLong();
+    final AtomicLong filesScanned = new AtomicLong();
+    final AtomicLong filesSkipped = new AtomicLong();
+    final AtomicLong filesUploaded = new AtomicLong();
+    final AtomicLong bytesUploaded = new AtomicLong();
+    final AtomicLong filesDeleted = new AtomicLong();
+    final AtomicLong directoriesDeleted = new AtomicLong();
+    final AtomicLong failures = new AtomicLong();
+
+    private final Queue<String> failedPaths = new ConcurrentLinkedQueue<String>();
+
+
+    void failed(String path) {
+        failures.incrementAndGet();
+        failedPaths.add(path);
+    }
+
+
+    public long getDirectoriesScanned() {
+        return directoriesScanned.get();
+    }
+
+
+    public long getDirectoriesCreated() {
+        return directoriesCreated.get();
+    }
+
+
+    public long getFilesScanned() {
+        return filesScanned.get();
+    }
+
+
+    public long getFilesSkipped() {
+        return filesSkipped.get();
+    }
+
+
+    public long getFilesUploaded() {
+        return filesUploaded.get();
+    }
+
+
+    public long getBytesUploaded() {
+        return bytesUploaded.get();
+    }
+
+
+    public long getFilesDeleted() {
+        return filesDeleted.get();
+    }
+
+
+    public long getDirectoriesDeleted() {
+        return directoriesDeleted.get();
+    }
+
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+
+    /**
+     * @return the local or remote paths that couldn't be processed, see the log for the reasons
+     */
+    public ImmutableList<String> getFailedPaths() {
+        return ImmutableList.copyOf(failedPaths);
+    }
+
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(getClass())
+                .add("directoriesScanned", getDirectoriesScanned())
+                .add("directoriesCreated", getDirectoriesCreated())
+                .add("filesScanned", getFilesScanned())
+                .add("filesSkipped", getFilesSkipped())
+                .add("filesUploaded", getFilesUploaded())
+                .add("bytesUploaded", getBytesUploaded())
+                .add("filesDeleted", getFilesDeleted())
+                .add("directoriesDeleted", getDirectoriesDeleted())
+                .add("failures", getFailures()).toString();
+    }
+}
@@ -0,0 +1,274 @@
+package com.llnw.storage.client.sync;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.llnw.storage.client.Endpoint;
+import com.llnw.storage.client.EndpointPool;
+import com.llnw.storage.client.RemoteFile;
+import com.llnw.storage.client.io.ChecksumCache;
+import org.joda.time.Duration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Mirror a local directory tree to the storage, uploading only what is missing or changed.
+ *
+ * Directories are listed in parallel, one remote listing each, and a remote file is left alone when it has
+ * the same size as the local one and is no older, or optionally the same checksum. A local directory that
+ * doesn't exist remotely is created in one go with its whole subtree (one makeDirectory per leaf) and
+ * everything in it is uploaded without listing. Uploads share the pool, so the pool size bounds the
+ * concurrency. Each file goes up with the endpoint's own upload(File, ...), so big files are promoted to
+ * multipart exactly as the endpoint is configured to (see EndpointHTTP.setMultipartThreshold).
+ *
+ * A failure affects only the file or directory involved; it is logged, counted and listed in the stats,
+ * and the rest of the tree carries on. With a journal an interrupted sync can be rerun cheaply.
+ */
+public class TreeSync {
+    private static final Logger log = LoggerFactory.getLogger(TreeSync.class);
+
+    private final EndpointPool pool;
+
+    private int concurrency;
+    @Nullable private File journalFile;
+    @Nullable private ProgressListener listener;
+    private long progressIntervalMillis = 1000;
+    private boolean compareChecksums;
+    private ChecksumCache checksums = ChecksumCache.shared();
+
+
+    public TreeSync(EndpointPool pool) {
+        this.pool = pool;
+        this.concurrency = pool.getMaxSize();
+    }
+
+
+    /**
+     * Worker threads, defaults to the pool size. More threads than endpoints just wait on the pool.
+     */
+    public TreeSync setConcurrency(int concurrency) {
+        if (concurrency < 1) throw new IllegalArgumentException("concurrency must be at least 1");
+        this.concurrency = concurrency;
+        return this;
+    }
+
+
+    /**
+     * Record finished uploads in this file, and skip files it says are already done.
+     */
+    public TreeSync setJournal(@Nullable File journalFile) {
+        this.journalFile = journalFile;
+        return this;
+    }
+
+
+    /**
+     * Judge a remote file of the same size by its SHA-256 instead of its age, so files that were rewritten
+     * with the same content aren't uploaded again. Local checksums come from the cache when the file hasn't
+     * changed since it was last hashed.
+     */
+    public TreeSync setCompareChecksums(boolean compareChecksums, ChecksumCache checksums) {
+        this.compareChecksums = compareChecksums;
+        this.checksums = checksums;
+        return this;
+    }
+
+
+    public TreeSync setProgressListener(@Nullable ProgressListener listener, Duration interval) {
+        this.listener = listener;
+        this.progressIntervalMillis = Math.max(1, interval.getMillis());
+        return this;
+    }
+
+
+    /**
+     * Upload everything under localRoot that is missing or changed below remoteRoot, creating remoteRoot
+     * if needed. Blocks until done; interrupting the caller stops the sync.
+     */
+    public TreeStats sync(File localRoot, final String remoteRoot) throws IOException {
+        if (!localRoot.isDirectory()) throw new IllegalArgumentException("Not a directory: " + localRoot);
+
+        final Run run = new Run(journalFile == null ? null : new SyncJournal(journalFile));
+        try {
+            pool.execute(new EndpointPool.Operation<Void>() {
+                @Override
+                public Void run(Endpoint endpoint) throws IOException {
+                    endpoint.makeDirectory(remoteRoot);
+                    return null;
+                }
+            });
+            run.submitDirectory(localRoot, remoteRoot, false);
+            run.tasks.await(run.stats, listener, progressIntervalMillis);
+        } finally {
+            if (run.journal != null) run.journal.close();
+        }
+        return run.stats;
+    }
+
+
+    static String child(String remote, String name) {
+        return remote.endsWith("/") ? remote + name : remote + "/" + name;
+    }
+
+
+    private class Run {
+        private final TreeStats stats = new TreeStats();
+        private final TaskGroup tasks = new TaskGroup(concurrency, "tree-sync-%d");
+        @Nullable private final SyncJournal journal;
+
+        private Run(@Nullable SyncJournal journal) {
+            this.journal = journal;
+        }
+
+
+        private void submitDirectory(final File local, final String remote, final boolean created) {
+            tasks.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        syncDirectory(local, remote, created);
+                    } catch (InterruptedIOException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (IOException e) {
+                        log.error("Couldn't sync {} to {}", new Object[] { local, remote, e });
+                        stats.failed(local.getPath());
+                    }
+                }
+            });
+        }
+
+
+        /**
+         * @param created the remote directory was just created, so there is nothing there to compare with
+         */
+        private void syncDirectory(File local, final String remote, boolean created) throws IOException {
+            final File[] children = local.listFiles();
+            if (children == null) throw new IOException("Couldn't list " + local);
+            stats.directoriesScanned.incrementAndGet();
+
+            final Map<String, RemoteFile> existing = Maps.newHashMap();
+            if (!created) {
+                final List<RemoteFile> listing = pool.execute(new EndpointPool.Operation<List<RemoteFile>>() {
+                    @Override
+                    public List<RemoteFile> run(Endpoint endpoint) throws IOException {
+                        return endpoint.listDetails(remote);
+                    }
+                });
+                for (RemoteFile file : listing) existing.put(file.name, file);
+            }
+
+            for (File child : children) {
+                final String remoteChild = child(remote, child.getName());
+                final RemoteFile remoteFile = existing.get(child.getName());
+
+                if (child.isDirectory()) {
+                    if (created) {
+                        submitDirectory(child, remoteChild, true); // made with its parent's tree
+                    } else if (remoteFile == null) {
+                        makeTree(child, remoteChild);
+                        submitDirectory(child, remoteChild, true);
+                    } else if (remoteFile.directory) {
+                        submitDirectory(child, remoteChild, false);
+                    } else {
+                        log.error("Local directory {} is a file at {}", child, remoteChild);
+                        stats.failed(child.getPath());
+                    }
+                } else if (child.isFile()) {
+                    stats.filesScanned.incrementAndGet();
+                    if (remoteFile != null && remoteFile.directory) {
+                        log.error("Local file {} is a directory at {}", child, remoteChild);
+                        stats.failed(child.getPath());
+                    } else if (isUnchanged(child, remoteChild, remoteFile)) {
+                        stats.filesSkipped.incrementAndGet();
+                    } else {
+                        submitUpload(child, remote, remoteChild);
+                    }
+                }
+            }
+        }
+
+
+        private boolean isUnchanged(File local, String remotePath, @Nullable RemoteFile remote) {
+            if (journal != null && journal.isComplete(remotePath, local)) return true;
+            if (remote == null || remote.size != local.length()) return false;
+            if (compareChecksums && remote.checksum != null) {
+                try {
+                    return remote.checksum.equalsIgnoreCase(checksums.sha256Hex(local));
+                } catch (IOException e) {
+                    log.warn("Couldn't checksum {}, uploading it", local, e);
+                    return false;
+                }
+            }
+            return remote.mtime == 0 || remote.mtime >= local.lastModified() / 1000;
+        }
+
+
+        /**
+         * Create a directory that is missing remotely along with all its subdirectories. Creating a
+         * directory creates its parents, so only the leaves need a call.
+         */
+        private void makeTree(File local, String remote) throws IOException {
+            final List<String> leaves = Lists.newArrayList();
+            collectLeaves(local, remote, leaves);
+
+            for (final String leaf : leaves) {
+                pool.execute(new EndpointPool.Operation<Void>() {
+                    @Override
+                    public Void run(Endpoint endpoint) throws IOException {
+                        endpoint.makeDirectory(leaf);
+                        return null;
+                    }
+                });
+            }
+        }
+
+
+        private void collectLeaves(File local, String remote, List<String> leaves) {
+            boolean leaf = true;
+            final File[] children = local.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    if (child.isDirectory()) {
+                        leaf = false;
+                        collectLeaves(child, child(remote, child.getName()), leaves);
+                    }
+                }
+            }
+            stats.directoriesCreated.incrementAndGet();
+            if (leaf) leaves.add(remote);
+        }
+
+
+        private void submitUpload(final File local, final String remoteDir, final String remotePath) {
+            tasks.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        pool.execute(new EndpointPool.Operation<Void>() {
+                            @Override
+                            public Void run(Endpoint endpoint) throws IOException {
+                                endpoint.upload(local, remoteDir, local.getName(), null);
+                                return null;
+                            }
+                        });
+                        stats.filesUploaded.incrementAndGet();
+                        stats.bytesUploaded.addAndGet(local.length());
+                        if (journal != null) journal.record(remotePath, local);
+                    } catch (InterruptedIOException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (IOException e) {
+                        log.error("Couldn't upload {} to {}", new Object[] { local, remotePath, e });
+                        stats.failed(local.getPath());
+                    }
+                }
+            });
+        }
+    }
+}
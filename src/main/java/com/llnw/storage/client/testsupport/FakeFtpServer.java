@@ -0,0 +1,342 @@
+package com.llnw.storage.client.testsupport;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.io.Charsets;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Minimal passive-mode FTP server over a {@link FakeStorage}, enough for {@link com.llnw.storage.client.EndpointFTP}:
+ * USER, PASS, SYST, TYPE, PWD, CWD, CDUP, MKD, RMD, DELE, PASV, STOR, RETR, LIST, NLST, SIZE, NOOP and QUIT.
+ * STOR honours the bandwidth, latency and error settings of the shared {@link FaultInjector}.
+ */
+public class FakeFtpServer implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(FakeFtpServer.class);
+
+    private final FakeStorage storage;
+    private final FaultInjector faults;
+
+    private ServerSocket serverSocket;
+    private ExecutorService executor;
+
+
+    public FakeFtpServer(FakeStorage storage) {
+        this(storage, new FaultInjector());
+    }
+
+
+    public FakeFtpServer(FakeStorage storage, FaultInjector faults) {
+        this.storage = storage;
+        this.faults = faults;
+    }
+
+
+    public FakeFtpServer start() throws IOException {
+        return start(0);
+    }
+
+
+    public synchronized FakeFtpServer start(int port) throws IOException {
+        if (serverSocket != null) throw new IllegalStateException("Already started");
+
+        serverSocket = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+        executor = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+                .setNameFormat("fake-storage-ftp-%d").setDaemon(true).build());
+
+        final ServerSocket listening = serverSocket;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                while (!listening.isClosed()) {
+                    try {
+                        final Socket socket = listening.accept();
+                        executor.execute(new Session(socket));
+                    } catch (IOException e) {
+                        if (!listening.isClosed()) log.warn("Accept failed", e);
+                    }
+                }
+            }
+        });
+        return this;
+    }
+
+
+    public String getHost() {
+        return "127.0.0.1";
+    }
+
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+
+    public FaultInjector getFaults() {
+        return faults;
+    }
+
+
+    @Override
+    public synchronized void close() {
+        if (serverSocket != null) {
+            IOUtils.closeQuietly(serverSocket);
+            executor.shutdownNow();
+            serverSocket = null;
+        }
+    }
+
+
+    private class Session implements Runnable {
+        private final Socket control;
+        private Writer out;
+        private String cwd = "/";
+        private String user;
+        private boolean loggedIn;
+        private ServerSocket passive;
+
+        private Session(Socket control) {
+            this.control = control;
+        }
+
+
+        @Override
+        public void run() {
+            try {
+                final BufferedReader in = new BufferedReader(
+                        new InputStreamReader(control.getInputStream(), Charsets.UTF_8));
+                out = new OutputStreamWriter(control.getOutputStream(), Charsets.UTF_8);
+                reply(220, "Fake storage FTP ready");
+
+                String line;
+                while ((line = in.readLine()) != null) {
+                    final int space = line.indexOf(' ');
+                    final String command = (space < 0 ? line : line.substring(0, space)).toUpperCase(Locale.US);
+                    final String arg = space < 0 ? "" : line.substring(space + 1);
+
+                    faults.delay();
+                    if (faults.shouldDisconnect()) return;
+                    if (!handle(command, arg)) return;
+                }
+            } catch (SocketException e) {
+                // Client went away
+            } catch (IOException e) {
+                log.warn("FTP session failed", e);
+            } finally {
+                IOUtils.closeQuietly(passive);
+                IOUtils.closeQuietly(control);
+            }
+        }
+
+
+        private boolean handle(String command, String arg) throws IOException {
+            if ("QUIT".equals(command)) {
+                reply(221, "Bye");
+                return false;
+            } else if ("USER".equals(command)) {
+                user = arg;
+                reply(331, "Password required");
+                return true;
+            } else if ("PASS".equals(command)) {
+                loggedIn = storage.login(user, arg) != null;
+                if (loggedIn) reply(230, "Logged in"); else reply(530, "Login incorrect");
+                return true;
+            } else if ("SYST".equals(command)) {
+                reply(215, "UNIX Type: L8");
+                return true;
+            } else if ("NOOP".equals(command)) {
+                reply(200, "OK");
+                return true;
+            } else if (!loggedIn) {
+                reply(530, "Not logged in");
+                return true;
+            }
+
+            if ("TYPE".equals(command) || "MODE".equals(command) || "STRU".equals(command)) {
+                reply(200, "OK");
+            } else if ("PWD".equals(command) || "XPWD".equals(command)) {
+                reply(257, "\"" + cwd + "\" is the current directory");
+            } else if ("CWD".equals(command) || "CDUP".equals(command)) {
+                final String target = resolve("CDUP".equals(command) ? ".." : arg);
+                final FakeStorage.Entry entry = storage.stat(target);
+                if (entry != null && entry.isDirectory()) {
+                    cwd = target;
+                    reply(250, "OK");
+                } else {
+                    reply(550, "No such directory");
+                }
+            } else if ("MKD".equals(command)) {
+                final String target = resolve(arg);
+                final FakeStorage.Entry parent = storage.stat(FakeStorage.parent(target));
+                if (parent != null && parent.isDirectory() && storage.makeDirectories(target) == FakeStorage.CODE_OK) {
+                    reply(257, "\"" + target + "\" created");
+                } else {
+                    reply(550, "Couldn't create directory");
+                }
+            } else if ("RMD".equals(command)) {
+                okOr550(storage.deleteDirectory(resolve(arg)));
+            } else if ("DELE".equals(command)) {
+                okOr550(storage.deleteFile(resolve(arg)));
+            } else if ("SIZE".equals(command)) {
+                final FakeStorage.Entry entry = storage.stat(resolve(arg));
+                if (entry != null && !entry.isDirectory()) reply(213, Long.toString(entry.getSize()));
+                else reply(550, "No such file");
+            } else if ("PASV".equals(command)) {
+                IOUtils.closeQuietly(passive);
+                passive = new ServerSocket(0, 1, control.getLocalAddress());
+                final byte[] addr = control.getLocalAddress().getAddress();
+                final int port = passive.getLocalPort();
+                reply(227, "Entering Passive Mode (" + (addr[0] & 0xff) + "," + (addr[1] & 0xff) + "," +
+                        (addr[2] & 0xff) + "," + (addr[3] & 0xff) + "," + (port >> 8) + "," + (port & 0xff) + ")");
+            } else if ("STOR".equals(command)) {
+                stor(resolve(arg));
+            } else if ("RETR".equals(command)) {
+                retr(resolve(arg));
+            } else if ("LIST".equals(command) || "NLST".equals(command)) {
+                list(resolve(stripOptions(arg)), "NLST".equals(command));
+            } else {
+                reply(502, "Command not implemented");
+            }
+            return true;
+        }
+
+
+        private void stor(String path) throws IOException {
+            final Socket data = openData();
+            if (data == null) return;
+
+            final byte[] bytes;
+            try {
+                bytes = faults.readThrottled(data.getInputStream());
+            } finally {
+                IOUtils.closeQuietly(data);
+            }
+
+            if (faults.shouldFail()) {
+                reply(451, "Injected failure");
+            } else if (storage.putFile(path, bytes) == FakeStorage.CODE_OK) {
+                reply(226, "Transfer complete");
+            } else {
+                reply(553, "Couldn't store file");
+            }
+        }
+
+
+        private void retr(String path) throws IOException {
+            final FakeStorage.Entry entry = storage.stat(path);
+            if (entry == null || entry.isDirectory()) {
+                reply(550, "No such file");
+                return;
+            }
+
+            final Socket data = openData();
+            if (data == null) return;
+            try {
+                data.getOutputStream().write(entry.getData());
+            } finally {
+                IOUtils.closeQuietly(data);
+            }
+            reply(226, "Transfer complete");
+        }
+
+
+        private void list(String path, boolean namesOnly) throws IOException {
+            final List<FakeStorage.Entry> entries = storage.list(path);
+            if (entries == null) {
+                reply(450, "No such file or directory");
+                return;
+            }
+
+            final Socket data = openData();
+            if (data == null) return;
+            try {
+                final OutputStream os = data.getOutputStream();
+                final StringBuilder sb = new StringBuilder();
+                for (FakeStorage.Entry entry : entries) {
+                    if (namesOnly) {
+                        sb.append(entry.getName());
+                    } else {
+                        sb.append(entry.isDirectory() ? "drwxr-xr-x" : "-rw-r--r--")
+                                .append(" 1 storage storage ")
+                                .append(entry.getSize()).append(' ')
+                                .append(listingDate(entry.mtime)).append(' ')
+                                .append(entry.getName());
+                    }
+                    sb.append("\r\n");
+                }
+                os.write(sb.toString().getBytes(Charsets.UTF_8));
+            } finally {
+                IOUtils.closeQuietly(data);
+            }
+            reply(226, "Transfer complete");
+        }
+
+
+        private Socket openData() throws IOException {
+            if (passive == null) {
+                reply(425, "Use PASV first");
+                return null;
+            }
+            reply(150, "Opening data connection");
+            try {
+                return passive.accept();
+            } finally {
+                IOUtils.closeQuietly(passive);
+                passive = null;
+            }
+        }
+
+
+        private void okOr550(int code) throws IOException {
+            if (code == FakeStorage.CODE_OK) reply(250, "OK"); else reply(550, "Failed: " + code);
+        }
+
+
+        private String resolve(String arg) {
+            return FakeStorage.normalize(arg.startsWith("/") ? arg : cwd + "/" + arg);
+        }
+
+
+        private void reply(int code, String message) throws IOException {
+            out.write(code + " " + message + "\r\n");
+            out.flush();
+        }
+    }
+
+
+    private static String stripOptions(String arg) {
+        // "LIST -a /path" style options are ignored
+        String rest = arg.trim();
+        while (rest.startsWith("-")) {
+            final int space = rest.indexOf(' ');
+            rest = space < 0 ? "" : rest.substring(space + 1).trim();
+        }
+        return rest;
+    }
+
+
+    private static String listingDate(long mtimeSeconds) {
+        final SimpleDateFormat format = new SimpleDateFormat("MMM dd yyyy", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(mtimeSeconds * 1000));
+    }
+}
@@ -0,0 +1,420 @@
+package com.llnw.storage.client.testsupport;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.llnw.storage.client.MultipartStatus;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.joda.time.Duration;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * In-memory file tree, accounts and multipart sessions backing {@link FakeStorageServer} and
+ * {@link FakeFtpServer}. Both servers can share one instance so HTTP and FTP see the same files.
+ *
+ * Return codes follow the JSON-RPC API: 0 for success, negative for failure.
+ */
+@ThreadSafe
+public class FakeStorage {
+    public static final int TYPE_DIRECTORY = 1;
+    public static final int TYPE_FILE = 2;
+
+    public static final int CODE_OK = 0;
+    public static final int CODE_NOT_FOUND = -1;
+    public static final int CODE_EXISTS = -2;
+    public static final int CODE_NOT_EMPTY = -3;
+    public static final int CODE_INVALID_TOKEN = -10001;
+
+    private final TreeMap<String, Entry> tree = Maps.newTreeMap();
+    private final Map<String, String> accounts = Maps.newHashMap();
+    private final Set<String> tokens = Sets.newHashSet();
+    private final Map<String, Session> sessions = Maps.newHashMap();
+
+    private long mergeDelayMillis = 0;
+    private int logins;
+
+
+    public FakeStorage() {
+        tree.put("/", new Entry("/", TYPE_DIRECTORY, null, now()));
+    }
+
+
+    public static class Entry {
+        public final String path;
+        public final int type;
+        public final long mtime; // seconds since the epoch
+        @Nullable private final byte[] data;
+
+        private Entry(String path, int type, @Nullable byte[] data, long mtime) {
+            this.path = path;
+            this.type = type;
+            this.data = data;
+            this.mtime = mtime;
+        }
+
+        public String getName() {
+            return "/".equals(path) ? "/" : path.substring(path.lastIndexOf('/') + 1);
+        }
+
+        public boolean isDirectory() {
+            return type == TYPE_DIRECTORY;
+        }
+
+        public long getSize() {
+            return data == null ? 0 : data.length;
+        }
+
+        @Nullable
+        public String getChecksum() {
+            return data == null ? null : DigestUtils.sha256Hex(data);
+        }
+
+        @Nullable
+        public byte[] getData() {
+            return data;
+        }
+
+        @Override
+        public String toString() {
+            return Objects.toStringHelper(getClass())
+                    .add("path", path)
+                    .add("type", type)
+                    .add("size", getSize()).toString();
+        }
+    }
+
+
+    private static class Session {
+        private final String path;
+        private final SortedMap<Integer, byte[]> pieces = Maps.newTreeMap();
+        private MultipartStatus status = MultipartStatus.READY;
+        private long completedAt;
+
+        private Session(String path) {
+            this.path = path;
+        }
+    }
+
+    //-------------------------------------------------------------
+    // Accounts
+    //-------------------------------------------------------------
+
+    public synchronized FakeStorage addUser(String username, String password) {
+        accounts.put(username, password);
+        return this;
+    }
+
+
+    /**
+     * @return a new token, or null if the credentials are wrong
+     */
+    @Nullable
+    public synchronized String login(String username, String password) {
+        final String expected = accounts.get(username);
+        if (expected == null || !expected.equals(password)) return null;
+
+        final String token = UUID.randomUUID().toString();
+        tokens.add(token);
+        logins++;
+        return token;
+    }
+
+
+    /**
+     * @return how many successful logins there have been
+     */
+    public synchronized int getLoginCount() {
+        return logins;
+    }
+
+
+    public synchronized boolean isValidToken(@Nullable String token) {
+        return token != null && tokens.contains(token);
+    }
+
+
+    public synchronized void logout(String token) {
+        tokens.remove(token);
+    }
+
+
+    /**
+     * Invalidate every outstanding token, as if the server had restarted or the tokens timed out.
+     */
+    public synchronized void expireTokens() {
+        tokens.clear();
+    }
+
+    //-------------------------------------------------------------
+    // Files and directories
+    //-------------------------------------------------------------
+
+    public static String normalize(String path) {
+        final StringBuilder sb = new StringBuilder();
+        for (String part : path.split("/")) {
+            if (part.isEmpty() || ".".equals(part)) continue;
+            if ("..".equals(part)) {
+                final int slash = sb.lastIndexOf("/");
+                if (slash >= 0) sb.setLength(slash);
+                continue;
+            }
+            sb.append('/').append(part);
+        }
+        return sb.length() == 0 ? "/" : sb.toString();
+    }
+
+
+    public static String parent(String normalized) {
+        final int slash = normalized.lastIndexOf('/');
+        return slash <= 0 ? "/" : normalized.substring(0, slash);
+    }
+
+
+    /**
+     * Create a directory and any missing parents.
+     */
+    public synchronized int makeDirectories(String path) {
+        final String normalized = normalize(path);
+        final Entry existing = tree.get(normalized);
+        if (existing != null) return existing.isDirectory() ? CODE_EXISTS : CODE_NOT_FOUND;
+
+        final String parent = parent(normalized);
+        if (!parent.equals(normalized)) {
+            final int code = makeDirectories(parent);
+            if (code != CODE_OK && code != CODE_EXISTS) return code;
+        }
+        tree.put(normalized, new Entry(normalized, TYPE_DIRECTORY, null, now()));
+        return CODE_OK;
+    }
+
+
+    public synchronized int putFile(String path, byte[] data) {
+        return putFile(path, data, now());
+    }
+
+
+    public synchronized int putFile(String path, byte[] data, long mtime) {
+        final String normalized = normalize(path);
+        final Entry dir = tree.get(parent(normalized));
+        if (dir == null || !dir.isDirectory()) return CODE_NOT_FOUND;
+
+        final Entry existing = tree.get(normalized);
+        if (existing != null && existing.isDirectory()) return CODE_EXISTS;
+
+        tree.put(normalized, new Entry(normalized, TYPE_FILE, data, mtime));
+        return CODE_OK;
+    }
+
+
+    @Nullable
+    public synchronized Entry stat(String path) {
+        return tree.get(normalize(path));
+    }
+
+
+    /**
+     * @return the children of a directory, a single entry for a file, or null if nothing is there
+     */
+    @Nullable
+    public synchronized List<Entry> list(String path) {
+        final String normalized = normalize(path);
+        final Entry entry = tree.get(normalized);
+        if (entry == null) return null;
+        if (!entry.isDirectory()) return Lists.newArrayList(entry);
+
+        final List<Entry> children = Lists.newArrayList();
+        for (Entry child : children(normalized).values()) {
+            if (parent(child.path).equals(normalized)) children.add(child);
+        }
+        return children;
+    }
+
+
+    public synchronized int deleteFile(String path) {
+        final String normalized = normalize(path);
+        final Entry entry = tree.get(normalized);
+        if (entry == null || entry.isDirectory()) return CODE_NOT_FOUND;
+
+        tree.remove(normalized);
+        return CODE_OK;
+    }
+
+
+    public synchronized int deleteDirectory(String path) {
+        final String normalized = normalize(path);
+        final Entry entry = tree.get(normalized);
+        if (entry == null || !entry.isDirectory() || "/".equals(normalized)) return CODE_NOT_FOUND;
+        if (!children(normalized).isEmpty()) return CODE_NOT_EMPTY;
+
+        tree.remove(normalized);
+        return CODE_OK;
+    }
+
+
+    public synchronized int fileCount() {
+        int count = 0;
+        for (Entry entry : tree.values()) {
+            if (!entry.isDirectory()) count++;
+        }
+        return count;
+    }
+
+    //-------------------------------------------------------------
+    // Multipart
+    //-------------------------------------------------------------
+
+    /**
+     * How long a completed multipart upload spends in COMPLETE and MERGE before it becomes SUCCESS.
+     */
+    public synchronized void setMergeDelay(Duration mergeDelay) {
+        this.mergeDelayMillis = mergeDelay.getMillis();
+    }
+
+
+    @Nullable
+    public synchronized String createMultipart(String path) {
+        final String normalized = normalize(path);
+        final Entry dir = tree.get(parent(normalized));
+        if (dir == null || !dir.isDirectory()) return null;
+
+        final String mpid = UUID.randomUUID().toString().replace("-", "");
+        sessions.put(mpid, new Session(normalized));
+        return mpid;
+    }
+
+
+    public synchronized int putPiece(String mpid, int number, byte[] data) {
+        final Session session = sessions.get(mpid);
+        if (session == null || number < 1) return CODE_NOT_FOUND;
+        if (session.status != MultipartStatus.READY && session.status != MultipartStatus.NEW) return CODE_EXISTS;
+
+        session.pieces.put(number, data);
+        return CODE_OK;
+    }
+
+
+    public synchronized int restartMultipart(String mpid) {
+        final Session session = sessions.get(mpid);
+        if (session == null || session.status != MultipartStatus.READY) return CODE_NOT_FOUND;
+        return CODE_OK;
+    }
+
+
+    /**
+     * @return the number of pieces in the session, or a negative code
+     */
+    public synchronized int completeMultipart(String mpid) {
+        final Session session = sessions.get(mpid);
+        if (session == null || session.status != MultipartStatus.READY) return CODE_NOT_FOUND;
+
+        final int pieces = session.pieces.size();
+        session.status = MultipartStatus.COMPLETE;
+        session.completedAt = System.currentTimeMillis();
+        advance(session);
+        return pieces;
+    }
+
+
+    public synchronized int abortMultipart(String mpid) {
+        final Session session = sessions.get(mpid);
+        if (session == null) return CODE_NOT_FOUND;
+
+        session.status = MultipartStatus.DELETED;
+        session.pieces.clear();
+        return CODE_OK;
+    }
+
+
+    /**
+     * @return how many multipart sessions, of any path, are in the status
+     */
+    public synchronized int countMultipart(MultipartStatus status) {
+        int count = 0;
+        for (Session session : sessions.values()) {
+            advance(session);
+            if (session.status == status) count++;
+        }
+        return count;
+    }
+
+
+    @Nullable
+    public synchronized MultipartStatus getMultipartStatus(String mpid) {
+        final Session session = sessions.get(mpid);
+        if (session == null) return null;
+
+        advance(session);
+        return session.status;
+    }
+
+
+    /**
+     * @return up to pageSize pieces numbered after the cookie, or null for an unknown session
+     */
+    @Nullable
+    public synchronized List<int[]> listPieces(String mpid, int cookie, int pageSize) {
+        final Session session = sessions.get(mpid);
+        if (session == null) return null;
+
+        final List<int[]> pieces = Lists.newArrayList();
+        for (Map.Entry<Integer, byte[]> piece : session.pieces.tailMap(cookie + 1).entrySet()) {
+            if (pieces.size() >= pageSize) break;
+            pieces.add(new int[] { piece.getKey(), MultipartStatus.READY.ordinal(), piece.getValue().length, 0 });
+        }
+        return pieces;
+    }
+
+
+    private void advance(Session session) {
+        if (session.status != MultipartStatus.COMPLETE && session.status != MultipartStatus.MERGE) return;
+
+        final long elapsed = System.currentTimeMillis() - session.completedAt;
+        if (elapsed < mergeDelayMillis / 2) return;
+        if (elapsed < mergeDelayMillis) {
+            session.status = MultipartStatus.MERGE;
+            return;
+        }
+
+        final ByteArrayOutputStream merged = new ByteArrayOutputStream();
+        int expected = 1;
+        for (Map.Entry<Integer, byte[]> piece : session.pieces.entrySet()) {
+            if (piece.getKey() != expected++) {
+                session.status = MultipartStatus.ERROR;
+                return;
+            }
+            merged.write(piece.getValue(), 0, piece.getValue().length);
+        }
+
+        session.status = putFile(session.path, merged.toByteArray()) == CODE_OK ?
+                MultipartStatus.SUCCESS : MultipartStatus.ERROR;
+        session.pieces.clear();
+    }
+
+
+    private SortedMap<String, Entry> children(String dir) {
+        final String prefix = "/".equals(dir) ? "/" : dir + "/";
+        final SortedMap<String, Entry> sub = tree.subMap(prefix, prefix + Character.MAX_VALUE);
+        if ("/".equals(dir)) {
+            final SortedMap<String, Entry> copy = Maps.newTreeMap(sub);
+            copy.remove("/");
+            return copy;
+        }
+        return sub;
+    }
+
+
+    private static long now() {
+        return System.currentTimeMillis() / 1000;
+    }
+}
@@ -0,0 +1,482 @@
+package com.llnw.storage.client.testsupport;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.llnw.storage.client.MultipartStatus;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.Charsets;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Embeddable stand-in for the storage service's HTTP API, for functional and load tests without the
+ * production service. Serves:
+ * <ul>
+ *     <li>/jsonrpc - login, logout, noop, stat, listFile, makeDir2, deleteFile, deleteDir, createMultipart,
+ *     restartMultipart, getMultipartStatus, listMultipartPiece, completeMultipart and abortMultipart</li>
+ *     <li>/post/file - multipart/form-data uploads with directory, basename and uploadFile parts</li>
+ *     <li>/multipart/piece - raw piece bodies addressed by X-Agile-Multipart and X-Agile-Part</li>
+ * </ul>
+ * Uploads answer with X-Agile-Status, X-Agile-Size and X-Agile-Checksum like the real service. Latency,
+ * bandwidth and faults are controlled through {@link #getFaults()}.
+ *
+ * <pre>
+ *     final FakeStorage storage = new FakeStorage().addUser("user", "pass");
+ *     final FakeStorageServer server = new FakeStorageServer(storage);
+ *     server.start();
+ *     final Endpoint http = new EndpointHTTP(server.getUrl(), "user", "pass");
+ * </pre>
+ */
+public class FakeStorageServer implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(FakeStorageServer.class);
+
+    private static final String AUTH_HEADER = "X-Agile-Authorization";
+
+    static {
+        // Without this delayed ACKs against httpclient's separate header and body writes add ~40ms to every call
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final FakeStorage storage;
+    private final FaultInjector faults;
+    private final Gson gson = new Gson();
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+
+    public FakeStorageServer(FakeStorage storage) {
+        this(storage, new FaultInjector());
+    }
+
+
+    public FakeStorageServer(FakeStorage storage, FaultInjector faults) {
+        this.storage = storage;
+        this.faults = faults;
+    }
+
+
+    /**
+     * Bind to an ephemeral port on the loopback interface and start serving.
+     */
+    public FakeStorageServer start() throws IOException {
+        return start(0);
+    }
+
+
+    public synchronized FakeStorageServer start(int port) throws IOException {
+        if (server != null) throw new IllegalStateException("Already started");
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port), 128);
+        server.createContext("/jsonrpc", new JsonRpcHandler());
+        server.createContext("/post/file", new PostFileHandler());
+        server.createContext("/multipart/piece", new PieceHandler());
+
+        executor = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+                .setNameFormat("fake-storage-http-%d").setDaemon(true).build());
+        server.setExecutor(executor);
+        server.start();
+        return this;
+    }
+
+
+    public URL getUrl() {
+        try {
+            return new URL("http", "127.0.0.1", server.getAddress().getPort(), "");
+        } catch (MalformedURLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    public FakeStorage getStorage() {
+        return storage;
+    }
+
+
+    public FaultInjector getFaults() {
+        return faults;
+    }
+
+
+    @Override
+    public synchronized void close() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+            server = null;
+        }
+    }
+
+    //-------------------------------------------------------------
+    // Handlers
+    //-------------------------------------------------------------
+
+    private abstract class FaultyHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                faults.delay();
+                if (faults.shouldDisconnect()) {
+                    exchange.close(); // no response at all
+                    return;
+                }
+                if (faults.shouldFail()) {
+                    IOUtils.closeQuietly(exchange.getRequestBody());
+                    respond(exchange, 500, "injected failure");
+                    return;
+                }
+                serve(exchange);
+            } catch (RuntimeException e) {
+                log.warn("Fake server failure", e);
+                respond(exchange, 500, String.valueOf(e));
+            } finally {
+                exchange.close();
+            }
+        }
+
+        protected abstract void serve(HttpExchange exchange) throws IOException;
+    }
+
+
+    private class JsonRpcHandler extends FaultyHandler {
+        @Override
+        protected void serve(HttpExchange exchange) throws IOException {
+            final String request = IOUtils.toString(exchange.getRequestBody(), Charsets.UTF_8);
+            final JsonObject rpc;
+            try {
+                rpc = new JsonParser().parse(request).getAsJsonObject();
+            } catch (JsonParseException e) {
+                respond(exchange, 400, "bad json");
+                return;
+            } catch (IllegalStateException e) {
+                respond(exchange, 400, "not an object");
+                return;
+            }
+
+            final JsonObject response = new JsonObject();
+            response.addProperty("jsonrpc", "2.0");
+            response.add("id", rpc.has("id") ? rpc.get("id") : JsonNull.INSTANCE);
+
+            final String method = rpc.has("method") ? rpc.get("method").getAsString() : "";
+            final JsonObject params = rpc.has("params") && rpc.get("params").isJsonObject() ?
+                    rpc.getAsJsonObject("params") : new JsonObject();
+
+            final JsonElement result = dispatch(method, params);
+            if (result == null) {
+                response.add("result", JsonNull.INSTANCE);
+                response.addProperty("error", "Unknown method: " + method);
+            } else {
+                response.add("result", result);
+            }
+            respond(exchange, 200, gson.toJson(response));
+        }
+    }
+
+
+    private class PostFileHandler extends FaultyHandler {
+        @Override
+        protected void serve(HttpExchange exchange) throws IOException {
+            final byte[] body = faults.readThrottled(exchange.getRequestBody());
+            if (!storage.isValidToken(exchange.getRequestHeaders().getFirst(AUTH_HEADER))) {
+                agileStatus(exchange, FakeStorage.CODE_INVALID_TOKEN, 0, "");
+                return;
+            }
+
+            final String contentType = Strings.nullToEmpty(exchange.getRequestHeaders().getFirst("Content-Type"));
+            final Map<String, byte[]> parts = parseFormData(contentType, body);
+            final byte[] directory = parts.get("directory");
+            final byte[] basename = parts.get("basename");
+            final byte[] data = parts.get("uploadFile");
+
+            if (directory == null || basename == null || data == null) {
+                respond(exchange, 400, "missing form parts");
+                return;
+            }
+
+            final String path = new String(directory, Charsets.UTF_8) + "/" + new String(basename, Charsets.UTF_8);
+            final int code = storage.putFile(path, data);
+            agileStatus(exchange, code, data.length, checksum(data));
+        }
+    }
+
+
+    private class PieceHandler extends FaultyHandler {
+        @Override
+        protected void serve(HttpExchange exchange) throws IOException {
+            final byte[] data = faults.readThrottled(exchange.getRequestBody());
+            if (!storage.isValidToken(exchange.getRequestHeaders().getFirst(AUTH_HEADER))) {
+                agileStatus(exchange, FakeStorage.CODE_INVALID_TOKEN, 0, "");
+                return;
+            }
+
+            final String mpid = exchange.getRequestHeaders().getFirst("X-Agile-Multipart");
+            final String part = exchange.getRequestHeaders().getFirst("X-Agile-Part");
+            if (mpid == null || part == null) {
+                respond(exchange, 400, "missing X-Agile-Multipart or X-Agile-Part");
+                return;
+            }
+
+            final int code = storage.putPiece(mpid, Integer.parseInt(part), data);
+            agileStatus(exchange, code, data.length, checksum(data));
+        }
+    }
+
+    //-------------------------------------------------------------
+    // JSON-RPC methods
+    //-------------------------------------------------------------
+
+    private JsonElement dispatch(String method, JsonObject params) {
+        if ("login".equals(method)) {
+            final String token = storage.login(string(params, "username"), string(params, "password"));
+            final JsonArray result = new JsonArray();
+            result.add(token == null ? JsonNull.INSTANCE : new JsonPrimitive(token));
+            result.add(token == null ? JsonNull.INSTANCE : new JsonObject());
+            return result;
+        }
+
+        final boolean known = Arrays.asList("logout", "noop", "stat", "listFile", "makeDir2", "deleteFile",
+                "deleteDir", "createMultipart", "restartMultipart", "getMultipartStatus", "listMultipartPiece",
+                "completeMultipart", "abortMultipart").contains(method);
+        if (!known) return null;
+
+        final String token = string(params, "token");
+        if (!storage.isValidToken(token)) {
+            return isObjectResult(method) ? code(FakeStorage.CODE_INVALID_TOKEN) :
+                    new JsonPrimitive(FakeStorage.CODE_INVALID_TOKEN);
+        }
+
+        if ("logout".equals(method)) {
+            storage.logout(token);
+            return new JsonPrimitive(0);
+        } else if ("noop".equals(method)) {
+            return new JsonPrimitive(0);
+        } else if ("makeDir2".equals(method)) {
+            return new JsonPrimitive(storage.makeDirectories(string(params, "path")));
+        } else if ("deleteFile".equals(method)) {
+            return new JsonPrimitive(storage.deleteFile(string(params, "path")));
+        } else if ("deleteDir".equals(method)) {
+            return new JsonPrimitive(storage.deleteDirectory(string(params, "path")));
+        } else if ("stat".equals(method)) {
+            final FakeStorage.Entry entry = storage.stat(string(params, "path"));
+            if (entry == null) return code(FakeStorage.CODE_NOT_FOUND);
+            final JsonObject result = describe(entry, true);
+            result.addProperty("code", 0);
+            return result;
+        } else if ("listFile".equals(method)) {
+            return listFile(params);
+        } else if ("createMultipart".equals(method)) {
+            final String mpid = storage.createMultipart(string(params, "path"));
+            if (mpid == null) return code(FakeStorage.CODE_NOT_FOUND);
+            final JsonObject result = code(0);
+            result.addProperty("mpid", mpid);
+            return result;
+        } else if ("restartMultipart".equals(method)) {
+            return code(storage.restartMultipart(string(params, "mpid")));
+        } else if ("getMultipartStatus".equals(method)) {
+            final MultipartStatus status = storage.getMultipartStatus(string(params, "mpid"));
+            if (status == null) return code(FakeStorage.CODE_NOT_FOUND);
+            final JsonObject result = code(0);
+            result.addProperty("state", status.ordinal());
+            return result;
+        } else if ("listMultipartPiece".equals(method)) {
+            return listMultipartPiece(params);
+        } else if ("completeMultipart".equals(method)) {
+            final int pieces = storage.completeMultipart(string(params, "mpid"));
+            if (pieces < 0) return code(pieces);
+            final JsonObject result = code(0);
+            result.addProperty("numpieces", pieces);
+            return result;
+        } else { // abortMultipart
+            return code(storage.abortMultipart(string(params, "mpid")));
+        }
+    }
+
+
+    private JsonElement listFile(JsonObject params) {
+        final List<FakeStorage.Entry> entries = storage.list(string(params, "path"));
+        if (entries == null) return code(FakeStorage.CODE_NOT_FOUND);
+
+        final boolean stat = params.has("stat") && params.get("stat").getAsBoolean();
+        final int pageSize = params.has("pageSize") ? params.get("pageSize").getAsInt() : Integer.MAX_VALUE;
+        final int cookie = params.has("cookie") && !params.get("cookie").isJsonNull() ?
+                params.get("cookie").getAsInt() : 0;
+
+        final JsonArray list = new JsonArray();
+        int index = cookie;
+        for (; index < entries.size() && list.size() < pageSize; index++) {
+            list.add(describe(entries.get(index), stat));
+        }
+
+        final JsonObject result = code(0);
+        result.add("list", list);
+        result.addProperty("cookie", index < entries.size() ? index : 0);
+        return result;
+    }
+
+
+    private JsonElement listMultipartPiece(JsonObject params) {
+        final int cookie = params.has("cookie") ? params.get("cookie").getAsInt() : 0;
+        final int pageSize = params.has("pagesize") ? params.get("pagesize").getAsInt() : 100;
+        final List<int[]> pieces = storage.listPieces(string(params, "mpid"), cookie, pageSize);
+        if (pieces == null) return code(FakeStorage.CODE_NOT_FOUND);
+
+        final JsonArray array = new JsonArray();
+        for (int[] piece : pieces) {
+            final JsonObject obj = new JsonObject();
+            obj.addProperty("number", piece[0]);
+            obj.addProperty("state", piece[1]);
+            obj.addProperty("size", piece[2]);
+            obj.addProperty("error", piece[3]);
+            array.add(obj);
+        }
+
+        final JsonObject result = code(0);
+        result.add("pieces", array);
+        result.addProperty("cookie", pieces.isEmpty() ? cookie : pieces.get(pieces.size() - 1)[0]);
+        return result;
+    }
+
+
+    private static JsonObject describe(FakeStorage.Entry entry, boolean stat) {
+        final JsonObject obj = new JsonObject();
+        obj.addProperty("name", entry.getName());
+        obj.addProperty("type", entry.type);
+        if (stat) {
+            obj.addProperty("size", entry.getSize());
+            obj.addProperty("mtime", entry.mtime);
+            if (!entry.isDirectory()) obj.addProperty("checksum", entry.getChecksum());
+        }
+        return obj;
+    }
+
+
+    private static boolean isObjectResult(String method) {
+        return !Arrays.asList("logout", "noop", "makeDir2", "deleteFile", "deleteDir").contains(method);
+    }
+
+
+    private static JsonObject code(int code) {
+        final JsonObject obj = new JsonObject();
+        obj.addProperty("code", code);
+        return obj;
+    }
+
+
+    private static String string(JsonObject params, String name) {
+        final JsonElement elem = params.get(name);
+        return elem == null || elem.isJsonNull() ? null : elem.getAsString();
+    }
+
+    //-------------------------------------------------------------
+    // HTTP helpers
+    //-------------------------------------------------------------
+
+    private String checksum(byte[] data) {
+        final String sha256 = DigestUtils.sha256Hex(data);
+        return faults.shouldCorruptChecksum() ? DigestUtils.sha256Hex(sha256) : sha256;
+    }
+
+
+    private static void agileStatus(HttpExchange exchange, int code, long size, String checksum) throws IOException {
+        exchange.getResponseHeaders().add("X-Agile-Status", Integer.toString(code));
+        exchange.getResponseHeaders().add("X-Agile-Size", Long.toString(size));
+        exchange.getResponseHeaders().add("X-Agile-Checksum", checksum);
+        respond(exchange, 200, "");
+    }
+
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        final byte[] bytes = body.getBytes(Charsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        if (bytes.length > 0) {
+            final OutputStream os = exchange.getResponseBody();
+            os.write(bytes);
+            os.close();
+        }
+    }
+
+
+    /**
+     * Just enough multipart/form-data parsing for the form httpmime's MultipartEntity sends.
+     */
+    static Map<String, byte[]> parseFormData(String contentType, byte[] body) {
+        final Map<String, byte[]> parts = Maps.newHashMap();
+        final int b = contentType.indexOf("boundary=");
+        if (b < 0) return parts;
+
+        String boundary = contentType.substring(b + "boundary=".length());
+        final int semi = boundary.indexOf(';');
+        if (semi >= 0) boundary = boundary.substring(0, semi);
+        boundary = boundary.replace("\"", "").trim();
+
+        final byte[] delimiter = ("--" + boundary).getBytes(Charsets.ISO_8859_1);
+        int pos = indexOf(body, delimiter, 0);
+        while (pos >= 0) {
+            int start = pos + delimiter.length;
+            if (start + 1 < body.length && body[start] == '-' && body[start + 1] == '-') break; // closing delimiter
+            start += 2; // CRLF after the delimiter
+
+            final int headerEnd = indexOf(body, "\r\n\r\n".getBytes(Charsets.ISO_8859_1), start);
+            if (headerEnd < 0) break;
+            final String headers = new String(body, start, headerEnd - start, Charsets.ISO_8859_1);
+
+            final int next = indexOf(body, ("\r\n--" + boundary).getBytes(Charsets.ISO_8859_1), headerEnd + 4);
+            if (next < 0) break;
+
+            final String name = dispositionName(headers);
+            if (name != null) {
+                parts.put(name, Arrays.copyOfRange(body, headerEnd + 4, next));
+            }
+            pos = next + 2;
+        }
+        return parts;
+    }
+
+
+    private static String dispositionName(String headers) {
+        final int n = headers.indexOf("name=\"");
+        if (n < 0) return null;
+        final int end = headers.indexOf('"', n + 6);
+        return end < 0 ? null : headers.substring(n + 6, end);
+    }
+
+
+    private static int indexOf(byte[] haystack, byte[] needle, int from) {
+        outer:
+        for (int i = from; i <= haystack.length - needle.length; i++) {
+            for (int j = 0; j < needle.length; j++) {
+                if (haystack[i + j] != needle[j]) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,130 @@
+package com.llnw.storage.client.testsupport;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.joda.time.Duration;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency, bandwidth and failure settings shared by the fake servers. All settings can be changed while
+ * a server is running; the defaults add no delay and inject no faults.
+ */
+@ThreadSafe
+public class FaultInjector {
+    private final Random random = new Random();
+
+    private volatile long latencyMillis = 0;
+    private volatile long bytesPerSecond = 0; // 0 is unlimited
+    private volatile double errorRate = 0.0;
+    private volatile double checksumErrorRate = 0.0;
+    private volatile double disconnectRate = 0.0;
+
+
+    /**
+     * Fixed delay added before every request or command is answered.
+     */
+    public FaultInjector setLatency(Duration latency) {
+        this.latencyMillis = latency.getMillis();
+        return this;
+    }
+
+
+    /**
+     * Per-connection limit on how fast upload bodies are read, in bytes per second. 0 disables the limit.
+     */
+    public FaultInjector setBandwidth(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        return this;
+    }
+
+
+    /**
+     * Fraction of requests answered with a server error (HTTP 500, FTP 451).
+     */
+    public FaultInjector setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+        return this;
+    }
+
+
+    /**
+     * Fraction of successful uploads that report a wrong X-Agile-Checksum.
+     */
+    public FaultInjector setChecksumErrorRate(double checksumErrorRate) {
+        this.checksumErrorRate = checksumErrorRate;
+        return this;
+    }
+
+
+    /**
+     * Fraction of requests where the connection is dropped without a response.
+     */
+    public FaultInjector setDisconnectRate(double disconnectRate) {
+        this.disconnectRate = disconnectRate;
+        return this;
+    }
+
+
+    public void delay() {
+        final long latency = latencyMillis;
+        if (latency > 0) {
+            Uninterruptibles.sleepUninterruptibly(latency, TimeUnit.MILLISECONDS);
+        }
+    }
+
+
+    public boolean shouldFail() {
+        return roll(errorRate);
+    }
+
+
+    public boolean shouldCorruptChecksum() {
+        return roll(checksumErrorRate);
+    }
+
+
+    public boolean shouldDisconnect() {
+        return roll(disconnectRate);
+    }
+
+
+    /**
+     * Read a stream to the end, sleeping as needed to stay under the configured bandwidth.
+     */
+    public byte[] readThrottled(InputStream is) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buf = new byte[64 * 1024];
+        final long start = System.nanoTime();
+        long total = 0;
+        int n;
+
+        while ((n = is.read(buf)) != -1) {
+            out.write(buf, 0, n);
+            total += n;
+
+            final long limit = bytesPerSecond;
+            if (limit > 0) {
+                final long dueNanos = total * 1000000000L / limit;
+                final long aheadNanos = dueNanos - (System.nanoTime() - start);
+                if (aheadNanos > 0) {
+                    Uninterruptibles.sleepUninterruptibly(aheadNanos, TimeUnit.NANOSECONDS);
+                }
+            }
+        }
+        return out.toByteArray();
+    }
+
+
+    private boolean roll(double rate) {
+        if (rate <= 0.0) return false;
+        synchronized (random) {
+            return random.nextDouble() < rate;
+        }
+    }
+}
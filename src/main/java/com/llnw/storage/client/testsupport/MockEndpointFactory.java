@@ -2,6 +2,7 @@ package com.llnw.storage.client.testsupport;
 
 import com.llnw.storage.client.Endpoint;
 import com.llnw.storage.client.EndpointFactory;
+import com.llnw.storage.client.RemoteFile;
 import com.llnw.storage.client.io.ActivityCallback;
 
 import javax.annotation.Nullable;
@@ -55,6 +56,11 @@ public class MockEndpointFactory extends EndpointFactory {
                     return null;
                 }
 
+                @Override
+                public List<RemoteFile> listDetails(String path) throws IOException {
+                    return null;
+                }
+
                 @Override
                 public void upload(File file, String path, String name, @Nullable ActivityCallback callback)
                         throws IOException {
@@ -75,6 +81,11 @@ public class MockEndpointFactory extends EndpointFactory {
 
                 }
 
+                @Override
+                public void upload(ByteBuffer[] byteBuffers, String path, String name,
+                        @Nullable ActivityCallback callback) throws IOException {
+                }
+
             };
         }
     }
@@ -0,0 +1,496 @@
+package com.llnw.storage.client.tools;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.GsonBuilder;
+import com.llnw.storage.client.Endpoint;
+import com.llnw.storage.client.EndpointFTP;
+import com.llnw.storage.client.EndpointHTTP;
+import com.llnw.storage.client.EndpointMultipart;
+import com.llnw.storage.client.io.Chunk;
+import com.llnw.storage.client.io.FixedChunks;
+import com.llnw.storage.client.metrics.LatencyHistogram;
+import com.llnw.storage.client.testsupport.FakeStorage;
+import com.llnw.storage.client.testsupport.FakeStorageServer;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Command line load generator. Drives a weighted mix of upload, uploadPart, exists, listFiles and delete
+ * operations from concurrent workers, each with its own endpoint, and reports per-operation throughput,
+ * latency percentiles and errors for the steady-state phase. Percentiles are of successful calls; failures are
+ * counted and timed apart so a burst of fast rejections or slow timeouts doesn't skew them. Exists and delete act
+ * on objects the worker uploaded; while it has none they are picked again, so the mix needs upload or
+ * uploadPart alongside them.
+ *
+ * <pre>
+ * LoadGenerator (--url http://host:8080 | --ftp host[:port] | --standin) [options]
+ *   --user NAME --password PASS   credentials (ignored with --standin)
+ *   --workers N                   concurrent workers, default 8
+ *   --mix op=weight,...           default upload=4,exists=3,listFiles=2,delete=1
+ *   --size BYTES                  object size for upload and uploadPart, default 1048576
+ *   --part-size BYTES             piece size for uploadPart, default 262144
+ *   --warmup SECONDS              excluded from the results, default 10
+ *   --duration SECONDS            measured steady state, default 60
+ *   --dir PATH                    remote working directory, default /loadtest
+ *   --format text|json            report format, default text
+ * </pre>
+ */
+public class LoadGenerator {
+    private static final Logger log = LoggerFactory.getLogger(LoadGenerator.class);
+
+    static final String[] OPERATIONS = { "upload", "uploadPart", "exists", "listFiles", "delete" };
+
+    private final Options options;
+    private final Map<String, OperationResult> results = Maps.newTreeMap();
+    private final int[] cumulativeWeights = new int[OPERATIONS.length];
+    private volatile boolean measuring;
+    private volatile boolean running = true;
+
+    private URL url;
+    private File partFile;
+
+
+    public LoadGenerator(Options options) {
+        this.options = options;
+
+        int total = 0;
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            total += weight(OPERATIONS[i]);
+            cumulativeWeights[i] = total;
+            results.put(OPERATIONS[i], new OperationResult(OPERATIONS[i]));
+        }
+        if (total == 0) throw new IllegalArgumentException("Operation mix has no weight");
+        if (weight("upload") + weight("uploadPart") == 0 && weight("exists") + weight("delete") > 0) {
+            throw new IllegalArgumentException("exists and delete need upload or uploadPart in the mix");
+        }
+    }
+
+
+    private int weight(String operation) {
+        final Integer weight = options.mix.get(operation);
+        return weight == null ? 0 : weight;
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        final Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("usage: LoadGenerator (--url URL | --ftp HOST[:PORT] | --standin) [--user U] " +
+                    "[--password P] [--workers N] [--mix op=w,...] [--size B] [--part-size B] " +
+                    "[--warmup S] [--duration S] [--dir PATH] [--format text|json]");
+            System.exit(2);
+            return;
+        }
+
+        final Report report = new LoadGenerator(options).run();
+        if ("json".equals(options.format)) {
+            System.out.println(new GsonBuilder().setPrettyPrinting().create().toJson(report));
+        } else {
+            report.print(System.out);
+        }
+    }
+
+
+    public Report run() throws Exception {
+        FakeStorageServer standin = null;
+        if (options.standin) {
+            final FakeStorage storage = new FakeStorage().addUser(options.user, options.password);
+            standin = new FakeStorageServer(storage).start();
+            url = standin.getUrl();
+        } else if (options.url != null) {
+            url = new URL(options.url);
+        }
+
+        if (options.mix.containsKey("uploadPart")) {
+            partFile = File.createTempFile("loadgen", ".bin");
+            writeRandom(partFile, options.size);
+        }
+
+        final ExecutorService workers = Executors.newFixedThreadPool(options.workers,
+                new ThreadFactoryBuilder().setNameFormat("loadgen-%d").setDaemon(true).build());
+        final CountDownLatch done = new CountDownLatch(options.workers);
+        try {
+            final Endpoint setup = createEndpoint();
+            try {
+                setup.makeDirectory(options.dir);
+            } finally {
+                IOUtils.closeQuietly(setup);
+            }
+
+            for (int i = 0; i < options.workers; i++) {
+                workers.execute(new Worker(i, done));
+            }
+
+            log.info("Warming up for {}s", options.warmupSeconds);
+            Thread.sleep(TimeUnit.SECONDS.toMillis(options.warmupSeconds));
+
+            measuring = true;
+            final long start = System.nanoTime();
+            log.info("Measuring for {}s", options.durationSeconds);
+            Thread.sleep(TimeUnit.SECONDS.toMillis(options.durationSeconds));
+            measuring = false;
+            final long elapsed = System.nanoTime() - start;
+
+            running = false;
+            done.await(1, TimeUnit.MINUTES);
+            return new Report(options, elapsed, results.values());
+        } finally {
+            running = false;
+            workers.shutdownNow();
+            FileUtils.deleteQuietly(partFile);
+            if (standin != null) standin.close();
+        }
+    }
+
+
+    private Endpoint createEndpoint() throws IOException {
+        if (options.ftpHost != null) {
+            return new EndpointFTP(options.ftpHost, options.ftpPort, options.user, options.password);
+        }
+        return new EndpointHTTP(url, options.user, options.password);
+    }
+
+
+    private String pickOperation(Random random) {
+        final int roll = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        for (int i = 0; i < cumulativeWeights.length; i++) {
+            if (roll < cumulativeWeights[i]) return OPERATIONS[i];
+        }
+        return OPERATIONS[OPERATIONS.length - 1];
+    }
+
+
+    private static boolean needsTarget(String operation) {
+        return "exists".equals(operation) || "delete".equals(operation);
+    }
+
+
+    private class Worker implements Runnable {
+        private final int id;
+        private final CountDownLatch done;
+        private final Random random;
+        private final String dir;
+        private final Deque<String> uploaded = new ArrayDeque<String>();
+        private final ByteBuffer payload;
+        private long sequence;
+
+        private Worker(int id, CountDownLatch done) {
+            this.id = id;
+            this.done = done;
+            this.random = new Random(id);
+            this.dir = options.dir + "/worker-" + id;
+
+            final byte[] bytes = new byte[(int)Math.min(options.size, Integer.MAX_VALUE)];
+            random.nextBytes(bytes);
+            this.payload = ByteBuffer.wrap(bytes);
+        }
+
+
+        @Override
+        public void run() {
+            Endpoint endpoint = null;
+            try {
+                endpoint = createEndpoint();
+                endpoint.makeDirectory(dir);
+
+                while (running && !Thread.currentThread().isInterrupted()) {
+                    String operation = pickOperation(random);
+                    while (uploaded.isEmpty() && needsTarget(operation)) {
+                        operation = pickOperation(random); // nothing to act on yet
+                    }
+                    final OperationResult result = results.get(operation);
+                    final boolean record = measuring;
+                    final long start = System.nanoTime();
+                    try {
+                        final long bytes = execute(endpoint, operation);
+                        if (record) result.success(System.nanoTime() - start, bytes);
+                    } catch (Exception e) {
+                        if (record) result.failure(System.nanoTime() - start, e);
+                        if (Thread.currentThread().isInterrupted()) break;
+
+                        // The endpoint may be in a bad state after a failure, start over with a fresh one
+                        IOUtils.closeQuietly(endpoint);
+                        endpoint = createEndpoint();
+                    }
+                }
+            } catch (IOException e) {
+                log.error("Worker {} couldn't start", id, e);
+            } finally {
+                IOUtils.closeQuietly(endpoint);
+                done.countDown();
+            }
+        }
+
+
+        private long execute(Endpoint endpoint, String operation) throws IOException {
+            if ("upload".equals(operation)) {
+                final String name = "obj-" + (sequence++);
+                payload.rewind();
+                endpoint.upload(payload, dir, name, null);
+                uploaded.addLast(dir + "/" + name);
+                return options.size;
+            } else if ("uploadPart".equals(operation)) {
+                if (!(endpoint instanceof EndpointMultipart)) {
+                    throw new UnsupportedOperationException("uploadPart needs an HTTP endpoint");
+                }
+                final EndpointMultipart multipart = (EndpointMultipart)endpoint;
+                final String name = "mp-" + (sequence++);
+                multipart.startMultipartUpload(dir, name);
+                boolean completed = false;
+                try {
+                    final Iterator<Chunk> chunks =
+                            new FixedChunks(options.size, options.partSize, options.partSize).iterator();
+                    multipart.uploadPart(partFile, chunks, null);
+                    multipart.completeMultipartUpload();
+                    completed = true;
+                } finally {
+                    if (!completed) abortQuietly(multipart);
+                }
+                uploaded.addLast(dir + "/" + name);
+                return options.size;
+            } else if ("exists".equals(operation)) {
+                endpoint.exists(uploaded.getLast());
+                return 0;
+            } else if ("listFiles".equals(operation)) {
+                endpoint.listFiles(dir);
+                return 0;
+            } else { // delete
+                endpoint.deleteFile(uploaded.pollFirst());
+                return 0;
+            }
+        }
+
+
+        /**
+         * Don't leave the server holding a session for every failed uploadPart of a long run.
+         */
+        private void abortQuietly(EndpointMultipart multipart) {
+            try {
+                multipart.abortMultipartUpload();
+            } catch (IOException e) {
+                log.debug("Worker {} couldn't abort a failed multipart upload", id, e);
+            }
+        }
+    }
+
+
+    /**
+     * Counters for one operation type. Only steady-state calls are recorded.
+     */
+    static class OperationResult {
+        private final String name;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LatencyHistogram failureLatency = new LatencyHistogram();
+        private final AtomicLong successes = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final ConcurrentMap<String, AtomicLong> errors = new ConcurrentHashMap<String, AtomicLong>();
+
+        OperationResult(String name) {
+            this.name = name;
+        }
+
+        void success(long nanos, long byteCount) {
+            latency.record(nanos);
+            successes.incrementAndGet();
+            bytes.addAndGet(byteCount);
+        }
+
+        void failure(long nanos, Exception e) {
+            failureLatency.record(nanos);
+            final String key = e.getClass().getSimpleName();
+            AtomicLong counter = errors.get(key);
+            if (counter == null) {
+                final AtomicLong created = new AtomicLong();
+                counter = errors.putIfAbsent(key, created);
+                if (counter == null) counter = created;
+            }
+            counter.incrementAndGet();
+        }
+    }
+
+
+    /**
+     * Steady-state results, serialized as-is for --format json.
+     */
+    public static class Report {
+        public final int workers;
+        public final double seconds;
+        public final Map<String, Object> mix;
+        public final Map<String, OperationReport> operations = Maps.newLinkedHashMap();
+        public double totalOpsPerSecond;
+        public double totalMegabytesPerSecond;
+
+        Report(Options options, long elapsedNanos, Iterable<OperationResult> results) {
+            this.workers = options.workers;
+            this.seconds = elapsedNanos / 1e9;
+            this.mix = Maps.<String, Object>newLinkedHashMap(options.mix);
+
+            for (OperationResult result : results) {
+                final long calls = result.latency.getCount() + result.failureLatency.getCount();
+                if (calls == 0) continue;
+
+                final OperationReport report = new OperationReport(result, seconds);
+                operations.put(result.name, report);
+                totalOpsPerSecond += report.opsPerSecond;
+                totalMegabytesPerSecond += report.megabytesPerSecond;
+            }
+        }
+
+        public void print(PrintStream out) {
+            out.printf("%d workers, %.1fs steady state%n", workers, seconds);
+            out.printf("%-12s %10s %10s %10s %10s %10s %10s %10s %8s %12s%n", "operation", "ops", "ops/s",
+                    "MB/s", "p50 ms", "p95 ms", "p99 ms", "max ms", "errors", "err p50 ms");
+            for (Map.Entry<String, OperationReport> entry : operations.entrySet()) {
+                final OperationReport r = entry.getValue();
+                out.printf("%-12s %10d %10.1f %10.2f %10.2f %10.2f %10.2f %10.2f %8d %12.2f%n", entry.getKey(),
+                        r.calls, r.opsPerSecond, r.megabytesPerSecond, r.p50Millis, r.p95Millis, r.p99Millis,
+                        r.maxMillis, r.failures, r.failureP50Millis);
+                for (Map.Entry<String, Long> error : r.errors.entrySet()) {
+                    out.printf("    %-40s %d%n", error.getKey(), error.getValue());
+                }
+            }
+            out.printf("%-12s %10s %10.1f %10.2f%n", "total", "", totalOpsPerSecond, totalMegabytesPerSecond);
+        }
+    }
+
+
+    public static class OperationReport {
+        public final long calls;
+        public final long failures;
+        public final double opsPerSecond;
+        public final double megabytesPerSecond;
+        public final double p50Millis;
+        public final double p95Millis;
+        public final double p99Millis;
+        public final double maxMillis;
+        public final double failureP50Millis;
+        public final Map<String, Long> errors = Maps.newTreeMap();
+
+        OperationReport(OperationResult result, double seconds) {
+            final LatencyHistogram h = result.latency;
+            this.failures = result.failureLatency.getCount();
+            this.calls = h.getCount() + failures;
+            this.opsPerSecond = result.successes.get() / seconds;
+            this.megabytesPerSecond = result.bytes.get() / seconds / (1024 * 1024);
+            this.p50Millis = h.getValueAtQuantile(0.50) / 1e6;
+            this.p95Millis = h.getValueAtQuantile(0.95) / 1e6;
+            this.p99Millis = h.getValueAtQuantile(0.99) / 1e6;
+            this.maxMillis = h.getMax() / 1e6;
+            this.failureP50Millis = result.failureLatency.getValueAtQuantile(0.50) / 1e6;
+            for (Map.Entry<String, AtomicLong> error : result.errors.entrySet()) {
+                errors.put(error.getKey(), error.getValue().get());
+            }
+        }
+    }
+
+
+    public static class Options {
+        String url;
+        String ftpHost;
+        int ftpPort = 21;
+        boolean standin;
+        String user = "loadgen";
+        String password = "loadgen";
+        int workers = 8;
+        Map<String, Integer> mix = Maps.newLinkedHashMap();
+        long size = 1024 * 1024;
+        long partSize = 256 * 1024;
+        long warmupSeconds = 10;
+        long durationSeconds = 60;
+        String dir = "/loadtest";
+        String format = "text";
+
+        public static Options parse(String[] args) {
+            final Options o = new Options();
+            String mix = "upload=4,exists=3,listFiles=2,delete=1";
+
+            for (int i = 0; i < args.length; i++) {
+                final String arg = args[i];
+                if ("--standin".equals(arg)) {
+                    o.standin = true;
+                    continue;
+                }
+                if (i + 1 >= args.length) throw new IllegalArgumentException("Missing value for " + arg);
+                final String value = args[++i];
+
+                if ("--url".equals(arg)) o.url = value;
+                else if ("--ftp".equals(arg)) {
+                    final int colon = value.indexOf(':');
+                    o.ftpHost = colon < 0 ? value : value.substring(0, colon);
+                    if (colon >= 0) o.ftpPort = Integer.parseInt(value.substring(colon + 1));
+                }
+                else if ("--user".equals(arg)) o.user = value;
+                else if ("--password".equals(arg)) o.password = value;
+                else if ("--workers".equals(arg)) o.workers = Integer.parseInt(value);
+                else if ("--mix".equals(arg)) mix = value;
+                else if ("--size".equals(arg)) o.size = Long.parseLong(value);
+                else if ("--part-size".equals(arg)) o.partSize = Long.parseLong(value);
+                else if ("--warmup".equals(arg)) o.warmupSeconds = Long.parseLong(value);
+                else if ("--duration".equals(arg)) o.durationSeconds = Long.parseLong(value);
+                else if ("--dir".equals(arg)) o.dir = value;
+                else if ("--format".equals(arg)) o.format = value;
+                else throw new IllegalArgumentException("Unknown option " + arg);
+            }
+
+            final int targets = (o.url == null ? 0 : 1) + (o.ftpHost == null ? 0 : 1) + (o.standin ? 1 : 0);
+            if (targets != 1) throw new IllegalArgumentException("Exactly one of --url, --ftp or --standin is needed");
+            if (o.workers < 1) throw new IllegalArgumentException("--workers must be at least 1");
+
+            final List<String> known = Arrays.asList(OPERATIONS);
+            for (Map.Entry<String, String> entry : Splitter.on(',').trimResults().omitEmptyStrings()
+                    .withKeyValueSeparator('=').split(mix).entrySet()) {
+                if (!known.contains(entry.getKey())) {
+                    throw new IllegalArgumentException("Unknown operation in mix: " + entry.getKey());
+                }
+                o.mix.put(entry.getKey(), Integer.parseInt(entry.getValue()));
+            }
+            if (o.ftpHost != null && o.mix.containsKey("uploadPart")) {
+                throw new IllegalArgumentException("uploadPart needs an HTTP endpoint");
+            }
+            return o;
+        }
+    }
+
+
+    private static void writeRandom(File file, long size) throws IOException {
+        final Random random = new Random(42);
+        final byte[] block = new byte[64 * 1024];
+        final FileOutputStream os = new FileOutputStream(file);
+        try {
+            for (long written = 0; written < size; written += block.length) {
+                random.nextBytes(block);
+                os.write(block, 0, (int)Math.min(block.length, size - written));
+            }
+        } finally {
+            os.close();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.llnw.storage.client.transport;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * httpclient's DefaultHttpClient over a pooled connection manager: one thread per request in flight, held
+ * for the whole transfer. Submitted requests run on threads of the transport's own, made as needed.
+ */
+@ThreadSafe
+public class BlockingTransport implements HttpTransport {
+    private static final String TIMINGS = "com.llnw.storage.client.timings";
+
+    private final PoolingClientConnectionManager connections = new PoolingClientConnectionManager();
+    private final ListeningExecutorService submitted = MoreExecutors.listeningDecorator(Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("locs-http-%d").setDaemon(true).build()));
+    private final HttpClient client = new DefaultHttpClient(connections) {
+        @Override
+        protected HttpRequestExecutor createRequestExecutor() {
+            return new TimingRequestExecutor();
+        }
+    };
+
+
+    @Override
+    public HttpResponse execute(HttpUriRequest request) throws IOException {
+        return client.execute(request);
+    }
+
+
+    @Override
+    public HttpResponse execute(HttpUriRequest request, @Nullable ExchangeTimings timings) throws IOException {
+        if (timings == null) return execute(request);
+
+        final HttpContext context = new BasicHttpContext();
+        context.setAttribute(TIMINGS, timings);
+        return client.execute(request, context);
+    }
+
+
+    @Override
+    public ListenableFuture<HttpResponse> submit(final HttpUriRequest request,
+            @Nullable final ExchangeTimings timings) {
+        return submitted.submit(new Callable<HttpResponse>() {
+            @Override
+            public HttpResponse call() throws IOException {
+                return execute(request, timings);
+            }
+        });
+    }
+
+
+    @Override
+    public void setMaxConnectionsPerRoute(int maxConnections) {
+        connections.setMaxTotal(Math.max(connections.getMaxTotal(), maxConnections));
+        connections.setDefaultMaxPerRoute(maxConnections);
+    }
+
+
+    @Override
+    public void closeIdleConnections() {
+        connections.closeIdleConnections(0, TimeUnit.MILLISECONDS);
+    }
+
+
+    @Override
+    public void close() {
+        submitted.shutdownNow();
+        connections.shutdown();
+    }
+
+
+    /**
+     * Marks the timings passed in the context around writing the request and receiving the response head.
+     */
+    private static final class TimingRequestExecutor extends HttpRequestExecutor {
+        @Override
+        protected HttpResponse doSendRequest(HttpRequest request, HttpClientConnection conn, HttpContext context)
+                throws IOException, HttpException {
+            final ExchangeTimings timings = (ExchangeTimings)context.getAttribute(TIMINGS);
+            if (timings != null) timings.markSending();
+            final HttpResponse response = super.doSendRequest(request, conn, context);
+            if (timings != null) timings.markSent();
+            return response;
+        }
+
+        @Override
+        protected HttpResponse doReceiveResponse(HttpRequest request, HttpClientConnection conn,
+                HttpContext context) throws HttpException, IOException {
+            final HttpResponse response = super.doReceiveResponse(request, conn, context);
+            final ExchangeTimings timings = (ExchangeTimings)context.getAttribute(TIMINGS);
+            if (timings != null) timings.markResponding();
+            return response;
+        }
+    }
+}
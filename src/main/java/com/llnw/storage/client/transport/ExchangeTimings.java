@@ -0,0 +1,94 @@
+package com.llnw.storage.client.transport;
+
+import com.google.common.base.Objects;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Where the time went in one request: getting a connection (leasing or connecting one), writing the request,
+ * waiting for the server to start answering, and reading the response. The transport marks the first three
+ * points as it gets to them and the caller marks the end once it has read the response.
+ *
+ * A phase that was never reached, because the request failed first, reads as -1.
+ */
+@ThreadSafe
+public class ExchangeTimings {
+    private final long started = System.nanoTime();
+    private volatile long sending;
+    private volatile long sent;
+    private volatile long responding;
+    private volatile long finished;
+
+
+    /**
+     * On a connection and about to write the request. A retry on another connection marks it again.
+     */
+    public void markSending() {
+        sending = System.nanoTime();
+    }
+
+
+    public void markSent() {
+        sent = System.nanoTime();
+    }
+
+
+    /**
+     * The response has started arriving.
+     */
+    public void markResponding() {
+        responding = System.nanoTime();
+    }
+
+
+    public void markFinished() {
+        finished = System.nanoTime();
+    }
+
+
+    public long getConnectMillis() {
+        return millis(started, sending);
+    }
+
+
+    public long getWriteMillis() {
+        return millis(sending, sent);
+    }
+
+
+    public long getWaitMillis() {
+        return millis(sent, responding);
+    }
+
+
+    public long getReadMillis() {
+        return millis(responding, finished);
+    }
+
+
+    /**
+     * @return from creation to the last point reached
+     */
+    public long getTotalMillis() {
+        final long last = Math.max(Math.max(sending, sent), Math.max(responding, finished));
+        return last == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(last - started);
+    }
+
+
+    private static long millis(long from, long to) {
+        if (from == 0 || to == 0) return -1;
+        return TimeUnit.NANOSECONDS.toMillis(Math.max(0, to - from));
+    }
+
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(getClass())
+                .add("connect", getConnectMillis())
+                .add("write", getWriteMillis())
+                .add("wait", getWaitMillis())
+                .add("read", getReadMillis()).toString();
+    }
+}
@@ -0,0 +1,51 @@
+package com.llnw.storage.client.transport;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+
+import javax.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Sends the HTTP requests behind {@link com.llnw.storage.client.EndpointHTTP}'s JSON-RPC calls and uploads.
+ * {@link BlockingTransport} is the default; {@link NioTransport} multiplexes many connections over a few
+ * selector threads and can be shared by any number of endpoints.
+ *
+ * Callers read the response entity, then call releaseConnection() on the request whatever happened.
+ */
+public interface HttpTransport extends Closeable {
+    HttpResponse execute(HttpUriRequest request) throws IOException;
+
+
+    /**
+     * Execute, marking the timings as the request gets on a connection, is written and starts being answered.
+     */
+    HttpResponse execute(HttpUriRequest request, @Nullable ExchangeTimings timings) throws IOException;
+
+
+    /**
+     * Send a request whose body is already in memory, such as a ByteBufferEntity, without the caller waiting
+     * for the response. The timings are marked as for execute.
+     */
+    ListenableFuture<HttpResponse> submit(HttpUriRequest request, @Nullable ExchangeTimings timings)
+            throws IOException;
+
+
+    /**
+     * Most connections kept open to one host and port at once.
+     */
+    void setMaxConnectionsPerRoute(int maxConnections);
+
+
+    void closeIdleConnections();
+
+
+    /**
+     * Close every connection. The transport can't be used afterwards.
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,1032 @@
+package com.llnw.storage.client.transport;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.llnw.storage.client.io.ActivityCallback;
+import com.llnw.storage.client.io.ByteBufferEntity;
+import com.llnw.storage.client.io.ByteBuffers;
+import org.apache.commons.io.Charsets;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.joda.time.Duration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Event-driven transport: every connection is a non-blocking channel on one of a few selector threads, so
+ * requests in flight cost a connection and some buffers but no thread of their own.
+ *
+ * {@link #submit} queues a request and returns at once, for bodies that are already in memory: a
+ * ByteBufferEntity, written straight from its buffers, or anything up to 256 KiB, like a JSON-RPC call.
+ * Thousands can be outstanding at once on a handful of I/O threads. {@link #execute} takes any body and
+ * waits for the response; bodies that only know how to write themselves to a stream, such as a file upload's
+ * multipart form, are produced on the calling thread and handed to the selector in 64 KiB slices.
+ *
+ * Connections are kept alive and reused per host and port, up to the per-route limit; requests beyond it wait
+ * for a connection to come free. Responses are read fully into memory before the future completes.
+ */
+@ThreadSafe
+public class NioTransport implements HttpTransport {
+    private static final Logger log = LoggerFactory.getLogger(NioTransport.class);
+
+    private static final int SLICE_SIZE = ByteBuffers.SLICE_SIZE;
+    private static final int MAX_BUFFERED_BODY = 256 * 1024;
+    private static final int PIPE_DEPTH = 4; // slices a producing thread may be ahead of the socket
+    private static final long SELECT_MILLIS = 1000;
+    private static final long IDLE_MILLIS = 60 * 1000;
+    private static final int DEFAULT_MAX_PER_ROUTE = 64;
+    private static final Duration DEFAULT_TIMEOUT = Duration.standardMinutes(10);
+
+    private final Reactor[] reactors;
+    private final AtomicInteger nextReactor = new AtomicInteger();
+    private final Map<String, Route> routes = Maps.newHashMap();
+
+    private volatile int maxConnectionsPerRoute = DEFAULT_MAX_PER_ROUTE;
+    private volatile long timeoutMillis = DEFAULT_TIMEOUT.getMillis();
+    private volatile boolean closed;
+
+
+    public NioTransport() throws IOException {
+        this(2);
+    }
+
+
+    public NioTransport(int ioThreads) throws IOException {
+        if (ioThreads < 1) throw new IllegalArgumentException("ioThreads must be at least 1");
+
+        reactors = new Reactor[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            reactors[i] = new Reactor(i);
+        }
+        for (Reactor reactor : reactors) {
+            reactor.thread.start();
+        }
+    }
+
+
+    /**
+     * How long a request may go without sending or receiving anything before it fails, and how long it may wait
+     * for a connection, counted from when it was queued. 10 minutes by default.
+     */
+    public NioTransport setTimeout(Duration timeout) {
+        this.timeoutMillis = timeout.getMillis();
+        return this;
+    }
+
+
+    @Override
+    public void setMaxConnectionsPerRoute(int maxConnections) {
+        if (maxConnections < 1) throw new IllegalArgumentException("maxConnections must be at least 1");
+        this.maxConnectionsPerRoute = maxConnections;
+    }
+
+
+    /**
+     * Queue a request whose body is already in memory.
+     *
+     * @throws IllegalArgumentException for a body that would have to be streamed; use {@link #execute}
+     */
+    public ListenableFuture<HttpResponse> submit(HttpUriRequest request) throws IOException {
+        return submit(request, (ExchangeTimings)null);
+    }
+
+
+    /**
+     * As above, marking the timings. The future completes on a selector thread, so listeners on it must not
+     * block.
+     */
+    @Override
+    public ListenableFuture<HttpResponse> submit(HttpUriRequest request, @Nullable ExchangeTimings timings)
+            throws IOException {
+        final HttpEntity entity = entity(request);
+        final Body body = entity == null ? new BufferedBody(new ByteBuffer[0], null) : buffered(entity);
+        if (body == null) {
+            throw new IllegalArgumentException("Body of unknown or large size, use execute: " + entity);
+        }
+        return submit(request, body, timings);
+    }
+
+
+    private ListenableFuture<HttpResponse> submit(HttpUriRequest request, Body body,
+            @Nullable ExchangeTimings timings) throws IOException {
+        final Exchange exchange = new Exchange(request, body, body.length(), timings);
+        route(request.getURI()).start(exchange);
+        return exchange.future;
+    }
+
+
+    @Override
+    public HttpResponse execute(HttpUriRequest request) throws IOException {
+        return execute(request, null);
+    }
+
+
+    @Override
+    public HttpResponse execute(HttpUriRequest request, @Nullable ExchangeTimings timings) throws IOException {
+        final HttpEntity entity = entity(request);
+        final Body buffered = entity == null ? new BufferedBody(new ByteBuffer[0], null) : buffered(entity);
+        if (buffered != null) {
+            return await(submit(request, buffered, timings), null);
+        }
+
+        final PipeBody pipe = new PipeBody(entity.getContentLength());
+        final Exchange exchange = new Exchange(request, pipe, entity.getContentLength(), timings);
+        route(request.getURI()).start(exchange);
+
+        try {
+            entity.writeTo(pipe);
+            pipe.close();
+        } catch (IOException e) {
+            exchange.abort(e);
+        } catch (RuntimeException e) {
+            exchange.abort(new IOException("Couldn't write request body", e));
+        }
+        return await(exchange.future, exchange);
+    }
+
+
+    @Override
+    public void closeIdleConnections() {
+        final List<Connection> idle = Lists.newArrayList();
+        synchronized (routes) {
+            for (Route route : routes.values()) {
+                synchronized (route) {
+                    idle.addAll(route.idle);
+                    route.idle.clear();
+                }
+            }
+        }
+        for (final Connection connection : idle) {
+            connection.reactor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    connection.close();
+                }
+            });
+        }
+    }
+
+
+    public int getOpenConnections() {
+        int open = 0;
+        synchronized (routes) {
+            for (Route route : routes.values()) {
+                synchronized (route) {
+                    open += route.open;
+                }
+            }
+        }
+        return open;
+    }
+
+
+    @Override
+    public void close() {
+        closed = true;
+        for (Reactor reactor : reactors) {
+            reactor.selector.wakeup();
+        }
+        for (Reactor reactor : reactors) {
+            try {
+                reactor.thread.join(SELECT_MILLIS * 5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        final List<Exchange> pending = Lists.newArrayList();
+        synchronized (routes) {
+            for (Route route : routes.values()) {
+                synchronized (route) {
+                    pending.addAll(route.pending);
+                    route.pending.clear();
+                }
+            }
+        }
+        for (Exchange exchange : pending) {
+            exchange.fail(new IOException("Transport closed"));
+        }
+    }
+
+
+    /**
+     * Fail requests that have waited the timeout for a connection, which a stalled route would otherwise hold
+     * forever.
+     */
+    private void expireQueued(long now) {
+        final List<Exchange> expired = Lists.newArrayList();
+        synchronized (routes) {
+            for (Route route : routes.values()) {
+                synchronized (route) {
+                    for (Iterator<Exchange> it = route.pending.iterator(); it.hasNext(); ) {
+                        final Exchange exchange = it.next();
+                        if (now - exchange.queuedAt > timeoutMillis || exchange.future.isDone()) {
+                            expired.add(exchange);
+                            it.remove();
+                        }
+                    }
+                }
+            }
+        }
+        for (Exchange exchange : expired) {
+            exchange.fail(new SocketTimeoutException("Waited " + (now - exchange.queuedAt) + "ms for a connection"));
+        }
+    }
+
+
+    @Nullable
+    private static HttpEntity entity(HttpUriRequest request) {
+        return request instanceof HttpEntityEnclosingRequest ? ((HttpEntityEnclosingRequest)request).getEntity() : null;
+    }
+
+
+    /**
+     * @return the body ready to send as is, or null if it has to be streamed
+     */
+    @Nullable
+    private static Body buffered(HttpEntity entity) throws IOException {
+        if (entity instanceof ByteBufferEntity) {
+            final ByteBufferEntity buffers = (ByteBufferEntity)entity;
+            return new BufferedBody(buffers.getBuffers(), buffers.getCallback());
+        }
+
+        final long length = entity.getContentLength();
+        if (length < 0 || length > MAX_BUFFERED_BODY) return null;
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream((int)length);
+        entity.writeTo(bytes);
+        return new BufferedBody(new ByteBuffer[] { ByteBuffer.wrap(bytes.toByteArray()) }, null);
+    }
+
+
+    private static HttpResponse await(Future<HttpResponse> future, @Nullable Exchange exchange) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            final InterruptedIOException interrupted = new InterruptedIOException("Interrupted waiting for response");
+            if (exchange != null) exchange.abort(interrupted); else future.cancel(false);
+            throw interrupted;
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException)cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+            throw new IOException(cause);
+        }
+    }
+
+
+    private Route route(URI uri) throws IOException {
+        if (closed) throw new IOException("Transport closed");
+        if (!"http".equalsIgnoreCase(uri.getScheme())) throw new IOException("Only http is supported: " + uri);
+
+        final int port = uri.getPort() < 0 ? 80 : uri.getPort();
+        final String key = uri.getHost() + ":" + port;
+        synchronized (routes) {
+            Route route = routes.get(key);
+            if (route == null) {
+                route = new Route(uri.getHost(), port);
+                routes.put(key, route);
+            }
+            return route;
+        }
+    }
+
+
+    private Reactor nextReactor() {
+        return reactors[(nextReactor.getAndIncrement() & Integer.MAX_VALUE) % reactors.length];
+    }
+
+
+    private static ByteBuffer head(HttpUriRequest request, String host, int port, long length) {
+        final URI uri = request.getURI();
+        final StringBuilder sb = new StringBuilder(256);
+        sb.append(request.getMethod()).append(' ');
+        sb.append(uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath());
+        if (uri.getRawQuery() != null) sb.append('?').append(uri.getRawQuery());
+        sb.append(" HTTP/1.1\r\n");
+        sb.append("Host: ").append(host);
+        if (port != 80) sb.append(':').append(port);
+        sb.append("\r\n");
+
+        boolean contentType = false;
+        for (Header header : request.getAllHeaders()) {
+            final String name = header.getName();
+            if ("Host".equalsIgnoreCase(name) || "Content-Length".equalsIgnoreCase(name) ||
+                    "Transfer-Encoding".equalsIgnoreCase(name) || "Connection".equalsIgnoreCase(name)) continue;
+            if ("Content-Type".equalsIgnoreCase(name)) contentType = true;
+            sb.append(name).append(": ").append(header.getValue()).append("\r\n");
+        }
+
+        final HttpEntity entity = entity(request);
+        if (entity != null) {
+            if (!contentType && entity.getContentType() != null) {
+                sb.append("Content-Type: ").append(entity.getContentType().getValue()).append("\r\n");
+            }
+            if (length < 0) {
+                sb.append("Transfer-Encoding: chunked\r\n");
+            } else {
+                sb.append("Content-Length: ").append(length).append("\r\n");
+            }
+        }
+        sb.append("\r\n");
+        return ByteBuffer.wrap(sb.toString().getBytes(Charsets.ISO_8859_1));
+    }
+
+    //-------------------------------------------------------------
+    // Request bodies
+    //-------------------------------------------------------------
+
+    private interface Body {
+        /**
+         * @return the buffer to write next, or null if there is nothing to write right now
+         */
+        @Nullable ByteBuffer next();
+
+        /**
+         * @return true once every byte has been handed out and written
+         */
+        boolean isFinished();
+
+        /**
+         * Start again from the first byte for a resend.
+         *
+         * @return false if the body can't be sent twice
+         */
+        boolean rewind();
+
+        long length();
+
+        /**
+         * The request failed; wake anything producing the body.
+         */
+        void fail(IOException cause);
+
+        @Nullable ActivityCallback callback();
+    }
+
+
+    private static final class BufferedBody implements Body {
+        private final ByteBuffer[] original;
+        @Nullable private final ActivityCallback callback;
+        private ByteBuffer[] buffers;
+        private int index;
+
+        private BufferedBody(ByteBuffer[] buffers, @Nullable ActivityCallback callback) {
+            this.original = buffers;
+            this.callback = callback;
+            this.buffers = ByteBuffers.duplicate(buffers);
+        }
+
+        @Override
+        @Nullable
+        public ByteBuffer next() {
+            while (index < buffers.length && !buffers[index].hasRemaining()) index++;
+            return index < buffers.length ? buffers[index] : null;
+        }
+
+        @Override
+        public boolean isFinished() {
+            return next() == null;
+        }
+
+        @Override
+        public boolean rewind() {
+            buffers = ByteBuffers.duplicate(original);
+            index = 0;
+            return true;
+        }
+
+        @Override
+        public long length() {
+            return ByteBuffers.remaining(original);
+        }
+
+        @Override
+        public void fail(IOException cause) {
+        }
+
+        @Override
+        @Nullable
+        public ActivityCallback callback() {
+            return callback;
+        }
+    }
+
+
+    /**
+     * Body written by the requesting thread as an OutputStream and drained by the selector thread. The writer
+     * blocks once it is {@link #PIPE_DEPTH} slices ahead. Bodies of unknown length go out chunked.
+     */
+    private final class PipeBody extends OutputStream implements Body {
+        private final long length;
+        private final boolean chunked;
+
+        @GuardedBy("this") private final Queue<ByteBuffer> queue = new ArrayDeque<ByteBuffer>();
+        @GuardedBy("this") @Nullable private ByteBuffer current;
+        @GuardedBy("this") private boolean finished;
+        @GuardedBy("this") private boolean stalled;
+        @GuardedBy("this") @Nullable private IOException failure;
+        @GuardedBy("this") @Nullable private Connection connection;
+
+        private byte[] slice = new byte[SLICE_SIZE];
+        private int filled;
+        private long written;
+
+        private PipeBody(long length) {
+            this.length = length;
+            this.chunked = length < 0;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (filled == slice.length) flushSlice();
+            slice[filled++] = (byte)b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (filled == slice.length) flushSlice();
+                final int n = Math.min(len, slice.length - filled);
+                System.arraycopy(b, off, slice, filled, n);
+                filled += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (filled > 0) flushSlice();
+            if (!chunked && written != length) {
+                throw new IOException("Entity wrote " + written + " bytes, declared " + length);
+            }
+            put(chunked ? ByteBuffer.wrap("0\r\n\r\n".getBytes(Charsets.ISO_8859_1)) : null, true);
+        }
+
+        private void flushSlice() throws IOException {
+            written += filled;
+            if (chunked) {
+                final byte[] size = (Integer.toHexString(filled) + "\r\n").getBytes(Charsets.ISO_8859_1);
+                final ByteBuffer chunk = ByteBuffer.allocate(size.length + filled + 2);
+                chunk.put(size).put(slice, 0, filled).put((byte)'\r').put((byte)'\n').flip();
+                put(chunk, false);
+            } else {
+                put(ByteBuffer.wrap(slice, 0, filled), false);
+                slice = new byte[SLICE_SIZE]; // the queued slice is still being written
+            }
+            filled = 0;
+        }
+
+        private void put(@Nullable ByteBuffer buffer, boolean last) throws IOException {
+            final Connection resume;
+            synchronized (this) {
+                while (queue.size() >= PIPE_DEPTH && failure == null) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted writing request body");
+                    }
+                }
+                if (failure != null) throw failure;
+
+                if (buffer != null) queue.add(buffer);
+                if (last) finished = true;
+                resume = stalled ? connection : null;
+                stalled = false;
+            }
+            if (resume != null) resume.resume();
+        }
+
+        private synchronized void attach(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        @Nullable
+        public synchronized ByteBuffer next() {
+            if (current != null && current.hasRemaining()) return current;
+
+            current = queue.poll();
+            notifyAll();
+            if (current == null && !finished) stalled = true;
+            return current;
+        }
+
+        @Override
+        public synchronized boolean isFinished() {
+            return finished && queue.isEmpty() && (current == null || !current.hasRemaining());
+        }
+
+        @Override
+        public boolean rewind() {
+            return false;
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public synchronized void fail(IOException cause) {
+            if (failure == null) failure = cause;
+            notifyAll();
+        }
+
+        @Override
+        @Nullable
+        public ActivityCallback callback() {
+            return null; // the entity calls its own as it writes
+        }
+    }
+
+    //-------------------------------------------------------------
+    // Exchanges, routes and connections
+    //-------------------------------------------------------------
+
+    private final class Exchange {
+        private final HttpUriRequest request;
+        private final Body body;
+        private final long length;
+        @Nullable private final ExchangeTimings timings;
+        private final SettableFuture<HttpResponse> future = SettableFuture.create();
+        private final long queuedAt = System.currentTimeMillis();
+
+        private ByteBuffer head;
+        private volatile Connection connection;
+        private int attempts;
+
+        private Exchange(HttpUriRequest request, Body body, long length, @Nullable ExchangeTimings timings) {
+            this.request = request;
+            this.body = body;
+            this.length = length;
+            this.timings = timings;
+        }
+
+        private void fail(IOException cause) {
+            body.fail(cause);
+            future.setException(cause);
+        }
+
+        /**
+         * Fail from outside the selector thread, dropping the connection if the request is on one.
+         */
+        private void abort(final IOException cause) {
+            fail(cause);
+            final Connection on = connection;
+            if (on != null) {
+                on.reactor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (on.exchange == Exchange.this) on.fail(cause);
+                    }
+                });
+            }
+        }
+    }
+
+
+    private final class Route {
+        private final String host;
+        private final int port;
+
+        @GuardedBy("this") private final Deque<Connection> idle = new ArrayDeque<Connection>();
+        @GuardedBy("this") private final Queue<Exchange> pending = new ArrayDeque<Exchange>();
+        @GuardedBy("this") private int open;
+        @Nullable private InetSocketAddress address;
+
+        private Route(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        private void start(Exchange exchange) {
+            if (exchange.head == null) exchange.head = head(exchange.request, host, port, exchange.length);
+
+            final Connection connection;
+            synchronized (this) {
+                if (exchange.future.isDone()) return;
+                connection = idle.pollFirst();
+                if (connection == null) {
+                    if (open >= maxConnectionsPerRoute) {
+                        pending.add(exchange);
+                        return;
+                    }
+                    open++;
+                }
+            }
+
+            if (connection != null) {
+                connection.assignLater(exchange);
+            } else {
+                connect(exchange);
+            }
+        }
+
+        private void connect(Exchange exchange) {
+            final SocketChannel channel;
+            try {
+                if (closed) throw new IOException("Transport closed");
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                channel.connect(address());
+            } catch (IOException e) {
+                connectFailed();
+                exchange.fail(e);
+                return;
+            }
+            new Connection(this, nextReactor(), channel).assignLater(exchange);
+        }
+
+        /**
+         * Resolved once per route, on the first connection.
+         */
+        private synchronized InetSocketAddress address() throws IOException {
+            if (address == null) {
+                address = new InetSocketAddress(host, port);
+                if (address.isUnresolved()) {
+                    address = null;
+                    throw new IOException("Couldn't resolve " + host);
+                }
+            }
+            return address;
+        }
+
+        private void connectFailed() {
+            final Exchange next;
+            synchronized (this) {
+                open--;
+                next = pending.poll();
+                if (next != null) open++;
+            }
+            if (next != null) connect(next);
+        }
+
+        /**
+         * A connection finished its exchange and can carry another.
+         */
+        private void released(Connection connection) {
+            final Exchange next;
+            synchronized (this) {
+                next = pending.poll();
+                if (next == null) idle.addFirst(connection);
+            }
+            if (next != null) connection.assign(next);
+        }
+
+        private void closed(Connection connection) {
+            final Exchange next;
+            synchronized (this) {
+                idle.remove(connection);
+                open--;
+                next = closed || open >= maxConnectionsPerRoute ? null : pending.poll();
+                if (next != null) open++;
+            }
+            if (next != null) connect(next);
+        }
+    }
+
+
+    private final class Connection {
+        private final Route route;
+        private final Reactor reactor;
+        private final SocketChannel channel;
+
+        @Nullable private SelectionKey key;
+        @Nullable private Exchange exchange;
+        @Nullable private ResponseParser parser;
+        private boolean reused;
+        private boolean sent;
+        private boolean isClosed;
+        private long lastActivity = System.currentTimeMillis();
+
+        private Connection(Route route, Reactor reactor, SocketChannel channel) {
+            this.route = route;
+            this.reactor = reactor;
+            this.channel = channel;
+        }
+
+        private void assignLater(final Exchange next) {
+            reactor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    assign(next);
+                }
+            });
+        }
+
+        /**
+         * Start an exchange. Selector thread only.
+         */
+        private void assign(Exchange next) {
+            if (isClosed || !channel.isOpen()) {
+                route.start(next); // went stale while queued, find another
+                return;
+            }
+            if (next.future.isDone()) { // aborted while waiting
+                idle();
+                return;
+            }
+
+            exchange = next;
+            next.connection = this;
+            next.head.rewind();
+            if (next.body instanceof PipeBody) ((PipeBody)next.body).attach(this);
+            parser = new ResponseParser();
+            sent = false;
+            lastActivity = System.currentTimeMillis();
+
+            try {
+                if (key == null) {
+                    reactor.active.add(this);
+                    key = channel.register(reactor.selector, 0, this);
+                }
+                if (channel.isConnected()) {
+                    if (next.timings != null) next.timings.markSending();
+                    key.interestOps(SelectionKey.OP_WRITE | SelectionKey.OP_READ);
+                    writable();
+                } else {
+                    key.interestOps(SelectionKey.OP_CONNECT);
+                }
+            } catch (IOException e) {
+                fail(e);
+            } catch (RuntimeException e) { // selector closed under us
+                fail(new IOException("Transport closed", e));
+            }
+        }
+
+        private void connectable() throws IOException {
+            if (channel.finishConnect()) {
+                lastActivity = System.currentTimeMillis();
+                if (exchange != null && exchange.timings != null) exchange.timings.markSending();
+                key.interestOps(SelectionKey.OP_WRITE | SelectionKey.OP_READ);
+                writable();
+            }
+        }
+
+        private void writable() throws IOException {
+            final Exchange current = exchange;
+            if (current == null || sent) return;
+
+            final ByteBuffer head = current.head;
+            while (head.hasRemaining()) {
+                if (channel.write(head) == 0) return;
+                lastActivity = System.currentTimeMillis();
+            }
+
+            final ActivityCallback callback = current.body.callback();
+            ByteBuffer buffer;
+            while ((buffer = current.body.next()) != null) {
+                if (callback != null) callback.callback();
+                final int n = channel.write(buffer);
+                if (n > 0) lastActivity = System.currentTimeMillis();
+                if (buffer.hasRemaining()) return; // socket full, wait for OP_WRITE
+            }
+
+            if (current.body.isFinished()) {
+                sent = true;
+                if (current.timings != null) current.timings.markSent();
+                key.interestOps(SelectionKey.OP_READ);
+            } else {
+                key.interestOps(SelectionKey.OP_READ); // waiting on the writer, resume() brings OP_WRITE back
+            }
+        }
+
+        /**
+         * The writing thread queued more body. Any thread.
+         */
+        private void resume() {
+            reactor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (exchange == null || isClosed || sent) return;
+                    try {
+                        key.interestOps(SelectionKey.OP_WRITE | SelectionKey.OP_READ);
+                        writable();
+                    } catch (IOException e) {
+                        fail(e);
+                    }
+                }
+            });
+        }
+
+        private void readable() throws IOException {
+            final ByteBuffer buffer = reactor.readBuffer;
+            buffer.clear();
+            final int n = channel.read(buffer);
+            if (n < 0) {
+                eof();
+                return;
+            }
+            if (exchange == null) { // an idle connection has nothing to say
+                close();
+                return;
+            }
+
+            lastActivity = System.currentTimeMillis();
+            if (exchange.timings != null && !parser.isStarted()) exchange.timings.markResponding();
+            buffer.flip();
+            if (parser.feed(buffer)) complete(parser.isKeepAlive() && sent && !buffer.hasRemaining());
+        }
+
+        private void eof() throws IOException {
+            final Exchange current = exchange;
+            if (current == null) {
+                close();
+            } else if (parser.eof()) {
+                complete(false);
+            } else if (reused && !parser.isStarted() && current.attempts == 0 && current.body.rewind()) {
+                // The server dropped a kept-alive connection as we reused it; the request never got there
+                exchange = null;
+                current.attempts++;
+                current.connection = null;
+                close();
+                route.start(current);
+            } else {
+                fail(new IOException("Connection closed before the response was complete"));
+            }
+        }
+
+        private void complete(boolean reusable) {
+            final Exchange current = exchange;
+            final HttpResponse response = parser.getResponse();
+            exchange = null;
+            parser = null;
+            current.connection = null;
+            if (!sent) { // answered early, stop whoever is still writing the body
+                current.body.fail(new IOException("Server responded before the request body was sent"));
+            }
+
+            if (reusable && !closed) {
+                reused = true;
+                idle();
+            } else {
+                close();
+            }
+            current.future.set(response);
+        }
+
+        private void idle() {
+            lastActivity = System.currentTimeMillis();
+            if (key != null) key.interestOps(SelectionKey.OP_READ); // to notice the server closing it
+            route.released(this);
+        }
+
+        private void fail(IOException cause) {
+            final Exchange current = exchange;
+            exchange = null;
+            close();
+            if (current != null) current.fail(cause);
+        }
+
+        private void close() {
+            if (isClosed) return;
+            isClosed = true;
+
+            reactor.active.remove(this);
+            if (key != null) key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.debug("Couldn't close connection", e);
+            }
+            route.closed(this);
+        }
+    }
+
+
+    private final class Reactor implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        private final Set<Connection> active = Sets.newHashSet(); // selector thread only
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(SLICE_SIZE);
+
+        private Reactor(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "locs-nio-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        private void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+            if (closed && !thread.isAlive()) {
+                shutdown(); // nobody else will run it; the closed selector fails whatever it was
+            }
+        }
+
+        @Override
+        public void run() {
+            long lastSweep = System.currentTimeMillis();
+            while (!closed) {
+                try {
+                    selector.select(SELECT_MILLIS);
+                } catch (IOException e) {
+                    log.warn("Select failed", e);
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        log.warn("Transport task failed", e);
+                    }
+                }
+
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    final Connection connection = (Connection)key.attachment();
+                    try {
+                        if (key.isValid() && key.isConnectable()) connection.connectable();
+                        if (key.isValid() && key.isWritable()) connection.writable();
+                        if (key.isValid() && key.isReadable()) connection.readable();
+                    } catch (IOException e) {
+                        connection.fail(e);
+                    } catch (RuntimeException e) {
+                        connection.fail(new IOException(e));
+                    }
+                }
+
+                final long now = System.currentTimeMillis();
+                if (now - lastSweep >= SELECT_MILLIS) {
+                    lastSweep = now;
+                    sweep(now);
+                }
+            }
+            shutdown();
+        }
+
+        private void sweep(long now) {
+            if (this == reactors[0]) expireQueued(now); // before the connections, which may take the queue's head
+            for (Connection connection : Lists.newArrayList(active)) {
+                final long quiet = now - connection.lastActivity;
+                if (connection.exchange != null && quiet > timeoutMillis) {
+                    connection.fail(new SocketTimeoutException("No progress for " + quiet + "ms"));
+                } else if (connection.exchange == null && quiet > IDLE_MILLIS) {
+                    connection.close();
+                }
+            }
+        }
+
+        private synchronized void shutdown() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    log.debug("Transport task failed during shutdown", e);
+                }
+            }
+            for (Connection connection : Lists.newArrayList(active)) {
+                connection.fail(new IOException("Transport closed"));
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                log.debug("Couldn't close selector", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package com.llnw.storage.client.transport;
+
+import org.apache.commons.io.Charsets;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental HTTP/1.x response parser for {@link NioTransport}: fed whatever the socket returned, it says when
+ * a whole response has arrived. Bodies are delimited by Content-Length, chunked encoding or the connection
+ * closing, and are buffered in memory; the storage API's responses are small.
+ */
+@NotThreadSafe
+final class ResponseParser {
+    private static final int MAX_HEAD = 64 * 1024;
+
+    private enum State { HEAD, LENGTH, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILER, UNTIL_EOF, DONE }
+
+    private final ByteArrayOutputStream head = new ByteArrayOutputStream(512);
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream(512);
+    private final StringBuilder line = new StringBuilder();
+
+    private State state = State.HEAD;
+    private long remaining;
+    private int tail; // last four bytes of the head, to spot the blank line ending it
+    private boolean started;
+    private boolean keepAlive;
+    @Nullable private BasicHttpResponse response;
+
+
+    /**
+     * @return true once the response is complete; bytes after it are left in the buffer
+     */
+    boolean feed(ByteBuffer in) throws IOException {
+        if (in.hasRemaining()) started = true;
+
+        while (in.hasRemaining() && state != State.DONE) {
+            switch (state) {
+                case HEAD: {
+                    final byte b = in.get();
+                    head.write(b);
+                    tail = (tail << 8) | (b & 0xff);
+                    if (head.size() > MAX_HEAD) throw new IOException("Response head over " + MAX_HEAD + " bytes");
+                    if (tail == 0x0d0a0d0a || (tail & 0xffff) == 0x0a0a) parseHead();
+                    break;
+                }
+
+                case LENGTH:
+                case CHUNK_DATA:
+                case UNTIL_EOF: {
+                    final int n = state == State.UNTIL_EOF ? in.remaining() : (int)Math.min(remaining, in.remaining());
+                    copy(in, n);
+                    remaining -= n;
+                    if (state == State.LENGTH && remaining == 0) state = State.DONE;
+                    if (state == State.CHUNK_DATA && remaining == 0) state = State.CHUNK_END;
+                    break;
+                }
+
+                case CHUNK_SIZE:
+                    if (readLine(in)) {
+                        final String size = line.toString();
+                        final int semi = size.indexOf(';');
+                        try {
+                            remaining = Long.parseLong((semi < 0 ? size : size.substring(0, semi)).trim(), 16);
+                        } catch (NumberFormatException e) {
+                            throw new IOException("Bad chunk size: " + size);
+                        }
+                        line.setLength(0);
+                        state = remaining == 0 ? State.TRAILER : State.CHUNK_DATA;
+                    }
+                    break;
+
+                case CHUNK_END:
+                    if (readLine(in)) {
+                        line.setLength(0);
+                        state = State.CHUNK_SIZE;
+                    }
+                    break;
+
+                case TRAILER:
+                    if (readLine(in)) {
+                        final boolean last = line.length() == 0;
+                        line.setLength(0);
+                        if (last) state = State.DONE;
+                    }
+                    break;
+
+                default:
+                    throw new IllegalStateException(state.toString());
+            }
+        }
+
+        if (state == State.DONE) finish();
+        return state == State.DONE;
+    }
+
+
+    /**
+     * The connection closed. A response delimited by the close is complete; anything else was cut short.
+     *
+     * @return true if the response is complete
+     */
+    boolean eof() {
+        if (state != State.UNTIL_EOF) return state == State.DONE;
+
+        state = State.DONE;
+        finish();
+        return true;
+    }
+
+
+    /**
+     * Whether any of the response has arrived, which rules out resending the request.
+     */
+    boolean isStarted() {
+        return started;
+    }
+
+
+    boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+
+    HttpResponse getResponse() {
+        if (state != State.DONE || response == null) throw new IllegalStateException("Response not complete");
+        return response;
+    }
+
+
+    private void parseHead() throws IOException {
+        final String[] lines = new String(head.toByteArray(), Charsets.ISO_8859_1).split("\r?\n");
+        head.reset();
+        tail = 0;
+
+        final String[] status = lines[0].split(" ", 3);
+        if (status.length < 2 || !status[0].startsWith("HTTP/")) {
+            throw new IOException("Bad status line: " + lines[0]);
+        }
+
+        final ProtocolVersion version = "HTTP/1.0".equals(status[0]) ? HttpVersion.HTTP_1_0 : HttpVersion.HTTP_1_1;
+        final int code;
+        try {
+            code = Integer.parseInt(status[1]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Bad status line: " + lines[0]);
+        }
+        if (code >= 100 && code < 200) return; // 100 Continue and friends, the real response follows
+
+        final BasicHttpResponse parsed = new BasicHttpResponse(
+                new BasicStatusLine(version, code, status.length > 2 ? status[2] : ""));
+        for (int i = 1; i < lines.length; i++) {
+            final int colon = lines[i].indexOf(':');
+            if (colon > 0) parsed.addHeader(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+        }
+        response = parsed;
+
+        final String connection = value(parsed, "Connection");
+        keepAlive = version == HttpVersion.HTTP_1_1 ?
+                !"close".equalsIgnoreCase(connection) : "keep-alive".equalsIgnoreCase(connection);
+
+        final String encoding = value(parsed, "Transfer-Encoding");
+        final String length = value(parsed, "Content-Length");
+        if (code == 204 || code == 304) {
+            state = State.DONE;
+        } else if (encoding != null && !"identity".equalsIgnoreCase(encoding)) {
+            state = State.CHUNK_SIZE;
+        } else if (length != null) {
+            try {
+                remaining = Long.parseLong(length);
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad Content-Length: " + length);
+            }
+            state = remaining == 0 ? State.DONE : State.LENGTH;
+        } else {
+            keepAlive = false;
+            state = State.UNTIL_EOF;
+        }
+    }
+
+
+    private void finish() {
+        if (response == null || response.getEntity() != null) return;
+
+        final ByteArrayEntity entity = new ByteArrayEntity(body.toByteArray());
+        final Header type = response.getFirstHeader("Content-Type");
+        if (type != null) entity.setContentType(type);
+        response.setEntity(entity);
+    }
+
+
+    private void copy(ByteBuffer in, int n) {
+        if (in.hasArray()) {
+            body.write(in.array(), in.arrayOffset() + in.position(), n);
+            in.position(in.position() + n);
+        } else {
+            for (int i = 0; i < n; i++) body.write(in.get());
+        }
+    }
+
+
+    /**
+     * @return true once a whole line, without its CRLF, is in {@link #line}
+     */
+    private boolean readLine(ByteBuffer in) throws IOException {
+        while (in.hasRemaining()) {
+            final char c = (char)(in.get() & 0xff);
+            if (c == '\n') {
+                if (line.length() > 0 && line.charAt(line.length() - 1) == '\r') line.setLength(line.length() - 1);
+                return true;
+            }
+            if (line.length() > MAX_HEAD) throw new IOException("Chunk line over " + MAX_HEAD + " bytes");
+            line.append(c);
+        }
+        return false;
+    }
+
+
+    @Nullable
+    private static String value(HttpResponse response, String name) {
+        final Header header = response.getFirstHeader(name);
+        return header == null ? null : header.getValue();
+    }
+}
@@ -0,0 +1,80 @@
+package com.llnw.storage.client;
+
+import com.llnw.storage.client.testsupport.FakeFtpServer;
+import com.llnw.storage.client.testsupport.FakeStorage;
+import com.llnw.storage.client.testsupport.FakeStorageServer;
+import org.joda.time.Duration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EndpointFactoryTest {
+    private FakeStorage storage;
+    private FakeStorageServer httpServer;
+    private FakeFtpServer ftpServer;
+    private EndpointFactory factory;
+
+
+    @Before
+    public void before() throws IOException {
+        storage = new FakeStorage().addUser("user", "password");
+        storage.makeDirectories("/content");
+        httpServer = new FakeStorageServer(storage).start();
+        ftpServer = new FakeFtpServer(storage, httpServer.getFaults()).start();
+        factory = new EndpointFactory("127.0.0.1", "user", "password") {
+            @Override
+            protected Endpoint open(boolean useFTP) {
+                return useFTP ? new EndpointFTP(ftpServer.getHost(), ftpServer.getPort(), username, password)
+                        : new EndpointHTTP(httpServer.getUrl(), username, password);
+            }
+        };
+    }
+
+
+    @After
+    public void after() {
+        factory.discardWarmEndpoints();
+        httpServer.close();
+        ftpServer.close();
+    }
+
+
+    @Test
+    public void warmEndpointsAreHandedOutLoggedIn() throws Exception {
+        final WarmUpReport report = factory.warmUp(false, 4, Duration.standardSeconds(10));
+        assertTrue(report.toString(), report.isComplete());
+        assertEquals(4, factory.getWarmCount(false));
+        assertEquals(4, storage.getLoginCount());
+
+        final Endpoint endpoint = factory.create(false);
+        try {
+            endpoint.listFiles("/content");
+            assertEquals(4, storage.getLoginCount()); // no login on first use
+            assertEquals(3, factory.getWarmCount(false));
+        } finally {
+            endpoint.close();
+        }
+
+        assertTrue(factory.warmUp(true, 2, Duration.standardSeconds(10)).isComplete());
+        assertEquals(2, factory.getWarmCount(true));
+        assertEquals(3, factory.getWarmCount(false));
+    }
+
+
+    @Test
+    public void slowEndpointsAreDroppedAtTheDeadline() throws Exception {
+        httpServer.getFaults().setLatency(Duration.millis(500));
+        final WarmUpReport report = factory.warmUp(false, 3, Duration.millis(100));
+        assertEquals(0, report.warmed);
+        assertEquals(3, report.timedOut);
+        assertTrue(report.elapsedMillis < 500);
+
+        assertTrue(factory.awaitWarmUps(Duration.standardSeconds(10)));
+        assertEquals(0, factory.getWarmCount(false));
+    }
+}
@@ -112,14 +112,8 @@ public class EndpointHTTPIT {
             http.completeMultipartUpload();
 
             // Wait for the chunks to be assembled
-            MultipartStatus state = MultipartStatus.ERROR;
-            for (int count = 100; count > 0; count--) {
-                state = http.getMultipartStatus();
-                if (MultipartStatus.SUCCESS.equals(state))
-                    break;
-                Thread.sleep(1000);
-            }
-            assertEquals(MultipartStatus.SUCCESS, state);
+            EndpointUtil.awaitMultipart(http, Duration.standardSeconds(100), len, number);
+            assertEquals(MultipartStatus.SUCCESS, http.getMultipartStatus());
             assertTrue(http.exists(mpDir + "/chunked.txt"));
 
             http.deleteFile(mpDir + "/chunked.txt");
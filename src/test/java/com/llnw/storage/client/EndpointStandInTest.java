@@ -0,0 +1,460 @@
+package com.llnw.storage.client;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Closeables;
+import com.llnw.storage.client.io.ActivityCallback;
+import com.llnw.storage.client.io.ByteBuffers;
+import com.llnw.storage.client.io.ChecksumCache;
+import com.llnw.storage.client.io.Chunk;
+import com.llnw.storage.client.io.FixedChunks;
+import com.llnw.storage.client.io.MemoryBudget;
+import com.llnw.storage.client.metrics.EndpointMetrics;
+import com.llnw.storage.client.testsupport.FakeFtpServer;
+import com.llnw.storage.client.testsupport.FakeStorage;
+import com.llnw.storage.client.testsupport.FakeStorageServer;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.joda.time.Duration;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs the integration scenarios against the in-process stand-in servers.
+ */
+public class EndpointStandInTest {
+    private static File testFile;
+
+    private final EndpointIntegrationHelper helper = new EndpointIntegrationHelper();
+
+    private FakeStorage storage;
+    private FakeStorageServer httpServer;
+    private FakeFtpServer ftpServer;
+
+
+    @BeforeClass
+    public static void setup() throws IOException {
+        testFile = File.createTempFile("upload_this", "tmp");
+        BufferedWriter os = new BufferedWriter(new FileWriter(testFile));
+
+        for (int i = 0; i < 100000; i++) {
+            os.append("This is a test file");
+            os.newLine();
+            os.append("Testing, one two three");
+            os.newLine();
+        }
+
+        IOUtils.closeQuietly(os);
+    }
+
+
+    @AfterClass
+    public static void teardown() {
+        FileUtils.deleteQuietly(testFile);
+    }
+
+
+    @Before
+    public void before() throws IOException {
+        Thread.interrupted();
+        storage = new FakeStorage().addUser("user", "password");
+        storage.makeDirectories("/content");
+        storage.makeDirectories("/archive");
+        httpServer = new FakeStorageServer(storage).start();
+        ftpServer = new FakeFtpServer(storage, httpServer.getFaults()).start();
+    }
+
+
+    @After
+    public void after() {
+        httpServer.close();
+        ftpServer.close();
+    }
+
+
+    @Test
+    public void listTest() throws Exception {
+        helper.listTest(http());
+        helper.listTest(ftp());
+    }
+
+
+    @Test
+    public void createDelete() throws Exception {
+        helper.createDelete(http(), "/abc_123", testFile, true);
+        helper.createDelete(ftp(), "/content/abc_123", testFile);
+    }
+
+
+    @Test
+    public void uploadedBytesMatch() throws Exception {
+        final EndpointHTTP http = http();
+        try {
+            http.upload(testFile, "/content", "copy.txt", null);
+        } finally {
+            Closeables.closeQuietly(http);
+        }
+        assertArrayEquals(FileUtils.readFileToByteArray(testFile), storage.stat("/content/copy.txt").getData());
+    }
+
+
+    @Test
+    public void identicalUploadIsSkipped() throws Exception {
+        final EndpointMetrics metrics = new EndpointMetrics("skip");
+        final ChecksumCache checksums = new ChecksumCache(10);
+        final EndpointHTTP http = http();
+        http.setMetrics(metrics);
+        http.setChecksumCache(checksums);
+        try {
+            assertEquals(UploadOutcome.UPLOADED, http.uploadIfChanged(testFile, "/content", "same.txt", null));
+            assertEquals(UploadOutcome.SKIPPED, http.uploadIfChanged(testFile, "/content", "same.txt", null));
+            assertEquals(UploadOutcome.SKIPPED, http.uploadIfChanged(testFile, "/content", "same.txt", null));
+            assertEquals(1, checksums.getMisses()); // hashed once, then from the cache
+            assertEquals(1, metrics.operation("upload").getCalls());
+            assertEquals(2, metrics.getEvents().get("upload.skipped").longValue());
+
+            final byte[] other = FileUtils.readFileToByteArray(testFile);
+            other[0] ^= 1;
+            final ByteBuffer changed = ByteBuffer.wrap(other);
+            assertEquals(UploadOutcome.UPLOADED, http.uploadIfChanged(new ByteBuffer[] { changed }, "/content",
+                    "same.txt", null));
+            assertEquals(0, changed.remaining());
+            assertEquals(2, metrics.operation("upload").getCalls());
+
+            assertEquals(other.length, http.stat("/content/same.txt").size);
+            assertNull(http.stat("/content/missing.txt"));
+        } finally {
+            Closeables.closeQuietly(http);
+        }
+    }
+
+
+    @Test
+    public void uploadsReserveFromTheMemoryBudget() throws Exception {
+        final MemoryBudget budget = new MemoryBudget(1024 * 1024);
+        final EndpointHTTP http = http();
+        http.setMemoryBudget(budget, Duration.ZERO);
+        http.setMultipartThreshold(1);
+        http.setMultipartPieceSize(FixedChunks.MINIMUM_CHUNK_SIZE);
+        try {
+            http.upload(testFile, "/content", "budget.txt", null);
+            http.upload(ByteBuffer.wrap(new byte[1000]), "/content", "small.bin", null);
+            assertEquals(0, budget.getReservedBytes());
+            assertTrue(budget.getPeakReservedBytes() > 0);
+
+            assertTrue(budget.tryAcquire(1024 * 1024));
+            try {
+                http.upload(ByteBuffer.wrap(new byte[1000]), "/content", "refused.bin", null);
+                fail("Expected the budget to refuse the upload");
+            } catch (IOException expected) {
+                assertEquals(1, budget.getRejections());
+            }
+        } finally {
+            Closeables.closeQuietly(http);
+        }
+        assertNull(storage.stat("/content/refused.bin"));
+    }
+
+
+    @Test
+    public void bufferedPiecesAndFtpUploadsWaitForTheMemoryBudget() throws Exception {
+        final MemoryBudget budget = new MemoryBudget(1024 * 1024);
+        final EndpointHTTP http = http();
+        final EndpointFTP ftp = ftp();
+        http.setMemoryBudget(budget, Duration.millis(200));
+        ftp.setMemoryBudget(budget, Duration.millis(200));
+        try {
+            http.startMultipartUpload("/content", "held.bin");
+            assertTrue(budget.tryAcquire(1024 * 1024));
+            try {
+                http.uploadPart(new ByteBuffer[] { ByteBuffer.wrap(new byte[1000]) }, null);
+                fail("Expected the piece to time out waiting for the budget");
+            } catch (IOException expected) {
+                assertEquals(1, budget.getWaits());
+            }
+            try {
+                ftp.upload(ByteBuffer.wrap(new byte[1000]), "/archive", "held.bin", null);
+                fail("Expected the upload to time out waiting for the budget");
+            } catch (IOException expected) {
+                assertEquals(2, budget.getRejections());
+            }
+
+            budget.release(1024 * 1024);
+            http.uploadPart(new ByteBuffer[] { ByteBuffer.wrap(new byte[1000]) }, null);
+            assertEquals(0, budget.getReservedBytes());
+            http.abortMultipartUpload();
+        } finally {
+            Closeables.closeQuietly(http);
+            Closeables.closeQuietly(ftp);
+        }
+        assertNull(storage.stat("/archive/held.bin"));
+    }
+
+
+    @Test
+    public void ftpFileUploadHeartbeatsPerSlice() throws Exception {
+        final AtomicInteger heartbeats = new AtomicInteger();
+        final EndpointMetrics metrics = new EndpointMetrics("ftp");
+        final EndpointFTP ftp = ftp();
+        ftp.setMetrics(metrics);
+        try {
+            ftp.upload(testFile, "/archive", "sent.txt", new ActivityCallback() {
+                @Override
+                public void callback() {
+                    heartbeats.incrementAndGet();
+                }
+            });
+        } finally {
+            Closeables.closeQuietly(ftp);
+        }
+        assertArrayEquals(FileUtils.readFileToByteArray(testFile), storage.stat("/archive/sent.txt").getData());
+        assertEquals((testFile.length() + 1024 * 1024 - 1) / (1024 * 1024), heartbeats.get());
+        assertEquals(testFile.length(), metrics.operation("STOR").getBytes());
+    }
+
+
+    @Test
+    public void byteBufferUploads() throws Exception {
+        final byte[] data = FileUtils.readFileToByteArray(testFile);
+        final ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data).flip();
+        final ByteBuffer heap = ByteBuffer.wrap(data, 10, data.length - 10).slice();
+
+        final EndpointHTTP http = http();
+        final EndpointFTP ftp = ftp();
+        try {
+            http.upload(direct.duplicate(), "/content", "direct.txt", null);
+            http.upload(heap.duplicate(), "/content", "heap.txt", null);
+            ftp.upload(direct.duplicate(), "/archive", "direct.txt", null);
+        } finally {
+            Closeables.closeQuietly(http);
+            Closeables.closeQuietly(ftp);
+        }
+        assertArrayEquals(data, storage.stat("/content/direct.txt").getData());
+        assertArrayEquals(Arrays.copyOfRange(data, 10, data.length), storage.stat("/content/heap.txt").getData());
+        assertArrayEquals(data, storage.stat("/archive/direct.txt").getData());
+    }
+
+
+    @Test
+    public void gatheringUploads() throws Exception {
+        final byte[] data = FileUtils.readFileToByteArray(testFile);
+        final ByteBuffer[] parts = split(data, 7);
+
+        final EndpointHTTP http = http();
+        final EndpointFTP ftp = ftp();
+        try {
+            http.upload(ByteBuffers.duplicate(parts), "/content", "gathered.txt", null);
+            ftp.upload(ByteBuffers.duplicate(parts), "/archive", "gathered.txt", null);
+
+            storage.setMergeDelay(Duration.ZERO);
+            http.startMultipartUpload("/content", "pieces.txt");
+            http.uploadPart(ByteBuffers.duplicate(Arrays.copyOfRange(parts, 0, 3)), null);
+            http.uploadPart(ByteBuffers.duplicate(Arrays.copyOfRange(parts, 3, parts.length)), null);
+            http.completeMultipartUpload();
+            assertEquals(MultipartStatus.SUCCESS, http.getMultipartStatus());
+        } finally {
+            Closeables.closeQuietly(http);
+            Closeables.closeQuietly(ftp);
+        }
+        assertArrayEquals(data, storage.stat("/content/gathered.txt").getData());
+        assertArrayEquals(data, storage.stat("/archive/gathered.txt").getData());
+        assertArrayEquals(data, storage.stat("/content/pieces.txt").getData());
+    }
+
+
+    @Test
+    public void interruptTest() throws Exception {
+        httpServer.getFaults().setBandwidth(512 * 1024);
+        helper.interruptTest(http(), testFile);
+    }
+
+
+    @Test
+    public void badChecksumFails() throws Exception {
+        httpServer.getFaults().setChecksumErrorRate(1.0);
+        final EndpointHTTP http = http();
+        try {
+            http.upload(testFile, "/content", "bad.txt", null);
+            fail();
+        } catch (EndpointException e) {
+            assertTrue(e.getMessage().contains("X-Agile-Checksum"));
+        } finally {
+            Closeables.closeQuietly(http);
+        }
+    }
+
+
+    @Test
+    public void multipartBasic() throws Exception {
+        storage.setMergeDelay(Duration.millis(200));
+        final EndpointHTTP http = http();
+        final List<Chunk> chunks = Lists.newArrayList();
+
+        final int number = 10;
+        final long len = testFile.length();
+        for (int i = 0; i < number; i++) {
+            final long offset = i * len / number;
+            chunks.add(new Chunk(i, offset, (i + 1) * len / number - offset, true));
+        }
+
+        try {
+            http.makeDirectory("/multipartTest");
+            http.startMultipartUpload("/multipartTest", "chunked.txt");
+            http.uploadPart(testFile, chunks.iterator(), null);
+            assertEquals(MultipartStatus.READY, http.getMultipartStatus());
+            assertEquals(number, http.listMultipartPiece(0, 100).size());
+
+            http.completeMultipartUpload();
+
+            EndpointUtil.awaitMultipart(http, Duration.standardSeconds(5), len, number);
+            assertEquals(MultipartStatus.SUCCESS, http.getMultipartStatus());
+            assertArrayEquals(FileUtils.readFileToByteArray(testFile),
+                    storage.stat("/multipartTest/chunked.txt").getData());
+        } finally {
+            Closeables.closeQuietly(http);
+        }
+    }
+
+
+    @Test
+    public void largeUploadIsPromotedToMultipart() throws Exception {
+        final EndpointMetrics metrics = new EndpointMetrics("promoted");
+        final EndpointHTTP http = http();
+        http.setMetrics(metrics);
+        http.setMultipartThreshold(1024 * 1024);
+        http.setMultipartPieceSize(512 * 1024);
+        http.setMultipartConcurrency(3);
+
+        try {
+            http.upload(testFile, "/content", "promoted.txt", null);
+            assertNull(metrics.snapshot().get("upload"));
+
+            http.setMultipartThreshold(1);
+            final File empty = File.createTempFile("empty", ".bin");
+            try {
+                http.upload(empty, "/content", "empty.bin", null); // not promoted, there are no pieces
+            } finally {
+                FileUtils.deleteQuietly(empty);
+            }
+            http.setMultipartPieceSize(0);
+            fail("Expected a piece size of 0 to be refused");
+        } catch (IllegalArgumentException expected) {
+            // refused before it reaches FixedChunks
+        } finally {
+            Closeables.closeQuietly(http);
+        }
+        assertArrayEquals(FileUtils.readFileToByteArray(testFile), storage.stat("/content/promoted.txt").getData());
+        assertEquals(0, metrics.snapshot().get("piece").failures);
+        assertTrue(metrics.snapshot().get("piece").calls > 1);
+        assertEquals(1, metrics.snapshot().get("upload").calls);
+        assertEquals(0, storage.stat("/content/empty.bin").getSize());
+    }
+
+
+    @Test
+    public void sharedLoginSurvivesExpiredTokens() throws Exception {
+        final AuthTokenManager tokens = new AuthTokenManager(httpServer.getUrl(), "user", "password");
+        final List<EndpointHTTP> endpoints = Lists.newArrayList();
+        for (int i = 0; i < 4; i++) {
+            endpoints.add(new EndpointHTTP(httpServer.getUrl(), tokens));
+        }
+
+        for (EndpointHTTP http : endpoints) {
+            assertTrue(http.exists("/content"));
+        }
+        assertEquals(1, storage.getLoginCount());
+
+        storage.expireTokens();
+        for (EndpointHTTP http : endpoints) {
+            http.makeDirectory("/content/after-expiry");
+        }
+        assertEquals(2, storage.getLoginCount());
+
+        storage.expireTokens();
+        final EndpointHTTP mp = endpoints.get(0);
+        mp.startMultipartUpload("/content", "pieces.bin");
+        storage.expireTokens();
+        mp.uploadPart(new ByteBuffer[] { ByteBuffer.wrap(new byte[] { 1, 2, 3 }) }, null);
+        assertEquals(4, storage.getLoginCount());
+
+        final String replaced = tokens.getToken();
+        tokens.refresh();
+        assertEquals(5, storage.getLoginCount());
+        assertFalse(storage.isValidToken(replaced)); // logged out, not left to expire
+
+        final String token = tokens.getToken();
+        for (EndpointHTTP http : endpoints) {
+            assertTrue(storage.isValidToken(token));
+            http.close();
+        }
+        assertFalse(storage.isValidToken(token));
+        tokens.refresh(); // nothing to refresh for
+        assertEquals(5, storage.getLoginCount());
+    }
+
+
+    @Test
+    public void uploadsLogInAgainWhenTheirTokenExpires() throws Exception {
+        final EndpointHTTP http = http();
+        final byte[] data = FileUtils.readFileToByteArray(testFile);
+        try {
+            http.upload(ByteBuffer.wrap(data), "/content", "first.bin", null);
+            assertEquals(1, storage.getLoginCount());
+
+            for (int i = 0; i < 3; i++) {
+                storage.expireTokens();
+                http.upload(ByteBuffer.wrap(data), "/content", "buffer" + i + ".bin", null);
+            }
+            assertEquals(4, storage.getLoginCount());
+
+            storage.expireTokens();
+            http.upload(testFile, "/content", "file.txt", null);
+            assertEquals(5, storage.getLoginCount());
+        } finally {
+            Closeables.closeQuietly(http);
+        }
+        assertArrayEquals(data, storage.stat("/content/buffer2.bin").getData());
+        assertArrayEquals(data, storage.stat("/content/file.txt").getData());
+    }
+
+
+    private static ByteBuffer[] split(byte[] data, int count) {
+        final ByteBuffer[] parts = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            final int from = (int)((long)i * data.length / count);
+            final int to = (int)((long)(i + 1) * data.length / count);
+            parts[i] = i % 2 == 0 ? ByteBuffer.wrap(data, from, to - from) : ByteBuffer.allocateDirect(to - from);
+            if (i % 2 == 1) parts[i].put(data, from, to - from).flip();
+        }
+        return parts;
+    }
+
+
+    private EndpointHTTP http() {
+        return new EndpointHTTP(httpServer.getUrl(), "user", "password");
+    }
+
+
+    private EndpointFTP ftp() {
+        return new EndpointFTP(ftpServer.getHost(), ftpServer.getPort(), "user", "password");
+    }
+}
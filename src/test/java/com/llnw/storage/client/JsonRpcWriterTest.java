@@ -0,0 +1,64 @@
+package com.llnw.storage.client;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParser;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class JsonRpcWriterTest {
+    private final JsonRpcWriter writer = new JsonRpcWriter();
+
+
+    @Test
+    public void sameBytesAsGsonForAscii() throws Exception {
+        final String path = "/content/a \"quoted\" <name> & 'more' = \\ \t\n\u0001.txt";
+        writer.begin("listFile").param("path", path).param("pageSize", 10000).param("stat", true)
+                .param("skipped", null).param("token", "abc").end(42);
+
+        final Map<String, Object> params = new LinkedHashMap<String, Object>();
+        params.put("path", path);
+        params.put("pageSize", 10000);
+        params.put("stat", true);
+        params.put("token", "abc");
+        final Map<String, Object> rpc = new LinkedHashMap<String, Object>();
+        rpc.put("jsonrpc", "2.0");
+        rpc.put("method", "listFile");
+        rpc.put("params", params);
+        rpc.put("id", 42);
+
+        assertEquals(new Gson().toJson(rpc), writer.toString());
+        assertEquals(writer.length(), IOUtils.toByteArray(writer.entity().getContent()).length);
+    }
+
+
+    @Test
+    public void nonAsciiIsEscaped() throws Exception {
+        final String path = "/content/caf\u00e9/\u65e5\u672c/\ud83d\ude00 ";
+        writer.begin("stat").param("path", path).param("cookie", -1234567890123L).end(Integer.MAX_VALUE);
+
+        final String json = writer.toString();
+        for (char c : json.toCharArray()) {
+            assertTrue(c < 0x80);
+        }
+        assertEquals(path, new JsonParser().parse(json).getAsJsonObject()
+                .getAsJsonObject("params").get("path").getAsString());
+        assertEquals(-1234567890123L, new JsonParser().parse(json).getAsJsonObject()
+                .getAsJsonObject("params").get("cookie").getAsLong());
+    }
+
+
+    @Test
+    public void bufferIsReused() {
+        final StringBuilder big = new StringBuilder();
+        for (int i = 0; i < 1000; i++) big.append("/segment");
+        writer.begin("makeDir2").param("path", big.toString()).end(1);
+        writer.begin("noop").end(2);
+        assertEquals("{\"jsonrpc\":\"2.0\",\"method\":\"noop\",\"params\":{},\"id\":2}", writer.toString());
+    }
+}
@@ -0,0 +1,35 @@
+package com.llnw.storage.client;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MergeBackoffTest {
+
+    @Test
+    public void largeUploadBacksOffUpToTheCeiling() {
+        // 1 GiB in 16 pieces: estimate 20 + 32 + 4096 = 4148ms, ceiling 2074ms
+        final MergeBackoff backoff = new MergeBackoff(1024L * 1024 * 1024, 16);
+        assertEquals(1037, backoff.nextDelayMillis());
+        assertEquals(1555, backoff.nextDelayMillis());
+        assertEquals(2074, backoff.nextDelayMillis());
+        assertEquals(2074, backoff.nextDelayMillis());
+    }
+
+
+    @Test
+    public void delaysNeverShrinkAndStayInBounds() {
+        final long[][] uploads = { { 0, 0 }, { 1000, 1 }, { 100L * 1024 * 1024, 4 }, { 50L << 30, 1000 } };
+        for (long[] upload : uploads) {
+            final MergeBackoff backoff = new MergeBackoff(upload[0], (int)upload[1]);
+            long previous = 0;
+            for (int i = 0; i < 20; i++) {
+                final long delay = backoff.nextDelayMillis();
+                assertTrue(delay >= previous && delay >= 10 && delay <= 5000);
+                previous = delay;
+            }
+            assertTrue("should reach its ceiling", previous >= 100);
+        }
+    }
+}
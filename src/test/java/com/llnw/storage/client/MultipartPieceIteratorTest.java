@@ -0,0 +1,104 @@
+package com.llnw.storage.client;
+
+import com.google.common.io.Closeables;
+import com.llnw.storage.client.testsupport.FakeStorage;
+import com.llnw.storage.client.testsupport.FakeStorageServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class MultipartPieceIteratorTest {
+    private FakeStorage storage;
+    private FakeStorageServer server;
+    private EndpointHTTP http;
+
+
+    @Before
+    public void before() throws IOException {
+        storage = new FakeStorage().addUser("user", "password");
+        storage.makeDirectories("/content");
+        server = new FakeStorageServer(storage).start();
+        http = new EndpointHTTP(server.getUrl(), "user", "password");
+    }
+
+
+    @After
+    public void after() {
+        Closeables.closeQuietly(http);
+        server.close();
+    }
+
+
+    @Test
+    public void walksEveryPiece() throws Exception {
+        final String mpid = session("/content/walk.bin", 250);
+
+        final MultipartPieceIterator pieces = new MultipartPieceIterator(http, mpid, 100);
+        int expected = 1;
+        while (pieces.hasNext()) {
+            final MultipartPiece piece = pieces.next();
+            assertEquals(expected, piece.number);
+            assertEquals(expected % 7 + 1, piece.size);
+            assertEquals(MultipartStatus.READY, piece.getStatus());
+            expected++;
+        }
+        assertEquals(251, expected);
+        pieces.close();
+    }
+
+
+    @Test
+    public void readsPagesAsArrays() throws Exception {
+        final String mpid = session("/content/pages.bin", 200);
+
+        final MultipartPieceIterator pieces = new MultipartPieceIterator(http, mpid, 100);
+        try {
+            final MultipartPiecePage first = pieces.nextPage();
+            assertEquals(100, first.size());
+            assertEquals(1, first.numbers[0]);
+            assertEquals(100, first.getLastNumber());
+            assertEquals(101 % 7 + 1, pieces.nextPage().sizes[0]);
+            assertNull(pieces.nextPage()); // a full last page takes one more, empty, fetch to rule out
+            assertNull(pieces.nextPage());
+            assertFalse(pieces.hasNext());
+        } finally {
+            pieces.close();
+        }
+    }
+
+
+    @Test
+    public void fetchFailureReachesCaller() throws Exception {
+        final MultipartPieceIterator pieces = new MultipartPieceIterator(http, "no-such-session", 100);
+        try {
+            pieces.nextPage();
+            fail("Listed an unknown session");
+        } catch (EndpointException e) {
+            // expected
+        }
+
+        try {
+            pieces.hasNext();
+            fail("Failure was forgotten");
+        } catch (IllegalStateException e) {
+            assertEquals(EndpointException.class, e.getCause().getClass());
+        }
+        pieces.close();
+    }
+
+
+    private String session(String path, int count) {
+        final String mpid = storage.createMultipart(path);
+        for (int i = 1; i <= count; i++) {
+            storage.putPiece(mpid, i, new byte[i % 7 + 1]);
+        }
+        return mpid;
+    }
+}
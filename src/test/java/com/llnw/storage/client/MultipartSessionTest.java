@@ -0,0 +1,120 @@
+package com.llnw.storage.client;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Closeables;
+import com.llnw.storage.client.testsupport.FakeStorage;
+import com.llnw.storage.client.testsupport.FakeStorageServer;
+import org.joda.time.Duration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class MultipartSessionTest {
+    private FakeStorage storage;
+    private FakeStorageServer server;
+    private EndpointHTTP http;
+
+
+    @Before
+    public void before() throws IOException {
+        storage = new FakeStorage().addUser("user", "password");
+        storage.makeDirectories("/content");
+        server = new FakeStorageServer(storage).start();
+        http = new EndpointHTTP(server.getUrl(), "user", "password");
+        http.setMultipartConcurrency(8);
+    }
+
+
+    @After
+    public void after() {
+        Closeables.closeQuietly(http);
+        server.close();
+    }
+
+
+    @Test
+    public void sessionsRunConcurrentlyOnOneEndpoint() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<MultipartSession>> futures = Lists.newArrayList();
+            for (int i = 0; i < 8; i++) {
+                final int file = i;
+                futures.add(executor.submit(new Callable<MultipartSession>() {
+                    @Override
+                    public MultipartSession call() throws IOException {
+                        final MultipartSession session = http.startSession("/content", "file" + file + ".bin");
+                        for (int piece = 0; piece < 5; piece++) {
+                            session.uploadPart(new ByteBuffer[] { ByteBuffer.wrap(bytes(file, piece)) }, null);
+                        }
+                        session.complete();
+                        return session;
+                    }
+                }));
+            }
+
+            for (Future<MultipartSession> future : futures) {
+                final MultipartSession session = future.get();
+                assertEquals(5, session.getPieceCount());
+                session.await(Duration.standardSeconds(10));
+                assertEquals(MultipartStatus.SUCCESS, session.getStatus());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        for (int i = 0; i < 8; i++) {
+            final byte[] expected = new byte[5 * 3];
+            for (int piece = 0; piece < 5; piece++) System.arraycopy(bytes(i, piece), 0, expected, piece * 3, 3);
+            assertArrayEquals(expected, storage.stat("/content/file" + i + ".bin").getData());
+        }
+    }
+
+
+    @Test
+    public void resumedSessionContinuesAfterLastPiece() throws Exception {
+        final String mpid = storage.createMultipart("/content/resumed.bin");
+        storage.putPiece(mpid, 1, new byte[] { 1, 1 });
+        storage.putPiece(mpid, 2, new byte[] { 2, 2 });
+
+        final MultipartSession session = http.resumeSession(mpid);
+        assertEquals(2, session.getPieceCount());
+        assertEquals(4, session.getSize());
+        assertEquals(3, session.uploadPart(new ByteBuffer[] { ByteBuffer.wrap(new byte[] { 3 }) }, null));
+
+        session.complete();
+        session.await(Duration.standardSeconds(10));
+        assertArrayEquals(new byte[] { 1, 1, 2, 2, 3 }, storage.stat("/content/resumed.bin").getData());
+    }
+
+
+    @Test
+    public void completeChecksThePieceCount() throws Exception {
+        final MultipartSession session = http.startSession("/content", "extra.bin");
+        session.uploadPart(new ByteBuffer[] { ByteBuffer.wrap(new byte[] { 1 }) }, null);
+        storage.putPiece(session.getMpid(), 2, new byte[] { 2 }); // sent behind the session's back
+
+        try {
+            session.complete();
+            fail("Expected the piece count to disagree");
+        } catch (EndpointException expected) {
+            // 2 stored, 1 sent
+        }
+    }
+
+
+    private static byte[] bytes(int file, int piece) {
+        return new byte[] { (byte)file, (byte)piece, (byte)(file * piece) };
+    }
+}
@@ -0,0 +1,109 @@
+package com.llnw.storage.client;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.llnw.storage.client.metrics.EndpointMetrics;
+import com.llnw.storage.client.testsupport.FakeStorage;
+import com.llnw.storage.client.testsupport.FakeStorageServer;
+import org.joda.time.Duration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MultipartWatcherTest {
+    private FakeStorage storage;
+    private FakeStorageServer server;
+    private EndpointMetrics metrics;
+    private EndpointHTTP http;
+    private MultipartWatcher watcher;
+
+
+    @Before
+    public void before() throws IOException {
+        storage = new FakeStorage().addUser("user", "password");
+        storage.makeDirectories("/content");
+        server = new FakeStorageServer(storage).start();
+        metrics = new EndpointMetrics("watcher");
+        http = new EndpointHTTP(server.getUrl(), "user", "password");
+        http.setMetrics(metrics);
+        watcher = new MultipartWatcher(http);
+    }
+
+
+    @After
+    public void after() {
+        watcher.close();
+        Closeables.closeQuietly(http);
+        server.close();
+    }
+
+
+    @Test
+    public void manyUploadsOnOneWatcher() throws Exception {
+        storage.setMergeDelay(Duration.millis(300));
+        final List<ListenableFuture<MultipartStatus>> futures = Lists.newArrayList();
+        for (int i = 0; i < 20; i++) {
+            final String mpid = storage.createMultipart("/content/many" + i + ".bin");
+            storage.putPiece(mpid, 1, new byte[] { (byte)i });
+            storage.putPiece(mpid, 2, new byte[] { (byte)i });
+            storage.completeMultipart(mpid);
+            futures.add(watcher.watch(mpid, 2, 2, Duration.standardSeconds(10)));
+        }
+
+        for (ListenableFuture<MultipartStatus> future : futures) {
+            assertEquals(MultipartStatus.SUCCESS, future.get());
+        }
+        assertEquals(0, watcher.getWatchCount());
+        assertArrayEquals(new byte[] { 7, 7 }, storage.stat("/content/many7.bin").getData());
+
+        // Backing off, not polling every few milliseconds for the whole merge
+        assertTrue(metrics.operation("getMultipartStatus").getCalls() < 20 * 15);
+    }
+
+
+    @Test
+    public void failsAsSoonAsTheMergeFails() throws Exception {
+        final String mpid = storage.createMultipart("/content/gap.bin");
+        storage.putPiece(mpid, 1, new byte[10]);
+        storage.putPiece(mpid, 3, new byte[10]);
+        storage.completeMultipart(mpid);
+
+        final long start = System.currentTimeMillis();
+        try {
+            watcher.await(mpid, 20, 2, Duration.standardMinutes(5));
+            fail("Merged with a missing piece");
+        } catch (EndpointException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("ERROR"));
+        }
+        assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+
+
+    @Test
+    public void abortedUploadFails() throws Exception {
+        storage.setMergeDelay(Duration.standardSeconds(10));
+        final String mpid = storage.createMultipart("/content/aborted.bin");
+        storage.putPiece(mpid, 1, new byte[10]);
+        storage.completeMultipart(mpid);
+
+        final ListenableFuture<MultipartStatus> future = watcher.watch(mpid, 10, 1, Duration.standardMinutes(5));
+        storage.abortMultipart(mpid);
+        try {
+            future.get();
+            fail("Aborted upload succeeded");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof EndpointException);
+            assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains("DELETED"));
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.llnw.storage.client;
+
+import com.google.common.io.Closeables;
+import com.llnw.storage.client.io.MemoryBudget;
+import com.llnw.storage.client.metrics.EndpointMetrics;
+import com.llnw.storage.client.testsupport.FakeStorage;
+import com.llnw.storage.client.testsupport.FakeStorageServer;
+import com.llnw.storage.client.transport.NioTransport;
+import org.joda.time.Duration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class StreamingMultipartUploaderTest {
+    private static final int PIECE = 256 * 1024;
+
+    private FakeStorage storage;
+    private FakeStorageServer server;
+    private EndpointMetrics metrics;
+    private EndpointHTTP http;
+    private NioTransport nio;
+
+
+    @Before
+    public void before() throws IOException {
+        storage = new FakeStorage().addUser("user", "password");
+        storage.makeDirectories("/stream");
+        server = new FakeStorageServer(storage).start();
+        metrics = new EndpointMetrics("streaming");
+        http = new EndpointHTTP(server.getUrl(), "user", "password");
+        http.setMetrics(metrics);
+    }
+
+
+    @After
+    public void after() {
+        Closeables.closeQuietly(http);
+        Closeables.closeQuietly(nio);
+        server.close();
+    }
+
+
+    @Test
+    public void streamOfUnknownLength() throws Exception {
+        final byte[] data = random(13 * PIECE + 12345);
+        final long bytes = new StreamingMultipartUploader(http, PIECE, 3)
+                .upload(trickle(data), "/stream", "long.bin", null);
+
+        assertEquals(data.length, bytes);
+        assertArrayEquals(data, storage.stat("/stream/long.bin").getData());
+        assertEquals(14, metrics.snapshot().get("piece").calls);
+    }
+
+
+    @Test
+    public void streamEndingOnPieceBoundary() throws Exception {
+        final byte[] data = random(4 * PIECE);
+        new StreamingMultipartUploader(http, PIECE, 2).upload(trickle(data), "/stream", "even.bin", null);
+
+        assertArrayEquals(data, storage.stat("/stream/even.bin").getData());
+        assertEquals(4, metrics.snapshot().get("piece").calls);
+    }
+
+
+    @Test
+    public void shortStreamIsAPlainUpload() throws Exception {
+        final byte[] data = random(1000);
+        new StreamingMultipartUploader(http, PIECE, 2).upload(trickle(data), "/stream", "short.bin", null);
+
+        assertArrayEquals(data, storage.stat("/stream/short.bin").getData());
+        assertNull(metrics.snapshot().get("piece"));
+    }
+
+
+    @Test
+    public void ringStaysWithinTheMemoryBudget() throws Exception {
+        final MemoryBudget budget = new MemoryBudget(PIECE);
+        http.setMemoryBudget(budget, Duration.standardSeconds(10));
+        final byte[] data = random(5 * PIECE + 99);
+        new StreamingMultipartUploader(http, PIECE, 3).upload(trickle(data), "/stream", "tight.bin", null);
+
+        assertArrayEquals(data, storage.stat("/stream/tight.bin").getData());
+        assertEquals(PIECE, budget.getPeakReservedBytes());
+        assertEquals(0, budget.getReservedBytes());
+    }
+
+
+    @Test
+    public void piecesGoThroughTheNioTransport() throws Exception {
+        nio = new NioTransport(1);
+        http.setTransport(nio);
+        final byte[] data = random(7 * PIECE + 5);
+        new StreamingMultipartUploader(http, PIECE, 4).upload(trickle(data), "/stream", "nio.bin", null);
+
+        assertArrayEquals(data, storage.stat("/stream/nio.bin").getData());
+        assertEquals(8, metrics.snapshot().get("piece").calls);
+        assertEquals(0, metrics.snapshot().get("piece").failures);
+    }
+
+
+    @Test
+    public void streamsShareAnEndpoint() throws Exception {
+        http.setMultipartConcurrency(4);
+        final byte[] first = random(5 * PIECE + 7);
+        final byte[] second = random(6 * PIECE + 3);
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final Future<Long> a = executor.submit(stream(first, "first.bin"));
+            final Future<Long> b = executor.submit(stream(second, "second.bin"));
+            assertEquals(first.length, a.get().longValue());
+            assertEquals(second.length, b.get().longValue());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertArrayEquals(first, storage.stat("/stream/first.bin").getData());
+        assertArrayEquals(second, storage.stat("/stream/second.bin").getData());
+        assertEquals(2, storage.countMultipart(MultipartStatus.SUCCESS));
+    }
+
+
+    @Test
+    public void failedPieceAbortsTheSession() throws Exception {
+        server.getFaults().setChecksumErrorRate(1.0);
+        try {
+            new StreamingMultipartUploader(http, PIECE, 2)
+                    .upload(trickle(random(3 * PIECE)), "/stream", "bad.bin", null);
+            fail("Expected the bad checksums to fail the upload");
+        } catch (EndpointException expected) {
+            // and the session should be gone
+        }
+        assertEquals(1, storage.countMultipart(MultipartStatus.DELETED));
+        assertEquals(0, storage.countMultipart(MultipartStatus.READY));
+        assertNull(storage.stat("/stream/bad.bin"));
+    }
+
+
+    private Callable<Long> stream(final byte[] data, final String name) {
+        return new Callable<Long>() {
+            @Override
+            public Long call() throws IOException {
+                return new StreamingMultipartUploader(http, PIECE, 2).upload(trickle(data), "/stream", name, null);
+            }
+        };
+    }
+
+
+    private static byte[] random(int size) {
+        final byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+
+    /**
+     * Short reads, like a socket or pipe.
+     */
+    private static InputStream trickle(byte[] data) {
+        return new FilterInputStream(new ByteArrayInputStream(data)) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return super.read(b, off, Math.min(len, 10000));
+            }
+        };
+    }
+}
@@ -0,0 +1,75 @@
+package com.llnw.storage.client.io;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ChunkInputStreamTest {
+    private static File file;
+    private static byte[] data;
+
+
+    @BeforeClass
+    public static void setup() throws IOException {
+        data = new byte[1000000];
+        new Random(7).nextBytes(data);
+        file = File.createTempFile("chunk", ".bin");
+        FileUtils.writeByteArrayToFile(file, data);
+    }
+
+
+    @AfterClass
+    public static void teardown() {
+        FileUtils.deleteQuietly(file);
+    }
+
+
+    @Test
+    public void mappedWindows() throws IOException {
+        readChunk(ChunkIO.MAPPED, null);
+    }
+
+
+    @Test
+    public void bufferedWindows() throws IOException {
+        final DirectBufferPool pool = new DirectBufferPool(1024 * 1024);
+        readChunk(ChunkIO.BUFFERED, pool);
+        assertEquals(1, pool.getAllocations()); // one window buffer, reused across windows and the reset
+        assertEquals(65536, pool.getPooledBytes());
+    }
+
+
+    private void readChunk(ChunkIO mode, DirectBufferPool pool) throws IOException {
+        final Chunk chunk = new Chunk(1, 123457, 654321, true);
+        final byte[] expected = Arrays.copyOfRange(data, 123457, 123457 + 654321);
+        final FileChannel fc = new FileInputStream(file).getChannel();
+        try {
+            final InputStream is = new ChunkInputStream(fc, chunk, mode, 50000, pool, null);
+            try {
+                assertArrayEquals(expected, IOUtils.toByteArray(is));
+                is.reset();
+                assertEquals(expected[0] & 0xff, is.read());
+                assertEquals(1000, is.skip(1000));
+                final byte[] rest = IOUtils.toByteArray(is);
+                assertArrayEquals(Arrays.copyOfRange(expected, 1001, expected.length), rest);
+            } finally {
+                is.close();
+            }
+        } finally {
+            fc.close();
+        }
+    }
+}
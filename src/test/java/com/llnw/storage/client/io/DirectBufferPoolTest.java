@@ -0,0 +1,57 @@
+package com.llnw.storage.client.io;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DirectBufferPoolTest {
+
+    @Test
+    public void buffersAreReused() {
+        final DirectBufferPool pool = new DirectBufferPool(1024 * 1024);
+        final ByteBuffer first = pool.acquire(5000);
+        assertTrue(first.isDirect());
+        assertEquals(8192, first.capacity());
+        assertEquals(5000, first.limit());
+        assertEquals(0, first.position());
+
+        first.put((byte)1);
+        pool.release(first);
+        assertEquals(8192, pool.getPooledBytes());
+
+        final ByteBuffer second = pool.acquire(8000);
+        assertSame(first, second);
+        assertEquals(0, second.position());
+        assertEquals(8000, second.limit());
+        assertEquals(1, pool.getReuses());
+        assertEquals(1, pool.getAllocations());
+        assertEquals(0, pool.getPooledBytes());
+    }
+
+
+    @Test
+    public void poolIsBounded() {
+        final DirectBufferPool pool = new DirectBufferPool(16 * 1024);
+        final ByteBuffer a = pool.acquire(16 * 1024);
+        final ByteBuffer b = pool.acquire(16 * 1024);
+        pool.release(a);
+        pool.release(b);
+        assertEquals(16 * 1024, pool.getPooledBytes());
+
+        pool.release(ByteBuffer.allocate(4096)); // heap buffers are ignored
+        assertEquals(16 * 1024, pool.getPooledBytes());
+    }
+
+
+    @Test
+    public void smallRequestsShareTheSmallestClass() {
+        final DirectBufferPool pool = new DirectBufferPool(1024 * 1024);
+        assertEquals(4096, pool.acquire(0).capacity());
+        assertEquals(4096, pool.acquire(4096).capacity());
+        assertEquals(8192, pool.acquire(4097).capacity());
+    }
+}
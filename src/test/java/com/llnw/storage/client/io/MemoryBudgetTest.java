@@ -0,0 +1,105 @@
+package com.llnw.storage.client.io;
+
+import org.joda.time.Duration;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MemoryBudgetTest {
+
+    @Test
+    public void reservationsWaitForRoom() throws Exception {
+        final MemoryBudget budget = new MemoryBudget(100);
+        budget.acquire(80, Duration.ZERO);
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<?> waiter = executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    budget.acquire(50, Duration.standardSeconds(10));
+                    return null;
+                }
+            });
+            while (budget.getWaiting() == 0) Thread.sleep(5);
+            assertFalse(waiter.isDone());
+
+            budget.release(80);
+            waiter.get();
+            assertEquals(50, budget.getReservedBytes());
+            assertEquals(80, budget.getPeakReservedBytes());
+            assertEquals(1, budget.getWaits());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+
+    @Test
+    public void failsFastOrAfterWaiting() throws Exception {
+        final MemoryBudget budget = new MemoryBudget(100);
+        budget.acquire(60, Duration.ZERO);
+        assertFalse(budget.tryAcquire(60));
+
+        try {
+            budget.acquire(60, Duration.ZERO);
+            fail("Expected the budget to be exhausted");
+        } catch (IOException expected) {
+            // nothing waited
+        }
+        try {
+            budget.acquire(60, Duration.millis(50));
+            fail("Expected the wait to time out");
+        } catch (IOException expected) {
+            // waited, then gave up
+        }
+        assertEquals(3, budget.getRejections());
+        assertEquals(0, budget.getWaiting());
+        assertEquals(60, budget.getReservedBytes());
+    }
+
+
+    @Test
+    public void oversizedReservationGoesAlone() throws Exception {
+        final MemoryBudget budget = new MemoryBudget(100);
+        assertTrue(budget.tryAcquire(500));
+        assertFalse(budget.tryAcquire(1));
+        budget.release(500);
+        assertTrue(budget.tryAcquire(1));
+    }
+
+
+    @Test
+    public void waitersKeepTheirPlaceInLine() throws Exception {
+        final MemoryBudget budget = new MemoryBudget(100);
+        budget.acquire(90, Duration.ZERO);
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    budget.acquire(100, Duration.standardSeconds(10));
+                    return null;
+                }
+            });
+            while (budget.getWaiting() == 0) Thread.sleep(5);
+
+            // Would fit, but the big reservation asked first
+            assertFalse(budget.tryAcquire(10));
+            budget.release(90);
+            while (budget.getReservedBytes() != 100) Thread.sleep(5);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
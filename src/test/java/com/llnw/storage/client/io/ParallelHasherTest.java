@@ -0,0 +1,102 @@
+package com.llnw.storage.client.io;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ParallelHasherTest {
+    private static File file;
+    private static byte[] data;
+    private static ParallelHasher hasher;
+
+
+    @BeforeClass
+    public static void setup() throws IOException {
+        data = new byte[1000000];
+        new Random(11).nextBytes(data);
+        file = File.createTempFile("hash", ".bin");
+        FileUtils.writeByteArrayToFile(file, data);
+        hasher = new ParallelHasher(3);
+    }
+
+
+    @AfterClass
+    public static void teardown() {
+        hasher.close();
+        FileUtils.deleteQuietly(file);
+    }
+
+
+    @Test
+    public void piecesAndWholeFileMatchSequentialDigests() throws IOException {
+        final FixedChunks pieces = new FixedChunks(data.length, 70000, 70000);
+        final ParallelHasher.FileHashes hashes = hasher.hash(file, pieces, true);
+
+        assertEquals(pieces.totalChunks, hashes.getPieces().size());
+        for (Chunk chunk : pieces) {
+            final byte[] range = Arrays.copyOfRange(data, (int)chunk.offset, (int)(chunk.offset + chunk.length));
+            assertEquals(DigestUtils.sha256Hex(range), hashes.piece(chunk.number));
+        }
+        assertEquals(ChecksumCache.compute(file), hashes.whole());
+    }
+
+
+    @Test
+    public void wholeFileIsOnlyHashedWhenAskedFor() throws IOException {
+        final ParallelHasher.FileHashes hashes = hasher.hash(file, new FixedChunks(data.length), false);
+        assertEquals(DigestUtils.sha256Hex(data), hashes.piece(0));
+        try {
+            hashes.whole();
+            fail("Expected no whole file hash");
+        } catch (IllegalStateException expected) {
+            // not requested
+        }
+    }
+
+
+    @Test
+    public void windowTakesTurnsWithOtherFiles() throws Exception {
+        final ParallelHasher single = new ParallelHasher(1);
+        try {
+            final FixedChunks pieces = new FixedChunks(data.length, 1000, 1000);
+            final ParallelHasher.FileHashes big = single.hash(file, pieces, false, 2);
+            final ParallelHasher.FileHashes small = single.hash(file, new FixedChunks(data.length), false, 2);
+            final SettableFuture<Integer> ahead = SettableFuture.create();
+            small.getPieces().get(0).addListener(new Runnable() {
+                @Override
+                public void run() {
+                    int done = 0; // counted on the hasher's thread, so no more pieces finish meanwhile
+                    for (ListenableFuture<String> piece : big.getPieces()) {
+                        if (piece.isDone()) done++;
+                    }
+                    ahead.set(done);
+                }
+            }, MoreExecutors.sameThreadExecutor());
+
+            assertEquals(DigestUtils.sha256Hex(data), small.piece(0));
+            // Without the window all 1000 would have been queued first
+            assertTrue("Big file hashed " + ahead.get() + " pieces first", ahead.get() < pieces.totalChunks / 2);
+
+            for (Chunk chunk : pieces) {
+                final byte[] range = Arrays.copyOfRange(data, (int)chunk.offset, (int)(chunk.offset + chunk.length));
+                assertEquals(DigestUtils.sha256Hex(range), big.piece(chunk.number));
+            }
+        } finally {
+            single.close();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.llnw.storage.client.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsRoundTrip() {
+        for (long v = 0; v < 1000000; v = v * 3 / 2 + 1) {
+            final int index = LatencyHistogram.bucketIndex(v);
+            final long upper = LatencyHistogram.bucketUpperBound(index);
+            assertTrue("value " + v + " above bucket bound " + upper, v <= upper);
+            assertTrue("bucket for " + v + " too coarse: " + upper, upper - v <= Math.max(1, v / 16));
+        }
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.bucketUpperBound(LatencyHistogram.bucketIndex(Long.MAX_VALUE)));
+    }
+
+
+    @Test
+    public void quantiles() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000000L, histogram.getMax());
+        assertWithin(500000L, histogram.getValueAtQuantile(0.50));
+        assertWithin(990000L, histogram.getValueAtQuantile(0.99));
+        assertEquals(1000000L, histogram.getValueAtQuantile(1.0));
+    }
+
+
+    @Test
+    public void disabledStatsRecordNothing() {
+        final OperationStats stats = EndpointMetrics.disabled().operation("login");
+        stats.end(stats.begin(), 100, false);
+
+        assertEquals(0, stats.getCalls());
+        assertTrue(EndpointMetrics.disabled().snapshot().isEmpty());
+    }
+
+
+    @Test
+    public void snapshotPerOperation() {
+        final EndpointMetrics metrics = new EndpointMetrics("test");
+        final OperationStats stats = metrics.operation("listFile");
+        stats.end(stats.begin(), 10, true);
+        stats.end(stats.begin(), 0, false);
+
+        final OperationSnapshot snapshot = metrics.snapshot().get("listFile");
+        assertEquals(2, snapshot.calls);
+        assertEquals(1, snapshot.failures);
+        assertEquals(0, snapshot.inFlight);
+        assertEquals(10, snapshot.bytes);
+    }
+
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue("expected ~" + expected + " got " + actual, Math.abs(actual - expected) <= expected / 16);
+    }
+}
@@ -0,0 +1,130 @@
+package com.llnw.storage.client.metrics;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.io.Closeables;
+import com.llnw.storage.client.EndpointException;
+import com.llnw.storage.client.EndpointHTTP;
+import com.llnw.storage.client.JsonRpcWriter;
+import com.llnw.storage.client.testsupport.FakeStorage;
+import com.llnw.storage.client.testsupport.FakeStorageServer;
+import com.llnw.storage.client.transport.ExchangeTimings;
+import com.llnw.storage.client.transport.NioTransport;
+import org.joda.time.Duration;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RecentOperationsTest {
+
+    @Test
+    public void ringKeepsTheLatestExcerpts() {
+        final RecentOperations recent = new RecentOperations(3, 10);
+        for (int i = 0; i < 5; i++) {
+            recent.record("op" + i, "request", "0123456789abcdef", 200, new ExchangeTimings());
+        }
+
+        final List<OperationRecord> records = recent.snapshot();
+        assertEquals(3, records.size());
+        assertEquals("op2", records.get(0).method);
+        assertEquals("op4", records.get(2).method);
+        assertEquals("request", records.get(2).request);
+        assertEquals("0123456789... (16 chars)", records.get(2).response);
+        assertEquals(5, recent.getRecorded());
+    }
+
+
+    @Test
+    public void credentialsAreNotKept() {
+        final RecentOperations recent = new RecentOperations();
+        final OperationRecord call = recent.record("listFile",
+                "{\"params\":{\"path\":\"/a\",\"token\":\"s3cr\\\"et\"},\"id\":1}", "{\"result\":[]}", 200,
+                new ExchangeTimings());
+        assertEquals("{\"params\":{\"path\":\"/a\",\"token\":\"***\"},\"id\":1}", call.request);
+
+        final OperationRecord login = recent.record("login",
+                "{\"params\":{\"username\":\"u\", \"password\" : \"hunter2\"}}", "{\"result\":[\"s3cret\"]}", 200,
+                new ExchangeTimings());
+        assertEquals("{\"params\":{\"username\":\"u\", \"password\":\"***\"}}", login.request);
+        assertNull(login.response);
+        assertFalse(login.toString().contains("s3cret"));
+    }
+
+
+    @Test
+    public void credentialsCutShortAreMasked() {
+        final JsonRpcWriter writer = new JsonRpcWriter();
+        writer.begin("listFile").param("path", Strings.repeat("p", 40)).param("token", "s3cret\\tail").end(1);
+        final String sent = writer.toString();
+
+        final int cut = sent.indexOf("s3cret") + 3;
+        final OperationRecord record = new RecentOperations(4, cut).record("listFile", writer, "{}", 200,
+                new ExchangeTimings());
+        assertEquals(sent.substring(0, sent.indexOf("\"token\"")) + "\"token\":\"***\"... (" + sent.length() +
+                " chars)", record.request);
+
+        final int inEscape = sent.indexOf("\\") + 1;
+        assertFalse(new RecentOperations(4, inEscape).record("listFile", writer, "{}", 200, new ExchangeTimings())
+                .request.contains("s3cret"));
+    }
+
+
+    @Test
+    public void requestsAreTimedByPhase() throws Exception {
+        final FakeStorage storage = new FakeStorage().addUser("user", "password");
+        storage.makeDirectories("/content");
+        final FakeStorageServer server = new FakeStorageServer(storage).start();
+        final NioTransport nio = new NioTransport(1);
+        final RecentOperations recent = new RecentOperations(16, 64).setSlowThreshold(Duration.millis(50));
+        final EndpointHTTP blocking = new EndpointHTTP(server.getUrl(), "user", "password");
+        final EndpointHTTP multiplexed = new EndpointHTTP(server.getUrl(), "user", "password");
+        blocking.setDiagnostics(recent);
+        multiplexed.setDiagnostics(recent);
+        multiplexed.setTransport(nio);
+        try {
+            blocking.noop();
+            multiplexed.noop();
+            server.getFaults().setLatency(Duration.millis(100));
+            blocking.listFiles("/content");
+            multiplexed.listFiles("/content");
+            server.getFaults().setLatency(Duration.ZERO);
+            try {
+                blocking.deleteFile("/content/missing.txt");
+                fail("Expected the delete to fail");
+            } catch (EndpointException expected) {
+                // recorded all the same
+            }
+        } finally {
+            Closeables.closeQuietly(blocking);
+            Closeables.closeQuietly(multiplexed);
+            nio.close();
+            server.close();
+        }
+
+        final List<OperationRecord> records = recent.snapshot();
+        final List<String> methods = Lists.newArrayList();
+        int slow = 0;
+        for (OperationRecord record : records) {
+            methods.add(record.method);
+            assertEquals(200, record.status);
+            assertTrue(record.toString(), record.connectMillis >= 0 && record.writeMillis >= 0);
+            assertTrue(record.toString(), record.waitMillis >= 0 && record.readMillis >= 0);
+            assertTrue(record.request.length() <= 64 + 32);
+            if ("listFile".equals(record.method)) {
+                assertTrue(record.toString(), record.waitMillis >= 90);
+                slow++;
+            }
+        }
+        assertEquals(2, slow);
+        // Logins and logouts go through the endpoints like any other call
+        assertEquals(Arrays.asList("login", "noop", "login", "noop", "listFile", "listFile", "deleteFile", "logout",
+                "logout"), methods);
+    }
+}
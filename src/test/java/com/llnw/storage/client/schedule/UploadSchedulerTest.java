@@ -0,0 +1,160 @@
+package com.llnw.storage.client.schedule;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.llnw.storage.client.Endpoint;
+import com.llnw.storage.client.EndpointFactory;
+import com.llnw.storage.client.EndpointHTTP;
+import com.llnw.storage.client.EndpointPool;
+import com.llnw.storage.client.metrics.EndpointMetrics;
+import com.llnw.storage.client.testsupport.FakeStorage;
+import com.llnw.storage.client.testsupport.FakeStorageServer;
+import org.apache.commons.io.FileUtils;
+import org.joda.time.Duration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UploadSchedulerTest {
+    private FakeStorage storage;
+    private FakeStorageServer server;
+    private EndpointMetrics metrics;
+    private UploadScheduler scheduler;
+
+
+    @Before
+    public void before() throws IOException {
+        storage = new FakeStorage().addUser("user", "password");
+        storage.makeDirectories("/content");
+        server = new FakeStorageServer(storage).start();
+        metrics = new EndpointMetrics("scheduler");
+        scheduler = new UploadScheduler(new EndpointFactory("127.0.0.1", "user", "password") {
+            @Override
+            public Endpoint create(boolean useFTP) {
+                final EndpointHTTP http = new EndpointHTTP(server.getUrl(), username, password);
+                http.setMetrics(metrics);
+                return http;
+            }
+        }, 1);
+    }
+
+
+    @After
+    public void after() {
+        scheduler.close();
+        server.close();
+    }
+
+
+    @Test
+    public void urgentWorkGoesFirst() throws Exception {
+        final CountDownLatch release = block();
+        final List<String> order = Collections.synchronizedList(Lists.<String>newArrayList());
+        final List<ListenableFuture<Void>> futures = Lists.newArrayList();
+        for (int i = 0; i < 3; i++) {
+            futures.add(scheduler.submit(UploadPriority.BULK, "backfill", 1, record(order, "bulk" + i)));
+        }
+        futures.add(scheduler.submit(UploadPriority.NORMAL, "web", 1, record(order, "normal")));
+        futures.add(scheduler.submit(UploadPriority.URGENT, "web", 1, record(order, "urgent")));
+        assertEquals(3, scheduler.getQueuedCount(UploadPriority.BULK));
+
+        release.countDown();
+        for (ListenableFuture<Void> future : futures) future.get();
+        assertEquals(Lists.newArrayList("urgent", "normal", "bulk0", "bulk1", "bulk2"), order);
+    }
+
+
+    @Test
+    public void tenantsTakeTurns() throws Exception {
+        final CountDownLatch release = block();
+        final List<String> order = Collections.synchronizedList(Lists.<String>newArrayList());
+        final List<ListenableFuture<Void>> futures = Lists.newArrayList();
+        for (int i = 0; i < 4; i++) {
+            futures.add(scheduler.submit(UploadPriority.NORMAL, "big", 1000, record(order, "big")));
+        }
+        for (int i = 0; i < 2; i++) {
+            futures.add(scheduler.submit(UploadPriority.NORMAL, "small", 1000, record(order, "small")));
+        }
+
+        release.countDown();
+        for (ListenableFuture<Void> future : futures) future.get();
+        assertEquals(Lists.newArrayList("big", "small", "big", "small", "big", "big"), order);
+    }
+
+
+    @Test
+    public void urgentUploadPreemptsMultipartJob() throws Exception {
+        server.getFaults().setLatency(Duration.millis(30));
+        final byte[] data = new byte[16 * 64 * 1024];
+        new Random(3).nextBytes(data);
+        final File big = File.createTempFile("scheduler", ".bin");
+        final File small = File.createTempFile("scheduler", ".txt");
+        FileUtils.writeByteArrayToFile(big, data);
+        FileUtils.writeStringToFile(small, "urgent");
+
+        scheduler.setMultipartThreshold(256 * 1024).setMultipartPieceSize(64 * 1024);
+        try {
+            final ListenableFuture<Void> bulk =
+                    scheduler.upload(UploadPriority.BULK, "backfill", big, "/content", "big.bin");
+            while (metrics.operation("piece").getCalls() < 2) Thread.sleep(5);
+
+            scheduler.upload(UploadPriority.URGENT, "web", small, "/content", "small.txt").get();
+            assertFalse(bulk.isDone());
+            assertTrue(metrics.operation("piece").getCalls() < 16);
+
+            bulk.get();
+        } finally {
+            FileUtils.deleteQuietly(big);
+            FileUtils.deleteQuietly(small);
+        }
+
+        assertArrayEquals(data, storage.stat("/content/big.bin").getData());
+        assertEquals("urgent", new String(storage.stat("/content/small.txt").getData(), "UTF-8"));
+    }
+
+
+    /**
+     * Hold the only slot until the latch is released, so what is queued meanwhile runs in scheduling order.
+     */
+    private CountDownLatch block() throws InterruptedException {
+        final CountDownLatch running = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        scheduler.submit(UploadPriority.URGENT, "blocker", 1, new EndpointPool.Operation<Void>() {
+            @Override
+            public Void run(Endpoint endpoint) throws IOException {
+                running.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return null;
+            }
+        });
+        running.await();
+        return release;
+    }
+
+
+    private static EndpointPool.Operation<Void> record(final List<String> order, final String name) {
+        return new EndpointPool.Operation<Void>() {
+            @Override
+            public Void run(Endpoint endpoint) {
+                order.add(name);
+                return null;
+            }
+        };
+    }
+}
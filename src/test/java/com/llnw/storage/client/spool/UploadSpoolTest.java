@@ -0,0 +1,144 @@
+package com.llnw.storage.client.spool;
+
+import com.google.common.io.Files;
+import com.llnw.storage.client.Endpoint;
+import com.llnw.storage.client.EndpointFactory;
+import com.llnw.storage.client.EndpointHTTP;
+import com.llnw.storage.client.EndpointPool;
+import com.llnw.storage.client.testsupport.FakeStorage;
+import com.llnw.storage.client.testsupport.FakeStorageServer;
+import org.apache.commons.io.Charsets;
+import org.apache.commons.io.FileUtils;
+import org.joda.time.Duration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class UploadSpoolTest {
+    private FakeStorage storage;
+    private FakeStorageServer server;
+    private EndpointPool pool;
+    private File directory;
+
+
+    @Before
+    public void before() throws IOException {
+        storage = new FakeStorage().addUser("user", "password");
+        storage.makeDirectories("/spooled");
+        server = new FakeStorageServer(storage).start();
+        pool = new EndpointPool(new EndpointFactory("127.0.0.1", "user", "password") {
+            @Override
+            public Endpoint create(boolean useFTP) {
+                return new EndpointHTTP(server.getUrl(), username, password);
+            }
+        }, false, 3);
+        directory = Files.createTempDir();
+    }
+
+
+    @After
+    public void after() {
+        pool.close();
+        server.close();
+        FileUtils.deleteQuietly(directory);
+    }
+
+
+    @Test
+    public void filesAndBuffersAreUploaded() throws Exception {
+        final File file = File.createTempFile("spool", ".txt");
+        FileUtils.writeStringToFile(file, "from a file", Charsets.UTF_8);
+
+        final UploadSpool spool = new UploadSpool(pool, directory, 1024 * 1024).start();
+        try {
+            spool.submit(file, "/spooled", "file.txt");
+            spool.submit(ByteBuffer.wrap("from a buffer".getBytes(Charsets.UTF_8)), "/spooled", "buffer.txt");
+            spool.transfer(file, "/spooled", "moved.txt");
+            assertFalse(file.exists());
+
+            assertTrue(spool.flush(Duration.standardSeconds(10)));
+            assertEquals(3, spool.getUploadedCount());
+            assertEquals(0, spool.getPendingBytes());
+        } finally {
+            spool.close();
+        }
+
+        assertArrayEquals("from a file".getBytes(Charsets.UTF_8), storage.stat("/spooled/file.txt").getData());
+        assertArrayEquals("from a file".getBytes(Charsets.UTF_8), storage.stat("/spooled/moved.txt").getData());
+        assertArrayEquals("from a buffer".getBytes(Charsets.UTF_8), storage.stat("/spooled/buffer.txt").getData());
+    }
+
+
+    @Test
+    public void pendingEntriesSurviveRestart() throws Exception {
+        server.getFaults().setErrorRate(1.0);
+        final UploadSpool first = new UploadSpool(pool, directory, 1024 * 1024)
+                .setRetryBackoff(Duration.standardMinutes(1)).start();
+        for (int i = 0; i < 5; i++) {
+            first.submit(ByteBuffer.wrap(new byte[] { (byte)i }), "/spooled", "entry" + i);
+        }
+        assertFalse(first.flush(Duration.millis(200)));
+        first.close();
+        assertNull(storage.stat("/spooled/entry0"));
+
+        server.getFaults().setErrorRate(0);
+        final UploadSpool second = new UploadSpool(pool, directory, 1024 * 1024).start();
+        try {
+            assertEquals(5, second.getPendingCount());
+            assertTrue(second.flush(Duration.standardSeconds(10)));
+        } finally {
+            second.close();
+        }
+        for (int i = 0; i < 5; i++) {
+            assertArrayEquals(new byte[] { (byte)i }, storage.stat("/spooled/entry" + i).getData());
+        }
+    }
+
+
+    @Test
+    public void exhaustedRetriesAreMovedAside() throws Exception {
+        server.getFaults().setErrorRate(1.0);
+        final UploadSpool spool = new UploadSpool(pool, directory, 1024 * 1024)
+                .setMaxAttempts(2).setRetryBackoff(Duration.millis(10)).start();
+        try {
+            spool.submit(ByteBuffer.wrap(new byte[] { 42 }), "/spooled", "doomed");
+            assertTrue(spool.flush(Duration.standardSeconds(10)));
+            assertEquals(1, spool.getFailedCount());
+            assertEquals(1, new File(directory, "failed").list().length);
+        } finally {
+            spool.close();
+        }
+    }
+
+
+    @Test
+    public void failedEntriesAreKeptWithinTheirBound() throws Exception {
+        server.getFaults().setErrorRate(1.0);
+        final UploadSpool spool = new UploadSpool(pool, directory, 1024 * 1024)
+                .setMaxFailedBytes(20).setMaxAttempts(1).setWorkers(1).start();
+        try {
+            for (int i = 0; i < 5; i++) {
+                spool.submit(ByteBuffer.wrap(new byte[10]), "/spooled", "doomed" + i);
+                assertTrue(spool.flush(Duration.standardSeconds(10)));
+            }
+            assertEquals(5, spool.getFailedCount());
+        } finally {
+            spool.close();
+        }
+
+        final String[] kept = new File(directory, "failed").list();
+        Arrays.sort(kept);
+        assertArrayEquals(new String[] { "4-doomed3", "5-doomed4" }, kept);
+    }
+}
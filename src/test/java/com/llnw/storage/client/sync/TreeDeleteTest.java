@@ -0,0 +1,122 @@
+package com.llnw.storage.client.sync;
+
+import com.llnw.storage.client.Endpoint;
+import com.llnw.storage.client.EndpointFTP;
+import com.llnw.storage.client.EndpointFactory;
+import com.llnw.storage.client.EndpointHTTP;
+import com.llnw.storage.client.EndpointPool;
+import com.llnw.storage.client.testsupport.FakeFtpServer;
+import com.llnw.storage.client.testsupport.FakeStorage;
+import com.llnw.storage.client.testsupport.FakeStorageServer;
+import org.joda.time.Duration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class TreeDeleteTest {
+    private static final long OLD = System.currentTimeMillis() / 1000 - 30 * 86400;
+    private static final long NEW = System.currentTimeMillis() / 1000;
+
+    private FakeStorage storage;
+    private FakeStorageServer httpServer;
+    private FakeFtpServer ftpServer;
+
+
+    @Before
+    public void before() throws IOException {
+        storage = new FakeStorage().addUser("user", "password");
+        httpServer = new FakeStorageServer(storage).start();
+        ftpServer = new FakeFtpServer(storage, httpServer.getFaults()).start();
+
+        storage.makeDirectories("/logs/2013/01");
+        storage.makeDirectories("/logs/2013/02");
+        storage.makeDirectories("/logs/empty");
+        for (int i = 0; i < 20; i++) {
+            storage.putFile("/logs/2013/01/old" + i + ".log", new byte[] { 1 }, OLD);
+        }
+        storage.putFile("/logs/2013/02/old.log", new byte[] { 2 }, OLD);
+        storage.putFile("/logs/2013/02/new.log", new byte[] { 3 }, NEW);
+        storage.putFile("/logs/2013/02/old.txt", new byte[] { 4 }, OLD);
+        storage.putFile("/logs/top.log", new byte[] { 5 }, NEW);
+    }
+
+
+    @After
+    public void after() {
+        httpServer.close();
+        ftpServer.close();
+    }
+
+
+    @Test
+    public void deleteEverything() throws Exception {
+        final EndpointPool pool = new EndpointPool(factory(), false, 4);
+        try {
+            final TreeStats stats = new TreeDelete(pool).delete("/logs");
+            assertEquals(0, stats.getFailures());
+            assertEquals(24, stats.getFilesDeleted());
+            assertEquals(5, stats.getDirectoriesDeleted());
+            assertNull(storage.stat("/logs"));
+            assertEquals(0, storage.fileCount());
+        } finally {
+            pool.close();
+        }
+    }
+
+
+    @Test
+    public void pruneByAge() throws Exception {
+        final EndpointPool pool = new EndpointPool(factory(), false, 4);
+        try {
+            final TreeStats stats = new TreeDelete(pool).setOlderThan(Duration.standardDays(7)).delete("/logs");
+            assertEquals(0, stats.getFailures());
+            assertEquals(22, stats.getFilesDeleted());
+            assertEquals(2, stats.getFilesSkipped());
+            assertNull(storage.stat("/logs/2013/01"));
+            assertNull(storage.stat("/logs/empty"));
+            assertNotNull(storage.stat("/logs/2013/02/new.log"));
+            assertNotNull(storage.stat("/logs/top.log"));
+        } finally {
+            pool.close();
+        }
+    }
+
+
+    @Test
+    public void pruneByPatternOverFtp() throws Exception {
+        final EndpointPool pool = new EndpointPool(factory(), true, 3);
+        try {
+            final TreeStats stats = new TreeDelete(pool)
+                    .setNamePattern(Pattern.compile(".*\\.txt"))
+                    .setRemoveEmptyDirectories(false)
+                    .delete("/logs");
+            assertEquals(0, stats.getFailures());
+            assertEquals(1, stats.getFilesDeleted());
+            assertEquals(0, stats.getDirectoriesDeleted());
+            assertNull(storage.stat("/logs/2013/02/old.txt"));
+            assertNotNull(storage.stat("/logs/empty"));
+            assertEquals(23, storage.fileCount());
+        } finally {
+            pool.close();
+        }
+    }
+
+
+    private EndpointFactory factory() {
+        return new EndpointFactory("127.0.0.1", "user", "password") {
+            @Override
+            public Endpoint create(boolean useFTP) {
+                return useFTP ?
+                        new EndpointFTP(ftpServer.getHost(), ftpServer.getPort(), username, password) :
+                        new EndpointHTTP(httpServer.getUrl(), username, password);
+            }
+        };
+    }
+}
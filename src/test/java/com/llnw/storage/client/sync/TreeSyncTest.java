@@ -0,0 +1,197 @@
+package com.llnw.storage.client.sync;
+
+import com.google.common.io.Files;
+import com.llnw.storage.client.Endpoint;
+import com.llnw.storage.client.EndpointFTP;
+import com.llnw.storage.client.EndpointFactory;
+import com.llnw.storage.client.EndpointHTTP;
+import com.llnw.storage.client.EndpointPool;
+import com.llnw.storage.client.MultipartStatus;
+import com.llnw.storage.client.io.ChecksumCache;
+import com.llnw.storage.client.metrics.EndpointMetrics;
+import com.llnw.storage.client.testsupport.FakeFtpServer;
+import com.llnw.storage.client.testsupport.FakeStorage;
+import com.llnw.storage.client.testsupport.FakeStorageServer;
+import org.apache.commons.io.Charsets;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class TreeSyncTest {
+    private FakeStorage storage;
+    private FakeStorageServer httpServer;
+    private FakeFtpServer ftpServer;
+    private File local;
+
+
+    @Before
+    public void before() throws IOException {
+        storage = new FakeStorage().addUser("user", "password");
+        httpServer = new FakeStorageServer(storage).start();
+        ftpServer = new FakeFtpServer(storage, httpServer.getFaults()).start();
+
+        local = Files.createTempDir();
+        write("top.txt", "top");
+        write("a/one.txt", "one");
+        write("a/b/two.txt", "two two");
+        write("a/b/c/three.txt", "three three three");
+        write("d/big.bin", new String(new char[5000]).replace('\0', 'x'));
+        assertTrue(new File(local, "empty/nested").mkdirs());
+    }
+
+
+    @After
+    public void after() {
+        httpServer.close();
+        ftpServer.close();
+        FileUtils.deleteQuietly(local);
+    }
+
+
+    @Test
+    public void syncThenResync() throws Exception {
+        final EndpointPool pool = new EndpointPool(factory(), false, 4);
+        try {
+            final TreeStats first = new TreeSync(pool).sync(local, "/mirror");
+            assertEquals(0, first.getFailures());
+            assertEquals(5, first.getFilesUploaded());
+            assertRemoteMatches();
+            assertEquals(1, storage.countMultipart(MultipartStatus.SUCCESS)); // big.bin, promoted by the endpoint
+            assertNotNull(storage.stat("/mirror/empty/nested"));
+
+            write("a/b/two.txt", "two changed");
+            final TreeStats second = new TreeSync(pool).sync(local, "/mirror");
+            assertEquals(0, second.getFailures());
+            assertEquals(1, second.getFilesUploaded());
+            assertEquals(4, second.getFilesSkipped());
+            assertEquals(0, second.getDirectoriesCreated());
+            assertRemoteMatches();
+        } finally {
+            pool.close();
+        }
+    }
+
+
+    @Test
+    public void checksumsDecideBetweenSameSizedFiles() throws Exception {
+        final EndpointPool pool = new EndpointPool(factory(), false, 4);
+        try {
+            assertEquals(5, new TreeSync(pool).sync(local, "/mirror").getFilesUploaded());
+
+            // Rewritten with the same bytes but newer, and changed to other bytes of the same size but older
+            assertTrue(new File(local, "top.txt").setLastModified(System.currentTimeMillis() + 3600 * 1000));
+            write("a/one.txt", "eno");
+            assertTrue(new File(local, "a/one.txt").setLastModified(1000));
+
+            final TreeStats stats = new TreeSync(pool).setCompareChecksums(true, new ChecksumCache(100))
+                    .sync(local, "/mirror");
+            assertEquals(0, stats.getFailures());
+            assertEquals(1, stats.getFilesUploaded());
+            assertEquals(4, stats.getFilesSkipped());
+            assertRemoteMatches();
+        } finally {
+            pool.close();
+        }
+    }
+
+
+    @Test
+    public void journalSkipsFinishedFiles() throws Exception {
+        final File journal = File.createTempFile("sync", ".journal");
+        final EndpointPool pool = new EndpointPool(factory(), true, 2);
+        try {
+            final TreeStats first = new TreeSync(pool).setJournal(journal).sync(local, "/ftp");
+            assertEquals(0, first.getFailures());
+            assertEquals(5, first.getFilesUploaded());
+            assertRemoteMatches("/ftp");
+
+            // FTP listings only have day resolution, the journal is what makes the second run cheap
+            final TreeStats second = new TreeSync(pool).setJournal(journal).sync(local, "/ftp");
+            assertEquals(0, second.getFilesUploaded());
+            assertEquals(5, second.getFilesSkipped());
+        } finally {
+            pool.close();
+            FileUtils.deleteQuietly(journal);
+        }
+    }
+
+
+    @Test
+    public void failuresDontStopTheRest() throws Exception {
+        storage.makeDirectories("/clash/top.txt"); // a directory where a file should go
+        final EndpointPool pool = new EndpointPool(factory(), false, 3);
+        try {
+            final TreeStats stats = new TreeSync(pool).sync(local, "/clash");
+            assertEquals(1, stats.getFailures());
+            assertEquals(4, stats.getFilesUploaded());
+        } finally {
+            pool.close();
+        }
+    }
+
+
+    @Test
+    public void newTreeIsMadeWithOneCallPerLeaf() throws Exception {
+        final File deep = Files.createTempDir();
+        final EndpointFactory factory = factory();
+        final EndpointMetrics metrics = new EndpointMetrics("tree");
+        factory.setMetrics(metrics);
+        final EndpointPool pool = new EndpointPool(factory, false, 4);
+        try {
+            FileUtils.writeStringToFile(new File(deep, "a/b/c/d/leaf.txt"), "leaf", Charsets.UTF_8);
+            final TreeStats stats = new TreeSync(pool).sync(deep, "/deep");
+            assertEquals(0, stats.getFailures());
+            assertEquals(4, stats.getDirectoriesCreated());
+            assertEquals(1, stats.getFilesUploaded());
+            assertEquals(2, metrics.snapshot().get("makeDir2").calls); // the root, then the leaf with its parents
+            assertNotNull(storage.stat("/deep/a/b/c/d/leaf.txt"));
+        } finally {
+            pool.close();
+            FileUtils.deleteQuietly(deep);
+        }
+    }
+
+
+    private void assertRemoteMatches() throws IOException {
+        assertRemoteMatches("/mirror");
+    }
+
+
+    private void assertRemoteMatches(String root) throws IOException {
+        for (String path : new String[] { "top.txt", "a/one.txt", "a/b/two.txt", "a/b/c/three.txt", "d/big.bin" }) {
+            final FakeStorage.Entry entry = storage.stat(root + "/" + path);
+            assertNotNull(path, entry);
+            assertArrayEquals(path, FileUtils.readFileToByteArray(new File(local, path)), entry.getData());
+        }
+    }
+
+
+    private void write(String path, String content) throws IOException {
+        final File file = new File(local, path);
+        FileUtils.writeStringToFile(file, content, Charsets.UTF_8);
+    }
+
+
+    private EndpointFactory factory() {
+        return new EndpointFactory("127.0.0.1", "user", "password") {
+            @Override
+            public Endpoint create(boolean useFTP) {
+                if (useFTP) return new EndpointFTP(ftpServer.getHost(), ftpServer.getPort(), username, password);
+                final EndpointHTTP http = new EndpointHTTP(httpServer.getUrl(), username, password);
+                http.setMetrics(getMetrics());
+                http.setMultipartThreshold(4096);
+                http.setMultipartPieceSize(2048);
+                return http;
+            }
+        };
+    }
+}
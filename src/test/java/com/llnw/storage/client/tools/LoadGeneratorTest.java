@@ -0,0 +1,81 @@
+package com.llnw.storage.client.tools;
+
+import com.llnw.storage.client.MultipartStatus;
+import com.llnw.storage.client.testsupport.FakeStorage;
+import com.llnw.storage.client.testsupport.FakeStorageServer;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LoadGeneratorTest {
+
+    @Test
+    public void shortRunReportsCountsAndPercentiles() throws Exception {
+        final FakeStorage storage = new FakeStorage().addUser("user", "password");
+        final FakeStorageServer server = new FakeStorageServer(storage).start();
+        server.getFaults().setChecksumErrorRate(0.3);
+        final LoadGenerator.Report report;
+        try {
+            report = new LoadGenerator(LoadGenerator.Options.parse(new String[] {
+                    "--url", server.getUrl().toString(), "--user", "user", "--password", "password",
+                    "--workers", "2", "--mix", "uploadPart=1,exists=1", "--size", "65536", "--part-size", "16384",
+                    "--warmup", "0", "--duration", "1" })).run();
+        } finally {
+            server.close();
+        }
+
+        final LoadGenerator.OperationReport parts = report.operations.get("uploadPart");
+        assertTrue("some pieces should have failed their checksum", parts.failures > 0);
+        assertTrue("some uploads should have gone through", parts.calls > parts.failures);
+        long errors = 0;
+        for (long count : parts.errors.values()) errors += count;
+        assertEquals(parts.failures, errors);
+        assertEquals(0, report.operations.get("exists").failures);
+
+        for (LoadGenerator.OperationReport r : report.operations.values()) {
+            assertTrue(r.p50Millis <= r.p95Millis && r.p95Millis <= r.p99Millis && r.p99Millis <= r.maxMillis);
+            assertTrue(r.p50Millis > 0);
+        }
+
+        // Every failed upload was aborted rather than left open on the server
+        assertEquals(0, storage.countMultipart(MultipartStatus.NEW) + storage.countMultipart(MultipartStatus.READY));
+        assertTrue(storage.countMultipart(MultipartStatus.DELETED) > 0);
+
+        final ByteArrayOutputStream text = new ByteArrayOutputStream();
+        report.print(new PrintStream(text, true));
+        final String printed = text.toString();
+        assertTrue(printed, printed.startsWith("2 workers, "));
+        assertTrue(printed, printed.matches("(?s).*\\nuploadPart +" + parts.calls + " .* " + parts.failures + " .*"));
+    }
+
+
+    @Test
+    public void deletesOnlyWhatWasUploaded() throws Exception {
+        final FakeStorage storage = new FakeStorage().addUser("user", "password");
+        final FakeStorageServer server = new FakeStorageServer(storage).start();
+        final LoadGenerator.Report report;
+        try {
+            report = new LoadGenerator(LoadGenerator.Options.parse(new String[] {
+                    "--url", server.getUrl().toString(), "--user", "user", "--password", "password",
+                    "--workers", "2", "--mix", "upload=1,delete=9", "--size", "1024",
+                    "--warmup", "0", "--duration", "1" })).run();
+        } finally {
+            server.close();
+        }
+
+        final LoadGenerator.OperationReport uploads = report.operations.get("upload");
+        final LoadGenerator.OperationReport deletes = report.operations.get("delete");
+        assertEquals(0, deletes.failures);
+        assertTrue(deletes.calls + " deletes of " + uploads.calls + " uploads", deletes.calls <= uploads.calls);
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mixWithNothingToDeleteIsRejected() {
+        new LoadGenerator(LoadGenerator.Options.parse(new String[] { "--standin", "--mix", "exists=1,delete=1" }));
+    }
+}
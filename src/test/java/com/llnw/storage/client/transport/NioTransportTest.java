@@ -0,0 +1,150 @@
+package com.llnw.storage.client.transport;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Closeables;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.llnw.storage.client.EndpointHTTP;
+import com.llnw.storage.client.io.ByteBufferEntity;
+import com.llnw.storage.client.testsupport.FakeStorage;
+import com.llnw.storage.client.testsupport.FakeStorageServer;
+import org.apache.commons.io.Charsets;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.StringEntity;
+import org.joda.time.Duration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class NioTransportTest {
+    private FakeStorage storage;
+    private FakeStorageServer server;
+    private NioTransport transport;
+
+
+    @Before
+    public void before() throws IOException {
+        storage = new FakeStorage().addUser("user", "password");
+        storage.makeDirectories("/content");
+        server = new FakeStorageServer(storage).start();
+        transport = new NioTransport(2);
+    }
+
+
+    @After
+    public void after() {
+        transport.close();
+        server.close();
+    }
+
+
+    @Test
+    public void endpointOverNio() throws Exception {
+        final byte[] data = new byte[3 * 1024 * 1024 + 17];
+        new Random(7).nextBytes(data);
+        final File file = File.createTempFile("nio", ".bin");
+        FileUtils.writeByteArrayToFile(file, data);
+
+        final EndpointHTTP http = new EndpointHTTP(server.getUrl(), "user", "password");
+        http.setTransport(transport);
+        try {
+            http.makeDirectory("/content/nio");
+            http.upload(file, "/content/nio", "streamed.bin", null);
+            http.upload(ByteBuffer.wrap(data), "/content/nio", "buffer.bin", null);
+
+            http.setMultipartThreshold(1024 * 1024);
+            http.setMultipartPieceSize(512 * 1024);
+            http.upload(file, "/content/nio", "pieces.bin", null);
+
+            assertEquals(3, http.listFiles("/content/nio").size());
+            http.deleteFile("/content/nio/buffer.bin");
+            assertFalse(http.exists("/content/nio/buffer.bin"));
+        } finally {
+            Closeables.closeQuietly(http);
+            FileUtils.deleteQuietly(file);
+        }
+
+        assertArrayEquals(data, storage.stat("/content/nio/streamed.bin").getData());
+        assertArrayEquals(data, storage.stat("/content/nio/pieces.bin").getData());
+    }
+
+
+    @Test
+    public void manyRequestsOnFewThreads() throws Exception {
+        transport.setMaxConnectionsPerRoute(16);
+        final String token = storage.login("user", "password");
+        final String mpid = storage.createMultipart("/content/many.bin");
+
+        final List<Future<HttpResponse>> calls = Lists.newArrayList();
+        final List<Future<HttpResponse>> pieces = Lists.newArrayList();
+        for (int i = 0; i < 1000; i++) {
+            final HttpPost rpc = new HttpPost(server.getUrl() + "/jsonrpc");
+            rpc.setEntity(new StringEntity("{\"jsonrpc\":\"2.0\",\"method\":\"noop\",\"params\":{\"token\":\"" + token +
+                    "\"},\"id\":" + i + "}"));
+            calls.add(transport.submit(rpc));
+
+            if (i < 200) {
+                final HttpPost piece = new HttpPost(server.getUrl() + "/multipart/piece");
+                piece.addHeader("X-Agile-Authorization", token);
+                piece.addHeader("X-Agile-Multipart", mpid);
+                piece.addHeader("X-Agile-Part", Integer.toString(i + 1));
+                piece.setEntity(new ByteBufferEntity(new ByteBuffer[] { ByteBuffer.allocateDirect(4096) }, null));
+                pieces.add(transport.submit(piece));
+            }
+        }
+        assertTrue(transport.getOpenConnections() <= 16);
+
+        for (Future<HttpResponse> call : calls) {
+            final HttpResponse response = call.get();
+            assertEquals(200, response.getStatusLine().getStatusCode());
+            final JsonObject body = new JsonParser().parse(
+                    IOUtils.toString(response.getEntity().getContent(), Charsets.UTF_8)).getAsJsonObject();
+            assertEquals(0, body.get("result").getAsInt());
+        }
+        for (Future<HttpResponse> piece : pieces) {
+            assertEquals("0", piece.get().getFirstHeader("X-Agile-Status").getValue());
+        }
+        assertEquals(200, storage.completeMultipart(mpid)); // the number of pieces
+    }
+
+
+    @Test
+    public void requestsQueuedForAConnectionTimeOut() throws Exception {
+        final NioTransport stalled = new NioTransport(1).setTimeout(Duration.millis(500));
+        stalled.setMaxConnectionsPerRoute(1);
+        server.getFaults().setLatency(Duration.standardSeconds(3));
+        try {
+            final long start = System.currentTimeMillis();
+            stalled.submit(new HttpPost(server.getUrl() + "/jsonrpc"));
+            final Future<HttpResponse> queued = stalled.submit(new HttpPost(server.getUrl() + "/jsonrpc"));
+            try {
+                queued.get();
+                fail("Expected the queued request to time out");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause().toString(), e.getCause() instanceof SocketTimeoutException);
+                assertTrue(e.getCause().getMessage(), e.getCause().getMessage().endsWith("for a connection"));
+            }
+            assertTrue(System.currentTimeMillis() - start < 3000);
+        } finally {
+            stalled.close();
+        }
+    }
+}